@@ -7,6 +7,8 @@
 
 using System;
 using AwesomeAssertions;
+using Microsoft.TeamFoundation.Framework.Client;
+using Microsoft.TeamFoundation.Framework.Common;
 using NSubstitute;
 using SonarSource.TfsAnnotate;
 using Xunit;
@@ -24,7 +26,7 @@ namespace SonarTfsAnnotate.Tests
             var sut = new AccountCache(foundationServiceProvider);
 
             var email = "user@github.com";
-            var result = sut.BuildUserName(LocalServer, email);
+            var result = sut.BuildUserName(LocalServer, email, new AccountCache.Statistics());
 
             result.Should().Be(email);
         }
@@ -37,9 +39,64 @@ namespace SonarTfsAnnotate.Tests
 
             string email = "someuser@outlook.com";
             var accountName = $"windows live id/{email}";
-            var result = sut.BuildUserName(LocalServer, accountName);
+            var result = sut.BuildUserName(LocalServer, accountName, new AccountCache.Statistics());
 
             result.Should().Be(email);
         }
+
+        [Fact]
+        public void BuildUserName_Preloaded_HitWithoutLookup()
+        {
+            var foundationServiceProvider = Substitute.For<IFoundationServiceProvider>();
+            var sut = new AccountCache(foundationServiceProvider);
+            var statistics = new AccountCache.Statistics();
+
+            sut.Preload(LocalServer, "DOMAIN\\user", "user@example.com", new DateTime(2024, 1, 1));
+            var result = sut.BuildUserName(LocalServer, "DOMAIN\\user", statistics);
+
+            result.Should().Be("user@example.com");
+            statistics.Hits.Should().Be(1);
+            statistics.Misses.Should().Be(0);
+            foundationServiceProvider.DidNotReceive().GetIdentityService(Arg.Any<Uri>());
+            sut.Resolved().Should().BeEmpty();
+        }
+
+        [Fact]
+        public void BuildUserName_Unknown_LookedUpOnceAndResolved()
+        {
+            var foundationServiceProvider = Substitute.For<IFoundationServiceProvider>();
+            var identityService = Substitute.For<IIdentityManagementService>();
+            identityService.ReadIdentity(Arg.Any<IdentitySearchFactor>(), Arg.Any<string>(), Arg.Any<MembershipQuery>(),
+                Arg.Any<ReadIdentityOptions>()).Returns((TeamFoundationIdentity)null);
+            foundationServiceProvider.GetIdentityService(LocalServer).Returns(identityService);
+            var sut = new AccountCache(foundationServiceProvider);
+            var statistics = new AccountCache.Statistics();
+
+            sut.BuildUserName(LocalServer, "DOMAIN\\user", statistics);
+            var result = sut.BuildUserName(LocalServer, "DOMAIN\\user", statistics);
+
+            result.Should().Be("DOMAIN\\user");
+            statistics.Hits.Should().Be(1);
+            statistics.Misses.Should().Be(1);
+            foundationServiceProvider.Received(1).GetIdentityService(LocalServer);
+            var resolved = sut.Resolved();
+            resolved.Should().HaveCount(1);
+            resolved[0].Key.Should().Be(Tuple.Create(LocalServer, "DOMAIN\\user"));
+            resolved[0].Value.UserName.Should().Be("DOMAIN\\user");
+        }
+
+        [Fact]
+        public void Preload_AlreadyResolved_Kept()
+        {
+            var foundationServiceProvider = Substitute.For<IFoundationServiceProvider>();
+            foundationServiceProvider.GetIdentityService(LocalServer).Returns(Substitute.For<IIdentityManagementService>());
+            var sut = new AccountCache(foundationServiceProvider);
+
+            sut.BuildUserName(LocalServer, "DOMAIN\\user", new AccountCache.Statistics());
+            sut.Preload(LocalServer, "DOMAIN\\user", "stale@example.com", new DateTime(2024, 1, 1));
+
+            sut.Resolved().Should().HaveCount(1);
+            sut.BuildUserName(LocalServer, "DOMAIN\\user", new AccountCache.Statistics()).Should().Be("DOMAIN\\user");
+        }
     }
 }
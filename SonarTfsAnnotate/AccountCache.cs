@@ -7,6 +7,7 @@
 
 using System;
 using System.Collections.Generic;
+using System.Diagnostics;
 using System.Linq;
 using System.Text.RegularExpressions;
 using Microsoft.TeamFoundation.Framework.Common;
@@ -14,22 +15,23 @@ using Microsoft.TeamFoundation.Framework.Common;
 namespace SonarSource.TfsAnnotate
 {
     /// <summary>
-    ///     Implements a cache for account identifiers
+    ///     Implements a cache for account identifiers. The plugin preloads the accounts resolved by previous
+    ///     analyses, and stores the accounts resolved through the identity service for the next analyses.
     /// </summary>
     internal class AccountCache
     {
         private static readonly Regex LiveIdExpression = new Regex("windows live id/");
 
         private readonly IFoundationServiceProvider foundationServiceProvider;
-        private readonly IDictionary<Tuple<Uri, string>, string> emailCache =
-            new Dictionary<Tuple<Uri, string>, string>();
+        private readonly IDictionary<Tuple<Uri, string>, Account> emailCache =
+            new Dictionary<Tuple<Uri, string>, Account>();
 
         public AccountCache(IFoundationServiceProvider foundationServiceProvider)
         {
             this.foundationServiceProvider = foundationServiceProvider;
         }
 
-        public string BuildUserName(Uri serverUri, string accountName)
+        public string BuildUserName(Uri serverUri, string accountName, Statistics statistics)
         {
             var trimmedUserName = LiveIdExpression.Replace(accountName, string.Empty);
             if (IsEmail(trimmedUserName))
@@ -39,44 +41,114 @@ namespace SonarSource.TfsAnnotate
             }
 
             var cacheKey = Tuple.Create(serverUri, accountName);
-            if (!this.emailCache.TryGetValue(cacheKey, out string result))
+            Account account;
+            bool cached;
+            lock (this.emailCache)
             {
-                var service = this.foundationServiceProvider.GetIdentityService(serverUri);
-                var identity = service.ReadIdentity(
-                    IdentitySearchFactor.AccountName,
-                    accountName,
-                    MembershipQuery.None,
-                    ReadIdentityOptions.ExtendedProperties | ReadIdentityOptions.IncludeReadFromSource);
-
-                if (identity == null)
-                {
-                    result = accountName;
-                }
-                else
+                // shared by the sessions of a daemon
+                cached = this.emailCache.TryGetValue(cacheKey, out account);
+            }
+
+            if (cached)
+            {
+                statistics.Hits++;
+                return account.UserName;
+            }
+
+            string result;
+            var stopwatch = Stopwatch.StartNew();
+            var service = this.foundationServiceProvider.GetIdentityService(serverUri);
+            var identity = service.ReadIdentity(
+                IdentitySearchFactor.AccountName,
+                accountName,
+                MembershipQuery.None,
+                ReadIdentityOptions.ExtendedProperties | ReadIdentityOptions.IncludeReadFromSource);
+
+            if (identity == null)
+            {
+                result = accountName;
+            }
+            else
+            {
+                // ConfirmedNotificationAddress is set on the TFS profile itself
+                result = identity.GetAttribute("ConfirmedNotificationAddress", string.Empty);
+                if (!IsEmail(result))
                 {
-                    // ConfirmedNotificationAddress is set on the TFS profile itself
-                    result = identity.GetAttribute("ConfirmedNotificationAddress", string.Empty);
+                    // Mail is supposedly fetched from AD
+                    result = identity.GetAttribute("Mail", accountName);
                     if (!IsEmail(result))
                     {
-                        // Mail is supposedly fetched from AD
-                        result = identity.GetAttribute("Mail", accountName);
-                        if (!IsEmail(result))
-                        {
-                            // Codeplex might return non-valid email addresses
-                            result = accountName;
-                        }
+                        // Codeplex might return non-valid email addresses
+                        result = accountName;
                     }
                 }
+            }
 
-                this.emailCache[cacheKey] = result;
+            statistics.Misses++;
+            statistics.LookupTime += stopwatch.Elapsed;
+            lock (this.emailCache)
+            {
+                this.emailCache[cacheKey] = new Account(result, DateTime.UtcNow, false);
             }
 
             return result;
         }
 
+        /// <summary>
+        ///     Adds an account resolved by a previous analysis, unless this process resolved it already.
+        /// </summary>
+        public void Preload(Uri serverUri, string accountName, string userName, DateTime resolved)
+        {
+            var cacheKey = Tuple.Create(serverUri, accountName);
+            lock (this.emailCache)
+            {
+                if (!this.emailCache.ContainsKey(cacheKey))
+                {
+                    this.emailCache[cacheKey] = new Account(userName, resolved, true);
+                }
+            }
+        }
+
+        /// <returns>the accounts this process resolved through the identity service, keyed by collection and account</returns>
+        public IList<KeyValuePair<Tuple<Uri, string>, Account>> Resolved()
+        {
+            lock (this.emailCache)
+            {
+                return this.emailCache.Where(entry => !entry.Value.Preloaded).ToList();
+            }
+        }
+
         private static bool IsEmail(string input)
         {
             return input.Contains('@');
         }
+
+        internal sealed class Account
+        {
+            public Account(string userName, DateTime resolved, bool preloaded)
+            {
+                UserName = userName;
+                Resolved = resolved;
+                Preloaded = preloaded;
+            }
+
+            public string UserName { get; }
+
+            public DateTime Resolved { get; }
+
+            public bool Preloaded { get; }
+        }
+
+        /// <summary>
+        ///     Counts the lookups of one session, as the cache is shared by the sessions of a daemon.
+        /// </summary>
+        internal sealed class Statistics
+        {
+            public int Hits { get; set; }
+
+            public int Misses { get; set; }
+
+            public TimeSpan LookupTime { get; set; }
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,573 @@
+﻿/*
+ * SonarQube :: SCM :: TFVC :: Plugin
+ * Copyright (c) SonarSource SA and Microsoft Corporation.  All rights reserved.
+ *
+ * Licensed under the MIT License. See License.txt in the project root for license information.
+ */
+
+using System;
+using System.Collections.Generic;
+using System.IO;
+using Microsoft.TeamFoundation.VersionControl.Client;
+
+namespace SonarSource.TfsAnnotate
+{
+    /// <summary>
+    ///     Implements the line based protocol spoken with the plugin: credentials, collection URI, then one request
+    ///     per line until an empty line. The same session runs on the console or on a daemon connection.
+    /// </summary>
+    internal sealed class AnnotationSession
+    {
+        private const string CompactFormatRequest = "?format compact";
+        private const string ChangesRequest = "?changes ";
+        private const string ChangesSinceRequest = "?changes since ";
+        private const string ContentRequest = "?content ";
+        private const string VersionRequest = "?version ";
+        private const string WorkspacesRequest = "?workspaces";
+        private const string AccountsRequest = "?accounts";
+        private const string AccountRequest = "?account ";
+        private const string ResolvedAccountsRequest = "?accounts resolved";
+        private static readonly DateTime Epoch = new DateTime(1970, 1, 1);
+
+        private readonly TextReader input;
+        private readonly TextWriter output;
+        private readonly TextWriter error;
+        private readonly ConnectionCache connections;
+        private readonly AccountCache.Statistics accountStatistics = new AccountCache.Statistics();
+        private Uri serverUri;
+        private bool compactFormat;
+
+        public AnnotationSession(TextReader input, TextWriter output, TextWriter error, ConnectionCache connections)
+        {
+            this.input = input;
+            this.output = output;
+            this.error = error;
+            this.connections = connections;
+        }
+
+        /// <returns>the exit code of the annotator</returns>
+        public int Run()
+        {
+            try
+            {
+                output.WriteLine("Enter your credentials - username, password, PAT (three separate rows):");
+                string username = ReadLine();
+                string password = ReadLine();
+                string pat = ReadLine();
+
+                var connection = connections.Get(username, password, pat, output);
+
+                output.WriteLine("Enter the Collection URI:");
+                string serverUriString = ReadLine();
+
+                if (!string.IsNullOrEmpty(serverUriString))
+                {
+                    if (!SetServerUri(serverUriString))
+                    {
+                        return 1;
+                    }
+                }
+
+                var foundationServiceProvider = connection.FoundationServiceProvider;
+                var cache = connection.AccountCache;
+                if (serverUri != null)
+                {
+                    if (!UpdateWorkspaceCache(foundationServiceProvider))
+                    {
+                        return 1;
+                    }
+                }
+
+                output.WriteLine("Enter the paths to annotate:");
+
+                while (true)
+                {
+                    var path = ReadLine();
+                    if (string.IsNullOrWhiteSpace(path))
+                    {
+                        break;
+                    }
+
+                    try
+                    {
+                        output.WriteLine(path);
+
+                        if (path == CompactFormatRequest)
+                        {
+                            compactFormat = true;
+                            output.WriteLine("FormatAccepted");
+                            continue;
+                        }
+
+                        if (path == AccountsRequest)
+                        {
+                            output.WriteLine("AccountsAccepted");
+                            continue;
+                        }
+
+                        if (path == ResolvedAccountsRequest)
+                        {
+                            WriteResolvedAccounts(cache);
+                            continue;
+                        }
+
+                        if (path.StartsWith(AccountRequest, StringComparison.Ordinal))
+                        {
+                            PreloadAccount(path.Substring(AccountRequest.Length), cache);
+                            continue;
+                        }
+
+                        if (path.StartsWith(ChangesSinceRequest, StringComparison.Ordinal))
+                        {
+                            if (!WriteChangesSince(path.Substring(ChangesSinceRequest.Length), foundationServiceProvider))
+                            {
+                                return 1;
+                            }
+
+                            continue;
+                        }
+
+                        if (path.StartsWith(ChangesRequest, StringComparison.Ordinal))
+                        {
+                            if (!WriteChangedFiles(path.Substring(ChangesRequest.Length), foundationServiceProvider))
+                            {
+                                return 1;
+                            }
+
+                            continue;
+                        }
+
+                        if (path.StartsWith(ContentRequest, StringComparison.Ordinal))
+                        {
+                            if (!WriteBaseContent(path.Substring(ContentRequest.Length), foundationServiceProvider))
+                            {
+                                return 1;
+                            }
+
+                            continue;
+                        }
+
+                        if (path.StartsWith(VersionRequest, StringComparison.Ordinal))
+                        {
+                            if (!WriteVersion(path.Substring(VersionRequest.Length), foundationServiceProvider))
+                            {
+                                return 1;
+                            }
+
+                            continue;
+                        }
+
+                        if (path == WorkspacesRequest)
+                        {
+                            WriteWorkspaces();
+                            continue;
+                        }
+
+                        if (!File.Exists(path))
+                        {
+                            FailOnFile(path, "The file does not exist.");
+                            continue;
+                        }
+
+                        if (!Workstation.Current.IsMapped(path))
+                        {
+                            FailOnFile(path, "The file is not in a mapped TFS workspace.");
+                            continue;
+                        }
+
+                        var workspaceInfo = Workstation.Current.GetLocalWorkspaceInfo(path);
+                        var version = new WorkspaceVersionSpec(workspaceInfo);
+
+                        if (serverUri == null || workspaceInfo.ServerUri.AbsoluteUri != serverUri.AbsoluteUri)
+                        {
+                            serverUri = workspaceInfo.ServerUri;
+                            if (!UpdateWorkspaceCache(foundationServiceProvider))
+                            {
+                                return 1;
+                            }
+                        }
+
+                        var versionControlServer = foundationServiceProvider.GetVersionControlServer(serverUri);
+
+                        var annotatedFile = new FileAnnotator(versionControlServer).Annotate(path, version);
+                        if (annotatedFile == null)
+                        {
+                            FailOnFile(path, "The file is not yet checked-in.");
+                            continue;
+                        }
+
+                        if (annotatedFile.IsBinary())
+                        {
+                            FailOnFile(path, "The file is a binary.");
+                            continue;
+                        }
+
+                        bool failed = false;
+                        for (int i = 0; !failed && i < annotatedFile.Lines(); i++)
+                        {
+                            var state = annotatedFile.State(i);
+                            if (state != AnnotationState.Committed)
+                            {
+                                FailOnFile(path, $"Line {(i + 1)} has not yet been checked-in ({state}).");
+                                failed = true;
+                            }
+                        }
+
+                        if (failed)
+                        {
+                            continue;
+                        }
+
+                        if (compactFormat)
+                        {
+                            WriteCompact(annotatedFile, cache);
+                            continue;
+                        }
+
+                        output.WriteLine(annotatedFile.Lines());
+                        for (int i = 0; i < annotatedFile.Lines(); i++)
+                        {
+                            var changeSet = annotatedFile.Changeset(i);
+                            output.Write(changeSet.ChangesetId);
+                            output.Write('\t');
+                            output.Write(cache.BuildUserName(serverUri, changeSet.Owner, accountStatistics));
+                            output.Write('\t');
+                            output.Write(ToUnixTimestampInMs(changeSet.CreationDate));
+                            output.Write('\t');
+                            output.WriteLine(annotatedFile.Data(i));
+                        }
+                    }
+                    catch (Exception e)
+                    {
+                        FailOnFile(path, e.Message);
+                    }
+                }
+
+                Flush();
+                return 0;
+            }
+            catch (Exception e)
+            {
+                FailOnProject(
+                    $"Unable to annotate the project. Exception: '{e.Message}'.{Environment.NewLine}{e.StackTrace}");
+                Flush();
+                return 1;
+            }
+        }
+
+        /// <summary>
+        /// Flushes the answers before waiting for the next request, the output is not flushed per line.
+        /// </summary>
+        private string ReadLine()
+        {
+            Flush();
+            return input.ReadLine();
+        }
+
+        private void Flush()
+        {
+            error.Flush();
+            output.Flush();
+        }
+
+        /// <summary>
+        /// Writes the number of files changed between a local directory and a target followed by their local paths.
+        /// The request consists of the local directory and the target separated by a tab.
+        /// </summary>
+        private bool WriteChangedFiles(string request, IFoundationServiceProvider foundationServiceProvider)
+        {
+            var arguments = request.Split('\t');
+            if (arguments.Length != 2)
+            {
+                FailOnChanges(request, "Expected the local directory and the target separated by a tab.");
+                return true;
+            }
+
+            return WithBranchComparer(arguments[0], arguments[1], foundationServiceProvider, comparer =>
+            {
+                var changedFiles = comparer.ChangedFiles(arguments[0], arguments[1]);
+                output.WriteLine(changedFiles.Count);
+                foreach (var changedFile in changedFiles)
+                {
+                    output.WriteLine(changedFile);
+                }
+            });
+        }
+
+        /// <summary>
+        /// Writes the number of files changed on the server after a changeset and the highest changeset of the
+        /// workspace version separated by a tab, followed by their local paths. The request consists of the local
+        /// directory and the changeset separated by a tab.
+        /// </summary>
+        private bool WriteChangesSince(string request, IFoundationServiceProvider foundationServiceProvider)
+        {
+            var arguments = request.Split('\t');
+            if (arguments.Length != 2 || !int.TryParse(arguments[1], out var changeset) || changeset < 0)
+            {
+                FailOnChanges(request, "Expected the local directory and a changeset separated by a tab.");
+                return true;
+            }
+
+            return WithBranchComparer(arguments[0], $"changeset {changeset}", foundationServiceProvider, comparer =>
+            {
+                var changedFiles = new SortedSet<string>(StringComparer.OrdinalIgnoreCase);
+                var highest = comparer.ChangedSince(arguments[0], changeset, changedFiles);
+                output.WriteLine($"{changedFiles.Count}\t{highest}");
+                foreach (var changedFile in changedFiles)
+                {
+                    output.WriteLine(changedFile);
+                }
+            });
+        }
+
+        /// <summary>
+        /// Writes the number of lines of a local file in the version of a target followed by the lines.
+        /// The request consists of the local directory, the target and the local file separated by tabs.
+        /// </summary>
+        private bool WriteBaseContent(string request, IFoundationServiceProvider foundationServiceProvider)
+        {
+            var arguments = request.Split('\t');
+            if (arguments.Length != 3)
+            {
+                FailOnChanges(request, "Expected the local directory, the target and the file separated by tabs.");
+                return true;
+            }
+
+            return WithBranchComparer(arguments[0], $"{arguments[1]} {arguments[2]}", foundationServiceProvider,
+                comparer =>
+                {
+                    var lines = comparer.BaseContent(arguments[0], arguments[1], arguments[2]);
+                    output.WriteLine(lines.Count);
+                    foreach (var line in lines)
+                    {
+                        output.WriteLine(line);
+                    }
+                });
+        }
+
+        /// <summary>
+        /// Writes the server path of a local file and the changeset of its version in the workspace separated by a tab.
+        /// The plugin uses them to share the blame of the file with the analyses of other workspaces.
+        /// </summary>
+        private bool WriteVersion(string localFile, IFoundationServiceProvider foundationServiceProvider)
+        {
+            if (!File.Exists(localFile))
+            {
+                FailOnFile(localFile, "The file does not exist.");
+                return true;
+            }
+
+            if (!Workstation.Current.IsMapped(localFile))
+            {
+                FailOnFile(localFile, "The file is not in a mapped TFS workspace.");
+                return true;
+            }
+
+            var workspaceInfo = Workstation.Current.GetLocalWorkspaceInfo(localFile);
+            if (serverUri == null || workspaceInfo.ServerUri.AbsoluteUri != serverUri.AbsoluteUri)
+            {
+                serverUri = workspaceInfo.ServerUri;
+                if (!UpdateWorkspaceCache(foundationServiceProvider))
+                {
+                    return false;
+                }
+            }
+
+            var workspace = foundationServiceProvider.GetVersionControlServer(serverUri).GetWorkspace(workspaceInfo);
+            var localVersions = workspace.GetLocalVersions(
+                new[] { new ItemSpec(localFile, RecursionType.None) }, false);
+            if (localVersions.Length == 0 || localVersions[0].Length == 0 || localVersions[0][0].Version <= 0)
+            {
+                FailOnFile(localFile, "The file is not yet checked-in.");
+                return true;
+            }
+
+            output.WriteLine($"{workspace.GetServerItemForLocalItem(localFile)}\t{localVersions[0][0].Version}");
+            return true;
+        }
+
+        /// <summary>
+        /// Writes the number of local workspace mappings of the machine, followed by the collection of each mapping
+        /// and its local root separated by a tab. The plugin annotates the files of each workspace with a session
+        /// connected to its collection.
+        /// </summary>
+        private void WriteWorkspaces()
+        {
+            var mappings = new List<string>();
+            foreach (var workspaceInfo in Workstation.Current.GetAllLocalWorkspaceInfo())
+            {
+                foreach (var mappedPath in workspaceInfo.MappedPaths)
+                {
+                    mappings.Add($"{workspaceInfo.ServerUri.AbsoluteUri}\t{mappedPath}");
+                }
+            }
+
+            output.WriteLine(mappings.Count);
+            foreach (var mapping in mappings)
+            {
+                output.WriteLine(mapping);
+            }
+        }
+
+        /// <summary>
+        /// Adds an account resolved by a previous analysis to the account cache. The request consists of the
+        /// collection, the account, its name and the Unix time in milliseconds of its resolution separated by tabs.
+        /// </summary>
+        private void PreloadAccount(string request, AccountCache cache)
+        {
+            var arguments = request.Split('\t');
+            Uri collectionUri;
+            long resolved;
+            if (arguments.Length != 4 || !Uri.TryCreate(arguments[0], UriKind.Absolute, out collectionUri)
+                || !long.TryParse(arguments[3], out resolved))
+            {
+                FailOnFile(request, "Expected the collection, the account, its name and the resolution time separated by tabs.");
+                return;
+            }
+
+            cache.Preload(collectionUri, arguments[1], arguments[2], Epoch.AddMilliseconds(resolved));
+            output.WriteLine("AccountAccepted");
+        }
+
+        /// <summary>
+        /// Writes the number of accounts resolved through the identity service, the hits and misses of the account
+        /// cache in this session and the time of its lookups separated by tabs, followed by the accounts with their
+        /// collection, name and resolution time. The plugin stores them for the next analyses.
+        /// </summary>
+        private void WriteResolvedAccounts(AccountCache cache)
+        {
+            var resolved = cache.Resolved();
+            var lookupTime = Convert.ToInt64(accountStatistics.LookupTime.TotalMilliseconds);
+            output.WriteLine($"{resolved.Count}\t{accountStatistics.Hits}\t{accountStatistics.Misses}\t{lookupTime}");
+            foreach (var account in resolved)
+            {
+                output.WriteLine(
+                    $"{account.Key.Item1.AbsoluteUri}\t{account.Key.Item2}\t{account.Value.UserName}\t{ToUnixTimestampInMs(account.Value.Resolved)}");
+            }
+        }
+
+        private bool WithBranchComparer(string localRoot, string target,
+            IFoundationServiceProvider foundationServiceProvider, Action<BranchComparer> action)
+        {
+            if (!Workstation.Current.IsMapped(localRoot))
+            {
+                FailOnChanges(target, "The directory is not in a mapped TFS workspace.");
+                return true;
+            }
+
+            var workspaceInfo = Workstation.Current.GetLocalWorkspaceInfo(localRoot);
+            if (serverUri == null || workspaceInfo.ServerUri.AbsoluteUri != serverUri.AbsoluteUri)
+            {
+                serverUri = workspaceInfo.ServerUri;
+                if (!UpdateWorkspaceCache(foundationServiceProvider))
+                {
+                    return false;
+                }
+            }
+
+            try
+            {
+                var versionControlServer = foundationServiceProvider.GetVersionControlServer(serverUri);
+                var workspace = versionControlServer.GetWorkspace(workspaceInfo);
+                action(new BranchComparer(versionControlServer, workspace));
+            }
+            catch (Exception e)
+            {
+                FailOnChanges(target, e.Message);
+            }
+
+            return true;
+        }
+
+        /// <summary>
+        /// Writes the annotation without the content of the file: a header with the number of lines, changesets
+        /// and runs, one line per changeset, and one line with the runs as pairs of changeset index and length.
+        /// </summary>
+        private void WriteCompact(IAnnotatedFile annotatedFile, AccountCache cache)
+        {
+            var indexes = new Dictionary<int, int>();
+            var changesets = new List<Changeset>();
+            var runs = new List<int>();
+            for (int i = 0; i < annotatedFile.Lines(); i++)
+            {
+                var changeSet = annotatedFile.Changeset(i);
+                if (!indexes.TryGetValue(changeSet.ChangesetId, out int index))
+                {
+                    index = changesets.Count;
+                    indexes.Add(changeSet.ChangesetId, index);
+                    changesets.Add(changeSet);
+                }
+
+                if (runs.Count > 0 && runs[runs.Count - 2] == index)
+                {
+                    runs[runs.Count - 1]++;
+                }
+                else
+                {
+                    runs.Add(index);
+                    runs.Add(1);
+                }
+            }
+
+            output.WriteLine($"{annotatedFile.Lines()}\t{changesets.Count}\t{runs.Count / 2}");
+            foreach (var changeSet in changesets)
+            {
+                output.Write(changeSet.ChangesetId);
+                output.Write('\t');
+                output.Write(cache.BuildUserName(serverUri, changeSet.Owner, accountStatistics));
+                output.Write('\t');
+                output.WriteLine(ToUnixTimestampInMs(changeSet.CreationDate));
+            }
+
+            output.WriteLine(string.Join(" ", runs));
+        }
+
+        private bool UpdateWorkspaceCache(IFoundationServiceProvider foundationServiceProvider)
+        {
+            var versionControlServer = foundationServiceProvider.GetVersionControlServer(serverUri);
+            Workstation.Current.EnsureUpdateWorkspaceInfoCache(versionControlServer,
+                versionControlServer.AuthorizedUser);
+            return true;
+        }
+
+        private bool SetServerUri(string serverUriString)
+        {
+            try
+            {
+                serverUri = new Uri(serverUriString);
+            }
+            catch (UriFormatException e)
+            {
+                FailOnProject(
+                    $"Unable to set server URI to '{serverUriString}'. Please check the configuration. Exception: '{e.Message}'.");
+                return false;
+            }
+
+            return true;
+        }
+
+        private static long ToUnixTimestampInMs(DateTime dateTime)
+        {
+            var timespan = dateTime - Epoch;
+            return Convert.ToInt64(timespan.TotalMilliseconds);
+        }
+
+        private void FailOnFile(string fileName, string reason)
+        {
+            output.WriteLine("AnnotationFailedOnFile");
+            error.WriteLine($"Unable to annotate the file {fileName}: {reason}");
+        }
+
+        private void FailOnChanges(string target, string reason)
+        {
+            output.WriteLine("AnnotationFailedOnFile");
+            error.WriteLine($"Unable to compare with {target}: {reason}");
+        }
+
+        private void FailOnProject(string message)
+        {
+            output.WriteLine("AnnotationFailedOnProject");
+            error.WriteLine(message);
+        }
+    }
+}
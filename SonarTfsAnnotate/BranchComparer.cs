@@ -0,0 +1,166 @@
+﻿/*
+ * SonarQube :: SCM :: TFVC :: Plugin
+ * Copyright (c) SonarSource SA and Microsoft Corporation.  All rights reserved.
+ *
+ * Licensed under the MIT License. See License.txt in the project root for license information.
+ */
+
+using System;
+using System.Collections.Generic;
+using System.IO;
+using System.Linq;
+using System.Text;
+using Microsoft.TeamFoundation.VersionControl.Client;
+
+namespace SonarSource.TfsAnnotate
+{
+    /// <summary>
+    ///     Determines the files of a workspace which differ from a branch or a shelveset, or which changed on the
+    ///     server after a changeset.
+    ///     Each side is fetched with a single server query, the comparison is based on the content hashes.
+    /// </summary>
+    internal class BranchComparer
+    {
+        private readonly VersionControlServer server;
+        private readonly Workspace workspace;
+
+        public BranchComparer(VersionControlServer server, Workspace workspace)
+        {
+            this.server = server;
+            this.workspace = workspace;
+        }
+
+        /// <summary>
+        ///     Compares the local directory with the target, i.e. the server path of a branch (starting with "$/")
+        ///     or the name of a shelveset, optionally followed by ";owner". Pending changes are always included.
+        /// </summary>
+        /// <returns>The local paths of the changed files.</returns>
+        public ICollection<string> ChangedFiles(string localRoot, string target)
+        {
+            var rootServerPath = this.workspace.GetServerItemForLocalItem(localRoot);
+            var result = new SortedSet<string>(StringComparer.OrdinalIgnoreCase);
+
+            foreach (var change in this.workspace.GetPendingChanges(rootServerPath, RecursionType.Full))
+            {
+                if (change.ItemType == ItemType.File && !change.IsDelete)
+                {
+                    result.Add(change.LocalItem);
+                }
+            }
+
+            if (target.StartsWith("$/", StringComparison.Ordinal))
+            {
+                this.CompareWithBranch(rootServerPath, target.TrimEnd('/'), result);
+            }
+            else
+            {
+                this.AddShelvedChanges(rootServerPath, target, result);
+            }
+
+            return result;
+        }
+
+        /// <summary>
+        ///     Lists the files of the local directory whose workspace version changed on the server after the
+        ///     changeset, with a single server query. Pending changes are not included.
+        /// </summary>
+        /// <returns>The highest changeset of the workspace version of the files.</returns>
+        public int ChangedSince(string localRoot, int changeset, ISet<string> result)
+        {
+            var rootServerPath = this.workspace.GetServerItemForLocalItem(localRoot);
+            var current = this.server.GetItems(rootServerPath, new WorkspaceVersionSpec(this.workspace),
+                RecursionType.Full, DeletedState.NonDeleted, ItemType.File);
+            var highest = 0;
+            foreach (var item in current.Items)
+            {
+                highest = Math.Max(highest, item.ChangesetId);
+                if (item.ChangesetId > changeset)
+                {
+                    result.Add(this.workspace.GetLocalItemForServerItem(item.ServerItem));
+                }
+            }
+
+            return highest;
+        }
+
+        /// <summary>
+        ///     Provides the content of a local file in the version of the target, i.e. the latest version of the
+        ///     corresponding file in a branch, or the workspace version for a shelveset.
+        /// </summary>
+        /// <returns>The lines of the file, none if the file does not exist in the target.</returns>
+        public IList<string> BaseContent(string localRoot, string target, string localFile)
+        {
+            var serverPath = this.workspace.GetServerItemForLocalItem(localFile);
+            VersionSpec version = new WorkspaceVersionSpec(this.workspace);
+            if (target.StartsWith("$/", StringComparison.Ordinal))
+            {
+                var rootServerPath = this.workspace.GetServerItemForLocalItem(localRoot);
+                serverPath = target.TrimEnd('/') + serverPath.Substring(rootServerPath.Length);
+                version = VersionSpec.Latest;
+            }
+
+            var lines = new List<string>();
+            if (!this.server.ServerItemExists(serverPath, version, DeletedState.NonDeleted, ItemType.File))
+            {
+                return lines;
+            }
+
+            var item = this.server.GetItem(serverPath, version);
+            if (item.Encoding < 0)
+            {
+                throw new InvalidOperationException("The file is a binary.");
+            }
+
+            using (var reader = new StreamReader(item.DownloadFile(), Encoding.GetEncoding(item.Encoding)))
+            {
+                string line;
+                while ((line = reader.ReadLine()) != null)
+                {
+                    lines.Add(line);
+                }
+            }
+
+            return lines;
+        }
+
+        private void CompareWithBranch(string rootServerPath, string branch, ISet<string> result)
+        {
+            var baseline = this.server
+                .GetItems(branch, VersionSpec.Latest, RecursionType.Full, DeletedState.NonDeleted, ItemType.File)
+                .Items
+                .ToDictionary(item => item.ServerItem.Substring(branch.Length), item => item.HashValue,
+                    StringComparer.OrdinalIgnoreCase);
+
+            var current = this.server.GetItems(rootServerPath, new WorkspaceVersionSpec(this.workspace),
+                RecursionType.Full, DeletedState.NonDeleted, ItemType.File);
+            foreach (var item in current.Items)
+            {
+                var relativePath = item.ServerItem.Substring(rootServerPath.Length);
+                if (!baseline.TryGetValue(relativePath, out var hash) || !hash.SequenceEqual(item.HashValue))
+                {
+                    result.Add(this.workspace.GetLocalItemForServerItem(item.ServerItem));
+                }
+            }
+        }
+
+        private void AddShelvedChanges(string rootServerPath, string target, ISet<string> result)
+        {
+            var parts = target.Split(';');
+            var owner = parts.Length > 1 ? parts[1] : null;
+            var shelvesets = this.server.QueryShelvedChanges(parts[0], owner,
+                new[] { new ItemSpec(rootServerPath, RecursionType.Full) });
+            if (shelvesets.Length == 0)
+            {
+                throw new InvalidOperationException($"The shelveset {target} does not exist.");
+            }
+
+            foreach (var change in shelvesets.SelectMany(shelveset => shelveset.PendingChanges))
+            {
+                if (change.ItemType == ItemType.File && !change.IsDelete)
+                {
+                    result.Add(this.workspace.GetLocalItemForServerItem(change.ServerItem));
+                }
+            }
+        }
+    }
+}
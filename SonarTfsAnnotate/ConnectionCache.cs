@@ -0,0 +1,84 @@
+﻿/*
+ * SonarQube :: SCM :: TFVC :: Plugin
+ * Copyright (c) SonarSource SA and Microsoft Corporation.  All rights reserved.
+ *
+ * Licensed under the MIT License. See License.txt in the project root for license information.
+ */
+
+using System;
+using System.Collections.Generic;
+using System.IO;
+using System.Net;
+using Microsoft.VisualStudio.Services.Common;
+
+namespace SonarSource.TfsAnnotate
+{
+    /// <summary>
+    ///     Keeps the authenticated connections and the account caches per credentials, so that the sessions of a
+    ///     daemon only authenticate and resolve accounts once.
+    /// </summary>
+    internal sealed class ConnectionCache : IDisposable
+    {
+        private readonly IDictionary<Tuple<string, string, string>, Connection> connections =
+            new Dictionary<Tuple<string, string, string>, Connection>();
+
+        public Connection Get(string username, string password, string pat, TextWriter output)
+        {
+            VssCredentials credentials;
+
+            if (!string.IsNullOrEmpty(pat))
+            {
+                output.WriteLine($"Connecting using PAT: {pat.Mask()}...");
+                credentials = new VssCredentials(new VssBasicCredential(new NetworkCredential("", pat)));
+            }
+            else if (!string.IsNullOrEmpty(username) || !string.IsNullOrEmpty(password))
+            {
+                output.WriteLine($"Connecting using user/password: {username}/{password.Mask()}...");
+                credentials = new VssCredentials(new WindowsCredential(new NetworkCredential(username, password)));
+            }
+            else
+            {
+                output.WriteLine("Connecting using default credentials...");
+                credentials = new VssCredentials(useDefaultCredentials: true);
+            }
+
+            var key = Tuple.Create(username ?? "", password ?? "", pat ?? "");
+            lock (connections)
+            {
+                if (!connections.TryGetValue(key, out var connection))
+                {
+                    connection = new Connection(new FoundationServiceProvider(credentials));
+                    connections.Add(key, connection);
+                }
+
+                return connection;
+            }
+        }
+
+        public void Dispose()
+        {
+            lock (connections)
+            {
+                foreach (var connection in connections.Values)
+                {
+                    connection.FoundationServiceProvider.Dispose();
+                }
+
+                connections.Clear();
+            }
+        }
+
+        internal sealed class Connection
+        {
+            public Connection(FoundationServiceProvider foundationServiceProvider)
+            {
+                FoundationServiceProvider = foundationServiceProvider;
+                AccountCache = new AccountCache(foundationServiceProvider);
+            }
+
+            public FoundationServiceProvider FoundationServiceProvider { get; }
+
+            public AccountCache AccountCache { get; }
+        }
+    }
+}
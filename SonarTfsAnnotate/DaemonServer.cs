@@ -0,0 +1,247 @@
+﻿/*
+ * SonarQube :: SCM :: TFVC :: Plugin
+ * Copyright (c) SonarSource SA and Microsoft Corporation.  All rights reserved.
+ *
+ * Licensed under the MIT License. See License.txt in the project root for license information.
+ */
+
+using System;
+using System.IO;
+using System.Net;
+using System.Net.Sockets;
+using System.Security.Cryptography;
+using System.Text;
+using System.Threading;
+
+namespace SonarSource.TfsAnnotate
+{
+    /// <summary>
+    ///     Serves annotation sessions on a loopback socket, so that several analyses share the authenticated
+    ///     connections and the account cache. The port and a random token are published in a registry file,
+    ///     the daemon stops and removes it once no session was active for the idle timeout.
+    ///     A client sends the token, receives "Accepted", and then speaks the usual protocol. Every line sent
+    ///     back is prefixed with "O" for the standard output or "E" for the standard error of the console mode.
+    /// </summary>
+    internal sealed class DaemonServer
+    {
+        public const string Option = "--daemon";
+        private const string Accepted = "Accepted";
+        private static readonly Encoding Utf8 = new UTF8Encoding(false);
+
+        private readonly string registryPath;
+        private readonly TimeSpan idleTimeout;
+        private readonly string token;
+        private readonly TcpListener listener = new TcpListener(IPAddress.Loopback, 0);
+        private readonly ConnectionCache connections = new ConnectionCache();
+        private readonly object sync = new object();
+        private int activeSessions;
+        private DateTime lastActivity = DateTime.UtcNow;
+
+        private DaemonServer(string registryPath, TimeSpan idleTimeout)
+        {
+            this.registryPath = registryPath;
+            this.idleTimeout = idleTimeout;
+            var bytes = new byte[32];
+            using (var random = RandomNumberGenerator.Create())
+            {
+                random.GetBytes(bytes);
+            }
+
+            this.token = BitConverter.ToString(bytes).Replace("-", string.Empty);
+        }
+
+        public static int Run(string registryPath, string idleTimeoutSeconds)
+        {
+            if (!int.TryParse(idleTimeoutSeconds, out int seconds) || seconds <= 0)
+            {
+                Console.Error.WriteLine($"Invalid idle timeout: {idleTimeoutSeconds}");
+                return 1;
+            }
+
+            return new DaemonServer(registryPath, TimeSpan.FromSeconds(seconds)).Serve();
+        }
+
+        private int Serve()
+        {
+            listener.Start();
+            WriteRegistry(((IPEndPoint)listener.LocalEndpoint).Port);
+            Console.WriteLine($"Listening on port {((IPEndPoint)listener.LocalEndpoint).Port}, idle timeout {idleTimeout}");
+
+            using (new Timer(_ => StopWhenIdle(), null, TimeSpan.FromSeconds(1), TimeSpan.FromSeconds(1)))
+            {
+                while (true)
+                {
+                    TcpClient client;
+                    try
+                    {
+                        client = listener.AcceptTcpClient();
+                    }
+                    catch (SocketException)
+                    {
+                        // stopped after the idle timeout
+                        break;
+                    }
+                    catch (InvalidOperationException)
+                    {
+                        break;
+                    }
+
+                    lock (sync)
+                    {
+                        activeSessions++;
+                    }
+
+                    new Thread(() => ServeClient(client)) { IsBackground = true, Name = "session" }.Start();
+                }
+            }
+
+            DeleteRegistry();
+            lock (sync)
+            {
+                while (activeSessions > 0)
+                {
+                    Monitor.Wait(sync);
+                }
+            }
+
+            connections.Dispose();
+            Console.WriteLine("Stopped after the idle timeout");
+            return 0;
+        }
+
+        private void ServeClient(TcpClient client)
+        {
+            try
+            {
+                using (client)
+                using (var stream = client.GetStream())
+                using (var reader = new StreamReader(stream, Utf8))
+                using (var writer = new StreamWriter(stream, Utf8) { NewLine = "\r\n" })
+                {
+                    if (reader.ReadLine() != token)
+                    {
+                        return;
+                    }
+
+                    writer.WriteLine(Accepted);
+                    writer.Flush();
+
+                    var output = new ChannelWriter(writer, 'O');
+                    var error = new ChannelWriter(writer, 'E');
+                    new AnnotationSession(reader, output, error, connections).Run();
+                    output.Flush();
+                    error.Flush();
+                }
+            }
+            catch (IOException e)
+            {
+                Console.WriteLine($"Session ended unexpectedly: {e.Message}");
+            }
+            finally
+            {
+                lock (sync)
+                {
+                    activeSessions--;
+                    lastActivity = DateTime.UtcNow;
+                    Monitor.PulseAll(sync);
+                }
+            }
+        }
+
+        private void StopWhenIdle()
+        {
+            lock (sync)
+            {
+                if (activeSessions == 0 && DateTime.UtcNow - lastActivity >= idleTimeout)
+                {
+                    listener.Stop();
+                }
+            }
+        }
+
+        /// <summary>
+        ///     Publishes the port and the token, the file is replaced atomically as it may be read concurrently.
+        /// </summary>
+        private void WriteRegistry(int port)
+        {
+            var temporary = registryPath + ".tmp";
+            File.WriteAllText(temporary, $"port={port}\ntoken={token}\n", Utf8);
+            if (File.Exists(registryPath))
+            {
+                File.Replace(temporary, registryPath, null);
+            }
+            else
+            {
+                File.Move(temporary, registryPath);
+            }
+        }
+
+        /// <summary>
+        ///     Removes the registry file, unless it was already taken over by another daemon.
+        /// </summary>
+        private void DeleteRegistry()
+        {
+            try
+            {
+                if (File.Exists(registryPath) && File.ReadAllText(registryPath).Contains($"token={token}"))
+                {
+                    File.Delete(registryPath);
+                }
+            }
+            catch (IOException e)
+            {
+                Console.WriteLine($"Unable to delete {registryPath}: {e.Message}");
+            }
+        }
+
+        /// <summary>
+        ///     Writes complete lines to the shared connection, prefixed with the channel.
+        ///     The connection is only flushed on request, i.e. before the session waits for the next request.
+        /// </summary>
+        private sealed class ChannelWriter : TextWriter
+        {
+            private readonly TextWriter connection;
+            private readonly char channel;
+            private readonly StringBuilder line = new StringBuilder();
+
+            public ChannelWriter(TextWriter connection, char channel)
+            {
+                this.connection = connection;
+                this.channel = channel;
+            }
+
+            public override Encoding Encoding => Utf8;
+
+            public override void Write(char value)
+            {
+                if (value == '\n')
+                {
+                    WriteLine();
+                }
+                else if (value != '\r')
+                {
+                    line.Append(value);
+                }
+            }
+
+            public override void WriteLine()
+            {
+                lock (connection)
+                {
+                    connection.Write(channel);
+                    connection.WriteLine(line.ToString());
+                }
+
+                line.Clear();
+            }
+
+            public override void Flush()
+            {
+                lock (connection)
+                {
+                    connection.Flush();
+                }
+            }
+        }
+    }
+}
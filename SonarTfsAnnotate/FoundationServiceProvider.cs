@@ -48,15 +48,18 @@ namespace SonarSource.TfsAnnotate
 
         private TfsTeamProjectCollection GetTeamProjectCollection(Uri serverUri)
         {
-            if (!this.teamCollectionCache.TryGetValue(serverUri, out var result))
+            lock (this.teamCollectionCache)
             {
-                // create new connection, validate and store
-                result = new TfsTeamProjectCollection(serverUri, this.credentials);
-                result.EnsureAuthenticated();
-                this.teamCollectionCache[serverUri] = result;
-            }
+                if (!this.teamCollectionCache.TryGetValue(serverUri, out var result))
+                {
+                    // create new connection, validate and store
+                    result = new TfsTeamProjectCollection(serverUri, this.credentials);
+                    result.EnsureAuthenticated();
+                    this.teamCollectionCache[serverUri] = result;
+                }
 
-            return result;
+                return result;
+            }
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,51 @@
+/*
+ * SonarQube :: SCM :: TFVC :: Plugin
+ * Copyright (c) SonarSource SA and Microsoft Corporation.  All rights reserved.
+ *
+ * Licensed under the MIT License. See License.txt in the project root for license information.
+ */
+package org.sonar.plugins.scm.tfs;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.sonar.api.batch.fs.InputFile;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the decoding of the annotator output into blame lines, without process handling.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AnnotationParsingBenchmark {
+
+  @Param({"100"})
+  public int files;
+
+  @Param({"100", "2000"})
+  public int linesPerFile;
+
+  @Param({"10", "1000"})
+  public int changesets;
+
+  private SyntheticAnnotator annotator;
+
+  @Setup
+  public void setup() {
+    annotator = new SyntheticAnnotator(files, linesPerFile, changesets);
+  }
+
+  @Benchmark
+  public void receive(Blackhole blackhole) throws IOException {
+    try (AnnotatorSession session = new AnnotatorSession(annotator.launchConnected(), new ChangesetPool())) {
+      for (InputFile file : annotator.files()) {
+        blackhole.consume(session.receive(file));
+      }
+    }
+  }
+}
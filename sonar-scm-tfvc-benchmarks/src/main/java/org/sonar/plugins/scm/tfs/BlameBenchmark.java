@@ -0,0 +1,75 @@
+/*
+ * SonarQube :: SCM :: TFVC :: Plugin
+ * Copyright (c) SonarSource SA and Microsoft Corporation.  All rights reserved.
+ *
+ * Licensed under the MIT License. See License.txt in the project root for license information.
+ */
+package org.sonar.plugins.scm.tfs;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.sonar.api.batch.fs.InputFile;
+import org.sonar.api.batch.scm.BlameCommand.BlameInput;
+import org.sonar.api.batch.scm.BlameCommand.BlameOutput;
+import org.sonar.api.batch.scm.BlameLine;
+import org.sonar.api.config.PropertyDefinitions;
+import org.sonar.api.config.internal.MapSettings;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a complete {@link TfsBlameCommand#blame(BlameInput, BlameOutput)} call, from the handshake
+ * with the annotator to the reporting of the blame lines.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BlameBenchmark {
+
+  @Param({"10", "500"})
+  public int files;
+
+  @Param({"100", "2000"})
+  public int linesPerFile;
+
+  @Param({"10", "1000"})
+  public int changesets;
+
+  private SyntheticAnnotator annotator;
+  private TfsBlameCommand command;
+
+  @Setup
+  public void setup() {
+    annotator = new SyntheticAnnotator(files, linesPerFile, changesets);
+
+    MapSettings settings = new MapSettings(new PropertyDefinitions(TfsConfiguration.getProperties()));
+    settings.setProperty("sonar.tfvc.collectionuri", "https://localtfs/tfs");
+    command = new TfsBlameCommand(new TfsConfiguration(settings.asConfig()), new File("SonarTfsAnnotate.exe"), annotator::launch);
+  }
+
+  @Benchmark
+  public void blame(Blackhole blackhole) {
+    command.blame(new BlameInput() {
+      @Override
+      public org.sonar.api.batch.fs.FileSystem fileSystem() {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public Collection<InputFile> filesToBlame() {
+        return annotator.files();
+      }
+    }, new BlameOutput() {
+      @Override
+      public void blameResult(InputFile file, List<BlameLine> lines) {
+        blackhole.consume(lines);
+      }
+    });
+  }
+}
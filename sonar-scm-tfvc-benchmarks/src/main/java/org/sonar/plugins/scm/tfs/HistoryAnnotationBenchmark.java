@@ -0,0 +1,83 @@
+/*
+ * SonarQube :: SCM :: TFVC :: Plugin
+ * Copyright (c) SonarSource SA and Microsoft Corporation.  All rights reserved.
+ *
+ * Licensed under the MIT License. See License.txt in the project root for license information.
+ */
+package org.sonar.plugins.scm.tfs;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the annotation of one file by {@link HistoryAnnotator} over a long history held in memory, where each
+ * revision changes a few lines of the previous one and a part of the revisions only touch other files.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HistoryAnnotationBenchmark {
+
+  @Param({"1000", "5000"})
+  public int revisions;
+
+  @Param({"100", "2000"})
+  public int linesPerFile;
+
+  private final HistoryAnnotator annotator = new HistoryAnnotator();
+  private List<RevisionSource.Revision> history;
+  private long[] lines;
+
+  @Setup
+  public void setup() {
+    Random random = new Random(42);
+    List<Long> content = new ArrayList<>();
+    long next = 0;
+    for (int i = 0; i < linesPerFile; i++) {
+      content.add(next++);
+    }
+    history = new ArrayList<>(revisions);
+    for (int changeset = 1; changeset <= revisions; changeset++) {
+      // a third of the changesets leave the content as it is, e.g. renames or merges without conflicts
+      if (changeset > 1 && random.nextInt(3) > 0) {
+        for (int edit = random.nextInt(4); edit >= 0; edit--) {
+          int position = random.nextInt(content.size());
+          switch (random.nextInt(3)) {
+            case 0:
+              content.add(position, next++);
+              break;
+            case 1:
+              content.set(position, next++);
+              break;
+            default:
+              if (content.size() > linesPerFile / 2) {
+                content.remove(position);
+              }
+          }
+        }
+      }
+      long[] hashes = new long[content.size()];
+      for (int i = 0; i < hashes.length; i++) {
+        hashes[i] = content.get(i) * 0x9E3779B97F4A7C15L;
+      }
+      history.add(0, new RevisionSource.Revision(changeset, "author" + changeset % 20, changeset * 60_000L, hashes));
+    }
+    lines = history.get(0).lines();
+  }
+
+  @Benchmark
+  public void annotate(Blackhole blackhole) throws IOException, InterruptedException {
+    int[] read = new int[1];
+    RevisionSource source = () -> read[0] < history.size() ? history.get(read[0]++) : null;
+    blackhole.consume(annotator.annotate(lines, source, new ChangesetPool()));
+  }
+}
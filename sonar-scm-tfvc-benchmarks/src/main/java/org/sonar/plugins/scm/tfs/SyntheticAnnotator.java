@@ -0,0 +1,131 @@
+/*
+ * SonarQube :: SCM :: TFVC :: Plugin
+ * Copyright (c) SonarSource SA and Microsoft Corporation.  All rights reserved.
+ *
+ * Licensed under the MIT License. See License.txt in the project root for license information.
+ */
+package org.sonar.plugins.scm.tfs;
+
+import org.sonar.api.batch.fs.InputFile;
+import org.sonar.api.batch.fs.internal.TestInputFileBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Generates the output of the annotator for a set of files in advance and replays it from memory.
+ * Consecutive lines are attributed to the same changeset in runs, like in real world files.
+ */
+final class SyntheticAnnotator {
+
+  private static final int RUN_LENGTH = 8;
+  private static final int AUTHORS = 20;
+
+  private final List<InputFile> files = new ArrayList<>();
+  private final byte[] handshake;
+  private final byte[] annotations;
+
+  SyntheticAnnotator(int fileCount, int linesPerFile, int changesets) {
+    StringBuilder output = new StringBuilder();
+    for (int file = 0; file < fileCount; file++) {
+      InputFile inputFile = new TestInputFileBuilder("benchmark", "src/File" + file + ".java")
+        .setModuleBaseDir(Paths.get("base"))
+        .setLines(linesPerFile)
+        .build();
+      files.add(inputFile);
+
+      output.append(AnnotatorSession.pathOf(inputFile)).append("\r\n");
+      output.append(linesPerFile).append("\r\n");
+      for (int line = 0; line < linesPerFile; line++) {
+        int changeset = (file * 31 + line / RUN_LENGTH) % changesets;
+        output.append(100000 + changeset)
+          .append("\tDOMAIN\\user").append(changeset % AUTHORS)
+          .append('\t').append(1430736199000L + changeset * 60000L)
+          .append("\t    private static final int VALUE_").append(line).append(" = ").append(line).append(";\r\n");
+      }
+    }
+
+    this.annotations = output.toString().getBytes(StandardCharsets.UTF_8);
+    this.handshake = ("Enter your credentials\r\n"
+      + "Connected\r\n"
+      + "Enter the Collection URI:\r\n"
+      + "Enter the paths to annotate:\r\n").getBytes(StandardCharsets.UTF_8);
+  }
+
+  List<InputFile> files() {
+    return files;
+  }
+
+  /**
+   * @return a process answering the handshake followed by the annotations of all files
+   */
+  Process launch() {
+    byte[] output = new byte[handshake.length + annotations.length];
+    System.arraycopy(handshake, 0, output, 0, handshake.length);
+    System.arraycopy(annotations, 0, output, handshake.length, annotations.length);
+    return new InMemoryProcess(output);
+  }
+
+  /**
+   * @return a process answering the annotations of all files only, i.e. a session that is already connected
+   */
+  Process launchConnected() {
+    return new InMemoryProcess(annotations);
+  }
+
+  private static final class InMemoryProcess extends Process {
+
+    private final InputStream stdout;
+    private final InputStream stderr = new ByteArrayInputStream(new byte[0]);
+    private final OutputStream stdin = new OutputStream() {
+      @Override
+      public void write(int b) {
+        // the requests are not needed to replay the answers
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) {
+        // the requests are not needed to replay the answers
+      }
+    };
+
+    InMemoryProcess(byte[] output) {
+      this.stdout = new ByteArrayInputStream(output);
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+      return stdin;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+      return stdout;
+    }
+
+    @Override
+    public InputStream getErrorStream() {
+      return stderr;
+    }
+
+    @Override
+    public int waitFor() {
+      return 0;
+    }
+
+    @Override
+    public int exitValue() {
+      return 0;
+    }
+
+    @Override
+    public void destroy() {
+      // nothing to stop
+    }
+  }
+}
@@ -0,0 +1,188 @@
+/*
+ * SonarQube :: SCM :: TFVC :: Plugin
+ * Copyright (c) SonarSource SA and Microsoft Corporation.  All rights reserved.
+ *
+ * Licensed under the MIT License. See License.txt in the project root for license information.
+ */
+package org.sonar.plugins.scm.tfs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the names, i.e. email addresses or account names, the annotators resolved for the accounts of the
+ * changesets through the identity service, so that the next analyses preload them into the annotators rather than
+ * querying the service again. The file is in the cache directory of the scanner and shared by the analyses of the
+ * machine, the entries expire after {@link TfsConfiguration#accountsTtl()} hours.
+ */
+final class AccountCache {
+
+  static final String FILE_NAME = "tfvc-accounts.cache";
+  private static final TfsLogger LOG = TfsLogger.get(AccountCache.class);
+  private static final int MAGIC = 0x54464143;
+  private static final int VERSION = 1;
+
+  private final Path location;
+  private final long ttlMillis;
+  private final Map<String, Account> accounts = new LinkedHashMap<>();
+  private int stored;
+
+  private AccountCache(Path location, long ttlMillis) {
+    this.location = location;
+    this.ttlMillis = ttlMillis;
+  }
+
+  /**
+   * Reads the accounts not expired yet. A missing or unreadable file results in an empty cache.
+   */
+  static AccountCache load(Path location, long ttlMillis) {
+    AccountCache cache = new AccountCache(location, ttlMillis);
+    try {
+      cache.read(System.currentTimeMillis());
+    } catch (IOException e) {
+      LOG.warning("Ignoring unreadable account cache %s: %s", location, e.getMessage());
+      cache.accounts.clear();
+    }
+    return cache;
+  }
+
+  /**
+   * @return the accounts to preload into the annotators
+   */
+  synchronized List<Account> accounts() {
+    return new ArrayList<>(accounts.values());
+  }
+
+  /**
+   * Stores an account resolved by an annotator, unless it already expired or a more recent resolution is known.
+   */
+  synchronized void put(Account account) {
+    if (System.currentTimeMillis() - account.resolvedMillis < ttlMillis && merge(account)) {
+      stored++;
+    }
+  }
+
+  /**
+   * @return the number of accounts stored since the cache was loaded
+   */
+  synchronized int stored() {
+    return stored;
+  }
+
+  /**
+   * Writes the cache if accounts were stored, with the accounts stored meanwhile by other analyses. The previous
+   * file is replaced atomically.
+   */
+  synchronized void save() throws IOException {
+    if (stored == 0) {
+      return;
+    }
+
+    try {
+      read(System.currentTimeMillis());
+    } catch (IOException e) {
+      LOG.debug("Replacing unreadable account cache %s: %s", location, e.getMessage());
+    }
+
+    Path directory = location.toAbsolutePath().getParent();
+    Files.createDirectories(directory);
+    Path temporary = Files.createTempFile(directory, location.getFileName().toString(), ".tmp");
+    try {
+      try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+        output.writeInt(MAGIC);
+        output.writeInt(VERSION);
+        output.writeInt(accounts.size());
+        for (Account account : accounts.values()) {
+          output.writeUTF(account.collectionUri);
+          output.writeUTF(account.accountName);
+          output.writeUTF(account.name);
+          output.writeLong(account.resolvedMillis);
+        }
+      }
+      Files.move(temporary, location, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temporary);
+    }
+  }
+
+  /**
+   * Merges the accounts of the file not expired at the given time.
+   */
+  private void read(long now) throws IOException {
+    if (!Files.exists(location)) {
+      return;
+    }
+
+    try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(location)))) {
+      if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+        LOG.warning("Ignoring account cache %s with unknown format.", location);
+        return;
+      }
+
+      int count = input.readInt();
+      for (int i = 0; i < count; i++) {
+        Account account = new Account(input.readUTF(), input.readUTF(), input.readUTF(), input.readLong());
+        if (now - account.resolvedMillis < ttlMillis) {
+          merge(account);
+        }
+      }
+    }
+  }
+
+  private boolean merge(Account account) {
+    Account known = accounts.get(account.key());
+    if (known != null && known.resolvedMillis >= account.resolvedMillis) {
+      return false;
+    }
+    accounts.put(account.key(), account);
+    return true;
+  }
+
+  /**
+   * The name resolved for an account of a collection, and when it was resolved.
+   */
+  static final class Account {
+
+    private final String collectionUri;
+    private final String accountName;
+    private final String name;
+    private final long resolvedMillis;
+
+    Account(String collectionUri, String accountName, String name, long resolvedMillis) {
+      this.collectionUri = collectionUri;
+      this.accountName = accountName;
+      this.name = name;
+      this.resolvedMillis = resolvedMillis;
+    }
+
+    String collectionUri() {
+      return collectionUri;
+    }
+
+    String accountName() {
+      return accountName;
+    }
+
+    String name() {
+      return name;
+    }
+
+    long resolvedMillis() {
+      return resolvedMillis;
+    }
+
+    private String key() {
+      return collectionUri + "\t" + accountName;
+    }
+  }
+}
@@ -0,0 +1,325 @@
+/*
+ * SonarQube :: SCM :: TFVC :: Plugin
+ * Copyright (c) SonarSource SA and Microsoft Corporation.  All rights reserved.
+ *
+ * Licensed under the MIT License. See License.txt in the project root for license information.
+ */
+package org.sonar.plugins.scm.tfs;
+
+import javax.annotation.CheckForNull;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Reads the output of the annotator using a reusable character buffer.
+ * Blame lines have the format {@code changeset \t author \t epochMillis \t content}. They are decoded
+ * directly from the buffer into a {@link ParsedLine}, the content column is skipped without being copied.
+ */
+final class AnnotationReader {
+
+  private static final int DEFAULT_BUFFER_SIZE = 8192;
+  private static final int MAX_DIGITS = 18;
+
+  private final Reader reader;
+  private char[] buffer;
+  private int position;
+  private int limit;
+  private int mark = -1;
+  private boolean skipLf;
+  private String invalidLine;
+
+  AnnotationReader(InputStream input, Charset charset) {
+    this(new InputStreamReader(input, charset), DEFAULT_BUFFER_SIZE);
+  }
+
+  AnnotationReader(Reader reader, int bufferSize) {
+    this.reader = reader;
+    this.buffer = new char[bufferSize];
+  }
+
+  /**
+   * Reads a line of text, terminated by LF, CR or CRLF.
+   *
+   * @return the line without the line terminator, or {@code null} at the end of the stream
+   */
+  @CheckForNull
+  String readLine() throws IOException {
+    startLine();
+    int c = next();
+    while (c >= 0 && !isEndOfLine(c)) {
+      c = next();
+    }
+
+    return endLine(c);
+  }
+
+  /**
+   * Reads a line like {@link #readLine()}, but only stores its hash computed by {@link LineHashes}.
+   *
+   * @return {@code false} at the end of the stream
+   */
+  boolean readLineHash(long[] hashes, int index) throws IOException {
+    startLine();
+    int c = next();
+    if (c < 0) {
+      mark = -1;
+      return false;
+    }
+    while (c >= 0 && !isEndOfLine(c)) {
+      c = next();
+    }
+
+    int length = (c < 0 ? position : position - 1) - mark;
+    hashes[index] = LineHashes.hash(buffer, mark, length);
+    mark = -1;
+    skipLf = c == '\r';
+    return true;
+  }
+
+  /**
+   * Decodes the next blame line into the given holder.
+   *
+   * @return {@code false} if the line is malformed, the line is then provided by {@link #invalidLine()}
+   */
+  boolean readBlameLine(ParsedLine line) throws IOException {
+    startLine();
+
+    // changeset
+    int c = skipBlanks(next());
+    long changeset = 0;
+    int digits = 0;
+    while (isDigit(c) && digits < MAX_DIGITS) {
+      changeset = changeset * 10 + (c - '0');
+      digits++;
+      c = next();
+    }
+    c = skipBlanks(c);
+    if (digits == 0 || c != '\t') {
+      return invalid(c);
+    }
+
+    // author
+    line.authorLength = 0;
+    c = next();
+    while (c >= 0 && c != '\t' && !isEndOfLine(c)) {
+      line.append((char) c);
+      c = next();
+    }
+    if (c != '\t' || line.authorLength == 0) {
+      return invalid(c);
+    }
+    line.trimAuthor();
+
+    // date
+    c = skipBlanks(next());
+    long date = 0;
+    digits = 0;
+    while (isDigit(c) && digits < MAX_DIGITS) {
+      date = date * 10 + (c - '0');
+      digits++;
+      c = next();
+    }
+    c = skipBlanks(c);
+    if (digits == 0 || (c >= 0 && c != '\t' && !isEndOfLine(c))) {
+      return invalid(c);
+    }
+
+    // the line is valid, skip the content without keeping it in the buffer
+    mark = -1;
+    while (c >= 0 && !isEndOfLine(c)) {
+      c = next();
+    }
+    skipLf = c == '\r';
+
+    line.changeset = changeset;
+    line.date = date;
+    return true;
+  }
+
+  /**
+   * Decodes a line of non-negative integers separated by blanks or tabs into the given array.
+   *
+   * @return the number of integers, or -1 if the line is malformed or has more integers than the array can hold,
+   * the line is then provided by {@link #invalidLine()}
+   */
+  int readIntegers(int[] values) throws IOException {
+    startLine();
+    int c = next();
+    if (c < 0) {
+      invalid(c);
+      return -1;
+    }
+
+    int count = 0;
+    while (true) {
+      while (c == ' ' || c == '\t') {
+        c = next();
+      }
+      if (c < 0 || isEndOfLine(c)) {
+        break;
+      }
+      if (!isDigit(c) || count == values.length) {
+        invalid(c);
+        return -1;
+      }
+
+      long value = 0;
+      while (isDigit(c)) {
+        value = value * 10 + (c - '0');
+        if (value > Integer.MAX_VALUE) {
+          invalid(c);
+          return -1;
+        }
+        c = next();
+      }
+      values[count++] = (int) value;
+    }
+
+    mark = -1;
+    skipLf = c == '\r';
+    return count;
+  }
+
+  /**
+   * @return the text of the line rejected by the last call of {@link #readBlameLine(ParsedLine)}
+   * or {@link #readIntegers(int[])}
+   */
+  String invalidLine() {
+    return invalidLine;
+  }
+
+  private boolean invalid(int current) throws IOException {
+    int c = current;
+    while (c >= 0 && !isEndOfLine(c)) {
+      c = next();
+    }
+
+    invalidLine = String.valueOf(endLine(c));
+    return false;
+  }
+
+  private void startLine() throws IOException {
+    if (skipLf) {
+      skipLf = false;
+      if ((position < limit || fill()) && buffer[position] == '\n') {
+        position++;
+      }
+    }
+    mark = position;
+  }
+
+  @CheckForNull
+  private String endLine(int terminator) {
+    String line;
+    if (terminator < 0) {
+      line = position == mark ? null : new String(buffer, mark, position - mark);
+    } else {
+      line = new String(buffer, mark, position - 1 - mark);
+    }
+
+    skipLf = terminator == '\r';
+    mark = -1;
+    return line;
+  }
+
+  private int next() throws IOException {
+    if (position == limit && !fill()) {
+      return -1;
+    }
+    return buffer[position++];
+  }
+
+  /**
+   * Reads more characters, keeping the current line from its mark if there is one.
+   *
+   * @return {@code false} at the end of the stream
+   */
+  private boolean fill() throws IOException {
+    int keepFrom = mark >= 0 ? mark : position;
+    if (keepFrom > 0) {
+      System.arraycopy(buffer, keepFrom, buffer, 0, limit - keepFrom);
+      limit -= keepFrom;
+      position -= keepFrom;
+      if (mark >= 0) {
+        mark = 0;
+      }
+    }
+
+    if (limit == buffer.length) {
+      buffer = Arrays.copyOf(buffer, buffer.length * 2);
+    }
+
+    int count = reader.read(buffer, limit, buffer.length - limit);
+    if (count <= 0) {
+      return false;
+    }
+
+    limit += count;
+    return true;
+  }
+
+  private int skipBlanks(int current) throws IOException {
+    int c = current;
+    while (c >= 0 && c <= ' ' && c != '\t' && !isEndOfLine(c)) {
+      c = next();
+    }
+    return c;
+  }
+
+  private static boolean isDigit(int c) {
+    return c >= '0' && c <= '9';
+  }
+
+  private static boolean isEndOfLine(int c) {
+    return c == '\n' || c == '\r';
+  }
+
+  /**
+   * Mutable holder for the fields of one blame line.
+   */
+  static final class ParsedLine {
+
+    private long changeset;
+    private long date;
+    private char[] author = new char[64];
+    private int authorLength;
+
+    long changeset() {
+      return changeset;
+    }
+
+    long date() {
+      return date;
+    }
+
+    String author() {
+      return new String(author, 0, authorLength);
+    }
+
+    private void append(char c) {
+      if (authorLength == author.length) {
+        author = Arrays.copyOf(author, author.length * 2);
+      }
+      author[authorLength++] = c;
+    }
+
+    private void trimAuthor() {
+      int start = 0;
+      while (start < authorLength && author[start] <= ' ') {
+        start++;
+      }
+      int end = authorLength;
+      while (end > start && author[end - 1] <= ' ') {
+        end--;
+      }
+      if (start > 0) {
+        System.arraycopy(author, start, author, 0, end - start);
+      }
+      authorLength = end - start;
+    }
+  }
+}
@@ -0,0 +1,139 @@
+/*
+ * SonarQube :: SCM :: TFVC :: Plugin
+ * Copyright (c) SonarSource SA and Microsoft Corporation.  All rights reserved.
+ *
+ * Licensed under the MIT License. See License.txt in the project root for license information.
+ */
+package org.sonar.plugins.scm.tfs;
+
+import org.sonar.api.batch.InstantiationStrategy;
+import org.sonar.api.batch.ScannerSide;
+
+import javax.annotation.CheckForNull;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Asks the annotator for the differences, which are computed on the server with a single query per side
+ * instead of a round-trip per file. The annotator is killed if it does not answer within the timeouts of the
+ * blame, so that a hung annotator does not block the analysis.
+ */
+@InstantiationStrategy(InstantiationStrategy.PER_BATCH)
+@ScannerSide()
+public class AnnotatorBranchService implements TfsBranchService {
+
+  private static final TfsLogger LOG = TfsLogger.get(AnnotatorBranchService.class);
+
+  private final TfsConfiguration configuration;
+  private final TfsBlameCommand blameCommand;
+
+  public AnnotatorBranchService(TfsConfiguration configuration, TfsBlameCommand blameCommand) {
+    this.configuration = configuration;
+    this.blameCommand = blameCommand;
+  }
+
+  @CheckForNull
+  @Override
+  public Set<Path> changedFiles(String target, Path rootBaseDir) {
+    Path root = rootBaseDir.toAbsolutePath();
+    try (Watchdog watchdog = new Watchdog();
+      AnnotatorSession session = new AnnotatorSession(blameCommand.launcher().launch(), new ChangesetPool())) {
+      if (!connect(session, watchdog)) {
+        return null;
+      }
+
+      List<String> paths = guarded(session, watchdog, configuration.fileTimeout(), "the changed files",
+        () -> session.changedFiles(root.toString(), target));
+      finish(session, watchdog);
+      if (paths == null) {
+        return null;
+      }
+
+      Set<Path> result = new HashSet<>();
+      for (String path : paths) {
+        result.add(root.resolve(path));
+      }
+      LOG.info("%d files changed against %s", result.size(), target);
+      return result;
+    } catch (IOException | IllegalStateException e) {
+      LOG.warning("Unable to determine the files changed against %s: %s", target, e.getMessage());
+      return null;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    }
+  }
+
+  @CheckForNull
+  @Override
+  public Map<Path, long[]> baseLineHashes(String target, Path rootBaseDir, Set<Path> files) {
+    Path root = rootBaseDir.toAbsolutePath();
+    try (Watchdog watchdog = new Watchdog();
+      AnnotatorSession session = new AnnotatorSession(blameCommand.launcher().launch(), new ChangesetPool())) {
+      if (!connect(session, watchdog)) {
+        return null;
+      }
+
+      Map<Path, long[]> result = new HashMap<>();
+      for (Path file : files) {
+        String localFile = file.toAbsolutePath().toString();
+        long[] hashes = guarded(session, watchdog, configuration.fileTimeout(), "the base content of " + localFile,
+          () -> session.baseLineHashes(root.toString(), target, localFile));
+        if (hashes != null) {
+          result.put(file, hashes);
+        }
+      }
+      finish(session, watchdog);
+      return result;
+    } catch (IOException | IllegalStateException e) {
+      LOG.warning("Unable to get the content of the files in %s: %s", target, e.getMessage());
+      return null;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    }
+  }
+
+  private boolean connect(AnnotatorSession session, Watchdog watchdog) throws IOException, InterruptedException {
+    return guarded(session, watchdog, configuration.handshakeTimeout(), "the connection to the collection",
+      () -> session.connect(configuration));
+  }
+
+  private void finish(AnnotatorSession session, Watchdog watchdog) throws IOException, InterruptedException {
+    guarded(session, watchdog, configuration.fileTimeout(), "the end of the session", () -> {
+      session.finish(blameCommand.executable().getAbsolutePath());
+      return null;
+    });
+  }
+
+  /**
+   * Runs a step of the session, killing the annotator if the step does not complete within the timeout.
+   *
+   * @param timeoutSeconds the timeout, not positive to wait forever
+   * @param subject what the annotator is expected to answer, for the logs
+   */
+  private static <T> T guarded(AnnotatorSession session, Watchdog watchdog, int timeoutSeconds, String subject, Step<T> step)
+    throws IOException, InterruptedException {
+    try (Watchdog.Deadline ignored = watchdog.arm(TimeUnit.SECONDS.toMillis(timeoutSeconds), () -> session.kill(subject))) {
+      return step.run();
+    } catch (IOException | IllegalStateException e) {
+      if (session.timedOutOn() != null) {
+        throw new IOException("The TFVC annotate command did not answer within the timeout on " + session.timedOutOn(), e);
+      }
+      throw e;
+    }
+  }
+
+  @FunctionalInterface
+  private interface Step<T> {
+    T run() throws IOException, InterruptedException;
+  }
+
+}
@@ -0,0 +1,77 @@
+/*
+ * SonarQube :: SCM :: TFVC :: Plugin
+ * Copyright (c) SonarSource SA and Microsoft Corporation.  All rights reserved.
+ *
+ * Licensed under the MIT License. See License.txt in the project root for license information.
+ */
+package org.sonar.plugins.scm.tfs;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.MoreFiles;
+import com.google.common.io.Resources;
+
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Installs the annotator once per content into the user cache, i.e. {@code <cache>/tfvc/v1/<sha256>/SonarTfsAnnotate.exe}.
+ * Scanners running at the same time write to their own temporary file and move it into place atomically,
+ * an existing installation is reused after verifying its checksum.
+ */
+final class AnnotatorInstaller {
+
+  static final String EXECUTABLE_NAME = "SonarTfsAnnotate.exe";
+
+  private static final TfsLogger LOG = TfsLogger.get(AnnotatorInstaller.class);
+  private static final String LAYOUT_VERSION = "v1";
+
+  private AnnotatorInstaller() {
+  }
+
+  /**
+   * @return the installed executable
+   * @throws IOException if the executable can neither be installed nor reused
+   */
+  static Path install(URL resource, Path cacheDirectory) throws IOException {
+    byte[] content = Resources.toByteArray(resource);
+    HashCode checksum = Hashing.sha256().hashBytes(content);
+    Path directory = cacheDirectory.resolve("tfvc").resolve(LAYOUT_VERSION).resolve(checksum.toString());
+    Path executable = directory.resolve(EXECUTABLE_NAME);
+
+    if (isValid(executable, checksum)) {
+      LOG.debug("reusing installed annotator %s", executable);
+      return executable;
+    }
+
+    Files.createDirectories(directory);
+    Path temporary = Files.createTempFile(directory, EXECUTABLE_NAME, ".tmp");
+    try {
+      Files.write(temporary, content);
+      try {
+        Files.move(temporary, executable, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      } catch (IOException e) {
+        // installed concurrently, the file may already be in use by another scanner
+        if (!isValid(executable, checksum)) {
+          throw e;
+        }
+      }
+    } finally {
+      Files.deleteIfExists(temporary);
+    }
+
+    if (!isValid(executable, checksum)) {
+      throw new IOException("Checksum mismatch of installed annotator " + executable);
+    }
+
+    LOG.debug("installed annotator %s", executable);
+    return executable;
+  }
+
+  private static boolean isValid(Path executable, HashCode checksum) throws IOException {
+    return Files.isRegularFile(executable) && MoreFiles.asByteSource(executable).hash(Hashing.sha256()).equals(checksum);
+  }
+}
@@ -0,0 +1,19 @@
+/*
+ * SonarQube :: SCM :: TFVC :: Plugin
+ * Copyright (c) SonarSource SA and Microsoft Corporation.  All rights reserved.
+ *
+ * Licensed under the MIT License. See License.txt in the project root for license information.
+ */
+package org.sonar.plugins.scm.tfs;
+
+import java.io.IOException;
+
+/**
+ * Starts a new instance of the annotator.
+ */
+@FunctionalInterface
+interface AnnotatorLauncher {
+
+  Process launch() throws IOException;
+
+}
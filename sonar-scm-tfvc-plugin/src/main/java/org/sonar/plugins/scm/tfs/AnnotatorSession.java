@@ -0,0 +1,977 @@
+/*
+ * SonarQube :: SCM :: TFVC :: Plugin
+ * Copyright (c) SonarSource SA and Microsoft Corporation.  All rights reserved.
+ *
+ * Licensed under the MIT License. See License.txt in the project root for license information.
+ */
+package org.sonar.plugins.scm.tfs;
+
+import com.google.common.io.CountingInputStream;
+import org.sonar.api.batch.fs.InputFile;
+import org.sonar.api.batch.scm.BlameLine;
+
+import javax.annotation.CheckForNull;
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Implements the line based protocol spoken with one running instance of the annotator.
+ */
+class AnnotatorSession implements Closeable {
+
+  static final String FILE_FAILED = "AnnotationFailedOnFile";
+  static final String PROJECT_FAILED = "AnnotationFailedOnProject";
+  static final String COMPACT_FORMAT_REQUEST = "?format compact";
+  static final String FORMAT_ACCEPTED = "FormatAccepted";
+  static final String CHANGES_REQUEST = "?changes ";
+  static final String CHANGES_SINCE_REQUEST = "?changes since ";
+  static final String CONTENT_REQUEST = "?content ";
+  static final String VERSION_REQUEST = "?version ";
+  static final String WORKSPACES_REQUEST = "?workspaces";
+  static final String ACCOUNTS_REQUEST = "?accounts";
+  static final String ACCOUNTS_ACCEPTED = "AccountsAccepted";
+  static final String ACCOUNT_REQUEST = "?account ";
+  static final String ACCOUNT_ACCEPTED = "AccountAccepted";
+  static final String RESOLVED_ACCOUNTS_REQUEST = "?accounts resolved";
+
+  private static final TfsLogger LOG = TfsLogger.get(AnnotatorSession.class);
+  private static final long ERROR_STREAM_END_TIMEOUT_MS = 1000;
+  private static final int REQUESTS_PER_FLUSH = 64;
+
+  private final Process process;
+  private final ChangesetPool pool;
+  private final BlameMetrics metrics;
+  private final OutputStreamWriter stdin;
+  private final CountingInputStream counter;
+  private final AnnotationReader stdout;
+  private final ErrorStreamDrainer stderr;
+  private final AnnotationReader.ParsedLine parsedLine = new AnnotationReader.ParsedLine();
+  private final Queue<Long> requestTimes = new ConcurrentLinkedQueue<>();
+  private volatile boolean aborted;
+  private volatile String timedOutOn;
+  private volatile long lastLatency;
+  private volatile long lastAnswerEnd;
+  private boolean compact;
+  private boolean accounts;
+  private boolean accountsPreloaded;
+
+  AnnotatorSession(Process process, ChangesetPool pool) {
+    this(process, pool, new BlameMetrics());
+  }
+
+  AnnotatorSession(Process process, ChangesetPool pool, BlameMetrics metrics) {
+    this.process = process;
+    this.pool = pool;
+    this.metrics = metrics;
+    Charset fileCharset = StandardCharsets.UTF_8;
+    this.stdin = new OutputStreamWriter(process.getOutputStream(), fileCharset);
+    this.counter = new CountingInputStream(process.getInputStream());
+    this.stdout = new AnnotationReader(counter, fileCharset);
+    this.stderr = new ErrorStreamDrainer(process.getErrorStream(), fileCharset, ErrorStreamDrainer.DEFAULT_CAPACITY);
+  }
+
+  /**
+   * Passes credentials and collection URI to the annotator.
+   *
+   * @return {@code false} if the annotator is not able to process any file, the reason is already logged
+   */
+  boolean connect(TfsConfiguration configuration) throws IOException, InterruptedException {
+    return connect(configuration, configuration.collectionUri());
+  }
+
+  /**
+   * Passes credentials and the given collection URI to the annotator, e.g. the collection of the workspace of
+   * the files to annotate, so that the annotator does not switch to it later.
+   *
+   * @return {@code false} if the annotator is not able to process any file, the reason is already logged
+   */
+  boolean connect(TfsConfiguration configuration, String collectionUri) throws IOException, InterruptedException {
+    // the read blocks until the annotator has started, the caller bounds the wait
+    String blameOutput = readHandshakeLine();
+    logOutput(blameOutput);
+    if (blameOutput.isEmpty()) {
+      LOG.error("missing initial output from annotator.");
+      aborted = true;
+      return false;
+    }
+
+    stdin.write(configuration.username() + "\r\n");
+    stdin.write(configuration.password() + "\r\n");
+    stdin.write(configuration.pat() + "\r\n");
+    stdin.flush();
+
+    // expecting status for the connection
+    blameOutput = readHandshakeLine();
+    logOutput(blameOutput);
+
+    // expecting next instruction
+    blameOutput = readHandshakeLine();
+    logOutput(blameOutput);
+    stdin.write(collectionUri + "\r\n");
+    stdin.flush();
+
+    // expecting next instruction or maybe error message
+    blameOutput = readHandshakeLine();
+    if (blameOutput.equals(PROJECT_FAILED)) {
+      LOG.error("%s", stderr.takeMessage(null));
+      aborted = true;
+      return false;
+    }
+
+    logOutput(blameOutput);
+
+    if (configuration.compactFormat()) {
+      negotiateCompactFormat();
+    }
+    if (configuration.accountsTtl() > 0) {
+      negotiateAccounts();
+    }
+
+    return true;
+  }
+
+  private String readHandshakeLine() throws IOException {
+    String line = stdout.readLine();
+    if (line == null) {
+      throw new EOFException("The annotator stopped during the connection to the collection");
+    }
+    return line;
+  }
+
+  /**
+   * Requests the compact output format. Annotators not knowing the request treat it like a path which does not
+   * exist, then the text format is used.
+   */
+  private void negotiateCompactFormat() throws IOException {
+    stdin.write(COMPACT_FORMAT_REQUEST + "\r\n");
+    stdin.flush();
+
+    String echo = stdout.readLine();
+    if (!COMPACT_FORMAT_REQUEST.equals(echo)) {
+      throw new IllegalStateException("Expected the format request to be echoed: " + echo);
+    }
+
+    String answer = stdout.readLine();
+    if (FORMAT_ACCEPTED.equals(answer)) {
+      compact = true;
+      LOG.debug("using the compact output format");
+      return;
+    }
+
+    if (FILE_FAILED.equals(answer)) {
+      LOG.debug("compact output format not supported, using the text format: %s", stderr.takeMessage(null));
+      return;
+    }
+
+    throw new IllegalStateException("Unexpected answer to the format request: " + answer);
+  }
+
+  /**
+   * Asks whether the annotator preloads accounts and reports the accounts it resolves. Annotators not knowing the
+   * request treat it like a path which does not exist, then the accounts are neither preloaded nor reported.
+   */
+  private void negotiateAccounts() throws IOException {
+    stdin.write(ACCOUNTS_REQUEST + "\r\n");
+    stdin.flush();
+
+    String echo = stdout.readLine();
+    if (!ACCOUNTS_REQUEST.equals(echo)) {
+      throw new IllegalStateException("Expected the accounts request to be echoed: " + echo);
+    }
+
+    String answer = stdout.readLine();
+    if (ACCOUNTS_ACCEPTED.equals(answer)) {
+      accounts = true;
+      return;
+    }
+
+    if (FILE_FAILED.equals(answer)) {
+      LOG.debug("account preloading not supported: %s", stderr.takeMessage(null));
+      return;
+    }
+
+    throw new IllegalStateException("Unexpected answer to the accounts request: " + answer);
+  }
+
+  /**
+   * Passes the accounts resolved by previous analyses to the annotator, once per annotator.
+   *
+   * @return the number of accounts accepted by the annotator
+   */
+  int preloadAccounts(List<AccountCache.Account> preloaded) throws IOException {
+    if (!accounts || accountsPreloaded || preloaded.isEmpty()) {
+      return 0;
+    }
+
+    accountsPreloaded = true;
+    List<String> arguments = new ArrayList<>(preloaded.size());
+    for (AccountCache.Account account : preloaded) {
+      arguments.add(account.collectionUri() + "\t" + account.accountName() + "\t" + account.name() + "\t"
+        + account.resolvedMillis());
+    }
+    List<Boolean> answers = requestEach(ACCOUNT_REQUEST, arguments, ACCOUNT_ACCEPTED::equals);
+    return (int) answers.stream().filter(Boolean.TRUE::equals).count();
+  }
+
+  /**
+   * Requests the accounts the annotator resolved through the identity service, with the statistics of its
+   * lookups for this session.
+   *
+   * @return the accounts, or {@code null} if the annotator does not report them
+   */
+  @CheckForNull
+  ResolvedAccounts resolvedAccounts() throws IOException {
+    if (!accounts) {
+      return null;
+    }
+
+    stdin.write(RESOLVED_ACCOUNTS_REQUEST + "\r\n");
+    stdin.flush();
+
+    String echo = stdout.readLine();
+    if (!RESOLVED_ACCOUNTS_REQUEST.equals(echo)) {
+      throw new IllegalStateException("Expected the resolved accounts request to be echoed: " + echo);
+    }
+
+    String header = stdout.readLine();
+    if (header == null) {
+      throw new EOFException("The annotator stopped while reporting the resolved accounts");
+    }
+    if (FILE_FAILED.equals(header) || PROJECT_FAILED.equals(header)) {
+      LOG.debug("Unable to get the resolved accounts: %s", stderr.takeMessage(null));
+      return null;
+    }
+
+    String[] fields = header.split("\t", -1);
+    if (fields.length != 4) {
+      throw new IllegalStateException("Invalid header of the resolved accounts: " + header);
+    }
+    try {
+      int count = Integer.parseInt(fields[0], 10);
+      List<AccountCache.Account> resolved = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+        String line = stdout.readLine();
+        if (line == null) {
+          throw new IllegalStateException("Missing resolved accounts, received " + i + " of " + count);
+        }
+        String[] account = line.split("\t", -1);
+        if (account.length != 4) {
+          throw new IllegalStateException("Invalid resolved account: " + line);
+        }
+        resolved.add(new AccountCache.Account(account[0], account[1], account[2], Long.parseLong(account[3])));
+      }
+      return new ResolvedAccounts(resolved, Integer.parseInt(fields[1], 10), Integer.parseInt(fields[2], 10),
+        Long.parseLong(fields[3]));
+    } catch (NumberFormatException e) {
+      throw new IllegalStateException("Invalid resolved accounts: " + header, e);
+    }
+  }
+
+  /**
+   * @return the time between the start of the annotation, i.e. the request or the end of the previous answer if the
+   * file was queued behind pending files, and the end of the answer of the last file annotated
+   */
+  long lastLatencyNanos() {
+    return lastLatency;
+  }
+
+  /**
+   * Indicates whether the annotator accepted the compact output format.
+   */
+  boolean isCompact() {
+    return compact;
+  }
+
+  /**
+   * Requests the blame information of a single file.
+   *
+   * @return the blame lines, or {@code null} if the annotator failed on the file or on the whole project
+   * @see #isAborted()
+   */
+  @CheckForNull
+  List<BlameLine> annotate(InputFile inputFile) throws IOException {
+    stderr.setSubject(pathOf(inputFile));
+    request(inputFile);
+    return receive(inputFile);
+  }
+
+  /**
+   * Sends the path of a file to the annotator without waiting for the answer.
+   */
+  void request(InputFile inputFile) throws IOException {
+    String fileName = pathOf(inputFile);
+    LOG.info("annotating %s", fileName);
+
+    requestTimes.add(System.nanoTime());
+    stdin.write(fileName + "\r\n");
+    stdin.flush();
+  }
+
+  /**
+   * Reads the answer of the annotator for a file requested before.
+   * The answers are provided in the order of the requests.
+   *
+   * @return the blame lines, or {@code null} if the annotator failed on the file or on the whole project
+   * @see #isAborted()
+   */
+  @CheckForNull
+  List<BlameLine> receive(InputFile inputFile) throws IOException {
+    String fileName = pathOf(inputFile);
+    stderr.setSubject(fileName);
+    Long requested = requestTimes.poll();
+    // a pipelined file waits for the answers of the files requested before it
+    long started = requested != null ? Math.max(requested, lastAnswerEnd) : 0;
+    String path = stdout.readLine();
+    if (!fileName.equals(path)) {
+      throw new IllegalStateException("Expected the file paths to match: " + fileName + " and " + path);
+    }
+
+    String linesAsString = stdout.readLine();
+    if (linesAsString == null) {
+      throw new EOFException("The annotator stopped while annotating the file: " + path);
+    }
+
+    if (linesAsString.equals(FILE_FAILED)) {
+      lastAnswerEnd = System.nanoTime();
+      LOG.error("%s", stderr.takeMessage("Unable to annotate the file " + path));
+      metrics.fileFailed("file");
+      return null;
+    }
+
+    if (linesAsString.equals(PROJECT_FAILED)) {
+      LOG.error("%s", stderr.takeMessage(null));
+      metrics.fileFailed("project");
+      aborted = true;
+      return null;
+    }
+
+    long parseStart = System.nanoTime();
+    CompactBlameList result = compact ? readCompact(path, linesAsString) : readText(path, linesAsString);
+    long end = System.nanoTime();
+    lastAnswerEnd = end;
+    lastLatency = end - (requested != null ? started : parseStart);
+    metrics.fileAnnotated(lastLatency, end - parseStart, result.size());
+
+    if (!result.isEmpty() && result.size() == inputFile.lines() - 1) {
+      // SONARPLUGINS-3097 TFS do not report blame on last empty line
+      return result.withExtraLastLine();
+    }
+
+    return result;
+  }
+
+  /**
+   * Reads the text format, i.e. one line per line of the file with changeset, author, date and content.
+   */
+  private CompactBlameList readText(String path, String header) throws IOException {
+    int lines = Integer.parseInt(header, 10);
+    CompactBlameList.Builder result = new CompactBlameList.Builder();
+    BlameLine previous = null;
+    long previousChangeset = 0;
+    for (int i = 0; i < lines; i++) {
+      if (!stdout.readBlameLine(parsedLine)) {
+        throw new IllegalStateException("Invalid output from the TFVC annotate command: \"" + stdout.invalidLine() + "\" on file: " + path + " at line " + (i + 1));
+      }
+
+      // consecutive lines mostly belong to the same changeset
+      if (previous == null || parsedLine.changeset() != previousChangeset) {
+        previous = pool.get(parsedLine);
+        previousChangeset = parsedLine.changeset();
+      }
+
+      result.add(previous);
+    }
+
+    return result.build();
+  }
+
+  /**
+   * Reads the compact format. The header holds the number of lines, changesets and runs. It is followed by
+   * one line per changeset with changeset, author and date, and by one line with the runs as pairs of
+   * changeset index and number of lines.
+   */
+  private CompactBlameList readCompact(String path, String header) throws IOException {
+    String[] counts = header.split("\t");
+    if (counts.length != 3) {
+      throw invalidCompactOutput(header, path);
+    }
+
+    int lines = parseCount(counts[0], header, path);
+    CompactBlameList.Builder result = new CompactBlameList.Builder();
+    int[] changesets = new int[parseCount(counts[1], header, path)];
+    int[] runs = new int[2 * parseCount(counts[2], header, path)];
+    for (int i = 0; i < changesets.length; i++) {
+      if (!stdout.readBlameLine(parsedLine)) {
+        throw invalidCompactOutput(stdout.invalidLine(), path);
+      }
+      changesets[i] = result.changeset(pool.get(parsedLine));
+    }
+
+    if (stdout.readIntegers(runs) != runs.length) {
+      throw invalidCompactOutput(stdout.invalidLine(), path);
+    }
+
+    for (int i = 0; i < runs.length; i += 2) {
+      if (runs[i] >= changesets.length || result.size() + runs[i + 1] > lines) {
+        throw invalidCompactOutput(runs[i] + " " + runs[i + 1], path);
+      }
+      result.add(changesets[runs[i]], runs[i + 1]);
+    }
+
+    if (result.size() != lines) {
+      throw new IllegalStateException("Invalid compact output from the TFVC annotate command: " + result.size() + " of " + lines + " lines on file: " + path);
+    }
+
+    return result.build();
+  }
+
+  private static int parseCount(String value, String header, String path) {
+    try {
+      int count = Integer.parseInt(value, 10);
+      if (count >= 0 && count <= Integer.MAX_VALUE / 2) {
+        return count;
+      }
+    } catch (NumberFormatException e) {
+      // reported below
+    }
+    throw invalidCompactOutput(header, path);
+  }
+
+  /**
+   * @return the number of lines following the header of an answer
+   * @throws IllegalStateException if the header is not a number of lines
+   */
+  private static int parseAnswerCount(String header, String subject) {
+    try {
+      int count = Integer.parseInt(header, 10);
+      if (count >= 0) {
+        return count;
+      }
+    } catch (NumberFormatException e) {
+      // reported below
+    }
+    throw new IllegalStateException("Invalid number of " + subject + " from the TFVC annotate command: " + header);
+  }
+
+  private static IllegalStateException invalidCompactOutput(String line, String path) {
+    return new IllegalStateException("Invalid compact output from the TFVC annotate command: \"" + line + "\" on file: " + path);
+  }
+
+  /**
+   * Requests the files which differ between the local directory and the target, i.e. a server path of a
+   * branch or the name of a shelveset. Pending changes of the workspace are included.
+   *
+   * @return the local paths of the changed files, or {@code null} if the annotator failed to compute them
+   */
+  @CheckForNull
+  List<String> changedFiles(String localRoot, String target) throws IOException {
+    String request = CHANGES_REQUEST + localRoot + "\t" + target;
+    LOG.debug("requesting changed files of %s against %s", localRoot, target);
+    stdin.write(request + "\r\n");
+    stdin.flush();
+
+    String echo = stdout.readLine();
+    if (!request.equals(echo)) {
+      throw new IllegalStateException("Expected the changes request to be echoed: " + echo);
+    }
+
+    String countAsString = stdout.readLine();
+    if (countAsString == null) {
+      throw new EOFException("The annotator stopped while listing the changed files");
+    }
+    if (FILE_FAILED.equals(countAsString) || PROJECT_FAILED.equals(countAsString)) {
+      LOG.warning("Unable to determine the changed files: %s", stderr.takeMessage(null));
+      return null;
+    }
+
+    int count = parseAnswerCount(countAsString, "changed files");
+    List<String> result = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      String path = stdout.readLine();
+      if (path == null) {
+        throw new IllegalStateException("Missing changed files, received " + i + " of " + count);
+      }
+      result.add(path);
+    }
+
+    return result;
+  }
+
+  /**
+   * Requests the files of the local directory whose workspace version changed on the server after the changeset,
+   * and the highest changeset of the workspace version. Pending changes are not included.
+   *
+   * @return the changes, or {@code null} if the annotator failed to compute them or does not know the request
+   */
+  @CheckForNull
+  ItemChanges changesSince(String localRoot, long changeset) throws IOException {
+    String request = CHANGES_SINCE_REQUEST + localRoot + "\t" + changeset;
+    LOG.debug("requesting the files of %s changed since changeset %d", localRoot, changeset);
+    stdin.write(request + "\r\n");
+    stdin.flush();
+
+    String echo = stdout.readLine();
+    if (!request.equals(echo)) {
+      throw new IllegalStateException("Expected the changes request to be echoed: " + echo);
+    }
+
+    String header = stdout.readLine();
+    if (header == null) {
+      throw new EOFException("The annotator stopped while listing the files changed since changeset " + changeset);
+    }
+    if (FILE_FAILED.equals(header) || PROJECT_FAILED.equals(header)) {
+      // older annotators fail on the request, the files are then only compared by content
+      LOG.debug("Unable to determine the files changed since changeset %d: %s", changeset, stderr.takeMessage(null));
+      return null;
+    }
+
+    int separator = header.indexOf('\t');
+    if (separator < 0) {
+      throw new IllegalStateException("Invalid changes header from the TFVC annotate command: " + header);
+    }
+    int count = parseAnswerCount(header.substring(0, separator), "changed files");
+    long highest;
+    try {
+      highest = Long.parseLong(header.substring(separator + 1), 10);
+    } catch (NumberFormatException e) {
+      throw new IllegalStateException("Invalid changes header from the TFVC annotate command: " + header, e);
+    }
+    List<String> paths = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      String path = stdout.readLine();
+      if (path == null) {
+        throw new IllegalStateException("Missing changed files, received " + i + " of " + count);
+      }
+      paths.add(path);
+    }
+
+    return new ItemChanges(highest, paths);
+  }
+
+  /**
+   * Requests the content of a file in the version of the target, see {@link #changedFiles(String, String)}.
+   * Files not existing in the target have no lines. The content is not kept, only the hashes of its lines.
+   *
+   * @return the hashes of the lines, or {@code null} if the annotator failed to provide the content
+   */
+  @CheckForNull
+  long[] baseLineHashes(String localRoot, String target, String localFile) throws IOException {
+    String request = CONTENT_REQUEST + localRoot + "\t" + target + "\t" + localFile;
+    stdin.write(request + "\r\n");
+    stdin.flush();
+
+    String echo = stdout.readLine();
+    if (!request.equals(echo)) {
+      throw new IllegalStateException("Expected the content request to be echoed: " + echo);
+    }
+
+    String countAsString = stdout.readLine();
+    if (countAsString == null) {
+      throw new EOFException("The annotator stopped while providing the base content of " + localFile);
+    }
+    if (FILE_FAILED.equals(countAsString) || PROJECT_FAILED.equals(countAsString)) {
+      LOG.warning("Unable to get the base content: %s", stderr.takeMessage(null));
+      return null;
+    }
+
+    long[] result = new long[parseAnswerCount(countAsString, "base lines")];
+    for (int i = 0; i < result.length; i++) {
+      if (!stdout.readLineHash(result, i)) {
+        throw new IllegalStateException("Missing base content of " + localFile + ", received " + i + " of " + result.length + " lines");
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   * Requests the server path and the changeset of the workspace version of the files.
+   *
+   * @return the versions in the order of the files, {@code null} for the files the annotator failed on
+   * @see #requestEach(String, List, AnswerParser)
+   */
+  List<ItemVersion> versions(List<InputFile> inputFiles) throws IOException {
+    return requestEach(VERSION_REQUEST, paths(inputFiles), answer -> {
+      int separator = answer.lastIndexOf('\t');
+      return new ItemVersion(answer.substring(0, separator), Long.parseLong(answer.substring(separator + 1)));
+    });
+  }
+
+  /**
+   * Requests the local workspace mappings of the machine, i.e. the collection and the local root of each mapped
+   * path. The answer is the number of mappings, followed by one line per mapping.
+   *
+   * @return the mappings, or {@code null} if the annotator does not know the request
+   */
+  @CheckForNull
+  List<Workspace> workspaces() throws IOException {
+    stdin.write(WORKSPACES_REQUEST + "\r\n");
+    stdin.flush();
+
+    String echo = stdout.readLine();
+    if (echo == null) {
+      throw new EOFException("The annotator stopped on the workspaces request");
+    }
+    if (!WORKSPACES_REQUEST.equals(echo)) {
+      throw new IllegalStateException("Expected the workspaces request to be echoed: " + echo);
+    }
+
+    String header = stdout.readLine();
+    if (header == null) {
+      throw new EOFException("The annotator stopped while listing the workspaces");
+    }
+    if (FILE_FAILED.equals(header) || PROJECT_FAILED.equals(header)) {
+      LOG.debug("Unable to get the workspaces: %s", stderr.takeMessage(null));
+      return null;
+    }
+
+    try {
+      int count = Integer.parseInt(header, 10);
+      List<Workspace> result = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+        String line = stdout.readLine();
+        int separator = line == null ? -1 : line.indexOf('\t');
+        if (separator < 0) {
+          throw new IllegalStateException("Invalid workspace mapping: " + line);
+        }
+        result.add(new Workspace(line.substring(0, separator), line.substring(separator + 1)));
+      }
+      return result;
+    } catch (NumberFormatException e) {
+      throw new IllegalStateException("Invalid number of workspaces: " + header, e);
+    }
+  }
+
+  private static List<String> paths(List<InputFile> inputFiles) {
+    List<String> result = new ArrayList<>(inputFiles.size());
+    inputFiles.forEach(inputFile -> result.add(pathOf(inputFile)));
+    return result;
+  }
+
+  /**
+   * Sends one request per argument, e.g. per file, answered by a single line. The requests are written a chunk at
+   * a time, so that the annotator does not block on a full output while the requests are written. Annotators not
+   * knowing the request fail on the first arguments like on paths which do not exist, the other arguments are then
+   * not requested.
+   */
+  private <T> List<T> requestEach(String prefix, List<String> arguments, AnswerParser<T> parser) throws IOException {
+    List<T> result = new ArrayList<>(arguments.size());
+    for (int start = 0; start < arguments.size(); start += REQUESTS_PER_FLUSH) {
+      List<String> chunk = arguments.subList(start, Math.min(arguments.size(), start + REQUESTS_PER_FLUSH));
+      for (String argument : chunk) {
+        stdin.write(prefix + argument + "\r\n");
+      }
+      stdin.flush();
+
+      boolean known = false;
+      for (String argument : chunk) {
+        T answer = receiveAnswer(prefix + argument, parser);
+        known |= answer != null;
+        result.add(answer);
+      }
+      if (start == 0 && !known) {
+        LOG.debug("the annotator did not answer \"%s\" for any request", prefix.trim());
+        break;
+      }
+    }
+
+    while (result.size() < arguments.size()) {
+      result.add(null);
+    }
+    return result;
+  }
+
+  @CheckForNull
+  private <T> T receiveAnswer(String request, AnswerParser<T> parser) throws IOException {
+    String echo = stdout.readLine();
+    if (!request.equals(echo)) {
+      throw new IllegalStateException("Expected the request to be echoed: " + request + " and " + echo);
+    }
+
+    String answer = stdout.readLine();
+    if (answer == null) {
+      throw new EOFException("The annotator stopped while answering: " + request);
+    }
+    if (FILE_FAILED.equals(answer) || PROJECT_FAILED.equals(answer)) {
+      LOG.debug("%s", stderr.takeMessage(null));
+      return null;
+    }
+
+    try {
+      return parser.parse(answer);
+    } catch (NumberFormatException | IndexOutOfBoundsException e) {
+      throw new IllegalStateException("Invalid answer to the request " + request + ": " + answer, e);
+    }
+  }
+
+  /**
+   * Kills the annotator because it did not answer in time, any pending read of its output returns.
+   *
+   * @param subject what the annotator was expected to answer, reported by {@link #timedOutOn()}
+   */
+  void kill(String subject) {
+    timedOutOn = subject;
+    terminate();
+  }
+
+  /**
+   * Stops the annotator process, any pending read of its output returns.
+   */
+  void terminate() {
+    process.destroyForcibly();
+  }
+
+  /**
+   * @return what the annotator did not answer in time, or {@code null} if it was not killed
+   */
+  @CheckForNull
+  String timedOutOn() {
+    return timedOutOn;
+  }
+
+  /**
+   * Indicates whether the annotator reported a failure on project level.
+   */
+  boolean isAborted() {
+    return aborted;
+  }
+
+  /**
+   * Signals the end of the file list to the annotator and waits for its termination.
+   */
+  void finish(String command) throws IOException, InterruptedException {
+    stdin.close();
+
+    int exitCode = process.waitFor();
+    if (exitCode != 0) {
+      throw new IllegalStateException("The TFVC annotate command " + command + " failed with exit code " + exitCode);
+    }
+  }
+
+  /**
+   * Logs the error output received so far which does not explain a failure already reported.
+   */
+  void captureErrorStream() {
+    stderr.logPending(LOG);
+  }
+
+  /**
+   * Stops the annotator and logs the rest of its error output.
+   */
+  @Override
+  public void close() {
+    try {
+      process.getInputStream().close();
+      process.getOutputStream().close();
+    } catch (IOException e) {
+      // just ignore
+    }
+    process.destroy();
+    metrics.bytesRead(counter.getCount());
+
+    try {
+      stderr.awaitEnd(ERROR_STREAM_END_TIMEOUT_MS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    stderr.setSubject(null);
+    captureErrorStream();
+
+    try {
+      process.getErrorStream().close();
+    } catch (IOException e) {
+      // just ignore
+    }
+  }
+
+  /**
+   * Extracts the full path from the URI, skipping the leading slash.
+   */
+  static String pathOf(InputFile inputFile) {
+    return inputFile.uri().getPath().substring(1);
+  }
+
+  private static void logOutput(String output) {
+    LOG.debug("received output: <%s>", output);
+  }
+
+  @FunctionalInterface
+  private interface AnswerParser<T> {
+    T parse(String answer);
+  }
+
+  /**
+   * The collection of a workspace and the local root of one of its mapped paths.
+   */
+  static final class Workspace {
+
+    private final String collectionUri;
+    private final String root;
+
+    Workspace(String collectionUri, String root) {
+      this.collectionUri = collectionUri;
+      this.root = root;
+    }
+
+    String collectionUri() {
+      return collectionUri;
+    }
+
+    String root() {
+      return root;
+    }
+
+    /**
+     * @return the mapping with the longest root containing the file, or {@code null} if the file is not mapped
+     */
+    @CheckForNull
+    static Workspace of(List<Workspace> workspaces, String path) {
+      String file = normalize(path);
+      Workspace result = null;
+      for (Workspace workspace : workspaces) {
+        String prefix = normalize(workspace.root);
+        prefix = prefix.endsWith("/") ? prefix : (prefix + "/");
+        if (file.startsWith(prefix) && (result == null || workspace.root.length() > result.root.length())) {
+          result = workspace;
+        }
+      }
+      return result;
+    }
+
+    /**
+     * Compares local paths ignoring the case and the kind of separators, like Windows does.
+     */
+    private static String normalize(String path) {
+      return path.replace('\\', '/').toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Indicates whether the collection is the given one, ignoring the case and a trailing slash.
+     */
+    boolean isOn(String otherCollectionUri) {
+      return stripSlash(collectionUri).equalsIgnoreCase(stripSlash(otherCollectionUri));
+    }
+
+    private static String stripSlash(String uri) {
+      return uri.endsWith("/") ? uri.substring(0, uri.length() - 1) : uri;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (this == other) {
+        return true;
+      }
+      if (other == null || getClass() != other.getClass()) {
+        return false;
+      }
+      Workspace workspace = (Workspace) other;
+      return isOn(workspace.collectionUri) && root.equalsIgnoreCase(workspace.root);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * stripSlash(collectionUri).toLowerCase(Locale.ROOT).hashCode() + root.toLowerCase(Locale.ROOT).hashCode();
+    }
+
+    @Override
+    public String toString() {
+      return root + " on " + collectionUri;
+    }
+  }
+
+  /**
+   * The accounts an annotator resolved, and how often the session found the accounts in the cache of the annotator
+   * or had to query the identity service.
+   */
+  static final class ResolvedAccounts {
+
+    private final List<AccountCache.Account> accounts;
+    private final int hits;
+    private final int misses;
+    private final long lookupMillis;
+
+    ResolvedAccounts(List<AccountCache.Account> accounts, int hits, int misses, long lookupMillis) {
+      this.accounts = accounts;
+      this.hits = hits;
+      this.misses = misses;
+      this.lookupMillis = lookupMillis;
+    }
+
+    List<AccountCache.Account> accounts() {
+      return accounts;
+    }
+
+    int hits() {
+      return hits;
+    }
+
+    int misses() {
+      return misses;
+    }
+
+    long lookupMillis() {
+      return lookupMillis;
+    }
+  }
+
+  /**
+   * The files changed on the server after a changeset, and the highest changeset of the workspace version.
+   */
+  static final class ItemChanges {
+
+    private final long highest;
+    private final Set<String> paths = new HashSet<>();
+
+    ItemChanges(long highest, List<String> paths) {
+      this.highest = highest;
+      for (String path : paths) {
+        this.paths.add(Workspace.normalize(path));
+      }
+    }
+
+    long highest() {
+      return highest;
+    }
+
+    int size() {
+      return paths.size();
+    }
+
+    /**
+     * Indicates whether the local file is among the changed files, ignoring the case and the kind of separators.
+     */
+    boolean contains(String path) {
+      return paths.contains(Workspace.normalize(path));
+    }
+  }
+
+  /**
+   * The server path of a file and the changeset of its version in the workspace.
+   */
+  static final class ItemVersion {
+
+    private final String serverPath;
+    private final long changeset;
+
+    ItemVersion(String serverPath, long changeset) {
+      this.serverPath = serverPath;
+      this.changeset = changeset;
+    }
+
+    String serverPath() {
+      return serverPath;
+    }
+
+    long changeset() {
+      return changeset;
+    }
+  }
+}
@@ -0,0 +1,292 @@
+/*
+ * SonarQube :: SCM :: TFVC :: Plugin
+ * Copyright (c) SonarSource SA and Microsoft Corporation.  All rights reserved.
+ *
+ * Licensed under the MIT License. See License.txt in the project root for license information.
+ */
+package org.sonar.plugins.scm.tfs;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.MoreFiles;
+import org.sonar.api.batch.fs.InputFile;
+import org.sonar.api.batch.scm.BlameLine;
+
+import javax.annotation.CheckForNull;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stores the blame information of files between two analyses.
+ * The entries are keyed by the path of the file and validated with a hash of the file content.
+ * Each entry is kept encoded in the file format, i.e. a table of the changesets followed by run-length
+ * encoded references to that table. The least recently used entries are evicted when the size limit is exceeded.
+ */
+class BlameCache {
+
+  private static final TfsLogger LOG = TfsLogger.get(BlameCache.class);
+  private static final int MAGIC = 0x54464243;
+  private static final int VERSION = 1;
+
+  private final Path location;
+  private final long maxSize;
+  private final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private long size;
+  private int hits;
+  private int misses;
+
+  BlameCache(Path location, long maxSize) {
+    this.location = location;
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * Reads the cache from disk. A missing or unreadable file results in an empty cache.
+   */
+  static BlameCache load(Path location, long maxSize) {
+    BlameCache cache = new BlameCache(location, maxSize);
+    if (!Files.exists(location)) {
+      return cache;
+    }
+
+    try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(location)))) {
+      if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+        LOG.warning("Ignoring blame cache %s with unknown format.", location);
+        return cache;
+      }
+
+      int count = input.readInt();
+      for (int i = 0; i < count; i++) {
+        String path = input.readUTF();
+        byte[] hash = new byte[input.readUnsignedByte()];
+        input.readFully(hash);
+        byte[] data = new byte[input.readInt()];
+        input.readFully(data);
+        cache.store(path, new Entry(hash, data));
+      }
+    } catch (IOException e) {
+      LOG.warning("Ignoring unreadable blame cache %s: %s", location, e.getMessage());
+      cache.entries.clear();
+      cache.size = 0;
+    }
+
+    return cache;
+  }
+
+  /**
+   * Computes the hash of the current content of the file.
+   *
+   * @return the hash, or {@code null} if the file cannot be read
+   */
+  @CheckForNull
+  static HashCode hash(InputFile inputFile) {
+    try {
+      return MoreFiles.asByteSource(Paths.get(inputFile.uri())).hash(Hashing.murmur3_128());
+    } catch (IOException e) {
+      LOG.debug("Unable to hash %s: %s", inputFile, e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * @return the cached blame lines, or {@code null} if the file is unknown or its content has been changed
+   */
+  @CheckForNull
+  synchronized List<BlameLine> get(String path, HashCode hash, ChangesetPool pool) {
+    Entry entry = entries.get(path);
+    if (entry == null || !Arrays.equals(entry.hash, hash.asBytes())) {
+      misses++;
+      return null;
+    }
+
+    try {
+      List<BlameLine> lines = decode(entry.data, pool);
+      hits++;
+      return lines;
+    } catch (IOException e) {
+      remove(path);
+      misses++;
+      return null;
+    }
+  }
+
+  synchronized void put(String path, HashCode hash, List<BlameLine> lines) {
+    remove(path);
+    store(path, new Entry(hash.asBytes(), encode(lines)));
+  }
+
+  synchronized int hits() {
+    return hits;
+  }
+
+  synchronized int misses() {
+    return misses;
+  }
+
+  synchronized int entries() {
+    return entries.size();
+  }
+
+  /**
+   * Writes the cache to disk, replacing the previous file atomically.
+   */
+  synchronized void save() throws IOException {
+    Path directory = location.toAbsolutePath().getParent();
+    Files.createDirectories(directory);
+    Path temporary = Files.createTempFile(directory, location.getFileName().toString(), ".tmp");
+    try {
+      try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+        output.writeInt(MAGIC);
+        output.writeInt(VERSION);
+        output.writeInt(entries.size());
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+          output.writeUTF(entry.getKey());
+          output.writeByte(entry.getValue().hash.length);
+          output.write(entry.getValue().hash);
+          output.writeInt(entry.getValue().data.length);
+          output.write(entry.getValue().data);
+        }
+      }
+      Files.move(temporary, location, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temporary);
+    }
+  }
+
+  private void store(String path, Entry entry) {
+    entries.put(path, entry);
+    size += entry.size(path);
+
+    Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+    while (size > maxSize && eldest.hasNext()) {
+      Map.Entry<String, Entry> evicted = eldest.next();
+      size -= evicted.getValue().size(evicted.getKey());
+      eldest.remove();
+    }
+  }
+
+  /**
+   * Removes the entry of the path, whatever its content.
+   */
+  synchronized void remove(String path) {
+    Entry entry = entries.remove(path);
+    if (entry != null) {
+      size -= entry.size(path);
+    }
+  }
+
+  static byte[] encode(List<BlameLine> lines) {
+    Map<BlameLine, Integer> table = new HashMap<>();
+    List<BlameLine> changesets = new ArrayList<>();
+    int[] indexes = new int[lines.size()];
+    for (int i = 0; i < indexes.length; i++) {
+      BlameLine line = lines.get(i);
+      Integer index = table.get(line);
+      if (index == null) {
+        index = changesets.size();
+        changesets.add(line);
+        table.put(line, index);
+      }
+      indexes[i] = index;
+    }
+
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream output = new DataOutputStream(bytes);
+      writeVarInt(output, changesets.size());
+      for (BlameLine changeset : changesets) {
+        output.writeUTF(changeset.revision());
+        output.writeUTF(changeset.author());
+        output.writeLong(changeset.date().getTime());
+      }
+
+      writeVarInt(output, indexes.length);
+      int start = 0;
+      while (start < indexes.length) {
+        int end = start + 1;
+        while (end < indexes.length && indexes[end] == indexes[start]) {
+          end++;
+        }
+        writeVarInt(output, indexes[start]);
+        writeVarInt(output, end - start);
+        start = end;
+      }
+      return bytes.toByteArray();
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to encode blame lines", e);
+    }
+  }
+
+  static List<BlameLine> decode(byte[] data, ChangesetPool pool) throws IOException {
+    DataInputStream input = new DataInputStream(new ByteArrayInputStream(data));
+    CompactBlameList.Builder lines = new CompactBlameList.Builder();
+    int[] changesets = new int[readVarInt(input)];
+    for (int i = 0; i < changesets.length; i++) {
+      String revision = input.readUTF();
+      String author = input.readUTF();
+      long date = input.readLong();
+      try {
+        changesets[i] = lines.changeset(pool.get(Long.parseLong(revision), author, date));
+      } catch (NumberFormatException e) {
+        throw new IOException("Malformed revision " + revision, e);
+      }
+    }
+
+    int count = readVarInt(input);
+    while (lines.size() < count) {
+      int changeset = readVarInt(input);
+      int length = readVarInt(input);
+      if (changeset >= changesets.length || length <= 0) {
+        throw new IOException("Malformed run " + changeset + " " + length);
+      }
+      lines.add(changesets[changeset], length);
+    }
+    return lines.build();
+  }
+
+  private static void writeVarInt(DataOutput output, int value) throws IOException {
+    int remaining = value;
+    while ((remaining & ~0x7F) != 0) {
+      output.writeByte((remaining & 0x7F) | 0x80);
+      remaining >>>= 7;
+    }
+    output.writeByte(remaining);
+  }
+
+  private static int readVarInt(DataInput input) throws IOException {
+    int value = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      int current = input.readUnsignedByte();
+      value |= (current & 0x7F) << shift;
+      if ((current & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("Malformed variable length integer");
+  }
+
+  private static final class Entry {
+
+    private final byte[] hash;
+    private final byte[] data;
+
+    Entry(byte[] hash, byte[] data) {
+      this.hash = hash;
+      this.data = data;
+    }
+
+    long size(String path) {
+      return 2L * path.length() + hash.length + data.length;
+    }
+  }
+}
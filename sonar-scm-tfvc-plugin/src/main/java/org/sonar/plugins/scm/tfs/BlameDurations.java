@@ -0,0 +1,189 @@
+/*
+ * SonarQube :: SCM :: TFVC :: Plugin
+ * Copyright (c) SonarSource SA and Microsoft Corporation.  All rights reserved.
+ *
+ * Licensed under the MIT License. See License.txt in the project root for license information.
+ */
+package org.sonar.plugins.scm.tfs;
+
+import org.sonar.api.batch.fs.InputFile;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers how long the annotation of each file took in the previous analyses, so that the files taking the
+ * longest are handed out first and do not end up alone at the tail of a run with several annotators.
+ * Files annotated for the first time are estimated from their number of lines, using the average time per line
+ * of the known files.
+ */
+class BlameDurations {
+
+  static final String FILE_NAME = "tfvc-blame.durations";
+
+  private static final TfsLogger LOG = TfsLogger.get(BlameDurations.class);
+  private static final int MAGIC = 0x54464244;
+  private static final int VERSION = 1;
+  private static final int MAX_ENTRIES = 200_000;
+  private static final int AVERAGE_LINE_LENGTH = 40;
+  private static final double DEFAULT_MILLIS_PER_LINE = 1;
+
+  @CheckForNull
+  private final Path location;
+  private final Map<String, Entry> entries = new LinkedHashMap<>();
+
+  BlameDurations(@Nullable Path location) {
+    this.location = location;
+  }
+
+  /**
+   * Reads the durations from disk. A missing or unreadable file results in no history.
+   *
+   * @param location the file, or {@code null} to keep the durations in memory only
+   */
+  static BlameDurations load(@Nullable Path location) {
+    BlameDurations durations = new BlameDurations(location);
+    if (location == null || !Files.exists(location)) {
+      return durations;
+    }
+
+    try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(location)))) {
+      if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+        LOG.warning("Ignoring blame durations %s with unknown format.", location);
+        return durations;
+      }
+
+      int count = input.readInt();
+      for (int i = 0; i < count; i++) {
+        String path = input.readUTF();
+        durations.entries.put(path, new Entry(input.readLong(), input.readInt()));
+      }
+    } catch (IOException e) {
+      LOG.warning("Ignoring unreadable blame durations %s: %s", location, e.getMessage());
+      durations.entries.clear();
+    }
+
+    return durations;
+  }
+
+  /**
+   * @return the duration of the last annotation of the file, or {@code null} if it is unknown
+   */
+  @CheckForNull
+  synchronized Long get(String path) {
+    Entry entry = entries.get(path);
+    return entry != null ? entry.millis : null;
+  }
+
+  synchronized void put(String path, long millis, int lines) {
+    // the entries of the latest analysis are the last ones to be evicted
+    entries.remove(path);
+    entries.put(path, new Entry(millis, Math.max(lines, 0)));
+  }
+
+  /**
+   * Sorts the files by decreasing expected duration. Files with the same estimate keep their order.
+   */
+  synchronized List<InputFile> longestFirst(List<InputFile> files) {
+    double millisPerLine = millisPerLine();
+    List<InputFile> sorted = new ArrayList<>(files);
+    Map<InputFile, Double> estimates = new HashMap<>();
+    for (InputFile file : files) {
+      estimates.put(file, estimate(file, millisPerLine));
+    }
+    sorted.sort(Comparator.comparingDouble((InputFile file) -> estimates.get(file)).reversed());
+    return sorted;
+  }
+
+  private double estimate(InputFile file, double millisPerLine) {
+    Entry entry = entries.get(AnnotatorSession.pathOf(file));
+    if (entry != null) {
+      return entry.millis;
+    }
+
+    return lines(file) * millisPerLine;
+  }
+
+  private double millisPerLine() {
+    long millis = 0;
+    long lines = 0;
+    for (Entry entry : entries.values()) {
+      millis += entry.millis;
+      lines += entry.lines;
+    }
+    return lines > 0 ? (double) millis / lines : DEFAULT_MILLIS_PER_LINE;
+  }
+
+  /**
+   * Uses the number of lines known by the scanner, or estimates it from the size of the file.
+   */
+  private static long lines(InputFile file) {
+    if (file.lines() > 0) {
+      return file.lines();
+    }
+
+    try {
+      return Files.size(Paths.get(file.uri())) / AVERAGE_LINE_LENGTH;
+    } catch (IOException e) {
+      return 0;
+    }
+  }
+
+  /**
+   * Writes the durations to disk, replacing the previous file atomically. The oldest entries are dropped
+   * beyond the size limit.
+   */
+  synchronized void save() throws IOException {
+    if (location == null) {
+      return;
+    }
+
+    Iterator<String> eldest = entries.keySet().iterator();
+    while (entries.size() > MAX_ENTRIES && eldest.hasNext()) {
+      eldest.next();
+      eldest.remove();
+    }
+
+    Path directory = location.toAbsolutePath().getParent();
+    Files.createDirectories(directory);
+    Path temporary = Files.createTempFile(directory, location.getFileName().toString(), ".tmp");
+    try {
+      try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+        output.writeInt(MAGIC);
+        output.writeInt(VERSION);
+        output.writeInt(entries.size());
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+          output.writeUTF(entry.getKey());
+          output.writeLong(entry.getValue().millis);
+          output.writeInt(entry.getValue().lines);
+        }
+      }
+      Files.move(temporary, location, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temporary);
+    }
+  }
+
+  private static final class Entry {
+
+    private final long millis;
+    private final int lines;
+
+    Entry(long millis, int lines) {
+      this.millis = millis;
+      this.lines = lines;
+    }
+  }
+}
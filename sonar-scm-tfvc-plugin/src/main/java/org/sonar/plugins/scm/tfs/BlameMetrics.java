@@ -0,0 +1,268 @@
+/*
+ * SonarQube :: SCM :: TFVC :: Plugin
+ * Copyright (c) SonarSource SA and Microsoft Corporation.  All rights reserved.
+ *
+ * Licensed under the MIT License. See License.txt in the project root for license information.
+ */
+package org.sonar.plugins.scm.tfs;
+
+import org.sonar.api.utils.text.JsonWriter;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects where the time of one blame goes: starting and connecting the annotators, waiting for the answers,
+ * parsing them and passing them to the scanner. The metrics are updated concurrently by the annotator threads.
+ * They are written as a JSON report in the work directory and summarized in one line.
+ */
+final class BlameMetrics {
+
+  static final String REPORT_FILE_NAME = "tfvc-blame-metrics.json";
+
+  /**
+   * Upper bounds of the latency histogram buckets, the last bucket holds the slower files.
+   */
+  private static final long[] LATENCY_BOUNDS_MS = {10, 50, 100, 250, 500, 1000, 2500, 5000, 10_000, 30_000};
+
+  private final LongAdder sessions = new LongAdder();
+  private final LongAdder launchNanos = new LongAdder();
+  private final LongAdder handshakeNanos = new LongAdder();
+  private final LongAdder latencyNanos = new LongAdder();
+  private final AtomicLong maxLatencyNanos = new AtomicLong();
+  private final AtomicLongArray latencyHistogram = new AtomicLongArray(LATENCY_BOUNDS_MS.length + 1);
+  private final LongAdder parseNanos = new LongAdder();
+  private final LongAdder outputNanos = new LongAdder();
+  private final LongAdder annotatedFiles = new LongAdder();
+  private final LongAdder lines = new LongAdder();
+  private final LongAdder bytesRead = new LongAdder();
+  private final Map<String, LongAdder> failures = new ConcurrentSkipListMap<>();
+  private final LongAdder preloadedAccounts = new LongAdder();
+  private final LongAdder accountHits = new LongAdder();
+  private final LongAdder accountMisses = new LongAdder();
+  private final LongAdder accountLookupMillis = new LongAdder();
+  private volatile int cacheHits;
+  private volatile int cacheMisses;
+  private volatile int restarts;
+  private volatile int timedOutFiles;
+  private volatile int skippedFiles;
+  private volatile long startNanos = System.nanoTime();
+  private volatile long elapsedNanos = -1;
+
+  void sessionStarted(long launchDuration) {
+    sessions.increment();
+    launchNanos.add(launchDuration);
+  }
+
+  void connected(long handshakeDuration) {
+    handshakeNanos.add(handshakeDuration);
+  }
+
+  /**
+   * @param latency the time between the start of the annotation of the file and the end of its answer
+   * @param parseDuration the part of the latency spent reading the blame lines
+   */
+  void fileAnnotated(long latency, long parseDuration, int lineCount) {
+    annotatedFiles.increment();
+    lines.add(lineCount);
+    parseNanos.add(parseDuration);
+    latencyNanos.add(latency);
+    maxLatencyNanos.accumulateAndGet(latency, Math::max);
+
+    long latencyMillis = TimeUnit.NANOSECONDS.toMillis(latency);
+    int bucket = 0;
+    while (bucket < LATENCY_BOUNDS_MS.length && latencyMillis > LATENCY_BOUNDS_MS[bucket]) {
+      bucket++;
+    }
+    latencyHistogram.incrementAndGet(bucket);
+  }
+
+  void fileFailed(String cause) {
+    failures.computeIfAbsent(cause, key -> new LongAdder()).increment();
+  }
+
+  void output(long duration) {
+    outputNanos.add(duration);
+  }
+
+  void bytesRead(long count) {
+    bytesRead.add(count);
+  }
+
+  void cache(int hits, int misses) {
+    this.cacheHits = hits;
+    this.cacheMisses = misses;
+  }
+
+  void accountsPreloaded(int count) {
+    preloadedAccounts.add(count);
+  }
+
+  /**
+   * @param hits the accounts an annotator found in its cache
+   * @param misses the accounts an annotator resolved through the identity service
+   * @param lookupMillis the time the identity service took to resolve them
+   */
+  void accountLookups(int hits, int misses, long lookupMillis) {
+    accountHits.add(hits);
+    accountMisses.add(misses);
+    accountLookupMillis.add(lookupMillis);
+  }
+
+  long accountHits() {
+    return accountHits.sum();
+  }
+
+  long accountMisses() {
+    return accountMisses.sum();
+  }
+
+  void recovery(int restarts, int timedOutFiles) {
+    this.restarts = restarts;
+    this.timedOutFiles = timedOutFiles;
+  }
+
+  /**
+   * Records the files not annotated because the blame budget was used up.
+   */
+  void skipped(int files) {
+    this.skippedFiles = files;
+  }
+
+  /**
+   * Starts the clock of the whole blame, for metrics collected from an annotator started in advance.
+   */
+  void restartClock() {
+    startNanos = System.nanoTime();
+  }
+
+  /**
+   * Stops the clock of the whole blame.
+   */
+  void finish() {
+    elapsedNanos = System.nanoTime() - startNanos;
+  }
+
+  long annotatedFiles() {
+    return annotatedFiles.sum();
+  }
+
+  long failedFiles() {
+    return failures.values().stream().mapToLong(LongAdder::sum).sum();
+  }
+
+  long failures(String cause) {
+    LongAdder count = failures.get(cause);
+    return count != null ? count.sum() : 0;
+  }
+
+  long lines() {
+    return lines.sum();
+  }
+
+  long bytesRead() {
+    return bytesRead.sum();
+  }
+
+  long[] latencyHistogram() {
+    long[] histogram = new long[latencyHistogram.length()];
+    for (int i = 0; i < histogram.length; i++) {
+      histogram[i] = latencyHistogram.get(i);
+    }
+    return histogram;
+  }
+
+  String summary() {
+    long files = annotatedFiles();
+    return String.format(Locale.ROOT, "annotated %d files, %d failed, in %d ms: %d ms per file on average, %d ms at most, "
+      + "%d lines/s, %d KB read", files, failedFiles(), millis(elapsed()), files > 0 ? millis(latencyNanos.sum() / files) : 0,
+      millis(maxLatencyNanos.get()), linesPerSecond(), bytesRead() / 1024);
+  }
+
+  void write(Path report) throws IOException {
+    try (Writer writer = Files.newBufferedWriter(report, StandardCharsets.UTF_8)) {
+      JsonWriter json = JsonWriter.of(writer);
+      json.beginObject()
+        .prop("elapsedMs", millis(elapsed()))
+        .prop("sessions", sessions.sum())
+        .prop("restarts", restarts)
+        .prop("timedOutFiles", timedOutFiles);
+
+      json.name("phases").beginObject()
+        .prop("launchMs", millis(launchNanos.sum()))
+        .prop("handshakeMs", millis(handshakeNanos.sum()))
+        .prop("annotateMs", millis(latencyNanos.sum()))
+        .prop("parseMs", millis(parseNanos.sum()))
+        .prop("outputMs", millis(outputNanos.sum()))
+        .endObject();
+
+      json.name("files").beginObject()
+        .prop("annotated", annotatedFiles())
+        .prop("failed", failedFiles())
+        .prop("skipped", skippedFiles)
+        .prop("cacheHits", cacheHits)
+        .prop("cacheMisses", cacheMisses)
+        .endObject();
+
+      json.name("accounts").beginObject()
+        .prop("preloaded", preloadedAccounts.sum())
+        .prop("hits", accountHits())
+        .prop("misses", accountMisses())
+        .prop("lookupMs", accountLookupMillis.sum())
+        .endObject();
+
+      json.name("failures").beginObject();
+      for (Map.Entry<String, LongAdder> failure : failures.entrySet()) {
+        json.prop(failure.getKey(), failure.getValue().sum());
+      }
+      json.endObject();
+
+      long files = annotatedFiles();
+      json.name("latency").beginObject()
+        .prop("averageMs", files > 0 ? millis(latencyNanos.sum() / files) : 0)
+        .prop("maxMs", millis(maxLatencyNanos.get()));
+      json.name("histogram").beginArray();
+      long[] histogram = latencyHistogram();
+      for (int i = 0; i < histogram.length; i++) {
+        json.beginObject();
+        if (i < LATENCY_BOUNDS_MS.length) {
+          json.prop("upToMs", LATENCY_BOUNDS_MS[i]);
+        } else {
+          json.prop("aboveMs", LATENCY_BOUNDS_MS[LATENCY_BOUNDS_MS.length - 1]);
+        }
+        json.prop("files", histogram[i]).endObject();
+      }
+      json.endArray().endObject();
+
+      json.prop("lines", lines())
+        .prop("linesPerSecond", linesPerSecond())
+        .prop("bytesRead", bytesRead())
+        .endObject()
+        .close();
+    }
+  }
+
+  private long elapsed() {
+    long elapsed = elapsedNanos;
+    return elapsed >= 0 ? elapsed : System.nanoTime() - startNanos;
+  }
+
+  private long linesPerSecond() {
+    long elapsed = elapsed();
+    return elapsed > 0 ? lines() * TimeUnit.SECONDS.toNanos(1) / elapsed : 0;
+  }
+
+  private static long millis(long nanos) {
+    return TimeUnit.NANOSECONDS.toMillis(nanos);
+  }
+}
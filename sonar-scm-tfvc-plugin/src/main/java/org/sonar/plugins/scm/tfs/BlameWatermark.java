@@ -0,0 +1,96 @@
+/*
+ * SonarQube :: SCM :: TFVC :: Plugin
+ * Copyright (c) SonarSource SA and Microsoft Corporation.  All rights reserved.
+ *
+ * Licensed under the MIT License. See License.txt in the project root for license information.
+ */
+package org.sonar.plugins.scm.tfs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Stores the highest changeset of the project known at the end of the last complete blame, next to the blame
+ * cache. The entries of the cache were all computed at that changeset or later, so the files whose item did not
+ * change since then keep the blame cached for their content.
+ */
+final class BlameWatermark {
+
+  private static final TfsLogger LOG = TfsLogger.get(BlameWatermark.class);
+  private static final int MAGIC = 0x54465754;
+  private static final int VERSION = 1;
+  static final String FILE_SUFFIX = ".watermark";
+
+  private final Path location;
+  private final String collectionUri;
+  private final String root;
+  private final long changeset;
+
+  private BlameWatermark(Path location, String collectionUri, String root, long changeset) {
+    this.location = location;
+    this.collectionUri = collectionUri;
+    this.root = root;
+    this.changeset = changeset;
+  }
+
+  /**
+   * @return the location of the watermark of a blame cache
+   */
+  static Path of(Path cacheLocation) {
+    return cacheLocation.resolveSibling(cacheLocation.getFileName() + FILE_SUFFIX);
+  }
+
+  /**
+   * Reads the watermark of the project root, i.e. its server path with the REST engine or its local directory with
+   * the annotator. A missing or unreadable file, or one of another root, results in no watermark.
+   */
+  static BlameWatermark load(Path location, String collectionUri, String root) {
+    long changeset = 0;
+    if (Files.exists(location)) {
+      try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(location)))) {
+        if (input.readInt() == MAGIC && input.readInt() == VERSION
+          && input.readUTF().equals(collectionUri) && input.readUTF().equals(root)) {
+          changeset = input.readLong();
+        }
+      } catch (IOException e) {
+        LOG.warning("Ignoring unreadable changeset watermark %s: %s", location, e.getMessage());
+      }
+    }
+    return new BlameWatermark(location, collectionUri, root, changeset);
+  }
+
+  /**
+   * @return the changeset, 0 if unknown
+   */
+  long changeset() {
+    return changeset;
+  }
+
+  /**
+   * Writes the new watermark, replacing the previous file atomically.
+   */
+  BlameWatermark save(long newChangeset) throws IOException {
+    Path directory = location.toAbsolutePath().getParent();
+    Files.createDirectories(directory);
+    Path temporary = Files.createTempFile(directory, location.getFileName().toString(), ".tmp");
+    try {
+      try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+        output.writeInt(MAGIC);
+        output.writeInt(VERSION);
+        output.writeUTF(collectionUri);
+        output.writeUTF(root);
+        output.writeLong(newChangeset);
+      }
+      Files.move(temporary, location, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temporary);
+    }
+    return new BlameWatermark(location, collectionUri, root, newChangeset);
+  }
+}
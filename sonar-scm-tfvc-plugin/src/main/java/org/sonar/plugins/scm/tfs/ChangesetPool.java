@@ -0,0 +1,48 @@
+/*
+ * SonarQube :: SCM :: TFVC :: Plugin
+ * Copyright (c) SonarSource SA and Microsoft Corporation.  All rights reserved.
+ *
+ * Licensed under the MIT License. See License.txt in the project root for license information.
+ */
+package org.sonar.plugins.scm.tfs;
+
+import org.sonar.api.batch.scm.BlameLine;
+
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Provides one canonical {@link BlameLine} per changeset for the duration of one analysis.
+ * All lines of all files attributed to the same changeset share this instance, together with its revision,
+ * author and date. Author names are shared across changesets as well.
+ * The pool is used concurrently by all annotator sessions.
+ */
+final class ChangesetPool {
+
+  private final ConcurrentMap<Long, BlameLine> changesets = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, String> authors = new ConcurrentHashMap<>();
+
+  /**
+   * @return the canonical line of the changeset, the author is only materialized for unknown changesets
+   */
+  BlameLine get(AnnotationReader.ParsedLine line) {
+    BlameLine result = changesets.get(line.changeset());
+    if (result == null) {
+      result = get(line.changeset(), line.author(), line.date());
+    }
+    return result;
+  }
+
+  BlameLine get(long changeset, String author, long date) {
+    return changesets.computeIfAbsent(changeset, id -> new BlameLine()
+      .revision(Long.toString(id))
+      .author(authors.computeIfAbsent(author, name -> name))
+      .date(new Date(date)));
+  }
+
+  int size() {
+    return changesets.size();
+  }
+
+}
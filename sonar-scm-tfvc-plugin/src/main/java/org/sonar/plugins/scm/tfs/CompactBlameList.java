@@ -0,0 +1,173 @@
+/*
+ * SonarQube :: SCM :: TFVC :: Plugin
+ * Copyright (c) SonarSource SA and Microsoft Corporation.  All rights reserved.
+ *
+ * Licensed under the MIT License. See License.txt in the project root for license information.
+ */
+package org.sonar.plugins.scm.tfs;
+
+import org.sonar.api.batch.scm.BlameLine;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+
+/**
+ * Immutable blame lines of one file, stored as runs of consecutive lines belonging to the same changeset.
+ * A file of thousands of lines usually has a few dozen runs, so that no array of one reference per line is
+ * allocated. The lines are the instances of the per-file changeset table, looked up when accessed.
+ */
+final class CompactBlameList extends AbstractList<BlameLine> implements RandomAccess {
+
+  private final BlameLine[] changesets;
+  private final int[] runChangesets;
+  private final int[] runEnds;
+  private final int runCount;
+  private final int size;
+
+  private CompactBlameList(BlameLine[] changesets, int[] runChangesets, int[] runEnds, int runCount, int size) {
+    this.changesets = changesets;
+    this.runChangesets = runChangesets;
+    this.runEnds = runEnds;
+    this.runCount = runCount;
+    this.size = size;
+  }
+
+  /**
+   * Extends the last line to one more line, for TFS not reporting the blame of a last empty line
+   * (SONARPLUGINS-3097). The arrays are shared with this list.
+   */
+  CompactBlameList withExtraLastLine() {
+    if (size == 0) {
+      throw new IllegalStateException("No last line to extend");
+    }
+    return new CompactBlameList(changesets, runChangesets, runEnds, runCount, size + 1);
+  }
+
+  int runCount() {
+    return runCount;
+  }
+
+  @Override
+  public BlameLine get(int index) {
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+    }
+
+    // the extra last line is beyond the end of the last run
+    int run = Arrays.binarySearch(runEnds, 0, runCount, index + 1);
+    if (run < 0) {
+      run = Math.min(-run - 1, runCount - 1);
+    }
+    return changesets[runChangesets[run]];
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Walks the runs instead of searching the run of each line.
+   */
+  @Override
+  public Iterator<BlameLine> iterator() {
+    return new Iterator<BlameLine>() {
+      private int index;
+      private int run;
+
+      @Override
+      public boolean hasNext() {
+        return index < size;
+      }
+
+      @Override
+      public BlameLine next() {
+        if (index >= size) {
+          throw new NoSuchElementException();
+        }
+        while (run < runCount - 1 && index >= runEnds[run]) {
+          run++;
+        }
+        index++;
+        return changesets[runChangesets[run]];
+      }
+    };
+  }
+
+  /**
+   * Collects the lines of a file in order.
+   */
+  static final class Builder {
+
+    private final List<BlameLine> changesets = new ArrayList<>();
+    private final Map<BlameLine, Integer> indexes = new IdentityHashMap<>();
+    private int[] runChangesets = new int[8];
+    private int[] runEnds = new int[8];
+    private int runCount;
+    private BlameLine last;
+
+    /**
+     * Registers a changeset in the table of the file.
+     *
+     * @return its index, to be passed to {@link #add(int, int)}
+     */
+    int changeset(BlameLine changeset) {
+      return indexes.computeIfAbsent(changeset, key -> {
+        changesets.add(key);
+        return changesets.size() - 1;
+      });
+    }
+
+    /**
+     * Appends a line. The lines are expected to be the shared instances of a {@link ChangesetPool}.
+     */
+    Builder add(BlameLine line) {
+      if (line == last) {
+        runEnds[runCount - 1]++;
+        return this;
+      }
+      return add(changeset(line), 1);
+    }
+
+    /**
+     * Appends lines of the changeset with the given index in the table.
+     */
+    Builder add(int changeset, int length) {
+      if (length <= 0) {
+        return this;
+      }
+
+      int end = size() + length;
+      if (runCount > 0 && runChangesets[runCount - 1] == changeset) {
+        runEnds[runCount - 1] = end;
+        return this;
+      }
+
+      if (runCount == runEnds.length) {
+        runChangesets = Arrays.copyOf(runChangesets, 2 * runCount);
+        runEnds = Arrays.copyOf(runEnds, 2 * runCount);
+      }
+      runChangesets[runCount] = changeset;
+      runEnds[runCount] = end;
+      runCount++;
+      last = changesets.get(changeset);
+      return this;
+    }
+
+    int size() {
+      return runCount > 0 ? runEnds[runCount - 1] : 0;
+    }
+
+    CompactBlameList build() {
+      return new CompactBlameList(changesets.toArray(new BlameLine[0]), Arrays.copyOf(runChangesets, runCount),
+        Arrays.copyOf(runEnds, runCount), runCount, size());
+    }
+  }
+}
@@ -0,0 +1,403 @@
+/*
+ * SonarQube :: SCM :: TFVC :: Plugin
+ * Copyright (c) SonarSource SA and Microsoft Corporation.  All rights reserved.
+ *
+ * Licensed under the MIT License. See License.txt in the project root for license information.
+ */
+package org.sonar.plugins.scm.tfs;
+
+import com.google.common.hash.Hashing;
+
+import javax.annotation.CheckForNull;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.AclEntry;
+import java.nio.file.attribute.AclEntryFlag;
+import java.nio.file.attribute.AclEntryPermission;
+import java.nio.file.attribute.AclEntryType;
+import java.nio.file.attribute.AclFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connects to a long-lived annotator serving sessions on a loopback socket, see SonarTfsAnnotate/DaemonServer.cs.
+ * The daemon publishes its port and an access token in a registry file keyed by the executable, the collection URI
+ * and the credentials. If no daemon answers, one is started and its registration is awaited. Scanners running at
+ * the same time serialize the start on a file lock, so that a single daemon is started.
+ * The connection is presented as a {@link Process}, the daemon prefixes its lines with the stream they belong to.
+ * The registry holds the access token, its directory and the daemon log are readable by the owner only.
+ */
+final class DaemonLauncher implements AnnotatorLauncher {
+
+  static final String DAEMON_OPTION = "--daemon";
+  static final String ACCEPTED = "Accepted";
+
+  private static final TfsLogger LOG = TfsLogger.get(DaemonLauncher.class);
+  private static final int CONNECT_TIMEOUT_MS = 2000;
+  private static final long START_TIMEOUT_MS = 30_000;
+  private static final long POLL_INTERVAL_MS = 100;
+
+  private final Path registry;
+  private final Starter starter;
+  private final AnnotatorLauncher fallback;
+
+  DaemonLauncher(Path registry, Starter starter, AnnotatorLauncher fallback) {
+    this.registry = registry;
+    this.starter = starter;
+    this.fallback = fallback;
+  }
+
+  /**
+   * @param fallback starts a dedicated annotator if the daemon is not usable
+   */
+  static DaemonLauncher create(TfsConfiguration configuration, File executable, AnnotatorLauncher fallback) {
+    String key = Hashing.sha256().newHasher()
+      .putString(executable.getAbsolutePath(), StandardCharsets.UTF_8).putByte((byte) 0)
+      .putString(configuration.collectionUri(), StandardCharsets.UTF_8).putByte((byte) 0)
+      .putString(configuration.username(), StandardCharsets.UTF_8).putByte((byte) 0)
+      .putString(configuration.password(), StandardCharsets.UTF_8).putByte((byte) 0)
+      .putString(configuration.pat(), StandardCharsets.UTF_8)
+      .hash().toString();
+    Path registry = configuration.userCacheDirectory().resolve("tfvc").resolve("daemon").resolve(key + ".properties");
+    int idleTimeout = configuration.daemonIdleTimeout();
+    return new DaemonLauncher(registry, file -> startDaemon(executable, file, idleTimeout), fallback);
+  }
+
+  Path registry() {
+    return registry;
+  }
+
+  @Override
+  public Process launch() throws IOException {
+    Process process = connect();
+    if (process != null) {
+      return process;
+    }
+
+    try {
+      return startAndConnect();
+    } catch (IOException e) {
+      LOG.warning("Unable to use the annotator daemon, starting a dedicated annotator: %s", e.getMessage());
+      return fallback.launch();
+    }
+  }
+
+  /**
+   * Starts the daemon unless another scanner or worker did it in the meantime.
+   * The file lock is held per JVM, the workers of this scanner are serialized by the monitor.
+   */
+  private synchronized Process startAndConnect() throws IOException {
+    Files.createDirectories(registry.getParent());
+    restrictToOwner(registry.getParent(), true);
+    Path lockFile = registry.resolveSibling(registry.getFileName() + ".lock");
+    try (FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+      FileLock ignored = channel.lock()) {
+      Process process = connect();
+      if (process != null) {
+        return process;
+      }
+
+      Files.deleteIfExists(registry);
+      Path log = logFile(registry);
+      if (!Files.exists(log)) {
+        Files.createFile(log);
+      }
+      restrictToOwner(log, false);
+      LOG.info("starting the annotator daemon registered in %s", registry);
+      Process daemon = starter.start(registry);
+      return awaitDaemon(daemon);
+    }
+  }
+
+  private Process awaitDaemon(@CheckForNull Process daemon) throws IOException {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(START_TIMEOUT_MS);
+    while (true) {
+      Process process = connect();
+      if (process != null) {
+        restrictToOwner(registry, false);
+        return process;
+      }
+
+      if (daemon != null && !daemon.isAlive()) {
+        throw new IOException("The annotator daemon stopped with exit code " + daemon.exitValue() + ", see " + logFile(registry));
+      }
+      if (System.nanoTime() > deadline) {
+        throw new IOException("The annotator daemon did not register within " + TimeUnit.MILLISECONDS.toSeconds(START_TIMEOUT_MS)
+          + " seconds, see " + logFile(registry));
+      }
+
+      try {
+        Thread.sleep(POLL_INTERVAL_MS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while waiting for the annotator daemon", e);
+      }
+    }
+  }
+
+  /**
+   * @return the connection to the registered daemon, or {@code null} if there is none or it does not answer
+   */
+  @CheckForNull
+  private Process connect() {
+    Properties properties = new Properties();
+    try (Reader reader = Files.newBufferedReader(registry, StandardCharsets.UTF_8)) {
+      properties.load(reader);
+    } catch (NoSuchFileException e) {
+      return null;
+    } catch (IOException e) {
+      LOG.debug("unable to read the annotator daemon registration %s: %s", registry, e.getMessage());
+      return null;
+    }
+
+    String port = properties.getProperty("port");
+    String token = properties.getProperty("token");
+    if (port == null || token == null) {
+      return null;
+    }
+
+    Socket socket = new Socket();
+    try {
+      socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(port)), CONNECT_TIMEOUT_MS);
+      socket.setSoTimeout(CONNECT_TIMEOUT_MS);
+      OutputStream output = socket.getOutputStream();
+      output.write((token + "\r\n").getBytes(StandardCharsets.UTF_8));
+      output.flush();
+      String answer = readLine(socket.getInputStream());
+      if (!ACCEPTED.equals(answer)) {
+        LOG.debug("connection refused by the annotator daemon on port %s: %s", port, answer);
+        socket.close();
+        return null;
+      }
+
+      socket.setSoTimeout(0);
+      LOG.debug("connected to the annotator daemon on port %s", port);
+      return new SocketProcess(socket);
+    } catch (IOException | IllegalArgumentException e) {
+      LOG.debug("annotator daemon on port %s not available: %s", port, e.getMessage());
+      closeQuietly(socket);
+      return null;
+    }
+  }
+
+  /**
+   * Reads the answer to the token byte per byte, nothing of the multiplexed output must be consumed.
+   */
+  @CheckForNull
+  private static String readLine(InputStream input) throws IOException {
+    StringBuilder line = new StringBuilder();
+    int c;
+    while ((c = input.read()) >= 0 && c != '\n') {
+      if (c != '\r') {
+        line.append((char) c);
+      }
+    }
+    return c < 0 && line.length() == 0 ? null : line.toString();
+  }
+
+  private static Process startDaemon(File executable, Path registry, int idleTimeout) throws IOException {
+    Process process = new ProcessBuilder(executable.getAbsolutePath(), DAEMON_OPTION, registry.toString(), Integer.toString(idleTimeout))
+      .redirectErrorStream(true)
+      .redirectOutput(ProcessBuilder.Redirect.appendTo(logFile(registry).toFile()))
+      .start();
+    // the daemon does not read its standard input
+    process.getOutputStream().close();
+    return process;
+  }
+
+  /**
+   * Grants the owner alone access to the path, with POSIX permissions or else with an ACL. A directory ACL is
+   * inherited by the files the daemon creates in it. Nothing is changed on file systems supporting neither.
+   */
+  static void restrictToOwner(Path path, boolean directory) throws IOException {
+    PosixFileAttributeView posix = Files.getFileAttributeView(path, PosixFileAttributeView.class);
+    if (posix != null) {
+      posix.setPermissions(PosixFilePermissions.fromString(directory ? "rwx------" : "rw-------"));
+      return;
+    }
+
+    AclFileAttributeView acl = Files.getFileAttributeView(path, AclFileAttributeView.class);
+    if (acl != null) {
+      UserPrincipal owner = acl.getOwner();
+      AclEntry.Builder entry = AclEntry.newBuilder()
+        .setType(AclEntryType.ALLOW)
+        .setPrincipal(owner)
+        .setPermissions(EnumSet.allOf(AclEntryPermission.class));
+      if (directory) {
+        entry.setFlags(AclEntryFlag.FILE_INHERIT, AclEntryFlag.DIRECTORY_INHERIT);
+      }
+      acl.setAcl(Collections.singletonList(entry.build()));
+    }
+  }
+
+  private static Path logFile(Path registry) {
+    return registry.resolveSibling(registry.getFileName() + ".log");
+  }
+
+  private static void closeQuietly(Closeable closeable) {
+    try {
+      closeable.close();
+    } catch (IOException e) {
+      // just ignore
+    }
+  }
+
+  /**
+   * Starts a daemon registering itself in the given file.
+   */
+  @FunctionalInterface
+  interface Starter {
+
+    /**
+     * @return the daemon process, or {@code null} if it is not a child of this process
+     */
+    @CheckForNull
+    Process start(Path registry) throws IOException;
+  }
+
+  /**
+   * Presents a daemon connection like a process. The lines received are dispatched to the standard output or
+   * error according to their prefix, closing the standard input ends the session.
+   */
+  static final class SocketProcess extends Process {
+
+    private static final int PIPE_SIZE = 65536;
+
+    private final Socket socket;
+    private final OutputStream stdin;
+    private final Pipe stdout = new Pipe(PIPE_SIZE);
+    private final Pipe stderr = new Pipe(PIPE_SIZE);
+    private final Thread demultiplexer;
+
+    SocketProcess(Socket socket) throws IOException {
+      this.socket = socket;
+      OutputStream output = socket.getOutputStream();
+      this.stdin = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+          output.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+          output.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+          output.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+          if (!socket.isClosed() && !socket.isOutputShutdown()) {
+            output.flush();
+            socket.shutdownOutput();
+          }
+        }
+      };
+
+      InputStream input = socket.getInputStream();
+      demultiplexer = new Thread(() -> demultiplex(input, stdout.output(), stderr.output()), "tfvc-daemon-connection");
+      demultiplexer.setDaemon(true);
+      demultiplexer.start();
+    }
+
+    private void demultiplex(InputStream input, OutputStream out, OutputStream err) {
+      byte[] buffer = new byte[8192];
+      OutputStream target = null;
+      try {
+        int count;
+        while ((count = input.read(buffer)) > 0) {
+          int i = 0;
+          while (i < count) {
+            if (target == null) {
+              target = buffer[i] == 'E' ? err : out;
+              i++;
+              continue;
+            }
+
+            int end = i;
+            while (end < count && buffer[end] != '\n') {
+              end++;
+            }
+            if (end < count) {
+              // including the line feed
+              end++;
+              target.write(buffer, i, end - i);
+              target = null;
+            } else {
+              target.write(buffer, i, end - i);
+            }
+            i = end;
+          }
+        }
+      } catch (IOException e) {
+        LOG.debug("annotator daemon connection closed: %s", e.getMessage());
+      } finally {
+        closeQuietly(out);
+        closeQuietly(err);
+        closeQuietly(socket);
+      }
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+      return stdin;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+      return stdout.input();
+    }
+
+    @Override
+    public InputStream getErrorStream() {
+      return stderr.input();
+    }
+
+    @Override
+    public int waitFor() throws InterruptedException {
+      demultiplexer.join();
+      return 0;
+    }
+
+    @Override
+    public boolean waitFor(long timeout, TimeUnit unit) throws InterruptedException {
+      demultiplexer.join(unit.toMillis(timeout));
+      return !demultiplexer.isAlive();
+    }
+
+    @Override
+    public int exitValue() {
+      if (demultiplexer.isAlive()) {
+        throw new IllegalThreadStateException("session has not ended");
+      }
+      return 0;
+    }
+
+    @Override
+    public void destroy() {
+      closeQuietly(socket);
+    }
+  }
+}
@@ -0,0 +1,135 @@
+/*
+ * SonarQube :: SCM :: TFVC :: Plugin
+ * Copyright (c) SonarSource SA and Microsoft Corporation.  All rights reserved.
+ *
+ * Licensed under the MIT License. See License.txt in the project root for license information.
+ */
+package org.sonar.plugins.scm.tfs;
+
+import javax.annotation.CheckForNull;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Starts an annotator and connects it to the collection in the background when the analysis starts, so that
+ * the process start, the authentication and the update of the workspace cache overlap with the indexing of
+ * the files. The session is either taken by the first blame session or closed.
+ */
+final class EagerSession implements AutoCloseable {
+
+  private static final TfsLogger LOG = TfsLogger.get(EagerSession.class);
+
+  private final ChangesetPool pool = new ChangesetPool();
+  private final BlameMetrics metrics = new BlameMetrics();
+  private final long startNanos = System.nanoTime();
+  private final CompletableFuture<AnnotatorSession> session = new CompletableFuture<>();
+  private final AtomicReference<AnnotatorSession> connecting = new AtomicReference<>();
+  private final AtomicBoolean claimed = new AtomicBoolean();
+
+  private EagerSession() {
+  }
+
+  static EagerSession start(AnnotatorLauncher launcher, TfsConfiguration configuration) {
+    EagerSession eager = new EagerSession();
+    Thread thread = new Thread(() -> eager.connect(launcher, configuration), "tfvc-eager-start");
+    thread.setDaemon(true);
+    thread.start();
+    return eager;
+  }
+
+  private void connect(AnnotatorLauncher launcher, TfsConfiguration configuration) {
+    AnnotatorSession started = null;
+    try {
+      long start = System.nanoTime();
+      started = new AnnotatorSession(launcher.launch(), pool, metrics);
+      connecting.set(started);
+      if (claimed.get()) {
+        // closed in the meantime
+        started.close();
+        return;
+      }
+
+      long launchEnd = System.nanoTime();
+      metrics.sessionStarted(launchEnd - start);
+      started.connect(configuration);
+      metrics.connected(System.nanoTime() - launchEnd);
+      if (!session.complete(started)) {
+        started.close();
+      }
+    } catch (IOException | RuntimeException e) {
+      closeQuietly(started);
+      session.completeExceptionally(e);
+    } catch (InterruptedException e) {
+      closeQuietly(started);
+      session.completeExceptionally(e);
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * The change sets and metrics of the annotator, to be shared by the other sessions of the blame.
+   */
+  ChangesetPool pool() {
+    return pool;
+  }
+
+  BlameMetrics metrics() {
+    return metrics;
+  }
+
+  /**
+   * Waits for the annotator to be connected.
+   *
+   * @param timeoutMillis the time allowed to connect since the start, not positive to wait forever
+   * @return the session, connected or aborted, or {@code null} if it is not usable, the caller is then
+   * expected to start another annotator
+   */
+  @CheckForNull
+  AnnotatorSession take(long timeoutMillis) throws InterruptedException {
+    try {
+      AnnotatorSession connected = timeoutMillis > 0
+        ? session.get(Math.max(0, timeoutMillis - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos)), TimeUnit.MILLISECONDS)
+        : session.get();
+      return claimed.compareAndSet(false, true) ? connected : null;
+    } catch (TimeoutException e) {
+      LOG.warning("The annotator started in advance did not connect within the timeout, starting another one");
+      close();
+      return null;
+    } catch (ExecutionException e) {
+      LOG.warning("Unable to start the annotator in advance, starting another one: %s", e.getCause().getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Stops the annotator unless it has been taken.
+   */
+  @Override
+  public void close() {
+    if (!claimed.compareAndSet(false, true)) {
+      return;
+    }
+
+    if (!session.cancel(false) && !session.isCompletedExceptionally()) {
+      session.join().close();
+      return;
+    }
+
+    // releases the connection in progress, if any
+    AnnotatorSession started = connecting.get();
+    if (started != null) {
+      started.terminate();
+    }
+  }
+
+  private static void closeQuietly(@CheckForNull AnnotatorSession started) {
+    if (started != null) {
+      started.close();
+    }
+  }
+}
@@ -0,0 +1,178 @@
+/*
+ * SonarQube :: SCM :: TFVC :: Plugin
+ * Copyright (c) SonarSource SA and Microsoft Corporation.  All rights reserved.
+ *
+ * Licensed under the MIT License. See License.txt in the project root for license information.
+ */
+package org.sonar.plugins.scm.tfs;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads the error output of the annotator continuously on its own thread, so that the annotator never blocks on
+ * a full pipe whatever it writes. The lines are kept in a bounded buffer, the oldest ones are dropped on overflow,
+ * and each line is tied to the subject, i.e. the file, being processed when it was received.
+ */
+final class ErrorStreamDrainer {
+
+  static final int DEFAULT_CAPACITY = 1000;
+  static final int MAX_LINE_LENGTH = 4096;
+  private static final long MESSAGE_TIMEOUT_MS = 2000;
+
+  private final BufferedReader reader;
+  private final int capacity;
+  private final Deque<ErrorLine> lines = new ArrayDeque<>();
+  private final Thread thread;
+  private volatile String subject;
+  private int dropped;
+  private boolean ended;
+
+  ErrorStreamDrainer(InputStream errorStream, Charset charset, int capacity) {
+    this.reader = new BufferedReader(new InputStreamReader(errorStream, charset));
+    this.capacity = capacity;
+    this.thread = new Thread(this::drain, Thread.currentThread().getName() + "-stderr");
+    this.thread.setDaemon(true);
+    this.thread.start();
+  }
+
+  private void drain() {
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        add(line.length() > MAX_LINE_LENGTH ? line.substring(0, MAX_LINE_LENGTH) : line);
+      }
+    } catch (IOException e) {
+      // the stream is closed with the session
+    } finally {
+      synchronized (this) {
+        ended = true;
+        notifyAll();
+      }
+    }
+  }
+
+  private synchronized void add(String line) {
+    if (lines.size() == capacity) {
+      lines.pollFirst();
+      dropped++;
+    }
+    lines.addLast(new ErrorLine(subject, line));
+    notifyAll();
+  }
+
+  /**
+   * Ties the lines received from now on to the given subject.
+   */
+  void setSubject(@Nullable String subject) {
+    this.subject = subject;
+  }
+
+  /**
+   * Takes the message explaining a failure reported on the standard output. The annotator writes it right after,
+   * it is awaited for a short time if not yet received.
+   *
+   * @param preferredPrefix the start of the expected message, a line starting with it is taken before older lines
+   * @return the message, or a placeholder if the annotator did not write any
+   */
+  synchronized String takeMessage(@Nullable String preferredPrefix) {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(MESSAGE_TIMEOUT_MS);
+    long remaining = MESSAGE_TIMEOUT_MS;
+    try {
+      while (lines.isEmpty() && !ended && remaining > 0) {
+        wait(remaining);
+        remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+      }
+    } catch (InterruptedException e) {
+      // take what is there
+      Thread.currentThread().interrupt();
+    }
+
+    if (preferredPrefix != null) {
+      for (Iterator<ErrorLine> iterator = lines.iterator(); iterator.hasNext(); ) {
+        ErrorLine line = iterator.next();
+        if (line.text.startsWith(preferredPrefix)) {
+          iterator.remove();
+          return line.text;
+        }
+      }
+    }
+
+    ErrorLine line = lines.pollFirst();
+    return line != null ? line.text : "No error message received from the TFVC annotate command";
+  }
+
+  /**
+   * Waits until the annotator closed its error output, e.g. after it has been stopped.
+   */
+  void awaitEnd(long timeoutMillis) throws InterruptedException {
+    thread.join(timeoutMillis);
+  }
+
+  /**
+   * Logs the lines received so far as errors, one message per subject, and forgets them.
+   */
+  void logPending(TfsLogger log) {
+    List<ErrorLine> pending;
+    int droppedLines;
+    synchronized (this) {
+      pending = new ArrayList<>(lines);
+      lines.clear();
+      droppedLines = dropped;
+      dropped = 0;
+    }
+
+    if (droppedLines > 0) {
+      log.warning("%d lines of the error output of the TFVC annotate command were dropped", droppedLines);
+    }
+
+    StringBuilder message = new StringBuilder();
+    String currentSubject = null;
+    for (ErrorLine line : pending) {
+      if (message.length() > 0 && !sameSubject(currentSubject, line.subject)) {
+        logMessage(log, currentSubject, message);
+        message.setLength(0);
+      }
+      currentSubject = line.subject;
+      message.append(line.text).append("\r\n");
+    }
+    if (message.length() > 0) {
+      logMessage(log, currentSubject, message);
+    }
+  }
+
+  private static boolean sameSubject(@Nullable String first, @Nullable String second) {
+    return first == null ? second == null : first.equals(second);
+  }
+
+  private static void logMessage(TfsLogger log, @Nullable String subject, CharSequence message) {
+    if (subject == null) {
+      log.error("%s", message);
+    } else {
+      log.error("%s: %s", subject, message);
+    }
+  }
+
+  private static final class ErrorLine {
+
+    @CheckForNull
+    private final String subject;
+    private final String text;
+
+    ErrorLine(@Nullable String subject, String text) {
+      this.subject = subject;
+      this.text = text;
+    }
+  }
+}
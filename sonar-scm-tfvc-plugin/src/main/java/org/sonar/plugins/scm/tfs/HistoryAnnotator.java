@@ -0,0 +1,140 @@
+/*
+ * SonarQube :: SCM :: TFVC :: Plugin
+ * Copyright (c) SonarSource SA and Microsoft Corporation.  All rights reserved.
+ *
+ * Licensed under the MIT License. See License.txt in the project root for license information.
+ */
+package org.sonar.plugins.scm.tfs;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Attributes the lines of a file to the changesets which introduced them, like the annotator does in
+ * SonarTfsAnnotate/FileAnnotator.cs: the revisions are walked newest first, and each line not attributed yet is
+ * followed back through the differences between consecutive revisions. A line is attributed to the newer of the
+ * two revisions as soon as the older one does not contain it, the lines still present in the oldest revision are
+ * attributed to it. The walk stops once all lines are attributed, so that a file whose lines were all changed
+ * recently does not need its older history.
+ * The lines not attributed yet are kept in compacted int arrays, so that each revision costs its difference plus
+ * the number of lines still followed. Instances are not thread-safe.
+ */
+final class HistoryAnnotator {
+
+  private final LineDiff diff = new LineDiff();
+  private int revisionsCompared;
+
+  /**
+   * @param lines the lines of the local file, which is expected to be the newest revision without pending changes
+   * @throws UnannotatedFileException if the file has no revision, or some lines are not in its newest revision
+   */
+  CompactBlameList annotate(long[] lines, RevisionSource source, ChangesetPool pool) throws IOException, InterruptedException {
+    int count = lines.length;
+    // the lines not attributed yet, and their position in the revision compared last
+    int[] pending = new int[count];
+    int[] positions = new int[count];
+    for (int i = 0; i < count; i++) {
+      pending[i] = i;
+      positions[i] = i;
+    }
+    int remaining = count;
+    int[] owners = new int[count];
+
+    Changesets changesets = new Changesets();
+    long[] newer = lines;
+    RevisionSource.Revision revision;
+    revisionsCompared = 0;
+    while (remaining > 0 && (revision = source.next()) != null) {
+      int index = revisionsCompared++;
+      changesets.add(revision);
+      long[] older = revision.lines();
+      if (!Arrays.equals(older, newer)) {
+        remaining = follow(pending, positions, remaining, diff.baseLines(older, newer), owners, index);
+      }
+      newer = older;
+    }
+
+    if (revisionsCompared == 0 && count > 0) {
+      throw new UnannotatedFileException("The file is not yet checked-in.");
+    }
+    for (int p = 0; p < remaining; p++) {
+      owners[pending[p]] = revisionsCompared - 1;
+    }
+
+    CompactBlameList.Builder builder = new CompactBlameList.Builder();
+    // index in the table of the builder plus one, 0 if not registered yet
+    int[] table = new int[revisionsCompared];
+    for (int i = 0; i < count; i++) {
+      int owner = owners[i];
+      if (table[owner] == 0) {
+        table[owner] = builder.changeset(pool.get(changesets.ids[owner], changesets.authors[owner], changesets.dates[owner])) + 1;
+      }
+      builder.add(table[owner] - 1, 1);
+    }
+    return builder.build();
+  }
+
+  /**
+   * @return the number of revisions compared by the last annotation
+   */
+  int revisionsCompared() {
+    return revisionsCompared;
+  }
+
+  /**
+   * Moves the pending lines to their position in the older revision, or attributes them to the newer one.
+   *
+   * @return the number of lines still pending, compacted at the start of the arrays
+   */
+  private static int follow(int[] pending, int[] positions, int remaining, int[] matches, int[] owners, int index)
+    throws UnannotatedFileException {
+    int kept = 0;
+    for (int p = 0; p < remaining; p++) {
+      int line = pending[p];
+      int match = matches[positions[p]];
+      if (match >= 0) {
+        pending[kept] = line;
+        positions[kept] = match;
+        kept++;
+      } else if (index == 0) {
+        throw new UnannotatedFileException("Line " + (line + 1) + " has not yet been checked-in.");
+      } else {
+        owners[line] = index - 1;
+      }
+    }
+    return kept;
+  }
+
+  /**
+   * The changesets of the revisions compared, without their content.
+   */
+  private static final class Changesets {
+
+    private long[] ids = new long[16];
+    private long[] dates = new long[16];
+    private String[] authors = new String[16];
+    private int size;
+
+    void add(RevisionSource.Revision revision) {
+      if (size == ids.length) {
+        ids = Arrays.copyOf(ids, size * 2);
+        dates = Arrays.copyOf(dates, size * 2);
+        authors = Arrays.copyOf(authors, size * 2);
+      }
+      ids[size] = revision.changeset();
+      dates[size] = revision.date();
+      authors[size] = revision.author();
+      size++;
+    }
+  }
+
+  /**
+   * The file is not committed, or only partly.
+   */
+  static final class UnannotatedFileException extends IOException {
+
+    UnannotatedFileException(String message) {
+      super(message);
+    }
+  }
+}
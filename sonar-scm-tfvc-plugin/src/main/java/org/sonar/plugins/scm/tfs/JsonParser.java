@@ -0,0 +1,218 @@
+/*
+ * SonarQube :: SCM :: TFVC :: Plugin
+ * Copyright (c) SonarSource SA and Microsoft Corporation.  All rights reserved.
+ *
+ * Licensed under the MIT License. See License.txt in the project root for license information.
+ */
+package org.sonar.plugins.scm.tfs;
+
+import javax.annotation.CheckForNull;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the JSON answers of the Azure DevOps REST API into maps, lists, strings, numbers, booleans and {@code null},
+ * so that the plugin does not depend on a JSON library for the few fields it needs. Numbers are read as
+ * {@link Long} if they are integral, as {@link Double} otherwise.
+ */
+final class JsonParser {
+
+  private final Reader reader;
+  private int next = -2;
+
+  private JsonParser(Reader reader) {
+    this.reader = reader;
+  }
+
+  @CheckForNull
+  static Object parse(Reader reader) throws IOException {
+    JsonParser parser = new JsonParser(reader);
+    Object value = parser.value();
+    if (parser.peekToken() != -1) {
+      throw error("Unexpected content after the value");
+    }
+    return value;
+  }
+
+  @CheckForNull
+  private Object value() throws IOException {
+    int c = peekToken();
+    switch (c) {
+      case '{':
+        return object();
+      case '[':
+        return array();
+      case '"':
+        return string();
+      case 't':
+        literal("true");
+        return Boolean.TRUE;
+      case 'f':
+        literal("false");
+        return Boolean.FALSE;
+      case 'n':
+        literal("null");
+        return null;
+      default:
+        if (c == '-' || (c >= '0' && c <= '9')) {
+          return number();
+        }
+        throw error("Unexpected character");
+    }
+  }
+
+  private Map<String, Object> object() throws IOException {
+    read();
+    Map<String, Object> result = new LinkedHashMap<>();
+    if (peekToken() == '}') {
+      read();
+      return result;
+    }
+
+    while (true) {
+      if (peekToken() != '"') {
+        throw error("Expected a property name");
+      }
+      String name = string();
+      expect(':');
+      result.put(name, value());
+      int c = readToken();
+      if (c == '}') {
+        return result;
+      }
+      if (c != ',') {
+        throw error("Expected ',' or '}'");
+      }
+    }
+  }
+
+  private List<Object> array() throws IOException {
+    read();
+    List<Object> result = new ArrayList<>();
+    if (peekToken() == ']') {
+      read();
+      return result;
+    }
+
+    while (true) {
+      result.add(value());
+      int c = readToken();
+      if (c == ']') {
+        return result;
+      }
+      if (c != ',') {
+        throw error("Expected ',' or ']'");
+      }
+    }
+  }
+
+  private String string() throws IOException {
+    read();
+    StringBuilder result = new StringBuilder();
+    while (true) {
+      int c = read();
+      if (c == -1) {
+        throw error("Unterminated string");
+      }
+      if (c == '"') {
+        return result.toString();
+      }
+      if (c != '\\') {
+        result.append((char) c);
+        continue;
+      }
+
+      c = read();
+      switch (c) {
+        case 'b':
+          result.append('\b');
+          break;
+        case 'f':
+          result.append('\f');
+          break;
+        case 'n':
+          result.append('\n');
+          break;
+        case 'r':
+          result.append('\r');
+          break;
+        case 't':
+          result.append('\t');
+          break;
+        case 'u':
+          result.append((char) Integer.parseInt(new String(new char[] {(char) read(), (char) read(), (char) read(), (char) read()}), 16));
+          break;
+        case '"':
+        case '\\':
+        case '/':
+          result.append((char) c);
+          break;
+        default:
+          throw error("Invalid escape sequence");
+      }
+    }
+  }
+
+  private Object number() throws IOException {
+    StringBuilder result = new StringBuilder();
+    boolean integral = true;
+    int c;
+    while ((c = peek()) != -1 && (c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E' || (c >= '0' && c <= '9'))) {
+      integral &= c != '.' && c != 'e' && c != 'E';
+      result.append((char) read());
+    }
+    try {
+      return integral ? (Object) Long.parseLong(result.toString()) : (Object) Double.parseDouble(result.toString());
+    } catch (NumberFormatException e) {
+      throw error("Invalid number " + result);
+    }
+  }
+
+  private void literal(String expected) throws IOException {
+    for (int i = 0; i < expected.length(); i++) {
+      if (read() != expected.charAt(i)) {
+        throw error("Expected " + expected);
+      }
+    }
+  }
+
+  private void expect(char expected) throws IOException {
+    if (readToken() != expected) {
+      throw error("Expected '" + expected + "'");
+    }
+  }
+
+  private int peekToken() throws IOException {
+    int c;
+    while ((c = peek()) == ' ' || c == '\t' || c == '\r' || c == '\n') {
+      read();
+    }
+    return c;
+  }
+
+  private int readToken() throws IOException {
+    peekToken();
+    return read();
+  }
+
+  private int peek() throws IOException {
+    if (next == -2) {
+      next = reader.read();
+    }
+    return next;
+  }
+
+  private int read() throws IOException {
+    int c = peek();
+    next = -2;
+    return c;
+  }
+
+  private static IOException error(String message) {
+    return new IOException("Invalid JSON: " + message);
+  }
+}
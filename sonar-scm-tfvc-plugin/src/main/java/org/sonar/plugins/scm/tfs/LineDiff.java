@@ -0,0 +1,195 @@
+/*
+ * SonarQube :: SCM :: TFVC :: Plugin
+ * Copyright (c) SonarSource SA and Microsoft Corporation.  All rights reserved.
+ *
+ * Licensed under the MIT License. See License.txt in the project root for license information.
+ */
+package org.sonar.plugins.scm.tfs;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Determines the lines added to a file and where its other lines come from, based on the linear space variant
+ * of the Myers difference algorithm ("An O(ND) Difference Algorithm and Its Variations", 1986) applied to the
+ * line hashes.
+ * The lines are only represented by their hashes and the working arrays are reused between files, so that
+ * the memory needed is proportional to the number of lines only.
+ * Instances are not thread-safe.
+ */
+final class LineDiff {
+
+  private long[] base;
+  private long[] current;
+  private int[] forward = new int[0];
+  private int[] backward = new int[0];
+  private int[] pending = new int[64];
+  private final int[] snake = new int[4];
+
+  /**
+   * @return the line numbers (1-based) of the current version which are not part of the base version
+   */
+  Set<Integer> addedLines(long[] baseLines, long[] currentLines) {
+    BitSet added = new BitSet(currentLines.length);
+    diff(baseLines, currentLines, added, null);
+
+    Set<Integer> result = new HashSet<>(added.cardinality() * 2);
+    for (int line = added.nextSetBit(0); line >= 0; line = added.nextSetBit(line + 1)) {
+      result.add(line + 1);
+    }
+    return result;
+  }
+
+  /**
+   * Maps the lines of the current version to the lines they are kept from.
+   *
+   * @return for each line (0-based) of the current version, the index of the same line in the base version,
+   * or -1 if it is added
+   */
+  int[] baseLines(long[] baseLines, long[] currentLines) {
+    int[] matches = new int[currentLines.length];
+    Arrays.fill(matches, -1);
+    diff(baseLines, currentLines, new BitSet(currentLines.length), matches);
+    return matches;
+  }
+
+  private void diff(long[] baseLines, long[] currentLines, BitSet added, @Nullable int[] matches) {
+    this.base = baseLines;
+    this.current = currentLines;
+
+    int size = 0;
+    pending = push(pending, size, 0, baseLines.length, 0, currentLines.length);
+    size += 4;
+    while (size > 0) {
+      size -= 4;
+      int aStart = pending[size];
+      int aEnd = pending[size + 1];
+      int bStart = pending[size + 2];
+      int bEnd = pending[size + 3];
+
+      // common prefix and suffix are not changed
+      while (aStart < aEnd && bStart < bEnd && base[aStart] == current[bStart]) {
+        match(matches, aStart, bStart);
+        aStart++;
+        bStart++;
+      }
+      while (aStart < aEnd && bStart < bEnd && base[aEnd - 1] == current[bEnd - 1]) {
+        aEnd--;
+        bEnd--;
+        match(matches, aEnd, bEnd);
+      }
+
+      if (aStart == aEnd) {
+        added.set(bStart, bEnd);
+      } else if (bStart < bEnd) {
+        middleSnake(aStart, aEnd, bStart, bEnd);
+        int xStart = snake[0];
+        int yStart = snake[1];
+        int xEnd = snake[2];
+        int yEnd = snake[3];
+        for (int i = 0; i < xEnd - xStart; i++) {
+          match(matches, xStart + i, yStart + i);
+        }
+        pending = push(pending, size, aStart, xStart, bStart, yStart);
+        size += 4;
+        pending = push(pending, size, xEnd, aEnd, yEnd, bEnd);
+        size += 4;
+      }
+    }
+
+    this.base = null;
+    this.current = null;
+  }
+
+  private static void match(@Nullable int[] matches, int baseLine, int currentLine) {
+    if (matches != null) {
+      matches[currentLine] = baseLine;
+    }
+  }
+
+  /**
+   * Finds the middle snake of an edit script between the ranges, which both are not empty and start and
+   * end with different lines. The result is stored in {@link #snake} as absolute start and end positions.
+   */
+  private void middleSnake(int aStart, int aEnd, int bStart, int bEnd) {
+    int n = aEnd - aStart;
+    int m = bEnd - bStart;
+    int delta = n - m;
+    boolean odd = (delta & 1) != 0;
+    int max = (n + m + 1) / 2;
+    int offset = max + 1;
+    ensureCapacity(2 * offset + 1);
+    forward[offset + 1] = 0;
+    backward[offset + 1] = 0;
+
+    for (int d = 0; d <= max; d++) {
+      for (int k = -d; k <= d; k += 2) {
+        int x = k == -d || (k != d && forward[offset + k - 1] < forward[offset + k + 1])
+          ? forward[offset + k + 1]
+          : (forward[offset + k - 1] + 1);
+        int y = x - k;
+        int x0 = x;
+        int y0 = y;
+        while (x < n && y < m && base[aStart + x] == current[bStart + y]) {
+          x++;
+          y++;
+        }
+        forward[offset + k] = x;
+
+        int reverseK = delta - k;
+        if (odd && reverseK >= -(d - 1) && reverseK <= d - 1 && x + backward[offset + reverseK] >= n) {
+          setSnake(aStart + x0, bStart + y0, aStart + x, bStart + y);
+          return;
+        }
+      }
+
+      for (int k = -d; k <= d; k += 2) {
+        int x = k == -d || (k != d && backward[offset + k - 1] < backward[offset + k + 1])
+          ? backward[offset + k + 1]
+          : (backward[offset + k - 1] + 1);
+        int y = x - k;
+        int x0 = x;
+        int y0 = y;
+        while (x < n && y < m && base[aEnd - 1 - x] == current[bEnd - 1 - y]) {
+          x++;
+          y++;
+        }
+        backward[offset + k] = x;
+
+        int forwardK = delta - k;
+        if (!odd && forwardK >= -d && forwardK <= d && x + forward[offset + forwardK] >= n) {
+          setSnake(aEnd - x, bEnd - y, aEnd - x0, bEnd - y0);
+          return;
+        }
+      }
+    }
+
+    throw new IllegalStateException("No middle snake found");
+  }
+
+  private void setSnake(int xStart, int yStart, int xEnd, int yEnd) {
+    snake[0] = xStart;
+    snake[1] = yStart;
+    snake[2] = xEnd;
+    snake[3] = yEnd;
+  }
+
+  private void ensureCapacity(int size) {
+    if (forward.length < size) {
+      forward = new int[size];
+      backward = new int[size];
+    }
+  }
+
+  private static int[] push(int[] stack, int size, int aStart, int aEnd, int bStart, int bEnd) {
+    int[] result = size + 4 > stack.length ? Arrays.copyOf(stack, stack.length * 2) : stack;
+    result[size] = aStart;
+    result[size + 1] = aEnd;
+    result[size + 2] = bStart;
+    result[size + 3] = bEnd;
+    return result;
+  }
+}
@@ -0,0 +1,61 @@
+/*
+ * SonarQube :: SCM :: TFVC :: Plugin
+ * Copyright (c) SonarSource SA and Microsoft Corporation.  All rights reserved.
+ *
+ * Licensed under the MIT License. See License.txt in the project root for license information.
+ */
+package org.sonar.plugins.scm.tfs;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Represents the lines of a file by 64 bit hashes, so that files can be compared without keeping their content.
+ * The line terminators are not part of the hash.
+ */
+public final class LineHashes {
+
+  private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  private LineHashes() {
+  }
+
+  /**
+   * Reads the file line by line.
+   */
+  public static long[] of(Path file, Charset charset) throws IOException {
+    try (Reader reader = new InputStreamReader(Files.newInputStream(file), charset)) {
+      return of(reader);
+    }
+  }
+
+  public static long[] of(Reader reader) throws IOException {
+    AnnotationReader lines = new AnnotationReader(reader, 8192);
+    long[] hashes = new long[256];
+    int count = 0;
+    while (true) {
+      if (count == hashes.length) {
+        hashes = Arrays.copyOf(hashes, count * 2);
+      }
+      if (!lines.readLineHash(hashes, count)) {
+        return Arrays.copyOf(hashes, count);
+      }
+      count++;
+    }
+  }
+
+  static long hash(char[] buffer, int offset, int length) {
+    long hash = FNV_OFFSET_BASIS;
+    for (int i = offset; i < offset + length; i++) {
+      hash ^= buffer[i];
+      hash *= FNV_PRIME;
+    }
+    return hash;
+  }
+}
@@ -0,0 +1,158 @@
+/*
+ * SonarQube :: SCM :: TFVC :: Plugin
+ * Copyright (c) SonarSource SA and Microsoft Corporation.  All rights reserved.
+ *
+ * Licensed under the MIT License. See License.txt in the project root for license information.
+ */
+package org.sonar.plugins.scm.tfs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * Bounded in-memory pipe usable by any threads. The piped streams of the JDK fail with "Read end dead" once the
+ * last thread having read the pipe has ended, while the reads of an annotator session move from the thread which
+ * connected it to the reader of the pipelined answers and back to the session thread.
+ */
+final class Pipe {
+
+  private final byte[] buffer;
+  private final InputStream input = new PipeInputStream();
+  private final OutputStream output = new PipeOutputStream();
+  private int start;
+  private int count;
+  private boolean writerClosed;
+  private boolean readerClosed;
+
+  Pipe(int size) {
+    this.buffer = new byte[size];
+  }
+
+  /**
+   * @return the end reading the pipe, at the end of the stream once the output is closed and read entirely
+   */
+  InputStream input() {
+    return input;
+  }
+
+  /**
+   * @return the end writing the pipe, blocking while the pipe is full
+   */
+  OutputStream output() {
+    return output;
+  }
+
+  private synchronized int read(byte[] bytes, int offset, int length) throws IOException {
+    if (readerClosed) {
+      throw new IOException("Pipe closed");
+    }
+    if (length == 0) {
+      return 0;
+    }
+    while (count == 0) {
+      if (writerClosed) {
+        return -1;
+      }
+      await();
+      if (readerClosed) {
+        throw new IOException("Pipe closed");
+      }
+    }
+
+    int read = Math.min(length, count);
+    int first = Math.min(read, buffer.length - start);
+    System.arraycopy(buffer, start, bytes, offset, first);
+    System.arraycopy(buffer, 0, bytes, offset + first, read - first);
+    start = (start + read) % buffer.length;
+    count -= read;
+    notifyAll();
+    return read;
+  }
+
+  private synchronized void write(byte[] bytes, int offset, int length) throws IOException {
+    int written = 0;
+    while (written < length) {
+      while (count == buffer.length && !readerClosed && !writerClosed) {
+        await();
+      }
+      if (readerClosed || writerClosed) {
+        throw new IOException("Pipe closed");
+      }
+
+      int end = (start + count) % buffer.length;
+      int chunk = Math.min(length - written, Math.min(buffer.length - count, buffer.length - end));
+      System.arraycopy(bytes, offset + written, buffer, end, chunk);
+      count += chunk;
+      written += chunk;
+      // wakes up the reader as soon as data is available
+      notifyAll();
+    }
+  }
+
+  private synchronized int available() {
+    return count;
+  }
+
+  private synchronized void closeReader() {
+    readerClosed = true;
+    notifyAll();
+  }
+
+  private synchronized void closeWriter() {
+    writerClosed = true;
+    notifyAll();
+  }
+
+  private void await() throws InterruptedIOException {
+    try {
+      wait();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Pipe interrupted");
+    }
+  }
+
+  private final class PipeInputStream extends InputStream {
+
+    @Override
+    public int read() throws IOException {
+      byte[] single = new byte[1];
+      return Pipe.this.read(single, 0, 1) < 0 ? -1 : (single[0] & 0xff);
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+      return Pipe.this.read(bytes, offset, length);
+    }
+
+    @Override
+    public int available() {
+      return Pipe.this.available();
+    }
+
+    @Override
+    public void close() {
+      closeReader();
+    }
+  }
+
+  private final class PipeOutputStream extends OutputStream {
+
+    @Override
+    public void write(int b) throws IOException {
+      Pipe.this.write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+      Pipe.this.write(bytes, offset, length);
+    }
+
+    @Override
+    public void close() {
+      closeWriter();
+    }
+  }
+}
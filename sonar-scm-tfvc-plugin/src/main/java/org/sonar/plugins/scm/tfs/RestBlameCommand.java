@@ -0,0 +1,437 @@
+/*
+ * SonarQube :: SCM :: TFVC :: Plugin
+ * Copyright (c) SonarSource SA and Microsoft Corporation.  All rights reserved.
+ *
+ * Licensed under the MIT License. See License.txt in the project root for license information.
+ */
+package org.sonar.plugins.scm.tfs;
+
+import com.google.common.collect.Lists;
+import com.google.common.hash.HashCode;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.sonar.api.batch.fs.InputFile;
+import org.sonar.api.batch.scm.BlameCommand;
+import org.sonar.api.batch.scm.BlameLine;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.HttpURLConnection;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Blames the files without the annotator, so that analyses can run on any platform: the history of each file and
+ * the content of its revisions are fetched from the TFVC REST API, and the lines are attributed in the JVM by
+ * {@link HistoryAnnotator}. The revisions of a file are fetched ahead of their comparison, and several files are
+ * blamed in parallel according to {@link TfsConfiguration#workers()}.
+ * <p>
+ * With the blame cache enabled, the items changed since the {@link BlameWatermark} of the previous analysis are
+ * found by one query, and only those and the files edited locally are annotated again.
+ */
+public class RestBlameCommand extends BlameCommand {
+
+  private static final TfsLogger LOG = TfsLogger.get(RestBlameCommand.class);
+  static final int HISTORY_PAGE_SIZE = 100;
+  static final int PREFETCHED_REVISIONS = 4;
+
+  private final TfsConfiguration configuration;
+
+  public RestBlameCommand(TfsConfiguration configuration) {
+    this.configuration = configuration;
+  }
+
+  @Override
+  public void blame(BlameInput input, BlameOutput output) {
+    String serverRoot = configuration.serverPath();
+    if (configuration.collectionUri().isEmpty() || serverRoot.isEmpty()) {
+      LOG.error("The REST engine requires the collection URI and the server path of the project, the files are not annotated");
+      return;
+    }
+
+    if (input.fileSystem() == null) {
+      // the server paths are derived from the paths relative to the base directory
+      LOG.error("The REST engine requires the base directory of the project, the files are not annotated");
+      return;
+    }
+
+    List<InputFile> files = Lists.newArrayList(input.filesToBlame());
+    if (files.isEmpty()) {
+      return;
+    }
+
+    TfvcRestClient client = TfvcRestClient.of(configuration);
+    String root = serverRoot.endsWith("/") ? serverRoot.substring(0, serverRoot.length() - 1) : serverRoot;
+    Delta delta = configuration.cacheEnabled() ? Delta.load(configuration, input, client, root) : null;
+    BlameRun run = new BlameRun(client, input.fileSystem().baseDir().toPath(), root, delta,
+      TimeUnit.SECONDS.toMillis(configuration.budget()));
+    if (delta != null) {
+      files = reuse(files, output, run);
+    }
+
+    if (!files.isEmpty()) {
+      annotate(run.hasBudget() ? TfsBlameCommand.mostRecentFirst(files) : files, output, run);
+    }
+    if (delta != null && !run.cancelled.get()) {
+      delta.save();
+    }
+
+    run.metrics.bytesRead(client.bytesRead());
+    run.metrics.skipped(run.skipped.size());
+    run.metrics.finish();
+    if (!run.skipped.isEmpty()) {
+      LOG.warning("The blame budget of %d s was used up, %d files are not annotated: %s", configuration.budget(),
+        run.skipped.size(), TfsBlameCommand.summarize(run.skipped));
+    }
+    LOG.info("%s, %d REST requests", run.metrics.summary(), client.requests());
+    Path workDir = TfsBlameCommand.workDir(input);
+    if (workDir != null) {
+      TfsBlameCommand.writeReport(workDir.resolve(BlameMetrics.REPORT_FILE_NAME), run.metrics);
+    }
+  }
+
+  private void annotate(List<InputFile> files, BlameOutput output, BlameRun run) {
+    int workers = Math.max(1, Math.min(configuration.workers(), files.size()));
+    LOG.debug("annotating %d files using %d threads of the REST engine", files.size(), workers);
+    ExecutorService fetcher = Executors.newFixedThreadPool(workers * PREFETCHED_REVISIONS, threadFactory("tfvc-rest-fetch-%d"));
+    ExecutorService executor = Executors.newFixedThreadPool(workers, threadFactory("tfvc-rest-%d"));
+    for (InputFile inputFile : files) {
+      executor.execute(() -> annotate(inputFile, output, fetcher, run));
+    }
+
+    executor.shutdown();
+    try {
+      executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      LOG.error("InterruptedException thrown while waiting for the TFVC REST requests: %s", e.getMessage());
+      run.cancelled.set(true);
+      executor.shutdownNow();
+      // Restore interrupted state...
+      Thread.currentThread().interrupt();
+    } finally {
+      fetcher.shutdownNow();
+    }
+  }
+
+  /**
+   * Passes the cached blame of the files whose item did not change since the watermark, and whose content is the
+   * cached one, to the scanner. The files changed on the server lose their cached blame, as the same content may
+   * then have another blame, e.g. after a rollback.
+   *
+   * @return the files to annotate
+   */
+  private static List<InputFile> reuse(List<InputFile> files, BlameOutput output, BlameRun run) {
+    Delta delta = run.delta;
+    long watermark = delta.watermark.changeset();
+    List<InputFile> result = new ArrayList<>();
+    int changed = 0;
+    for (InputFile inputFile : files) {
+      String path = AnnotatorSession.pathOf(inputFile);
+      HashCode hash = BlameCache.hash(inputFile);
+      if (hash != null) {
+        delta.hashes.put(inputFile, hash);
+      }
+      if (delta.versions == null) {
+        result.add(inputFile);
+        continue;
+      }
+
+      Long version = delta.versions.get(serverPath(inputFile, run).toLowerCase(Locale.ROOT));
+      if (watermark <= 0 || version == null || version > watermark) {
+        delta.cache.remove(path);
+        changed++;
+        result.add(inputFile);
+        continue;
+      }
+
+      List<BlameLine> lines = hash != null ? delta.cache.get(path, hash, run.pool) : null;
+      if (lines == null) {
+        result.add(inputFile);
+        continue;
+      }
+      output.blameResult(inputFile, lines);
+    }
+
+    LOG.info("changeset watermark %d: %d files unchanged, %d changed on the server, %d edited locally", watermark,
+      files.size() - result.size(), changed, result.size() - changed);
+    run.metrics.cache(files.size() - result.size(), result.size());
+    return result;
+  }
+
+  private static String serverPath(InputFile inputFile, BlameRun run) {
+    return run.serverRoot + "/" + run.baseDir.relativize(Paths.get(inputFile.uri())).toString().replace('\\', '/');
+  }
+
+  private static void annotate(InputFile inputFile, BlameOutput output, ExecutorService fetcher, BlameRun run) {
+    if (run.cancelled.get()) {
+      return;
+    }
+    if (run.budgetUsedUp()) {
+      // the files being annotated are completed, their requests are bounded by the timeouts of the client
+      run.skipped.add(inputFile);
+      return;
+    }
+
+    Path path = Paths.get(inputFile.uri());
+    String serverPath = serverPath(inputFile, run);
+    long start = System.nanoTime();
+    try (Revisions revisions = new Revisions(run.client, serverPath, inputFile.charset(), fetcher)) {
+      long[] lines = LineHashes.of(path, inputFile.charset());
+      long attributionStart = System.nanoTime();
+      HistoryAnnotator annotator = run.annotator.get();
+      CompactBlameList result = annotator.annotate(lines, revisions, run.pool);
+      long end = System.nanoTime();
+      run.metrics.fileAnnotated(end - start, end - attributionStart, result.size());
+      LOG.debug("%s annotated from %d revisions", serverPath, annotator.revisionsCompared());
+
+      if (!result.isEmpty() && result.size() == inputFile.lines() - 1) {
+        // SONARPLUGINS-3097 TFS do not report blame on last empty line
+        result = result.withExtraLastLine();
+      }
+      HashCode hash = run.delta != null ? run.delta.hashes.get(inputFile) : null;
+      if (hash != null) {
+        run.delta.cache.put(AnnotatorSession.pathOf(inputFile), hash, result);
+      }
+      synchronized (output) {
+        output.blameResult(inputFile, result);
+      }
+    } catch (TfvcRestClient.HttpStatusException e) {
+      if (e.isUnauthorized()) {
+        if (!run.cancelled.getAndSet(true)) {
+          LOG.error("The collection refused the credentials, the remaining files are not annotated: %s", e.getMessage());
+        }
+      } else {
+        LOG.error("Unable to annotate the file %s: %s", serverPath, e.getMessage());
+      }
+      run.metrics.fileFailed("http");
+    } catch (IOException e) {
+      LOG.error("Unable to annotate the file %s: %s", serverPath, e.getMessage());
+      run.metrics.fileFailed("file");
+    } catch (InterruptedException e) {
+      run.cancelled.set(true);
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static ThreadFactory threadFactory(String nameFormat) {
+    return new ThreadFactoryBuilder().setNameFormat(nameFormat).setDaemon(true).build();
+  }
+
+  /**
+   * The history of one file, loaded page by page, and the content of its revisions, fetched a few revisions ahead
+   * of the one compared.
+   */
+  static final class Revisions implements RevisionSource, AutoCloseable {
+
+    private final TfvcRestClient client;
+    private final String serverPath;
+    private final Charset charset;
+    private final ExecutorService fetcher;
+    private final List<TfvcRestClient.Changeset> changesets = new ArrayList<>();
+    private final List<Future<long[]>> contents = new ArrayList<>();
+    private boolean complete;
+    private int next;
+
+    Revisions(TfvcRestClient client, String serverPath, Charset charset, ExecutorService fetcher) {
+      this.client = client;
+      this.serverPath = serverPath;
+      this.charset = charset;
+      this.fetcher = fetcher;
+    }
+
+    @CheckForNull
+    @Override
+    public Revision next() throws IOException, InterruptedException {
+      int index = next;
+      TfvcRestClient.Changeset changeset = changeset(index);
+      if (changeset == null) {
+        return null;
+      }
+
+      long[] lines;
+      try {
+        lines = content(index);
+      } catch (TfvcRestClient.HttpStatusException e) {
+        if (index == 0 || e.status() != HttpURLConnection.HTTP_NOT_FOUND) {
+          throw e;
+        }
+        // the item is not available under this path before a rename or branch
+        return null;
+      }
+      next++;
+      return new Revision(changeset.id(), changeset.author(), changeset.date(), lines);
+    }
+
+    /**
+     * @return the changeset at the index, 0 being the newest one, or {@code null} beyond the oldest one
+     */
+    @CheckForNull
+    private TfvcRestClient.Changeset changeset(int index) throws IOException {
+      while (index >= changesets.size() && !complete) {
+        List<TfvcRestClient.Changeset> page;
+        try {
+          page = client.history(serverPath, changesets.size(), HISTORY_PAGE_SIZE);
+        } catch (TfvcRestClient.HttpStatusException e) {
+          if (e.status() != HttpURLConnection.HTTP_NOT_FOUND) {
+            throw e;
+          }
+          page = new ArrayList<>();
+        }
+        changesets.addAll(page);
+        complete = page.size() < HISTORY_PAGE_SIZE;
+      }
+      return index < changesets.size() ? changesets.get(index) : null;
+    }
+
+    /**
+     * @return the line hashes of the revision at the index, which is expected to exist
+     */
+    private long[] content(int index) throws IOException, InterruptedException {
+      for (int ahead = contents.size(); ahead <= index + PREFETCHED_REVISIONS && changeset(ahead) != null; ahead++) {
+        long changeset = changesets.get(ahead).id();
+        contents.add(CompletableFuture.supplyAsync(() -> {
+          try {
+            return client.content(serverPath, changeset, charset);
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        }, fetcher));
+      }
+
+      Future<long[]> content = contents.get(index);
+      // the content is only compared once
+      contents.set(index, null);
+      try {
+        return content.get();
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof UncheckedIOException) {
+          throw ((UncheckedIOException) e.getCause()).getCause();
+        }
+        throw new IOException(e.getCause());
+      }
+    }
+
+    /**
+     * Cancels the revisions fetched ahead and not compared.
+     */
+    @Override
+    public void close() {
+      for (Future<long[]> content : contents) {
+        if (content != null) {
+          content.cancel(false);
+        }
+      }
+    }
+  }
+
+  /**
+   * The blame cache of the previous analyses with their watermark, and the changesets of the last change of the
+   * items of the server path, keyed by their lower case path.
+   */
+  private static final class Delta {
+
+    private final Path location;
+    private final BlameCache cache;
+    private final BlameWatermark watermark;
+    @Nullable
+    private final Map<String, Long> versions;
+    private final Map<InputFile, HashCode> hashes = new HashMap<>();
+
+    private Delta(Path location, BlameCache cache, BlameWatermark watermark, @Nullable Map<String, Long> versions) {
+      this.location = location;
+      this.cache = cache;
+      this.watermark = watermark;
+      this.versions = versions;
+    }
+
+    /**
+     * Lists the items, if they cannot be listed the files are annotated without using the cache.
+     */
+    static Delta load(TfsConfiguration configuration, BlameInput input, TfvcRestClient client, String serverRoot) {
+      Path location = TfsBlameCommand.cacheLocation(configuration, input);
+      BlameCache cache = BlameCache.load(location, configuration.cacheMaxSize());
+      BlameWatermark watermark = BlameWatermark.load(BlameWatermark.of(location), configuration.collectionUri(), serverRoot);
+      Map<String, Long> versions = new HashMap<>();
+      try {
+        for (TfvcRestClient.Item item : client.items(serverRoot)) {
+          versions.put(item.path().toLowerCase(Locale.ROOT), item.version());
+        }
+      } catch (IOException e) {
+        LOG.warning("Unable to list the items of %s, all the files are annotated: %s", serverRoot, e.getMessage());
+        versions = null;
+      }
+      return new Delta(location, cache, watermark, versions);
+    }
+
+    /**
+     * Saves the cache, then moves the watermark to the highest changeset of the items listed.
+     */
+    void save() {
+      try {
+        cache.save();
+        if (versions != null) {
+          long highest = versions.values().stream().mapToLong(Long::longValue).max().orElse(0);
+          watermark.save(Math.max(highest, watermark.changeset()));
+        }
+      } catch (IOException e) {
+        LOG.warning("Unable to save the blame cache %s: %s", location, e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * State shared by the threads of one {@link #blame(BlameInput, BlameOutput)} call.
+   */
+  private static final class BlameRun {
+
+    private final TfvcRestClient client;
+    private final Path baseDir;
+    private final String serverRoot;
+    @Nullable
+    private final Delta delta;
+    private final ChangesetPool pool = new ChangesetPool();
+    private final ThreadLocal<HistoryAnnotator> annotator = ThreadLocal.withInitial(HistoryAnnotator::new);
+    private final BlameMetrics metrics = new BlameMetrics();
+    private final AtomicBoolean cancelled = new AtomicBoolean();
+    private final Set<InputFile> skipped = Collections.synchronizedSet(new LinkedHashSet<>());
+    private final long budgetMillis;
+    private final long start = System.nanoTime();
+
+    /**
+     * @param budgetMillis the time the blame may take, not positive if unlimited
+     */
+    BlameRun(TfvcRestClient client, Path baseDir, String serverRoot, @Nullable Delta delta, long budgetMillis) {
+      this.client = client;
+      this.baseDir = baseDir;
+      this.serverRoot = serverRoot;
+      this.delta = delta;
+      this.budgetMillis = budgetMillis;
+    }
+
+    boolean hasBudget() {
+      return budgetMillis > 0;
+    }
+
+    boolean budgetUsedUp() {
+      return hasBudget() && TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= budgetMillis;
+    }
+  }
+}
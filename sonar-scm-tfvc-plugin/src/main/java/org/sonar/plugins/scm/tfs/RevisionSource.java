@@ -0,0 +1,62 @@
+/*
+ * SonarQube :: SCM :: TFVC :: Plugin
+ * Copyright (c) SonarSource SA and Microsoft Corporation.  All rights reserved.
+ *
+ * Licensed under the MIT License. See License.txt in the project root for license information.
+ */
+package org.sonar.plugins.scm.tfs;
+
+import javax.annotation.CheckForNull;
+import java.io.IOException;
+
+/**
+ * Provides the committed revisions of one file to {@link HistoryAnnotator}, newest first. The revisions are
+ * requested one at a time, so that the older ones are not fetched if the lines are attributed before.
+ */
+@FunctionalInterface
+interface RevisionSource {
+
+  /**
+   * @return the next older revision, or {@code null} if there is none, e.g. beyond the creation of the file
+   * or beyond a rename not followed by the source
+   */
+  @CheckForNull
+  Revision next() throws IOException, InterruptedException;
+
+  /**
+   * The content of a file at a changeset, represented by {@link LineHashes}.
+   */
+  final class Revision {
+
+    private final long changeset;
+    private final String author;
+    private final long date;
+    private final long[] lines;
+
+    Revision(long changeset, String author, long date, long[] lines) {
+      this.changeset = changeset;
+      this.author = author;
+      this.date = date;
+      this.lines = lines;
+    }
+
+    long changeset() {
+      return changeset;
+    }
+
+    String author() {
+      return author;
+    }
+
+    /**
+     * @return the date of the changeset in milliseconds since the epoch
+     */
+    long date() {
+      return date;
+    }
+
+    long[] lines() {
+      return lines;
+    }
+  }
+}
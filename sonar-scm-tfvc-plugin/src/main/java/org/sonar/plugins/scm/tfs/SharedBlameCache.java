@@ -0,0 +1,489 @@
+/*
+ * SonarQube :: SCM :: TFVC :: Plugin
+ * Copyright (c) SonarSource SA and Microsoft Corporation.  All rights reserved.
+ *
+ * Licensed under the MIT License. See License.txt in the project root for license information.
+ */
+package org.sonar.plugins.scm.tfs;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+import org.sonar.api.batch.scm.BlameLine;
+
+import javax.annotation.CheckForNull;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stores the blame information of files in a directory shared by the analyses running on the same machine, e.g.
+ * the analyses of several branches of one tree on a build agent, in the same or in separate processes.
+ * The entries are keyed by the server path of the file, the changeset of its version in the workspace and the
+ * hash of its content, so that a file with pending changes does not match.
+ * <p>
+ * Each entry is written to a file of its own, which is published by an atomic rename once its content is on disk.
+ * The entries are found through an index of fixed size, mapped in memory and only accessed while holding a lock on
+ * {@link #LOCK_FILE_NAME}: each key is looked up in a few consecutive slots, the least recently used entries are
+ * evicted when the size limit is exceeded or all of these slots are taken. A process stopping at any point leaves
+ * at worst an entry file not referenced by the index, which is replaced when the same key is stored again, or an
+ * index slot referencing a missing or different entry file, which is detected when reading it.
+ */
+final class SharedBlameCache implements Closeable {
+
+  static final String INDEX_FILE_NAME = "index";
+  static final String LOCK_FILE_NAME = "index.lock";
+  static final String ENTRIES_DIRECTORY_NAME = "entries";
+
+  private static final TfsLogger LOG = TfsLogger.get(SharedBlameCache.class);
+  private static final int MAGIC = 0x54465348;
+  private static final int VERSION = 1;
+  private static final int DEFAULT_CAPACITY = 1 << 16;
+  private static final int PROBES = 16;
+  private static final int HEADER_SIZE = 32;
+  private static final int SLOT_SIZE = 32;
+  private static final int CAPACITY_OFFSET = 8;
+  private static final int TOTAL_SIZE_OFFSET = 16;
+  private static final int CLOCK_OFFSET = 24;
+  private static final long TEMPORARY_FILE_AGE_MS = TimeUnit.HOURS.toMillis(1);
+  /**
+   * Serializes the access of the instances of this process, a file lock is held by the whole process.
+   */
+  private static final ConcurrentMap<Path, Object> MONITORS = new ConcurrentHashMap<>();
+
+  private final Path entries;
+  private final long maxSize;
+  private final int capacity;
+  private final Object monitor;
+  private final FileChannel lockChannel;
+  private final FileChannel indexChannel;
+  private final MappedByteBuffer index;
+  private final AtomicInteger hits = new AtomicInteger();
+  private final AtomicInteger misses = new AtomicInteger();
+
+  private SharedBlameCache(Path directory, long maxSize, int capacity) throws IOException {
+    Path absolute = directory.toAbsolutePath().normalize();
+    Files.createDirectories(absolute.resolve(ENTRIES_DIRECTORY_NAME));
+    this.entries = absolute.resolve(ENTRIES_DIRECTORY_NAME);
+    this.maxSize = maxSize;
+    this.capacity = capacity;
+    this.monitor = MONITORS.computeIfAbsent(absolute, path -> new Object());
+    this.lockChannel = FileChannel.open(absolute.resolve(LOCK_FILE_NAME), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    FileChannel channel = null;
+    try {
+      channel = FileChannel.open(absolute.resolve(INDEX_FILE_NAME), StandardOpenOption.CREATE, StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+      this.indexChannel = channel;
+      this.index = locked(() -> mapIndex(indexChannel));
+    } catch (IOException | RuntimeException e) {
+      if (channel != null) {
+        channel.close();
+      }
+      lockChannel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Opens the cache in the directory, creating it if needed. An index of another format is reset.
+   */
+  static SharedBlameCache open(Path directory, long maxSize) throws IOException {
+    return open(directory, maxSize, DEFAULT_CAPACITY);
+  }
+
+  static SharedBlameCache open(Path directory, long maxSize, int capacity) throws IOException {
+    SharedBlameCache cache = new SharedBlameCache(directory, maxSize, capacity);
+    cache.deleteAbandonedFiles();
+    return cache;
+  }
+
+  /**
+   * @return the cached blame lines, or {@code null} if the file is unknown in this version and content
+   */
+  @CheckForNull
+  List<BlameLine> get(String serverPath, long changeset, HashCode hash, ChangesetPool pool) {
+    Key key = new Key(serverPath, changeset, hash);
+    try {
+      if (!locked(() -> touch(key))) {
+        misses.incrementAndGet();
+        return null;
+      }
+
+      List<BlameLine> lines = read(key, serverPath, changeset, hash, pool);
+      if (lines == null) {
+        locked(() -> remove(key));
+        misses.incrementAndGet();
+        return null;
+      }
+      hits.incrementAndGet();
+      return lines;
+    } catch (IOException e) {
+      LOG.debug("Unable to read the shared blame cache entry of %s: %s", serverPath, e.getMessage());
+      misses.incrementAndGet();
+      return null;
+    }
+  }
+
+  /**
+   * Stores the blame lines, the failures are logged as they only cost a later annotation.
+   */
+  void put(String serverPath, long changeset, HashCode hash, List<BlameLine> lines) {
+    Key key = new Key(serverPath, changeset, hash);
+    try {
+      long size = write(key, serverPath, changeset, hash, BlameCache.encode(lines));
+      locked(() -> {
+        store(key, size);
+        return null;
+      });
+    } catch (IOException e) {
+      LOG.warning("Unable to store %s in the shared blame cache: %s", serverPath, e.getMessage());
+    }
+  }
+
+  int hits() {
+    return hits.get();
+  }
+
+  int misses() {
+    return misses.get();
+  }
+
+  /**
+   * @return the number of entries in the index, including the ones stored by other processes
+   */
+  int entries() throws IOException {
+    return locked(() -> {
+      int count = 0;
+      for (int slot = 0; slot < capacity; slot++) {
+        if (!isEmpty(slot)) {
+          count++;
+        }
+      }
+      return count;
+    });
+  }
+
+  /**
+   * @return the size of the entries in the index
+   */
+  long size() throws IOException {
+    return locked(() -> index.getLong(TOTAL_SIZE_OFFSET));
+  }
+
+  @Override
+  public void close() {
+    try {
+      indexChannel.close();
+      lockChannel.close();
+    } catch (IOException e) {
+      LOG.debug("Unable to close the shared blame cache: %s", e.getMessage());
+    }
+  }
+
+  private <T> T locked(IndexAction<T> action) throws IOException {
+    synchronized (monitor) {
+      try (FileLock ignored = lockChannel.lock()) {
+        return action.run();
+      }
+    }
+  }
+
+  private MappedByteBuffer mapIndex(FileChannel channel) throws IOException {
+    boolean valid = channel.size() == HEADER_SIZE + (long) capacity * SLOT_SIZE;
+    MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity * SLOT_SIZE);
+    if (valid && buffer.getInt(0) == MAGIC && buffer.getInt(4) == VERSION && buffer.getInt(CAPACITY_OFFSET) == capacity) {
+      return buffer;
+    }
+
+    LOG.debug("Initializing the shared blame cache %s", entries.getParent());
+    byte[] zeros = new byte[SLOT_SIZE * 1024];
+    buffer.position(0);
+    while (buffer.hasRemaining()) {
+      buffer.put(zeros, 0, Math.min(zeros.length, buffer.remaining()));
+    }
+    // the entries of a previous index are not referenced anymore
+    MoreFiles.deleteDirectoryContents(entries, RecursiveDeleteOption.ALLOW_INSECURE);
+    buffer.putInt(CAPACITY_OFFSET, capacity);
+    buffer.putInt(4, VERSION);
+    buffer.putInt(0, MAGIC);
+    buffer.force();
+    return buffer;
+  }
+
+  /**
+   * Deletes the temporary files of writes which did not complete, e.g. because the process was killed.
+   */
+  private void deleteAbandonedFiles() {
+    long limit = System.currentTimeMillis() - TEMPORARY_FILE_AGE_MS;
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(entries, "*.tmp")) {
+      for (Path file : files) {
+        if (Files.getLastModifiedTime(file).toMillis() < limit) {
+          Files.deleteIfExists(file);
+        }
+      }
+    } catch (IOException e) {
+      LOG.debug("Unable to delete abandoned files of the shared blame cache: %s", e.getMessage());
+    }
+  }
+
+  private Path entryFile(long high, long low) {
+    String name = String.format("%016x%016x", high, low);
+    return entries.resolve(name.substring(0, 2)).resolve(name + ".blame");
+  }
+
+  /**
+   * Writes the entry to a temporary file, forces it to disk and moves it in place.
+   *
+   * @return the size of the entry
+   */
+  private long write(Key key, String serverPath, long changeset, HashCode hash, byte[] data) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length + serverPath.length() + 64);
+    try (DataOutputStream output = new DataOutputStream(bytes)) {
+      output.writeInt(MAGIC);
+      output.writeInt(VERSION);
+      output.writeUTF(serverPath);
+      output.writeLong(changeset);
+      output.writeByte(hash.bits() / 8);
+      output.write(hash.asBytes());
+      output.writeInt(data.length);
+      output.write(data);
+    }
+
+    Path target = entryFile(key.high, key.low);
+    Files.createDirectories(target.getParent());
+    Path temporary = Files.createTempFile(entries, target.getFileName().toString(), ".tmp");
+    try {
+      try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        while (buffer.hasRemaining()) {
+          channel.write(buffer);
+        }
+        channel.force(true);
+      }
+      Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temporary);
+    }
+    return bytes.size();
+  }
+
+  /**
+   * @return the blame lines, or {@code null} if the entry file is missing, damaged or stored for another key
+   */
+  @CheckForNull
+  private List<BlameLine> read(Key key, String serverPath, long changeset, HashCode hash, ChangesetPool pool)
+    throws IOException {
+    byte[] content;
+    try {
+      content = Files.readAllBytes(entryFile(key.high, key.low));
+    } catch (NoSuchFileException e) {
+      return null;
+    }
+
+    try (DataInputStream input = new DataInputStream(new ByteArrayInputStream(content))) {
+      if (input.readInt() != MAGIC || input.readInt() != VERSION || !serverPath.equals(input.readUTF())
+        || input.readLong() != changeset) {
+        return null;
+      }
+      byte[] storedHash = new byte[input.readUnsignedByte()];
+      input.readFully(storedHash);
+      if (!Arrays.equals(storedHash, hash.asBytes())) {
+        return null;
+      }
+      byte[] data = new byte[input.readInt()];
+      input.readFully(data);
+      return BlameCache.decode(data, pool);
+    } catch (EOFException e) {
+      LOG.debug("Ignoring truncated shared blame cache entry of %s", serverPath);
+      return null;
+    } catch (IOException | IllegalArgumentException e) {
+      LOG.debug("Ignoring damaged shared blame cache entry of %s: %s", serverPath, e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Marks the entry as used.
+   *
+   * @return {@code false} if the key is not in the index
+   */
+  private boolean touch(Key key) {
+    int slot = find(key);
+    if (slot < 0) {
+      return false;
+    }
+    index.putLong(slotOffset(slot) + 24, nextClock());
+    return true;
+  }
+
+  private void store(Key key, long size) throws IOException {
+    int slot = find(key);
+    if (slot < 0) {
+      slot = freeSlot(key);
+    } else {
+      addTotalSize(-index.getLong(slotOffset(slot) + 16));
+    }
+
+    int offset = slotOffset(slot);
+    index.putLong(offset + 16, size);
+    index.putLong(offset + 24, nextClock());
+    // the key is written last, a process stopping before leaves an empty slot
+    index.putLong(offset + 8, key.low);
+    index.putLong(offset, key.high);
+    addTotalSize(size);
+
+    if (index.getLong(TOTAL_SIZE_OFFSET) > maxSize) {
+      evictLeastRecentlyUsed();
+    }
+  }
+
+  private Void remove(Key key) throws IOException {
+    int slot = find(key);
+    if (slot >= 0) {
+      evict(slot);
+    }
+    return null;
+  }
+
+  private int find(Key key) {
+    int start = start(key);
+    for (int probe = 0; probe < PROBES; probe++) {
+      int slot = (start + probe) % capacity;
+      int offset = slotOffset(slot);
+      if (index.getLong(offset) == key.high && index.getLong(offset + 8) == key.low) {
+        return slot;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @return an empty slot for the key, made free by evicting the least recently used entry of the probed slots if needed
+   */
+  private int freeSlot(Key key) throws IOException {
+    int start = start(key);
+    int oldest = -1;
+    for (int probe = 0; probe < PROBES; probe++) {
+      int slot = (start + probe) % capacity;
+      if (isEmpty(slot)) {
+        return slot;
+      }
+      if (oldest < 0 || lastUsed(slot) < lastUsed(oldest)) {
+        oldest = slot;
+      }
+    }
+    evict(oldest);
+    return oldest;
+  }
+
+  /**
+   * Evicts the least recently used entries until the size is a tenth below the limit, so that the next entries
+   * do not need an eviction each. The total size is recomputed from the slots, which repairs the count of an
+   * update interrupted by the end of a process.
+   */
+  private void evictLeastRecentlyUsed() throws IOException {
+    List<long[]> used = new ArrayList<>();
+    long total = 0;
+    for (int slot = 0; slot < capacity; slot++) {
+      if (!isEmpty(slot)) {
+        long size = index.getLong(slotOffset(slot) + 16);
+        used.add(new long[] {lastUsed(slot), slot});
+        total += size;
+      }
+    }
+    index.putLong(TOTAL_SIZE_OFFSET, total);
+
+    used.sort((first, second) -> Long.compare(first[0], second[0]));
+    long target = maxSize - maxSize / 10;
+    for (int i = 0; i < used.size() && index.getLong(TOTAL_SIZE_OFFSET) > target; i++) {
+      evict((int) used.get(i)[1]);
+    }
+  }
+
+  private void evict(int slot) throws IOException {
+    int offset = slotOffset(slot);
+    Path file = entryFile(index.getLong(offset), index.getLong(offset + 8));
+    addTotalSize(-index.getLong(offset + 16));
+    index.putLong(offset, 0);
+    index.putLong(offset + 8, 0);
+    index.putLong(offset + 16, 0);
+    index.putLong(offset + 24, 0);
+    try {
+      Files.deleteIfExists(file);
+    } catch (IOException e) {
+      // e.g. read by another process on Windows, replaced when the key is stored again
+      LOG.debug("Unable to delete the evicted shared blame cache entry %s: %s", file, e.getMessage());
+    }
+  }
+
+  private boolean isEmpty(int slot) {
+    int offset = slotOffset(slot);
+    return index.getLong(offset) == 0 && index.getLong(offset + 8) == 0;
+  }
+
+  private long lastUsed(int slot) {
+    return index.getLong(slotOffset(slot) + 24);
+  }
+
+  private long nextClock() {
+    long clock = index.getLong(CLOCK_OFFSET) + 1;
+    index.putLong(CLOCK_OFFSET, clock);
+    return clock;
+  }
+
+  private void addTotalSize(long delta) {
+    index.putLong(TOTAL_SIZE_OFFSET, Math.max(0, index.getLong(TOTAL_SIZE_OFFSET) + delta));
+  }
+
+  private int start(Key key) {
+    return (int) Long.remainderUnsigned(key.high, capacity);
+  }
+
+  private static int slotOffset(int slot) {
+    return HEADER_SIZE + slot * SLOT_SIZE;
+  }
+
+  @FunctionalInterface
+  private interface IndexAction<T> {
+    T run() throws IOException;
+  }
+
+  /**
+   * The 128 bits hash of the server path, changeset and content hash of a file.
+   */
+  private static final class Key {
+
+    private final long high;
+    private final long low;
+
+    Key(String serverPath, long changeset, HashCode hash) {
+      ByteBuffer bytes = ByteBuffer.wrap(Hashing.murmur3_128().newHasher()
+        .putString(serverPath, StandardCharsets.UTF_8)
+        .putByte((byte) 0)
+        .putLong(changeset)
+        .putBytes(hash.asBytes())
+        .hash()
+        .asBytes());
+      this.high = bytes.getLong();
+      // never 0, so that an empty slot has no valid key
+      this.low = bytes.getLong() | 1;
+    }
+  }
+}
@@ -7,247 +7,1060 @@
 package org.sonar.plugins.scm.tfs;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Strings;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
+import com.google.common.hash.HashCode;
 import com.google.common.io.Files;
 import com.google.common.io.Resources;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import org.sonar.api.Startable;
 import org.sonar.api.batch.fs.InputFile;
 import org.sonar.api.batch.scm.BlameCommand;
 import org.sonar.api.batch.scm.BlameLine;
 import org.sonar.api.utils.TempFolder;
 
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
 import java.io.*;
 import java.net.URL;
-import java.nio.charset.Charset;
-import java.nio.charset.StandardCharsets;
-import java.util.Date;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
 
-public class TfsBlameCommand extends BlameCommand {
+public class TfsBlameCommand extends BlameCommand implements Startable {
 
-  private static final String LOG_FORMAT = "{}: {}";
-  private static final String LOG_PREFIX = "SCM-TFVC";
-  private static final Logger LOG = LoggerFactory.getLogger(TfsBlameCommand.class);
-  private static final Pattern LINE_PATTERN = Pattern.compile("([^\t]++)\t([^\t]++)\t([^\t]++)");
+  private static final TfsLogger LOG = TfsLogger.get(TfsBlameCommand.class);
+  private static final String CACHE_FILE_NAME = "tfvc-blame.cache";
+  private static final String TIMEOUT_FAILURE = "timeout";
+  private static final int SKIPPED_FILES_LOGGED = 10;
 
   private final TfsConfiguration configuration;
   private final File executable;
+  private final AnnotatorLauncher launcher;
+  private final AtomicReference<EagerSession> eagerSession = new AtomicReference<>();
 
   @SuppressWarnings("unused") // used implicitly
   public TfsBlameCommand(TfsConfiguration conf, TempFolder temp) {
-    this(conf, extractExecutable(temp));
+    this(conf, installExecutable(conf, temp));
   }
 
   @VisibleForTesting
   public TfsBlameCommand(TfsConfiguration configuration, File executable) {
-    logDebug("started blaming with executable %s", executable.getAbsolutePath());
+    this(configuration, executable, launcherOf(configuration, executable));
+  }
+
+  @VisibleForTesting
+  TfsBlameCommand(TfsConfiguration configuration, File executable, AnnotatorLauncher launcher) {
+    LOG.debug("started blaming with executable %s", executable.getAbsolutePath());
     if (configuration.collectionUri().isEmpty()) {
-      logWarning("Missing configuration for CollectionUri. The project may not receive blame information.");
+      LOG.warning("Missing configuration for CollectionUri. The project may not receive blame information.");
     }
 
-    logDebug("collection uri: %s", configuration.collectionUri());
-    logDebug("user name: %s", configuration.username());
-    logDebug("password length: %d", configuration.password() != null ? configuration.password().length() : 0);
-    logDebug("pat length: %s", configuration.pat() != null ? configuration.pat().length() : 0);
+    LOG.debug("collection uri: %s", configuration.collectionUri());
+    LOG.debug("user name: %s", configuration.username());
+    LOG.debug("password length: %d", configuration.password() != null ? configuration.password().length() : 0);
+    LOG.debug("pat length: %s", configuration.pat() != null ? configuration.pat().length() : 0);
 
     this.configuration = configuration;
     this.executable = executable;
+    this.launcher = launcher;
+  }
+
+  private static AnnotatorLauncher launcherOf(TfsConfiguration configuration, File executable) {
+    AnnotatorLauncher process = () -> new ProcessBuilder(executable.getAbsolutePath()).start();
+    return configuration.daemonEnabled() ? DaemonLauncher.create(configuration, executable, process) : process;
+  }
+
+  /**
+   * Provides the way to start the annotator to other users of its protocol.
+   */
+  AnnotatorLauncher launcher() {
+    return launcher;
+  }
+
+  File executable() {
+    return executable;
+  }
+
+  /**
+   * Starts the annotator in advance if configured, it then connects while the scanner indexes the files.
+   */
+  @Override
+  public void start() {
+    if (configuration.eagerStart() && !configuration.collectionUri().isEmpty()) {
+      LOG.debug("starting the TFVC annotate command in advance");
+      eagerSession.set(EagerSession.start(launcher, configuration));
+    }
+  }
+
+  /**
+   * Stops the annotator started in advance if no blame used it.
+   */
+  @Override
+  public void stop() {
+    EagerSession eager = eagerSession.getAndSet(null);
+    if (eager != null) {
+      eager.close();
+    }
   }
 
   @SuppressWarnings({"deprecation", "squid:S1113"})
   @Override
   protected void finalize() throws Throwable {
     super.finalize();
-    logDebug("blaming completed");
+    LOG.debug("blaming completed");
   }
 
   @Override
   public void blame(BlameInput input, BlameOutput output) {
-    Process process = null;
-    try {
-      logDebug("Executing the TFVC annotate command: %s", executable.getAbsolutePath());
-      ProcessBuilder processBuilder = new ProcessBuilder(executable.getAbsolutePath());
-      process = processBuilder.start();
-      Charset fileCharset = StandardCharsets.UTF_8;
-      OutputStreamWriter stdin = new OutputStreamWriter(process.getOutputStream(), fileCharset);
-      BufferedReader stdout = new BufferedReader(new InputStreamReader(process.getInputStream(), fileCharset));
-      BufferedReader stderr = new BufferedReader(new InputStreamReader(process.getErrorStream(), fileCharset));
-
-      String blameOutput = stdout.readLine();
-      for (int waitCounter=0; waitCounter<10; waitCounter++) {
-        logOutput(blameOutput);
-        if (!blameOutput.isEmpty()) {
-          break;
-        }
+    Path workDir = workDir(input);
+    BlameDurations durations = BlameDurations.load(workDir != null ? workDir.resolve(BlameDurations.FILE_NAME) : null);
+    long budget = TimeUnit.SECONDS.toMillis(configuration.budget());
+    AccountCache accounts = configuration.accountsTtl() > 0
+      ? AccountCache.load(configuration.userCacheDirectory().resolve(AccountCache.FILE_NAME), TimeUnit.HOURS.toMillis(configuration.accountsTtl()))
+      : null;
+    try (BlameRun run = new BlameRun(durations, eagerSession.getAndSet(null), budget, accounts)) {
+      BlameMetrics metrics = run.metrics;
+      metrics.restartClock();
+      blame(input, (inputFile, lines) -> {
+        long start = System.nanoTime();
+        output.blameResult(inputFile, lines);
+        metrics.output(System.nanoTime() - start);
+      }, run);
+      metrics.recovery(run.restarts.get(), run.timedOutFiles.get());
+      metrics.skipped(run.skipped.size());
+      metrics.finish();
+      if (accounts != null) {
+        saveAccounts(accounts, metrics);
+      }
 
-        Thread.sleep(100);
+      if (!run.skipped.isEmpty()) {
+        LOG.warning("The blame budget of %d s was used up, %d files are not annotated: %s", configuration.budget(),
+          run.skipped.size(), summarize(run.skipped));
       }
 
-      if (blameOutput.isEmpty()) {
-        logError("missing initial output from annotator.");
-        return;
+      if (run.restarts.get() > 0 || run.timedOutFiles.get() > 0) {
+        LOG.info("annotator restarts: %d, timed out files: %d", run.restarts.get(), run.timedOutFiles.get());
+      }
+      LOG.info("%s", metrics.summary());
+      if (workDir != null) {
+        writeReport(workDir.resolve(BlameMetrics.REPORT_FILE_NAME), metrics);
       }
+    }
 
-      stdin.write(configuration.username() + "\r\n");
-      stdin.write(configuration.password() + "\r\n");
-      stdin.write(configuration.pat() + "\r\n");
-      stdin.flush();
+    try {
+      durations.save();
+    } catch (IOException e) {
+      LOG.warning("Unable to save the blame durations: %s", e.getMessage());
+    }
+  }
 
-      // expecting status for the connection
-      blameOutput = stdout.readLine();
-      logOutput(blameOutput);
+  private static void saveAccounts(AccountCache accounts, BlameMetrics metrics) {
+    if (metrics.accountHits() + metrics.accountMisses() > 0) {
+      LOG.info("account lookups: %d hits, %d misses, %d accounts stored", metrics.accountHits(), metrics.accountMisses(),
+        accounts.stored());
+    }
+    try {
+      accounts.save();
+    } catch (IOException e) {
+      LOG.warning("Unable to save the account cache: %s", e.getMessage());
+    }
+  }
+
+  /**
+   * @return the paths of the first files, followed by the number of the others
+   */
+  static String summarize(Collection<InputFile> files) {
+    List<String> paths = new ArrayList<>();
+    synchronized (files) {
+      files.stream().limit(SKIPPED_FILES_LOGGED).forEach(file -> paths.add(AnnotatorSession.pathOf(file)));
+    }
+    String summary = String.join(", ", paths);
+    return files.size() > paths.size() ? (summary + " and " + (files.size() - paths.size()) + " more") : summary;
+  }
 
-      // expecting next instruction
-      blameOutput = stdout.readLine();
-      logOutput(blameOutput);
-      stdin.write(configuration.collectionUri() + "\r\n");
-      stdin.flush();
+  @CheckForNull
+  static Path workDir(BlameInput input) {
+    return input.fileSystem() != null ? input.fileSystem().workDir().toPath() : null;
+  }
 
-      // expecting next instruction or maybe error message
-      blameOutput = stdout.readLine();
-      if (blameOutput.equals("AnnotationFailedOnProject")) {
-        logError(stderr.readLine());
-        return;
+  /**
+   * Writes the metrics next to the other files of the analysis, for tools tracking the blame duration.
+   */
+  static void writeReport(Path report, BlameMetrics metrics) {
+    try {
+      metrics.write(report);
+      LOG.debug("blame metrics written to %s", report);
+    } catch (IOException e) {
+      LOG.warning("Unable to write the blame metrics %s: %s", report, e.getMessage());
+    }
+  }
+
+  private void blame(BlameInput input, BlameOutput output, BlameRun run) {
+    SharedBlameCache shared = openSharedCache();
+    if (!configuration.cacheEnabled() && shared == null) {
+      annotate(input.filesToBlame(), output, run);
+      return;
+    }
+
+    try {
+      blame(input, output, run, shared);
+    } finally {
+      if (shared != null) {
+        shared.close();
       }
+    }
+  }
 
-      logOutput(blameOutput);
-      for (InputFile inputFile : input.filesToBlame()) {
-    	// extract full path from URI, skipping leading slash
-    	String fileName = inputFile.uri().getPath().substring(1);
-        logInfo("annotating %s", fileName);
+  private void blame(BlameInput input, BlameOutput output, BlameRun run, @Nullable SharedBlameCache shared) {
+    Path location = null;
+    BlameCache cache = null;
+    BlameWatermark watermark = null;
+    AnnotatorSession.ItemChanges changes = null;
+    if (configuration.cacheEnabled()) {
+      location = cacheLocation(configuration, input);
+      cache = BlameCache.load(location, configuration.cacheMaxSize());
+      File baseDir = input.fileSystem() != null ? input.fileSystem().baseDir() : null;
+      if (baseDir != null && input.filesToBlame().iterator().hasNext()) {
+        String root = baseDir.getAbsolutePath();
+        watermark = BlameWatermark.load(BlameWatermark.of(location), configuration.collectionUri(), root);
+        changes = changesSince(root, watermark.changeset(), run);
+      }
+    }
 
-        stdin.write(fileName + "\r\n");
-        stdin.flush();
+    List<InputFile> misses = new ArrayList<>();
+    Map<InputFile, HashCode> hashes = new HashMap<>();
+    int changedOnServer = 0;
+    for (InputFile inputFile : input.filesToBlame()) {
+      String path = AnnotatorSession.pathOf(inputFile);
+      if (cache != null && changes != null && changes.contains(path)) {
+        // the blame of the same content may differ, e.g. after a change was undone on the server
+        cache.remove(path);
+        changedOnServer++;
+      }
+      HashCode hash = BlameCache.hash(inputFile);
+      List<BlameLine> lines = hash != null && cache != null ? cache.get(path, hash, run.pool) : null;
+      if (lines != null) {
+        output.blameResult(inputFile, lines);
+        continue;
+      }
 
-        String path = stdout.readLine();
-        if (!fileName.equals(path)) {
-          throw new IllegalStateException("Expected the file paths to match: " + fileName + " and " + path);
-        }
+      misses.add(inputFile);
+      if (hash != null) {
+        hashes.put(inputFile, hash);
+      }
+    }
 
-        String linesAsString = stdout.readLine();
-        if (linesAsString.equals("AnnotationFailedOnFile")) {
-          logError(stderr.readLine());
+    if (watermark != null && changes != null) {
+      LOG.info("changeset watermark %d: %d files changed on the server", watermark.changeset(), changedOnServer);
+    }
+    if (cache != null) {
+      LOG.info("blame cache: %d hits, %d misses", cache.hits(), misses.size());
+    }
+    Map<InputFile, AnnotatorSession.ItemVersion> versions = Collections.emptyMap();
+    if (shared != null && !misses.isEmpty()) {
+      versions = versions(misses.stream().filter(hashes::containsKey).collect(Collectors.toList()), run);
+      List<InputFile> sharedMisses = new ArrayList<>();
+      for (InputFile inputFile : misses) {
+        AnnotatorSession.ItemVersion version = versions.get(inputFile);
+        List<BlameLine> lines = version != null
+          ? shared.get(version.serverPath(), version.changeset(), hashes.get(inputFile), run.pool)
+          : null;
+        if (lines == null) {
+          sharedMisses.add(inputFile);
           continue;
         }
 
-        if (linesAsString.equals("AnnotationFailedOnProject")) {
-          logError(stderr.readLine());
-          break;
+        if (cache != null) {
+          cache.put(AnnotatorSession.pathOf(inputFile), hashes.get(inputFile), lines);
+        }
+        output.blameResult(inputFile, lines);
+      }
+      LOG.info("shared blame cache: %d hits, %d misses", shared.hits(), sharedMisses.size());
+      misses = sharedMisses;
+    }
+    run.metrics.cache((cache != null ? cache.hits() : 0) + (shared != null ? shared.hits() : 0), misses.size());
+
+    if (!misses.isEmpty()) {
+      BlameCache localCache = cache;
+      Map<InputFile, AnnotatorSession.ItemVersion> sharedVersions = versions;
+      annotate(misses, (inputFile, lines) -> {
+        HashCode hash = hashes.get(inputFile);
+        if (hash != null && localCache != null) {
+          localCache.put(AnnotatorSession.pathOf(inputFile), hash, lines);
+        }
+        AnnotatorSession.ItemVersion version = sharedVersions.get(inputFile);
+        if (hash != null && version != null && shared != null) {
+          shared.put(version.serverPath(), version.changeset(), hash, lines);
         }
+        output.blameResult(inputFile, lines);
+      }, run);
+    }
 
-        int lines = Integer.parseInt(linesAsString, 10);
-        List<BlameLine> result = Lists.newArrayList();
-        for (int i = 0; i < lines; i++) {
-          String line = stdout.readLine();
+    if (cache != null) {
+      try {
+        cache.save();
+        if (watermark != null && changes != null) {
+          // the entries of the files changed since were removed, the others are at most at the highest changeset
+          watermark.save(Math.max(changes.highest(), watermark.changeset()));
+        }
+      } catch (IOException e) {
+        LOG.warning("Unable to save the blame cache %s: %s", location, e.getMessage());
+      }
+    }
+  }
 
-          Matcher matcher = LINE_PATTERN.matcher(line);
-          if (!matcher.find()) {
-            throw new IllegalStateException("Invalid output from the TFVC annotate command: \"" + line + "\" on file: " + path + " at line " + (i + 1));
-          }
+  /**
+   * Requests the files of the project changed on the server since the watermark of the blame cache.
+   *
+   * @return the changes, or {@code null} if the annotator failed or does not know the request
+   */
+  @CheckForNull
+  private AnnotatorSession.ItemChanges changesSince(String root, long changeset, BlameRun run) {
+    return ask(run, "the files changed since changeset " + changeset, session -> session.changesSince(root, changeset));
+  }
 
-          String revision = matcher.group(1).trim();
-          String author = matcher.group(2).trim();
-          String dateStr = matcher.group(3).trim();
+  /**
+   * @return the configured location of the blame cache, or else its location in the work directory
+   */
+  static Path cacheLocation(TfsConfiguration configuration, BlameInput input) {
+    return configuration.cachePath().isEmpty()
+      ? input.fileSystem().workDir().toPath().resolve(CACHE_FILE_NAME)
+      : Paths.get(configuration.cachePath());
+  }
 
-          Date date = new Date(Long.parseLong(dateStr, 10));
+  /**
+   * @return the cache shared with the other analyses of the machine, or {@code null} if it is not configured or
+   * not usable
+   */
+  @CheckForNull
+  private SharedBlameCache openSharedCache() {
+    String directory = configuration.sharedCachePath();
+    if (Strings.isNullOrEmpty(directory)) {
+      return null;
+    }
 
-          result.add(new BlameLine().date(date).revision(revision).author(author));
-        }
+    try {
+      return SharedBlameCache.open(Paths.get(directory), configuration.sharedCacheMaxSize());
+    } catch (IOException | RuntimeException e) {
+      LOG.warning("Unable to open the shared blame cache %s: %s", directory, e.getMessage());
+      return null;
+    }
+  }
 
-        if (result.size() == inputFile.lines() - 1) {
-          // SONARPLUGINS-3097 TFS do not report blame on last empty line
-          result.add(result.get(result.size() - 1));
-        }
+  /**
+   * Requests the server paths and workspace versions of the files, which key the shared cache.
+   *
+   * @return the versions of the files, without the files the annotator failed on
+   */
+  private Map<InputFile, AnnotatorSession.ItemVersion> versions(List<InputFile> files, BlameRun run) {
+    List<AnnotatorSession.ItemVersion> versions = ask(run, "the versions of the files", session -> session.versions(files));
+    Map<InputFile, AnnotatorSession.ItemVersion> result = new HashMap<>();
+    for (int i = 0; versions != null && i < files.size(); i++) {
+      if (versions.get(i) != null) {
+        result.put(files.get(i), versions.get(i));
+      }
+    }
+    return result;
+  }
 
-        output.blameResult(inputFile, result);
-        captureErrorStream(process);
+  /**
+   * Sends requests to a connected annotator before the annotation. The annotator is then kept to annotate the
+   * first files.
+   *
+   * @param subject what is requested, for the logs
+   * @return the answer, or {@code null} if the annotator failed
+   */
+  @CheckForNull
+  private <T> T ask(BlameRun run, String subject, SessionRequest<T> request) {
+    AnnotatorSession session = null;
+    try {
+      session = run.takeStartedSession(TimeUnit.SECONDS.toMillis(configuration.handshakeTimeout()));
+      if (session == null) {
+        long start = System.nanoTime();
+        session = new AnnotatorSession(launcher.launch(), run.pool, run.metrics);
+        connect(session, start, null, run);
       }
+      if (session.isAborted()) {
+        // the failure is already logged, the annotation then stops on it too
+        run.keep(session);
+        session = null;
+        return null;
+      }
+      preloadAccounts(session, run);
 
-      stdin.close();
+      AnnotatorSession connected = session;
+      T result;
+      try (Watchdog.Deadline ignored = run.watchdog.arm(TimeUnit.SECONDS.toMillis(configuration.fileTimeout()),
+        () -> connected.kill(subject))) {
+        result = request.send(session);
+      }
+      run.keep(session);
+      session = null;
+      return result;
+    } catch (IOException | IllegalStateException e) {
+      if (session != null && session.timedOutOn() != null) {
+        // counted like a restart, the annotation starts another annotator
+        LOG.error("The TFVC annotate command did not answer within the timeout on %s", session.timedOutOn());
+        run.tryRestart(configuration.maxRestarts());
+      } else if (e instanceof EOFException) {
+        // annotators not knowing the request may stop on it, the annotation then starts another one
+        LOG.debug("The annotator stopped on the request of %s", subject);
+      } else {
+        LOG.warning("Unable to get %s: %s", subject, e.getMessage());
+      }
+    } catch (InterruptedException e) {
+      LOG.warning("Interrupted while getting %s", subject);
+      Thread.currentThread().interrupt();
+    } finally {
+      if (session != null) {
+        session.close();
+      }
+    }
+    return null;
+  }
 
-      int exitCode = process.waitFor();
-      if (exitCode != 0) {
-        throw new IllegalStateException("The TFVC annotate command " + executable.getAbsolutePath() + " failed with exit code " + exitCode);
+  /**
+   * Groups the files by workspace mapping and collection, in the order of their first file. The files not mapped
+   * are grouped under {@code null}.
+   */
+  private static Map<AnnotatorSession.Workspace, List<InputFile>> plan(List<InputFile> files, List<AnnotatorSession.Workspace> workspaces) {
+    Map<AnnotatorSession.Workspace, List<InputFile>> groups = new LinkedHashMap<>();
+    for (InputFile inputFile : files) {
+      AnnotatorSession.Workspace workspace = AnnotatorSession.Workspace.of(workspaces, AnnotatorSession.pathOf(inputFile));
+      groups.computeIfAbsent(workspace, key -> new ArrayList<>()).add(inputFile);
+    }
+    return groups;
+  }
+
+  /**
+   * Annotates the files of each workspace with annotators of their own, connected to the collection of the
+   * workspace, so that an annotator neither switches between collections nor refreshes its workspace cache
+   * while annotating. The workspace mappings of the machine are only requested if enabled, once, and the files
+   * are only grouped if several mappings exist.
+   */
+  private void annotate(Iterable<InputFile> filesToBlame, BlameOutput output, BlameRun run) {
+    if (Iterables.isEmpty(filesToBlame)) {
+      return;
+    }
+
+    List<AnnotatorSession.Workspace> workspaces = configuration.workspaces()
+      ? ask(run, "the workspaces", AnnotatorSession::workspaces)
+      : null;
+    if (isSingleWorkspace(workspaces)) {
+      annotate(run.hasBudget() ? mostRecentFirst(Lists.newArrayList(filesToBlame)) : filesToBlame, null, output, run);
+      return;
+    }
+
+    List<InputFile> files = Lists.newArrayList(filesToBlame);
+    if (run.hasBudget()) {
+      files = mostRecentFirst(files);
+    }
+    Map<AnnotatorSession.Workspace, List<InputFile>> groups = plan(files, workspaces);
+    if (groups.size() > 1) {
+      LOG.info("annotating %d files of %d workspaces", files.size(), groups.size());
+    }
+    for (Map.Entry<AnnotatorSession.Workspace, List<InputFile>> group : groups.entrySet()) {
+      AnnotatorSession.Workspace workspace = group.getKey();
+      if (workspace == null || workspace.isOn(configuration.collectionUri())) {
+        annotate(group.getValue(), null, output, run);
+      } else {
+        LOG.debug("annotating %d files of the workspace %s", group.getValue().size(), workspace);
+        annotate(group.getValue(), workspace.collectionUri(), output, run);
       }
-    } catch (IOException e) {
-      logError("IOException thrown in the TFVC annotate command: %s", e.getMessage());
+    }
+  }
+
+  /**
+   * Indicates whether the files are all annotated against the configured collection without being grouped, i.e.
+   * if the annotator does not list the workspaces or at most one mapping on the configured collection exists.
+   */
+  private boolean isSingleWorkspace(@Nullable List<AnnotatorSession.Workspace> workspaces) {
+    return workspaces == null
+      || (workspaces.size() <= 1 && workspaces.stream().allMatch(workspace -> workspace.isOn(configuration.collectionUri())));
+  }
+
+  /**
+   * Orders the files by modification time, the most recent first, as the blame of the files changed lately is the
+   * most useful. The files which cannot be read come last.
+   */
+  static List<InputFile> mostRecentFirst(List<InputFile> files) {
+    Map<InputFile, Long> modified = new HashMap<>();
+    for (InputFile inputFile : files) {
+      long time;
+      try {
+        time = java.nio.file.Files.getLastModifiedTime(Paths.get(inputFile.uri())).toMillis();
+      } catch (IOException | RuntimeException e) {
+        time = Long.MIN_VALUE;
+      }
+      modified.put(inputFile, time);
+    }
+
+    List<InputFile> result = new ArrayList<>(files);
+    result.sort(Comparator.comparingLong((InputFile inputFile) -> modified.get(inputFile)).reversed());
+    return result;
+  }
+
+  /**
+   * @param collectionUri the collection to connect the annotators to, {@code null} for the configured one, in which
+   * case the annotator started before is used first
+   */
+  private void annotate(Iterable<InputFile> groupFiles, @Nullable String collectionUri, BlameOutput output, BlameRun run) {
+    int workers = configuration.workers();
+    if (workers <= 1) {
+      // process the files lazily, in the order provided by the scanner
+      FileQueue queue = new FileQueue(groupFiles.iterator(), run);
+      runSession(queue, collectionUri, output, run);
+      run.skip(queue);
+      return;
+    }
+
+    // with a budget, the most recent files are handed out first rather than the longest ones
+    List<InputFile> files = run.hasBudget() ? Lists.newArrayList(groupFiles) : run.durations.longestFirst(Lists.newArrayList(groupFiles));
+    workers = Math.min(workers, files.size());
+    LOG.debug("annotating %d files using %d annotator processes", files.size(), workers);
+
+    FileQueue queue = new FileQueue(files.iterator(), run);
+    BlameOutput synchronizedOutput = (inputFile, lines) -> {
+      synchronized (output) {
+        output.blameResult(inputFile, lines);
+      }
+    };
+
+    ExecutorService executor = Executors.newFixedThreadPool(workers, new AnnotatorThreadFactory());
+    for (int i = 0; i < workers; i++) {
+      executor.execute(() -> runSession(queue, collectionUri, synchronizedOutput, run));
+    }
+
+    executor.shutdown();
+    try {
+      executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      LOG.error("InterruptedException thrown while waiting for the TFVC annotate commands: %s", e.getMessage());
+      queue.cancel();
+      executor.shutdownNow();
+      // Restore interrupted state...
+      Thread.currentThread().interrupt();
+    }
+    run.skip(queue);
+  }
+
+  /**
+   * Runs annotator processes until the queue is empty or processing must be stopped. An annotator which
+   * hangs or crashes is restarted, within the configured limit, and resumes with the next file.
+   */
+  private void runSession(FileQueue queue, @Nullable String collectionUri, BlameOutput output, BlameRun run) {
+    if (run.budgetUsedUp()) {
+      return;
+    }
+
+    while (runSessionOnce(queue, collectionUri, output, run) && queue.hasMore()) {
+      if (!run.tryRestart(configuration.maxRestarts())) {
+        LOG.error("The remaining files are not annotated after %d restarts of the TFVC annotate command", run.restarts.get());
+        queue.cancel();
+        return;
+      }
+
+      LOG.warning("restarting the TFVC annotate command to annotate the remaining files");
+    }
+  }
+
+  /**
+   * Runs one annotator process until the queue is empty or processing must be stopped.
+   *
+   * @return {@code true} if the annotator failed after connecting or did not answer in time, so that restarting
+   * it is worth a try
+   */
+  private boolean runSessionOnce(FileQueue queue, @Nullable String collectionUri, BlameOutput output, BlameRun run) {
+    AnnotatorSession session = null;
+    boolean connected = false;
+    try {
+      LOG.debug("Executing the TFVC annotate command: %s", executable.getAbsolutePath());
+      session = collectionUri == null ? run.takeStartedSession(TimeUnit.SECONDS.toMillis(configuration.handshakeTimeout())) : null;
+      if (session != null) {
+        connected = !session.isAborted();
+      } else {
+        long start = System.nanoTime();
+        session = new AnnotatorSession(launcher.launch(), run.pool, run.metrics);
+        connected = connect(session, start, collectionUri, run);
+      }
+      if (!connected) {
+        queue.cancel();
+        return false;
+      }
+      preloadAccounts(session, run);
+
+      int pipelineDepth = configuration.pipelineDepth();
+      if (pipelineDepth > 1) {
+        annotatePipelined(session, queue, output, pipelineDepth, run);
+      } else {
+        annotateSequentially(session, queue, output, run);
+      }
+
+      collectAccounts(session, run);
+      session.finish(executable.getAbsolutePath());
+      return false;
+    } catch (IOException | IllegalStateException e) {
+      if (session != null && session.timedOutOn() != null && run.budgetUsedUp()) {
+        LOG.debug("The TFVC annotate command was stopped at the end of the blame budget on %s", session.timedOutOn());
+        return false;
+      }
+      if (session != null && session.timedOutOn() != null) {
+        LOG.error("The TFVC annotate command did not answer within the timeout on %s", session.timedOutOn());
+        return true;
+      }
+
+      LOG.error("%s thrown in the TFVC annotate command: %s", e.getClass().getSimpleName(), e.getMessage());
+      if (connected) {
+        run.metrics.fileFailed(e.getClass().getSimpleName());
+      } else {
+        queue.cancel();
+      }
+      return connected;
     } catch (InterruptedException e) {
-      logError("InterruptedException thrown in the TFVC annotate command: %s", e.getMessage());
+      queue.cancel();
+      LOG.error("InterruptedException thrown in the TFVC annotate command: %s", e.getMessage());
       // Restore interrupted state...
       Thread.currentThread().interrupt();
-    } catch (IllegalStateException e) {
-      logError("IllegalStateException thrown in the TFVC annotate command: %s", e.getMessage());
+      return false;
     } finally {
-      if (process != null) {
-        captureErrorStream(process);
-        try {
-          process.getInputStream().close();
-          process.getOutputStream().close();
-          process.getErrorStream().close();
-        }
-        catch (IOException e) {
-          // just ignore
-        }
-        process.destroy();
+      if (session != null) {
+        session.close();
       }
     }
   }
 
-  private static void logInfo(String message, Object... arguments) {
-    String fullMessage = String.format(message, arguments);
-	  LOG.info(LOG_FORMAT, LOG_PREFIX, fullMessage);
+  /**
+   * Connects a launched annotator, which is killed if the connection does not complete within the configured timeout.
+   *
+   * @param collectionUri the collection to connect to, {@code null} for the configured one
+   */
+  private boolean connect(AnnotatorSession launched, long start, @Nullable String collectionUri, BlameRun run)
+    throws IOException, InterruptedException {
+    long launchEnd = System.nanoTime();
+    run.metrics.sessionStarted(launchEnd - start);
+    boolean connected;
+    try (Watchdog.Deadline ignored = run.watchdog.arm(run.withinBudget(TimeUnit.SECONDS.toMillis(configuration.handshakeTimeout())),
+      () -> launched.kill("the connection to the collection"))) {
+      connected = launched.connect(configuration, collectionUri != null ? collectionUri : configuration.collectionUri());
+    }
+    run.metrics.connected(System.nanoTime() - launchEnd);
+    return connected;
   }
 
-  private static void logDebug(String message, Object... arguments) {
-    String fullMessage = String.format(message, arguments);
-    LOG.debug(LOG_FORMAT, LOG_PREFIX, fullMessage);
+  /**
+   * Passes the cached accounts to a connected annotator before its first file, which is killed if they are not
+   * accepted within the handshake timeout.
+   */
+  private void preloadAccounts(AnnotatorSession session, BlameRun run) throws IOException {
+    if (run.accounts == null) {
+      return;
+    }
+    try (Watchdog.Deadline ignored = run.watchdog.arm(run.withinBudget(TimeUnit.SECONDS.toMillis(configuration.handshakeTimeout())),
+      () -> session.kill("the preloaded accounts"))) {
+      run.metrics.accountsPreloaded(session.preloadAccounts(run.accounts.accounts()));
+    }
   }
 
-  private static void logWarning(String message, Object... arguments) {
-    String fullMessage = String.format(message, arguments);
-    LOG.warn(LOG_FORMAT, LOG_PREFIX, fullMessage);
+  /**
+   * Stores the accounts the annotator resolved through the identity service, for the next analyses.
+   */
+  private void collectAccounts(AnnotatorSession session, BlameRun run) throws IOException {
+    if (run.accounts == null) {
+      return;
+    }
+    AnnotatorSession.ResolvedAccounts resolved;
+    try (Watchdog.Deadline ignored = run.watchdog.arm(TimeUnit.SECONDS.toMillis(configuration.fileTimeout()),
+      () -> session.kill("the resolved accounts"))) {
+      resolved = session.resolvedAccounts();
+    }
+    if (resolved != null) {
+      resolved.accounts().forEach(run.accounts::put);
+      run.metrics.accountLookups(resolved.hits(), resolved.misses(), resolved.lookupMillis());
+    }
   }
 
-  private static void logError(String message, Object... arguments) {
-    String fullMessage = String.format(message, arguments);
-    LOG.error(LOG_FORMAT, LOG_PREFIX, fullMessage);
+  /**
+   * Kills the annotator if the answer for the file is not complete within the configured timeout, or before the
+   * end of the budget, in which case the file is skipped.
+   */
+  private Watchdog.Deadline fileDeadline(AnnotatorSession session, InputFile inputFile, BlameRun run) {
+    long timeout = TimeUnit.SECONDS.toMillis(configuration.fileTimeout());
+    long limit = run.withinBudget(timeout);
+    if (limit != timeout) {
+      return run.watchdog.arm(limit, () -> {
+        run.skipped.add(inputFile);
+        session.kill("the file " + AnnotatorSession.pathOf(inputFile));
+      });
+    }
+
+    return run.watchdog.arm(timeout, () -> {
+      run.timedOutFiles.incrementAndGet();
+      run.metrics.fileFailed(TIMEOUT_FAILURE);
+      // handed out first next time, so that waiting for it again overlaps with the other files
+      run.durations.put(AnnotatorSession.pathOf(inputFile), TimeUnit.SECONDS.toMillis(configuration.fileTimeout()),
+        inputFile.lines());
+      session.kill("the file " + AnnotatorSession.pathOf(inputFile));
+    });
   }
 
-  private static void logOutput(String output) {
-    logDebug("received output: <%s>", output);
+  /**
+   * Sends one path and waits for its answer before sending the next one.
+   */
+  private void annotateSequentially(AnnotatorSession session, FileQueue queue, BlameOutput output, BlameRun run)
+    throws IOException {
+    InputFile inputFile;
+    while ((inputFile = queue.next()) != null) {
+      List<BlameLine> result;
+      try (Watchdog.Deadline ignored = fileDeadline(session, inputFile, run)) {
+        result = session.annotate(inputFile);
+      }
+      if (!receive(session, inputFile, result, queue, output, run)) {
+        break;
+      }
+
+      if (result != null) {
+        session.captureErrorStream();
+      }
+    }
   }
 
-  private static void captureErrorStream(Process process) {
+  /**
+   * Keeps up to {@code depth} paths queued on the annotator's input while a dedicated thread consumes the answers.
+   * The bounded window of pending files throttles the writer when the reader falls behind.
+   * The error stream is not polled between the files because it may already contain the message of a pending file.
+   * If the annotator fails, the file being received is given up and the other pending files are queued again.
+   */
+  private void annotatePipelined(AnnotatorSession session, FileQueue queue, BlameOutput output, int depth,
+    BlameRun run) throws IOException, InterruptedException {
+    BlockingQueue<Optional<InputFile>> pending = new ArrayBlockingQueue<>(depth);
+    AtomicReference<RuntimeException> readerFailure = new AtomicReference<>();
+    AtomicReference<IOException> readerIoFailure = new AtomicReference<>();
+    Thread reader = new Thread(() -> {
+      try {
+        Optional<InputFile> next;
+        while ((next = pending.take()).isPresent()) {
+          InputFile inputFile = next.get();
+          List<BlameLine> result;
+          try (Watchdog.Deadline ignored = fileDeadline(session, inputFile, run)) {
+            result = session.receive(inputFile);
+          }
+          if (!receive(session, inputFile, result, queue, output, run)) {
+            break;
+          }
+        }
+      } catch (IOException e) {
+        readerIoFailure.set(e);
+      } catch (InterruptedException e) {
+        queue.cancel();
+        Thread.currentThread().interrupt();
+      } catch (RuntimeException e) {
+        readerFailure.set(e);
+      }
+    }, Thread.currentThread().getName() + "-reader");
+    reader.setDaemon(true);
+    reader.start();
+
+    IOException writerFailure = null;
     try {
-      InputStream errorStream = process.getErrorStream();
-      BufferedReader errStream = new BufferedReader(new InputStreamReader(errorStream, StandardCharsets.UTF_8));
-      int readBytesCount = errorStream.available();
-      char[] errorChars = new char[readBytesCount];
-
-      if (readBytesCount > 0) {
-        errStream.read(errorChars);
-        String errorString = new String(errorChars);
-        if (!errorString.isEmpty()) {
-          logError(errorString);
+      InputFile inputFile;
+      while ((inputFile = queue.next()) != null) {
+        if (!offer(pending, Optional.of(inputFile), reader)) {
+          queue.retry(Collections.singletonList(inputFile));
+          break;
         }
+        session.request(inputFile);
       }
     } catch (IOException e) {
-      logError("Exception thrown while getting error Stream data: %s", e);
+      // the annotator does not accept more paths, the reader is released by stopping it
+      writerFailure = e;
+      session.terminate();
+    }
+
+    offer(pending, Optional.empty(), reader);
+    reader.join();
+
+    List<Optional<InputFile>> unanswered = new ArrayList<>();
+    pending.drainTo(unanswered);
+    if (readerIoFailure.get() != null || readerFailure.get() != null || writerFailure != null) {
+      List<InputFile> retried = new ArrayList<>();
+      unanswered.forEach(file -> file.ifPresent(retried::add));
+      queue.retry(retried);
     }
+
+    if (readerIoFailure.get() != null) {
+      throw readerIoFailure.get();
+    }
+    if (readerFailure.get() != null) {
+      throw readerFailure.get();
+    }
+    if (writerFailure != null) {
+      throw writerFailure;
+    }
+  }
+
+  private static <T> boolean offer(BlockingQueue<T> queue, T element, Thread consumer) throws InterruptedException {
+    while (!queue.offer(element, 100, TimeUnit.MILLISECONDS)) {
+      if (!consumer.isAlive()) {
+        return false;
+      }
+    }
+    return true;
   }
 
-  private static File extractExecutable(TempFolder temp) {
+  /**
+   * Passes the answer of the annotator to the scanner.
+   *
+   * @return {@code false} if the annotator is not able to process further files
+   */
+  private static boolean receive(AnnotatorSession session, InputFile inputFile, @Nullable List<BlameLine> result,
+    FileQueue queue, BlameOutput output, BlameRun run) {
+    if (result == null) {
+      if (session.isAborted()) {
+        queue.cancel();
+        return false;
+      }
+
+      return true;
+    }
+
+    run.durations.put(AnnotatorSession.pathOf(inputFile), TimeUnit.NANOSECONDS.toMillis(session.lastLatencyNanos()), result.size());
+    output.blameResult(inputFile, result);
+    return true;
+  }
+
+  /**
+   * Uses the annotator installed in the user cache, or extracts it to a temporary file if the cache is not usable.
+   */
+  private static File installExecutable(TfsConfiguration configuration, TempFolder temp) {
+    URL resource = Objects.requireNonNull(TfsBlameCommand.class.getResource("/" + AnnotatorInstaller.EXECUTABLE_NAME));
+    try {
+      return AnnotatorInstaller.install(resource, configuration.userCacheDirectory()).toFile();
+    } catch (IOException e) {
+      LOG.warning("Unable to install the annotator into the user cache, extracting it temporarily: %s", e.getMessage());
+    }
+
     File executable = temp.newFile("SonarTfsAnnotate", ".exe");
     try {
-      URL resource = TfsBlameCommand.class.getResource("/SonarTfsAnnotate.exe");
-      Files.write(Resources.toByteArray(Objects.requireNonNull(resource)), executable);
+      Files.write(Resources.toByteArray(resource), executable);
     } catch (IOException e) {
       throw new IllegalStateException("Unable to extract SonarTfsAnnotate.exe", e);
     }
     return executable;
   }
+
+  /**
+   * Hands out the files to blame to one or more annotator processes, until the budget of the blame is used up.
+   */
+  private static final class FileQueue {
+
+    private final Iterator<InputFile> files;
+    private final BlameRun run;
+    private final Deque<InputFile> retried = new ArrayDeque<>();
+    private final AtomicBoolean cancelled = new AtomicBoolean();
+
+    FileQueue(Iterator<InputFile> files, BlameRun run) {
+      this.files = files;
+      this.run = run;
+    }
+
+    @CheckForNull
+    synchronized InputFile next() {
+      if (run.budgetUsedUp()) {
+        cancel();
+      }
+      if (cancelled.get()) {
+        return null;
+      }
+      if (!retried.isEmpty()) {
+        return retried.poll();
+      }
+      if (!files.hasNext()) {
+        return null;
+      }
+
+      return files.next();
+    }
+
+    synchronized boolean hasMore() {
+      return !cancelled.get() && !run.budgetUsedUp() && (!retried.isEmpty() || files.hasNext());
+    }
+
+    /**
+     * @return the files not handed out, including the ones to hand out again
+     */
+    synchronized List<InputFile> remaining() {
+      List<InputFile> result = new ArrayList<>(retried);
+      files.forEachRemaining(result::add);
+      return result;
+    }
+
+    /**
+     * Hands out the files again before the others, in the given order.
+     */
+    synchronized void retry(List<InputFile> inputFiles) {
+      for (int i = inputFiles.size() - 1; i >= 0; i--) {
+        retried.addFirst(inputFiles.get(i));
+      }
+    }
+
+    void cancel() {
+      cancelled.set(true);
+    }
+  }
+
+  /**
+   * State shared by the annotator processes of one {@link #blame(BlameInput, BlameOutput)} call.
+   */
+  private static final class BlameRun implements AutoCloseable {
+
+    private final ChangesetPool pool;
+    private final BlameMetrics metrics;
+    private final BlameDurations durations;
+    private final AtomicReference<EagerSession> eagerSession;
+    private final AtomicReference<AnnotatorSession> keptSession = new AtomicReference<>();
+    private final Watchdog watchdog = new Watchdog();
+    private final AtomicInteger restarts = new AtomicInteger();
+    private final AtomicInteger timedOutFiles = new AtomicInteger();
+    private final Set<InputFile> skipped = Collections.synchronizedSet(new LinkedHashSet<>());
+    private final long budgetMillis;
+    @Nullable
+    private final AccountCache accounts;
+    private final long start = System.nanoTime();
+
+    /**
+     * @param budgetMillis the time the blame may take, not positive if unlimited
+     * @param accounts the accounts to preload into the annotators, {@code null} if the cache is disabled
+     */
+    BlameRun(BlameDurations durations, @Nullable EagerSession eagerSession, long budgetMillis, @Nullable AccountCache accounts) {
+      this.durations = durations;
+      this.budgetMillis = budgetMillis;
+      this.accounts = accounts;
+      this.eagerSession = new AtomicReference<>(eagerSession);
+      this.pool = eagerSession != null ? eagerSession.pool() : new ChangesetPool();
+      this.metrics = eagerSession != null ? eagerSession.metrics() : new BlameMetrics();
+    }
+
+    /**
+     * @return the annotator kept by {@link #keep(AnnotatorSession)} or else the one started in advance, for the
+     * first session only, or {@code null} if there is none or it is not usable
+     */
+    @CheckForNull
+    AnnotatorSession takeStartedSession(long timeoutMillis) throws InterruptedException {
+      AnnotatorSession kept = keptSession.getAndSet(null);
+      if (kept != null) {
+        return kept;
+      }
+      EagerSession eager = eagerSession.getAndSet(null);
+      return eager != null ? eager.take(timeoutMillis) : null;
+    }
+
+    /**
+     * Keeps a connected annotator for the next session.
+     */
+    void keep(AnnotatorSession session) {
+      AnnotatorSession previous = keptSession.getAndSet(session);
+      if (previous != null) {
+        previous.close();
+      }
+    }
+
+    boolean hasBudget() {
+      return budgetMillis > 0;
+    }
+
+    boolean budgetUsedUp() {
+      return hasBudget() && budgetLeftMillis() <= 0;
+    }
+
+    private long budgetLeftMillis() {
+      return budgetMillis - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    /**
+     * @param timeoutMillis a timeout, not positive if disabled
+     * @return the timeout shortened to the end of the budget, at least one millisecond
+     */
+    long withinBudget(long timeoutMillis) {
+      if (!hasBudget()) {
+        return timeoutMillis;
+      }
+      long left = Math.max(1, budgetLeftMillis());
+      return timeoutMillis > 0 && timeoutMillis <= left ? timeoutMillis : left;
+    }
+
+    /**
+     * Records the files of the queue not annotated because the budget is used up.
+     */
+    void skip(FileQueue queue) {
+      if (budgetUsedUp()) {
+        skipped.addAll(queue.remaining());
+      }
+    }
+
+    boolean tryRestart(int maxRestarts) {
+      int current;
+      do {
+        current = restarts.get();
+        if (current >= maxRestarts) {
+          return false;
+        }
+      } while (!restarts.compareAndSet(current, current + 1));
+      return true;
+    }
+
+    @Override
+    public void close() {
+      watchdog.close();
+      AnnotatorSession kept = keptSession.getAndSet(null);
+      if (kept != null) {
+        kept.close();
+      }
+      EagerSession eager = eagerSession.getAndSet(null);
+      if (eager != null) {
+        eager.close();
+      }
+    }
+  }
+
+  @FunctionalInterface
+  private interface SessionRequest<T> {
+    T send(AnnotatorSession session) throws IOException;
+  }
+
+  private static final class AnnotatorThreadFactory implements ThreadFactory {
+
+    private final AtomicInteger counter = new AtomicInteger();
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, "tfvc-annotator-" + counter.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
 }
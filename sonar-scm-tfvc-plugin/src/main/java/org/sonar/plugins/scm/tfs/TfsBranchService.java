@@ -0,0 +1,40 @@
+/*
+ * SonarQube :: SCM :: TFVC :: Plugin
+ * Copyright (c) SonarSource SA and Microsoft Corporation.  All rights reserved.
+ *
+ * Licensed under the MIT License. See License.txt in the project root for license information.
+ */
+package org.sonar.plugins.scm.tfs;
+
+import javax.annotation.CheckForNull;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compares the working copy with other versions on the TFVC server.
+ * The target of a comparison is either the server path of a branch, e.g. {@code $/Project/Main},
+ * or the name of a shelveset, optionally followed by {@code ;owner}.
+ */
+public interface TfsBranchService {
+
+  /**
+   * Determines the files which differ between the working copy below the root directory and the target.
+   * Pending changes of the workspace are included.
+   *
+   * @return the absolute paths of the changed files, or {@code null} if the changes cannot be determined
+   */
+  @CheckForNull
+  Set<Path> changedFiles(String target, Path rootBaseDir);
+
+  /**
+   * Provides the lines of the files in the version of the target, represented by {@link LineHashes}.
+   * Files not existing in the target have no lines.
+   *
+   * @return the line hashes per file, files which cannot be provided are missing, or {@code null} if no
+   * file can be provided at all
+   */
+  @CheckForNull
+  Map<Path, long[]> baseLineHashes(String target, Path rootBaseDir, Set<Path> files);
+
+}
@@ -15,6 +15,9 @@ import org.sonar.api.config.Configuration;
 import org.sonar.api.config.PropertyDefinition;
 import org.sonar.api.resources.Qualifiers;
 
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.List;
 
 @InstantiationStrategy(InstantiationStrategy.PER_BATCH)
@@ -28,6 +31,35 @@ public class TfsConfiguration {
   private static final String PASSWORD_PROPERTY_KEY = "sonar.tfvc.password.secured";
   private static final String COLLECTIONURI_PROPERTY_KEY = "sonar.tfvc.collectionuri";
   private static final String PAT_PROPERTY_KEY = "sonar.tfvc.pat.secured";
+  private static final String WORKERS_PROPERTY_KEY = "sonar.tfvc.workers";
+  private static final String PIPELINE_DEPTH_PROPERTY_KEY = "sonar.tfvc.pipelinedepth";
+  private static final String CACHE_ENABLED_PROPERTY_KEY = "sonar.tfvc.cache.enabled";
+  private static final String CACHE_PATH_PROPERTY_KEY = "sonar.tfvc.cache.path";
+  private static final String CACHE_MAXSIZE_PROPERTY_KEY = "sonar.tfvc.cache.maxsize";
+  private static final String COMPACT_FORMAT_PROPERTY_KEY = "sonar.tfvc.compactformat";
+  private static final String DAEMON_ENABLED_PROPERTY_KEY = "sonar.tfvc.daemon.enabled";
+  private static final String DAEMON_IDLE_TIMEOUT_PROPERTY_KEY = "sonar.tfvc.daemon.idletimeout";
+  private static final String FILE_TIMEOUT_PROPERTY_KEY = "sonar.tfvc.timeout.file";
+  private static final String HANDSHAKE_TIMEOUT_PROPERTY_KEY = "sonar.tfvc.timeout.handshake";
+  private static final String RESTARTS_PROPERTY_KEY = "sonar.tfvc.restarts";
+  private static final String EAGER_START_PROPERTY_KEY = "sonar.tfvc.eagerstart";
+  private static final String ENGINE_PROPERTY_KEY = "sonar.tfvc.engine";
+  private static final String SERVER_PATH_PROPERTY_KEY = "sonar.tfvc.serverpath";
+  private static final String SHARED_CACHE_PATH_PROPERTY_KEY = "sonar.tfvc.cache.shared.path";
+  private static final String SHARED_CACHE_MAXSIZE_PROPERTY_KEY = "sonar.tfvc.cache.shared.maxsize";
+  private static final String BUDGET_PROPERTY_KEY = "sonar.tfvc.budget";
+  private static final String ACCOUNTS_TTL_PROPERTY_KEY = "sonar.tfvc.accounts.ttl";
+  private static final String WORKSPACES_PROPERTY_KEY = "sonar.tfvc.workspaces";
+  static final String ANNOTATOR_ENGINE = "annotator";
+  static final String REST_ENGINE = "rest";
+  private static final String USER_HOME_PROPERTY_KEY = "sonar.userHome";
+  private static final int DEFAULT_CACHE_MAXSIZE = 64;
+  private static final int DEFAULT_SHARED_CACHE_MAXSIZE = 512;
+  private static final int DEFAULT_DAEMON_IDLE_TIMEOUT = 600;
+  private static final int DEFAULT_FILE_TIMEOUT = 300;
+  private static final int DEFAULT_HANDSHAKE_TIMEOUT = 120;
+  private static final int DEFAULT_RESTARTS = 3;
+  private static final int DEFAULT_ACCOUNTS_TTL = 0;
   private final Configuration settings;
 
   public TfsConfiguration(Configuration settings) {
@@ -71,6 +103,194 @@ public class TfsConfiguration {
         .category(CoreProperties.CATEGORY_SCM)
         .subCategory(CATEGORY)
         .index(3)
+        .build(),
+      PropertyDefinition.builder(WORKERS_PROPERTY_KEY)
+        .name("Annotator processes")
+        .description("Number of annotator processes blaming files in parallel")
+        .type(PropertyType.INTEGER)
+        .defaultValue("1")
+        .onQualifiers(Qualifiers.PROJECT)
+        .category(CoreProperties.CATEGORY_SCM)
+        .subCategory(CATEGORY)
+        .index(4)
+        .build(),
+      PropertyDefinition.builder(PIPELINE_DEPTH_PROPERTY_KEY)
+        .name("Pipeline depth")
+        .description("Number of paths sent to an annotator process ahead of its answers, 1 disables pipelining")
+        .type(PropertyType.INTEGER)
+        .defaultValue("1")
+        .onQualifiers(Qualifiers.PROJECT)
+        .category(CoreProperties.CATEGORY_SCM)
+        .subCategory(CATEGORY)
+        .index(5)
+        .build(),
+      PropertyDefinition.builder(CACHE_ENABLED_PROPERTY_KEY)
+        .name("Blame cache")
+        .description("Reuse the blame information of files not changed since the previous analysis")
+        .type(PropertyType.BOOLEAN)
+        .defaultValue("false")
+        .onQualifiers(Qualifiers.PROJECT)
+        .category(CoreProperties.CATEGORY_SCM)
+        .subCategory(CATEGORY)
+        .index(6)
+        .build(),
+      PropertyDefinition.builder(CACHE_PATH_PROPERTY_KEY)
+        .name("Blame cache file")
+        .description("Location of the blame cache, the default is a file in the working directory of the scanner")
+        .type(PropertyType.STRING)
+        .onQualifiers(Qualifiers.PROJECT)
+        .category(CoreProperties.CATEGORY_SCM)
+        .subCategory(CATEGORY)
+        .index(7)
+        .build(),
+      PropertyDefinition.builder(CACHE_MAXSIZE_PROPERTY_KEY)
+        .name("Blame cache size")
+        .description("Maximum size of the blame cache in MB, the least recently used files are evicted")
+        .type(PropertyType.INTEGER)
+        .defaultValue(Integer.toString(DEFAULT_CACHE_MAXSIZE))
+        .onQualifiers(Qualifiers.PROJECT)
+        .category(CoreProperties.CATEGORY_SCM)
+        .subCategory(CATEGORY)
+        .index(8)
+        .build(),
+      PropertyDefinition.builder(COMPACT_FORMAT_PROPERTY_KEY)
+        .name("Compact output format")
+        .description("Request the compact output format from the annotator, older annotators fall back to the text format")
+        .type(PropertyType.BOOLEAN)
+        .defaultValue("false")
+        .onQualifiers(Qualifiers.PROJECT)
+        .category(CoreProperties.CATEGORY_SCM)
+        .subCategory(CATEGORY)
+        .index(9)
+        .build(),
+      PropertyDefinition.builder(DAEMON_ENABLED_PROPERTY_KEY)
+        .name("Annotator daemon")
+        .description("Connect to a long-lived annotator shared by the analyses using the same collection and credentials, starting it if needed")
+        .type(PropertyType.BOOLEAN)
+        .defaultValue("false")
+        .onQualifiers(Qualifiers.PROJECT)
+        .category(CoreProperties.CATEGORY_SCM)
+        .subCategory(CATEGORY)
+        .index(10)
+        .build(),
+      PropertyDefinition.builder(DAEMON_IDLE_TIMEOUT_PROPERTY_KEY)
+        .name("Annotator daemon idle timeout")
+        .description("Number of seconds without any analysis after which the annotator daemon stops")
+        .type(PropertyType.INTEGER)
+        .defaultValue(Integer.toString(DEFAULT_DAEMON_IDLE_TIMEOUT))
+        .onQualifiers(Qualifiers.PROJECT)
+        .category(CoreProperties.CATEGORY_SCM)
+        .subCategory(CATEGORY)
+        .index(11)
+        .build(),
+      PropertyDefinition.builder(FILE_TIMEOUT_PROPERTY_KEY)
+        .name("File timeout")
+        .description("Number of seconds to wait for the annotation of a file before restarting the annotator, 0 waits forever")
+        .type(PropertyType.INTEGER)
+        .defaultValue(Integer.toString(DEFAULT_FILE_TIMEOUT))
+        .onQualifiers(Qualifiers.PROJECT)
+        .category(CoreProperties.CATEGORY_SCM)
+        .subCategory(CATEGORY)
+        .index(12)
+        .build(),
+      PropertyDefinition.builder(HANDSHAKE_TIMEOUT_PROPERTY_KEY)
+        .name("Connection timeout")
+        .description("Number of seconds to wait for the annotator to connect to the collection, 0 waits forever")
+        .type(PropertyType.INTEGER)
+        .defaultValue(Integer.toString(DEFAULT_HANDSHAKE_TIMEOUT))
+        .onQualifiers(Qualifiers.PROJECT)
+        .category(CoreProperties.CATEGORY_SCM)
+        .subCategory(CATEGORY)
+        .index(13)
+        .build(),
+      PropertyDefinition.builder(RESTARTS_PROPERTY_KEY)
+        .name("Annotator restarts")
+        .description("Number of times a hung or crashed annotator is restarted to annotate the remaining files")
+        .type(PropertyType.INTEGER)
+        .defaultValue(Integer.toString(DEFAULT_RESTARTS))
+        .onQualifiers(Qualifiers.PROJECT)
+        .category(CoreProperties.CATEGORY_SCM)
+        .subCategory(CATEGORY)
+        .index(14)
+        .build(),
+      PropertyDefinition.builder(EAGER_START_PROPERTY_KEY)
+        .name("Eager start")
+        .description("Start the annotator and connect to the collection when the analysis starts, while the files are indexed")
+        .type(PropertyType.BOOLEAN)
+        .defaultValue("false")
+        .onQualifiers(Qualifiers.PROJECT)
+        .category(CoreProperties.CATEGORY_SCM)
+        .subCategory(CATEGORY)
+        .index(15)
+        .build(),
+      PropertyDefinition.builder(ENGINE_PROPERTY_KEY)
+        .name("Blame engine")
+        .description("The annotator requires Windows, the REST engine queries the TFVC REST API and runs on any platform")
+        .type(PropertyType.SINGLE_SELECT_LIST)
+        .options(ANNOTATOR_ENGINE, REST_ENGINE)
+        .defaultValue(ANNOTATOR_ENGINE)
+        .onQualifiers(Qualifiers.PROJECT)
+        .category(CoreProperties.CATEGORY_SCM)
+        .subCategory(CATEGORY)
+        .index(16)
+        .build(),
+      PropertyDefinition.builder(SERVER_PATH_PROPERTY_KEY)
+        .name("Server path")
+        .description("Server path of the project base directory, e.g. $/Project/Main, required by the REST engine")
+        .type(PropertyType.STRING)
+        .onQualifiers(Qualifiers.PROJECT)
+        .category(CoreProperties.CATEGORY_SCM)
+        .subCategory(CATEGORY)
+        .index(17)
+        .build(),
+      PropertyDefinition.builder(SHARED_CACHE_PATH_PROPERTY_KEY)
+        .name("Shared blame cache directory")
+        .description("Directory of a blame cache shared by the analyses running on the machine, e.g. of several branches on a build agent, disabled if empty")
+        .type(PropertyType.STRING)
+        .onQualifiers(Qualifiers.PROJECT)
+        .category(CoreProperties.CATEGORY_SCM)
+        .subCategory(CATEGORY)
+        .index(18)
+        .build(),
+      PropertyDefinition.builder(SHARED_CACHE_MAXSIZE_PROPERTY_KEY)
+        .name("Shared blame cache size")
+        .description("Maximum size of the shared blame cache in MB, the least recently used files are evicted")
+        .type(PropertyType.INTEGER)
+        .defaultValue(Integer.toString(DEFAULT_SHARED_CACHE_MAXSIZE))
+        .onQualifiers(Qualifiers.PROJECT)
+        .category(CoreProperties.CATEGORY_SCM)
+        .subCategory(CATEGORY)
+        .index(19)
+        .build(),
+      PropertyDefinition.builder(BUDGET_PROPERTY_KEY)
+        .name("Blame budget")
+        .description("Seconds the blame may take, the most recently modified files are annotated first. 0 for no limit")
+        .type(PropertyType.INTEGER)
+        .defaultValue("0")
+        .onQualifiers(Qualifiers.PROJECT)
+        .category(CoreProperties.CATEGORY_SCM)
+        .subCategory(CATEGORY)
+        .index(20)
+        .build(),
+      PropertyDefinition.builder(ACCOUNTS_TTL_PROPERTY_KEY)
+        .name("Account cache duration")
+        .description("Hours the names and email addresses resolved for the accounts of the changesets are kept in the user cache for the next analyses, 0 to disable")
+        .type(PropertyType.INTEGER)
+        .defaultValue(Integer.toString(DEFAULT_ACCOUNTS_TTL))
+        .onQualifiers(Qualifiers.PROJECT)
+        .category(CoreProperties.CATEGORY_SCM)
+        .subCategory(CATEGORY)
+        .index(21)
+        .build(),
+      PropertyDefinition.builder(WORKSPACES_PROPERTY_KEY)
+        .name("Several workspaces")
+        .description("List the workspace mappings of the machine and annotate the files of each workspace against its own collection, older annotators fall back to the configured collection")
+        .type(PropertyType.BOOLEAN)
+        .defaultValue("false")
+        .onQualifiers(Qualifiers.PROJECT)
+        .category(CoreProperties.CATEGORY_SCM)
+        .subCategory(CATEGORY)
+        .index(22)
         .build());
   }
 
@@ -90,4 +310,113 @@ public class TfsConfiguration {
     return settings.get(PAT_PROPERTY_KEY).orElse("");
   }
 
+  public int workers() {
+    return settings.getInt(WORKERS_PROPERTY_KEY).orElse(1);
+  }
+
+  public int pipelineDepth() {
+    return settings.getInt(PIPELINE_DEPTH_PROPERTY_KEY).orElse(1);
+  }
+
+  public boolean cacheEnabled() {
+    return settings.getBoolean(CACHE_ENABLED_PROPERTY_KEY).orElse(false);
+  }
+
+  public String cachePath() {
+    return settings.get(CACHE_PATH_PROPERTY_KEY).orElse("");
+  }
+
+  public long cacheMaxSize() {
+    return settings.getInt(CACHE_MAXSIZE_PROPERTY_KEY).orElse(DEFAULT_CACHE_MAXSIZE) * 1024L * 1024L;
+  }
+
+  /**
+   * @return the encoding of the source files, as configured for the analysis
+   */
+  public Charset sourceEncoding() {
+    return settings.get(CoreProperties.ENCODING_PROPERTY).map(Charset::forName).orElse(Charset.defaultCharset());
+  }
+
+  /**
+   * @return the cache directory of the scanner, i.e. {@code sonar.userHome}, {@code SONAR_USER_HOME} or {@code ~/.sonar}
+   */
+  public Path userCacheDirectory() {
+    String userHome = settings.get(USER_HOME_PROPERTY_KEY).orElse(System.getenv("SONAR_USER_HOME"));
+    if (userHome == null || userHome.isEmpty()) {
+      return Paths.get(System.getProperty("user.home"), ".sonar", "cache");
+    }
+    return Paths.get(userHome, "cache");
+  }
+
+  public boolean compactFormat() {
+    return settings.getBoolean(COMPACT_FORMAT_PROPERTY_KEY).orElse(false);
+  }
+
+  public boolean daemonEnabled() {
+    return settings.getBoolean(DAEMON_ENABLED_PROPERTY_KEY).orElse(false);
+  }
+
+  public int daemonIdleTimeout() {
+    return settings.getInt(DAEMON_IDLE_TIMEOUT_PROPERTY_KEY).orElse(DEFAULT_DAEMON_IDLE_TIMEOUT);
+  }
+
+  /**
+   * @return the timeout in seconds for the annotation of a single file, not positive if disabled
+   */
+  public int fileTimeout() {
+    return settings.getInt(FILE_TIMEOUT_PROPERTY_KEY).orElse(DEFAULT_FILE_TIMEOUT);
+  }
+
+  /**
+   * @return the timeout in seconds for the connection of an annotator to the collection, not positive if disabled
+   */
+  public int handshakeTimeout() {
+    return settings.getInt(HANDSHAKE_TIMEOUT_PROPERTY_KEY).orElse(DEFAULT_HANDSHAKE_TIMEOUT);
+  }
+
+  public int maxRestarts() {
+    return settings.getInt(RESTARTS_PROPERTY_KEY).orElse(DEFAULT_RESTARTS);
+  }
+
+  public boolean eagerStart() {
+    return settings.getBoolean(EAGER_START_PROPERTY_KEY).orElse(false);
+  }
+
+  public boolean restEngine() {
+    return REST_ENGINE.equalsIgnoreCase(settings.get(ENGINE_PROPERTY_KEY).orElse(ANNOTATOR_ENGINE));
+  }
+
+  public String serverPath() {
+    return settings.get(SERVER_PATH_PROPERTY_KEY).orElse("");
+  }
+
+  public String sharedCachePath() {
+    return settings.get(SHARED_CACHE_PATH_PROPERTY_KEY).orElse("");
+  }
+
+  public long sharedCacheMaxSize() {
+    return settings.getInt(SHARED_CACHE_MAXSIZE_PROPERTY_KEY).orElse(DEFAULT_SHARED_CACHE_MAXSIZE) * 1024L * 1024L;
+  }
+
+  /**
+   * @return the wall-clock time in seconds the blame may take, not positive if unlimited
+   */
+  public int budget() {
+    return settings.getInt(BUDGET_PROPERTY_KEY).orElse(0);
+  }
+
+  /**
+   * @return the hours the resolved accounts are cached, not positive if the cache is disabled
+   */
+  public int accountsTtl() {
+    return settings.getInt(ACCOUNTS_TTL_PROPERTY_KEY).orElse(DEFAULT_ACCOUNTS_TTL);
+  }
+
+  /**
+   * @return whether the files are grouped by the workspace mappings the annotator lists
+   */
+  public boolean workspaces() {
+    return settings.getBoolean(WORKSPACES_PROPERTY_KEY).orElse(false);
+  }
+
 }
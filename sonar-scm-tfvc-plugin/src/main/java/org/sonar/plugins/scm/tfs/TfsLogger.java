@@ -0,0 +1,51 @@
+/*
+ * SonarQube :: SCM :: TFVC :: Plugin
+ * Copyright (c) SonarSource SA and Microsoft Corporation.  All rights reserved.
+ *
+ * Licensed under the MIT License. See License.txt in the project root for license information.
+ */
+package org.sonar.plugins.scm.tfs;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes log messages with the common prefix of this plugin.
+ */
+final class TfsLogger {
+
+  private static final String LOG_FORMAT = "{}: {}";
+  private static final String LOG_PREFIX = "SCM-TFVC";
+
+  private final Logger log;
+
+  private TfsLogger(Logger log) {
+    this.log = log;
+  }
+
+  static TfsLogger get(Class<?> type) {
+    return new TfsLogger(LoggerFactory.getLogger(type));
+  }
+
+  void info(String message, Object... arguments) {
+    log.info(LOG_FORMAT, LOG_PREFIX, String.format(message, arguments));
+  }
+
+  /**
+   * Formats the message only if debug logging is enabled.
+   */
+  void debug(String message, Object... arguments) {
+    if (log.isDebugEnabled()) {
+      log.debug(LOG_FORMAT, LOG_PREFIX, String.format(message, arguments));
+    }
+  }
+
+  void warning(String message, Object... arguments) {
+    log.warn(LOG_FORMAT, LOG_PREFIX, String.format(message, arguments));
+  }
+
+  void error(String message, Object... arguments) {
+    log.error(LOG_FORMAT, LOG_PREFIX, String.format(message, arguments));
+  }
+
+}
@@ -15,6 +15,8 @@ public class TfsPlugin implements Plugin {
     context.addExtensions(
       TfsScmProvider.class,
       TfsBlameCommand.class,
+      RestBlameCommand.class,
+      AnnotatorBranchService.class,
       TfsConfiguration.class);
 
     context.addExtensions(TfsConfiguration.getProperties());
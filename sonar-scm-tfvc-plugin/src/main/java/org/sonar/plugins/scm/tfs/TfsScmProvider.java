@@ -9,14 +9,30 @@ package org.sonar.plugins.scm.tfs;
 import org.sonar.api.batch.scm.BlameCommand;
 import org.sonar.api.batch.scm.ScmProvider;
 
+import javax.annotation.CheckForNull;
 import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
 
 public class TfsScmProvider extends ScmProvider {
 
+  private static final TfsLogger LOG = TfsLogger.get(TfsScmProvider.class);
+
   private final TfsBlameCommand blameCommand;
+  private final RestBlameCommand restBlameCommand;
+  private final TfsBranchService branchService;
+  private final TfsConfiguration configuration;
 
-  public TfsScmProvider(TfsBlameCommand blameCommand) {
+  public TfsScmProvider(TfsBlameCommand blameCommand, RestBlameCommand restBlameCommand, TfsBranchService branchService,
+    TfsConfiguration configuration) {
     this.blameCommand = blameCommand;
+    this.restBlameCommand = restBlameCommand;
+    this.branchService = branchService;
+    this.configuration = configuration;
   }
 
   @Override
@@ -29,9 +45,43 @@ public class TfsScmProvider extends ScmProvider {
     return new File(baseDir, "$tf").exists();
   }
 
+  /**
+   * @return the REST engine if configured, the annotator otherwise
+   */
   @Override
   public BlameCommand blameCommand() {
-    return this.blameCommand;
+    return configuration.restEngine() ? this.restBlameCommand : this.blameCommand;
+  }
+
+  @CheckForNull
+  @Override
+  public Set<Path> branchChangedFiles(String targetBranchName, Path rootBaseDir) {
+    return branchService.changedFiles(targetBranchName, rootBaseDir);
+  }
+
+  /**
+   * Compares the lines of the changed files with their version in the target. The base content is fetched
+   * once per file, both versions are only kept as line hashes.
+   */
+  @CheckForNull
+  @Override
+  public Map<Path, Set<Integer>> branchChangedLines(String targetBranchName, Path rootBaseDir, Set<Path> changedFiles) {
+    Map<Path, long[]> baseLines = branchService.baseLineHashes(targetBranchName, rootBaseDir, changedFiles);
+    if (baseLines == null) {
+      return null;
+    }
+
+    Charset charset = configuration.sourceEncoding();
+    LineDiff diff = new LineDiff();
+    Map<Path, Set<Integer>> result = new HashMap<>();
+    for (Map.Entry<Path, long[]> entry : baseLines.entrySet()) {
+      try {
+        result.put(entry.getKey(), diff.addedLines(entry.getValue(), LineHashes.of(entry.getKey(), charset)));
+      } catch (IOException e) {
+        LOG.debug("Unable to read %s: %s", entry.getKey(), e.getMessage());
+      }
+    }
+    return result;
   }
 
 }
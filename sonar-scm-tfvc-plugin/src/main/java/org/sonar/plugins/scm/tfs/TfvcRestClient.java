@@ -0,0 +1,291 @@
+/*
+ * SonarQube :: SCM :: TFVC :: Plugin
+ * Copyright (c) SonarSource SA and Microsoft Corporation.  All rights reserved.
+ *
+ * Licensed under the MIT License. See License.txt in the project root for license information.
+ */
+package org.sonar.plugins.scm.tfs;
+
+import com.google.common.io.ByteStreams;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Queries the TFVC REST API of Azure DevOps Services or Server: the changesets of an item, newest first, and the
+ * content of an item at a changeset. The connections are kept alive and reused by the JDK between requests, the
+ * client is used concurrently by all threads of a blame.
+ */
+final class TfvcRestClient {
+
+  static final String API_VERSION = "5.0";
+  private static final int CONNECT_TIMEOUT_MS = 30_000;
+
+  private final String collectionUri;
+  @Nullable
+  private final String authorization;
+  private final int readTimeoutMillis;
+  private final LongAdder requests = new LongAdder();
+  private final LongAdder bytesRead = new LongAdder();
+
+  TfvcRestClient(String collectionUri, @Nullable String authorization, int readTimeoutMillis) {
+    this.collectionUri = collectionUri.endsWith("/") ? collectionUri.substring(0, collectionUri.length() - 1) : collectionUri;
+    this.authorization = authorization;
+    this.readTimeoutMillis = readTimeoutMillis;
+  }
+
+  /**
+   * Authenticates with the PAT if configured, with the username and password otherwise, or relies on the
+   * default authentication of the JDK if none is set.
+   */
+  static TfvcRestClient of(TfsConfiguration configuration) {
+    String credentials = null;
+    if (!configuration.pat().isEmpty()) {
+      credentials = ":" + configuration.pat();
+    } else if (!configuration.username().isEmpty()) {
+      credentials = configuration.username() + ":" + configuration.password();
+    }
+    String authorization = credentials != null
+      ? ("Basic " + Base64.getEncoder().encodeToString(credentials.getBytes(StandardCharsets.UTF_8)))
+      : null;
+    return new TfvcRestClient(configuration.collectionUri(), authorization, Math.max(0, configuration.fileTimeout()) * 1000);
+  }
+
+  /**
+   * @return up to {@code top} changesets of the item after skipping the {@code skip} newest ones, newest first
+   */
+  List<Changeset> history(String serverPath, int skip, int top) throws IOException {
+    String query = "searchCriteria.itemPath=" + encode(serverPath)
+      + "&searchCriteria.followRenames=true&$skip=" + skip + "&$top=" + top;
+    HttpURLConnection connection = open("_apis/tfvc/changesets?" + query, "application/json");
+    Object answer;
+    try (Reader reader = new InputStreamReader(read(connection), StandardCharsets.UTF_8)) {
+      answer = JsonParser.parse(reader);
+    }
+
+    List<Changeset> result = new ArrayList<>();
+    for (Object value : list(property(answer, "value"))) {
+      Object id = property(value, "changesetId");
+      Object createdDate = property(value, "createdDate");
+      if (!(id instanceof Long) || !(createdDate instanceof String)) {
+        throw new IOException("Unexpected changeset in the history of " + serverPath);
+      }
+      try {
+        result.add(new Changeset((Long) id, author(property(value, "author")),
+          OffsetDateTime.parse((String) createdDate).toInstant().toEpochMilli()));
+      } catch (DateTimeParseException e) {
+        throw new IOException("Unexpected date of changeset " + id + ": " + createdDate, e);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Lists the files under the server path at any depth with the changeset of their last change, in one request.
+   */
+  List<Item> items(String scopePath) throws IOException {
+    String query = "scopePath=" + encode(scopePath) + "&recursionLevel=Full";
+    HttpURLConnection connection = open("_apis/tfvc/items?" + query, "application/json");
+    Object answer;
+    try (Reader reader = new InputStreamReader(read(connection), StandardCharsets.UTF_8)) {
+      answer = JsonParser.parse(reader);
+    }
+
+    List<Item> result = new ArrayList<>();
+    for (Object value : list(property(answer, "value"))) {
+      if (Boolean.TRUE.equals(property(value, "isFolder"))) {
+        continue;
+      }
+      Object path = property(value, "path");
+      Object version = property(value, "version");
+      if (!(path instanceof String) || !(version instanceof Long)) {
+        throw new IOException("Unexpected item under " + scopePath);
+      }
+      result.add(new Item((String) path, (Long) version));
+    }
+    return result;
+  }
+
+  /**
+   * @return the line hashes of the item at the changeset
+   */
+  long[] content(String serverPath, long changeset, Charset charset) throws IOException {
+    String query = "path=" + encode(serverPath)
+      + "&versionDescriptor.versionType=changeset&versionDescriptor.version=" + changeset + "&download=true";
+    HttpURLConnection connection = open("_apis/tfvc/items?" + query, "application/octet-stream");
+    try (Reader reader = new InputStreamReader(read(connection), charset)) {
+      return LineHashes.of(reader);
+    }
+  }
+
+  long requests() {
+    return requests.sum();
+  }
+
+  long bytesRead() {
+    return bytesRead.sum();
+  }
+
+  private HttpURLConnection open(String resource, String accept) throws IOException {
+    URL url = new URL(collectionUri + "/" + resource + "&api-version=" + API_VERSION);
+    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+    connection.setReadTimeout(readTimeoutMillis);
+    connection.setRequestProperty("Accept", accept);
+    if (authorization != null) {
+      connection.setRequestProperty("Authorization", authorization);
+    }
+    requests.increment();
+    return connection;
+  }
+
+  private InputStream read(HttpURLConnection connection) throws IOException {
+    int status = connection.getResponseCode();
+    if (status != HttpURLConnection.HTTP_OK) {
+      // reads the error to keep the connection alive for the next requests
+      InputStream error = connection.getErrorStream();
+      if (error != null) {
+        try (InputStream ignored = error) {
+          ByteStreams.exhaust(error);
+        }
+      }
+      throw new HttpStatusException(status, connection.getURL());
+    }
+
+    InputStream stream = connection.getInputStream();
+    return new InputStream() {
+      @Override
+      public int read() throws IOException {
+        int b = stream.read();
+        if (b >= 0) {
+          bytesRead.increment();
+        }
+        return b;
+      }
+
+      @Override
+      public int read(byte[] buffer, int offset, int length) throws IOException {
+        int count = stream.read(buffer, offset, length);
+        if (count > 0) {
+          bytesRead.add(count);
+        }
+        return count;
+      }
+
+      @Override
+      public void close() throws IOException {
+        stream.close();
+      }
+    };
+  }
+
+  private static String author(@Nullable Object identity) {
+    Object name = property(identity, "uniqueName");
+    if (!(name instanceof String) || ((String) name).isEmpty()) {
+      name = property(identity, "displayName");
+    }
+    return name instanceof String ? (String) name : "";
+  }
+
+  @CheckForNull
+  private static Object property(@Nullable Object object, String name) {
+    return object instanceof Map ? ((Map<?, ?>) object).get(name) : null;
+  }
+
+  private static List<?> list(@Nullable Object value) {
+    return value instanceof List ? (List<?>) value : Collections.emptyList();
+  }
+
+  private static String encode(String value) throws UnsupportedEncodingException {
+    return URLEncoder.encode(value, StandardCharsets.UTF_8.name());
+  }
+
+  /**
+   * A changeset of the history of an item.
+   */
+  static final class Changeset {
+
+    private final long id;
+    private final String author;
+    private final long date;
+
+    Changeset(long id, String author, long date) {
+      this.id = id;
+      this.author = author;
+      this.date = date;
+    }
+
+    long id() {
+      return id;
+    }
+
+    String author() {
+      return author;
+    }
+
+    long date() {
+      return date;
+    }
+  }
+
+  /**
+   * A file of the server with the changeset of its last change.
+   */
+  static final class Item {
+
+    private final String path;
+    private final long version;
+
+    Item(String path, long version) {
+      this.path = path;
+      this.version = version;
+    }
+
+    String path() {
+      return path;
+    }
+
+    long version() {
+      return version;
+    }
+  }
+
+  /**
+   * The server answered with an error status.
+   */
+  static final class HttpStatusException extends IOException {
+
+    private final int status;
+
+    HttpStatusException(int status, URL url) {
+      super("HTTP " + status + " from " + url);
+      this.status = status;
+    }
+
+    int status() {
+      return status;
+    }
+
+    boolean isUnauthorized() {
+      return status == HttpURLConnection.HTTP_UNAUTHORIZED || status == HttpURLConnection.HTTP_FORBIDDEN;
+    }
+  }
+}
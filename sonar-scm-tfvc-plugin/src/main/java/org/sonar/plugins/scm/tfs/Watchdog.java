@@ -0,0 +1,57 @@
+/*
+ * SonarQube :: SCM :: TFVC :: Plugin
+ * Copyright (c) SonarSource SA and Microsoft Corporation.  All rights reserved.
+ *
+ * Licensed under the MIT License. See License.txt in the project root for license information.
+ */
+package org.sonar.plugins.scm.tfs;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs an action, typically killing an annotator, when a deadline passes before the guarded call completes.
+ * The reads of the annotator output cannot be interrupted, killing the process is what releases them.
+ */
+final class Watchdog implements AutoCloseable {
+
+  private static final Deadline NONE = () -> {
+  };
+
+  private final ScheduledThreadPoolExecutor executor;
+
+  Watchdog() {
+    executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+      Thread thread = new Thread(runnable, "tfvc-watchdog");
+      thread.setDaemon(true);
+      return thread;
+    });
+    executor.setRemoveOnCancelPolicy(true);
+  }
+
+  /**
+   * @param timeoutMillis the delay after which the action runs, not positive to disable the deadline
+   * @return the deadline, to be closed once the guarded call completed
+   */
+  Deadline arm(long timeoutMillis, Runnable action) {
+    if (timeoutMillis <= 0) {
+      return NONE;
+    }
+
+    ScheduledFuture<?> future = executor.schedule(action, timeoutMillis, TimeUnit.MILLISECONDS);
+    return () -> future.cancel(false);
+  }
+
+  @Override
+  public void close() {
+    executor.shutdownNow();
+  }
+
+  @FunctionalInterface
+  interface Deadline extends AutoCloseable {
+
+    @Override
+    void close();
+  }
+}
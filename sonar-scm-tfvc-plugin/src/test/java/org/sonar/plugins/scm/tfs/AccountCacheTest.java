@@ -0,0 +1,106 @@
+/*
+ * SonarQube :: SCM :: TFVC :: Plugin
+ * Copyright (c) SonarSource SA and Microsoft Corporation.  All rights reserved.
+ *
+ * Licensed under the MIT License. See License.txt in the project root for license information.
+ */
+package org.sonar.plugins.scm.tfs;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class AccountCacheTest {
+
+  private static final String COLLECTION_URI = "https://localtfs/tfs/DefaultCollection/";
+  private static final long TTL = TimeUnit.HOURS.toMillis(24);
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  @Test
+  public void load_missingFile_empty() {
+    assertThat(AccountCache.load(location(), TTL).accounts()).isEmpty();
+  }
+
+  @Test
+  public void load_saved_accountsReturned() throws IOException {
+    AccountCache cache = AccountCache.load(location(), TTL);
+    long now = System.currentTimeMillis();
+    cache.put(new AccountCache.Account(COLLECTION_URI, "SND\\john", "john@example.com", now));
+    cache.put(new AccountCache.Account(COLLECTION_URI, "SND\\jane", "SND\\jane", now));
+    cache.save();
+
+    AccountCache loaded = AccountCache.load(location(), TTL);
+
+    assertThat(loaded.accounts()).hasSize(2);
+    AccountCache.Account john = loaded.accounts().get(0);
+    assertThat(john.collectionUri()).isEqualTo(COLLECTION_URI);
+    assertThat(john.accountName()).isEqualTo("SND\\john");
+    assertThat(john.name()).isEqualTo("john@example.com");
+    assertThat(john.resolvedMillis()).isEqualTo(now);
+    assertThat(temp.getRoot().list()).containsOnly(AccountCache.FILE_NAME);
+  }
+
+  @Test
+  public void put_expiredOrOlderResolution_ignored() {
+    AccountCache cache = AccountCache.load(location(), TTL);
+    long now = System.currentTimeMillis();
+    cache.put(new AccountCache.Account(COLLECTION_URI, "SND\\john", "john@example.com", now));
+
+    cache.put(new AccountCache.Account(COLLECTION_URI, "SND\\john", "SND\\john", now - 1));
+    cache.put(new AccountCache.Account(COLLECTION_URI, "SND\\jane", "jane@example.com", now - TTL));
+
+    assertThat(cache.accounts()).hasSize(1);
+    assertThat(cache.accounts().get(0).name()).isEqualTo("john@example.com");
+    assertThat(cache.stored()).isEqualTo(1);
+  }
+
+  @Test
+  public void load_expiredAccounts_dropped() throws IOException {
+    AccountCache cache = AccountCache.load(location(), TTL);
+    cache.put(new AccountCache.Account(COLLECTION_URI, "SND\\john", "john@example.com", System.currentTimeMillis() - 1000));
+    cache.save();
+
+    assertThat(AccountCache.load(location(), 500).accounts()).isEmpty();
+  }
+
+  @Test
+  public void save_accountsStoredByOtherAnalysis_kept() throws IOException {
+    long now = System.currentTimeMillis();
+    AccountCache first = AccountCache.load(location(), TTL);
+    AccountCache second = AccountCache.load(location(), TTL);
+    first.put(new AccountCache.Account(COLLECTION_URI, "SND\\john", "john@example.com", now));
+    first.save();
+
+    second.put(new AccountCache.Account(COLLECTION_URI, "SND\\jane", "jane@example.com", now));
+    second.save();
+
+    assertThat(AccountCache.load(location(), TTL).accounts()).hasSize(2);
+  }
+
+  @Test
+  public void save_nothingStored_fileNotWritten() throws IOException {
+    AccountCache.load(location(), TTL).save();
+
+    assertThat(location().toFile()).doesNotExist();
+  }
+
+  @Test
+  public void load_damagedFile_empty() throws IOException {
+    Files.write(location(), "damaged".getBytes(StandardCharsets.UTF_8));
+
+    assertThat(AccountCache.load(location(), TTL).accounts()).isEmpty();
+  }
+
+  private Path location() {
+    return temp.getRoot().toPath().resolve(AccountCache.FILE_NAME);
+  }
+}
@@ -0,0 +1,156 @@
+/*
+ * SonarQube :: SCM :: TFVC :: Plugin
+ * Copyright (c) SonarSource SA and Microsoft Corporation.  All rights reserved.
+ *
+ * Licensed under the MIT License. See License.txt in the project root for license information.
+ */
+package org.sonar.plugins.scm.tfs;
+
+import com.google.common.base.Strings;
+import java.io.IOException;
+import java.io.StringReader;
+import org.junit.Test;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class AnnotationReaderTest {
+
+  private final AnnotationReader.ParsedLine line = new AnnotationReader.ParsedLine();
+
+  @Test
+  public void readBlameLine_validLine_fieldsDecoded() throws IOException {
+    AnnotationReader reader = reader("26274\tSND\\DinSoft_cp\t1430736199000\thello,\n", 8192);
+
+    assertThat(reader.readBlameLine(line)).isTrue();
+    assertThat(line.changeset()).isEqualTo(26274L);
+    assertThat(line.author()).isEqualTo("SND\\DinSoft_cp");
+    assertThat(line.date()).isEqualTo(1430736199000L);
+    assertThat(reader.readLine()).isNull();
+  }
+
+  @Test
+  public void readBlameLine_blanksAroundFields_trimmed() throws IOException {
+    AnnotationReader reader = reader(" 1 \t  John Doe \t 2 \t", 8192);
+
+    assertThat(reader.readBlameLine(line)).isTrue();
+    assertThat(line.changeset()).isEqualTo(1L);
+    assertThat(line.author()).isEqualTo("John Doe");
+    assertThat(line.date()).isEqualTo(2L);
+  }
+
+  @Test
+  public void readBlameLine_withoutContent_accepted() throws IOException {
+    AnnotationReader reader = reader("1\ta\t2\r\n3\tb\t4", 8192);
+
+    assertThat(reader.readBlameLine(line)).isTrue();
+    assertThat(line.date()).isEqualTo(2L);
+    assertThat(reader.readBlameLine(line)).isTrue();
+    assertThat(line.changeset()).isEqualTo(3L);
+    assertThat(line.author()).isEqualTo("b");
+    assertThat(line.date()).isEqualTo(4L);
+  }
+
+  @Test
+  public void readBlameLine_contentWithTabsAndLongerThanBuffer_skipped() throws IOException {
+    String content = Strings.repeat("x\ty ", 100);
+    AnnotationReader reader = reader("1\ta\t2\t" + content + "\r\n3\tb\t4\t" + content + "\nnext", 16);
+
+    assertThat(reader.readBlameLine(line)).isTrue();
+    assertThat(reader.readBlameLine(line)).isTrue();
+    assertThat(line.changeset()).isEqualTo(3L);
+    assertThat(reader.readLine()).isEqualTo("next");
+  }
+
+  @Test
+  public void readBlameLine_longAuthor_bufferGrows() throws IOException {
+    String author = Strings.repeat("a", 100);
+    AnnotationReader reader = reader("1\t" + author + "\t2\tcontent\n", 8);
+
+    assertThat(reader.readBlameLine(line)).isTrue();
+    assertThat(line.author()).isEqualTo(author);
+  }
+
+  @Test
+  public void readBlameLine_malformedLines_rejectedWithText() throws IOException {
+    AnnotationReader reader = reader("hello world!\n1\ta\n1\t\t2\n1\ta\tb\nx1\ta\t2\n1\ta\t2\n", 4);
+
+    assertThat(reader.readBlameLine(line)).isFalse();
+    assertThat(reader.invalidLine()).isEqualTo("hello world!");
+    assertThat(reader.readBlameLine(line)).isFalse();
+    assertThat(reader.invalidLine()).isEqualTo("1\ta");
+    assertThat(reader.readBlameLine(line)).isFalse();
+    assertThat(reader.invalidLine()).isEqualTo("1\t\t2");
+    assertThat(reader.readBlameLine(line)).isFalse();
+    assertThat(reader.invalidLine()).isEqualTo("1\ta\tb");
+    assertThat(reader.readBlameLine(line)).isFalse();
+    assertThat(reader.invalidLine()).isEqualTo("x1\ta\t2");
+    assertThat(reader.readBlameLine(line)).isTrue();
+  }
+
+  @Test
+  public void readBlameLine_endOfStream_rejected() throws IOException {
+    AnnotationReader reader = reader("", 8192);
+
+    assertThat(reader.readBlameLine(line)).isFalse();
+    assertThat(reader.invalidLine()).isEqualTo("null");
+  }
+
+  @Test
+  public void readLine_mixedLineTerminators_split() throws IOException {
+    AnnotationReader reader = reader("a\r\nb\rc\n\nd", 2);
+
+    assertThat(reader.readLine()).isEqualTo("a");
+    assertThat(reader.readLine()).isEqualTo("b");
+    assertThat(reader.readLine()).isEqualTo("c");
+    assertThat(reader.readLine()).isEqualTo("");
+    assertThat(reader.readLine()).isEqualTo("d");
+    assertThat(reader.readLine()).isNull();
+  }
+
+  @Test
+  public void readIntegers_separatedValues_decoded() throws IOException {
+    AnnotationReader reader = reader("0 12\t345 6\r\n\r\nnext", 4);
+    int[] values = new int[4];
+
+    assertThat(reader.readIntegers(values)).isEqualTo(4);
+    assertThat(values).isEqualTo(new int[] {0, 12, 345, 6});
+    assertThat(reader.readIntegers(values)).isEqualTo(0);
+    assertThat(reader.readLine()).isEqualTo("next");
+  }
+
+  @Test
+  public void readIntegers_malformedLine_rejected() throws IOException {
+    AnnotationReader reader = reader("1 x\n1 2 3\n99999999999\n", 8192);
+    int[] values = new int[2];
+
+    assertThat(reader.readIntegers(values)).isEqualTo(-1);
+    assertThat(reader.invalidLine()).isEqualTo("1 x");
+    assertThat(reader.readIntegers(values)).isEqualTo(-1);
+    assertThat(reader.invalidLine()).isEqualTo("1 2 3");
+    assertThat(reader.readIntegers(values)).isEqualTo(-1);
+    assertThat(reader.invalidLine()).isEqualTo("99999999999");
+    assertThat(reader.readIntegers(values)).isEqualTo(-1);
+    assertThat(reader.invalidLine()).isEqualTo("null");
+  }
+
+  @Test
+  public void readLineHash_lineTerminatorsIgnored() throws IOException {
+    AnnotationReader reader = reader("abc\r\n\nabc\rxyz", 2);
+    long[] hashes = new long[4];
+
+    assertThat(reader.readLineHash(hashes, 0)).isTrue();
+    assertThat(reader.readLineHash(hashes, 1)).isTrue();
+    assertThat(reader.readLineHash(hashes, 2)).isTrue();
+    assertThat(reader.readLineHash(hashes, 3)).isTrue();
+    assertThat(reader.readLineHash(hashes, 0)).isFalse();
+
+    assertThat(hashes[0]).isEqualTo(hashes[2]);
+    assertThat(hashes[1]).isEqualTo(LineHashes.hash(new char[0], 0, 0));
+    assertThat(hashes[3]).isEqualTo(LineHashes.hash("xyz".toCharArray(), 0, 3));
+    assertThat(hashes[0]).isNotEqualTo(hashes[3]);
+  }
+
+  private static AnnotationReader reader(String text, int bufferSize) {
+    return new AnnotationReader(new StringReader(text), bufferSize);
+  }
+}
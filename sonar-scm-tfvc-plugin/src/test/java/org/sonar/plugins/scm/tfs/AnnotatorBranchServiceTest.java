@@ -0,0 +1,148 @@
+/*
+ * SonarQube :: SCM :: TFVC :: Plugin
+ * Copyright (c) SonarSource SA and Microsoft Corporation.  All rights reserved.
+ *
+ * Licensed under the MIT License. See License.txt in the project root for license information.
+ */
+package org.sonar.plugins.scm.tfs;
+
+import ch.qos.logback.classic.Logger;
+import java.io.File;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.LoggerFactory;
+import org.sonar.plugins.scm.tfs.helpers.FakeAnnotator;
+import org.sonar.plugins.scm.tfs.helpers.TestAppender;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class AnnotatorBranchServiceTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  private final TfsConfiguration conf = mock(TfsConfiguration.class);
+
+  private TestAppender appender;
+
+  @Before
+  public void setup() {
+    appender = new TestAppender();
+    getRootLogger().addAppender(appender);
+
+    when(conf.collectionUri()).thenReturn("https://localtfs/tfs");
+  }
+
+  @After
+  public void tearDown() {
+    getRootLogger().detachAppender(appender);
+  }
+
+  @Test(timeout = 5000)
+  public void changedFiles_knownTarget_pathsResolvedAgainstRoot() {
+    Path root = temp.getRoot().toPath();
+    FakeAnnotator annotator = new FakeAnnotator()
+        .respondChanges("$/Project/Main", Arrays.asList(root.resolve("src/A.java").toString(), "src/B.java"));
+    TfsBranchService service = new AnnotatorBranchService(conf, new TfsBlameCommand(conf, new File("fake"), annotator::launch));
+
+    assertThat(service.changedFiles("$/Project/Main", root)).containsOnly(root.resolve("src/A.java"), root.resolve("src/B.java"));
+    assertThat(annotator.launches()).isEqualTo(1);
+    assertThat(annotator.requestedPaths()).isEmpty();
+    assertThat(appender.getWarningEvents()).isEmpty();
+  }
+
+  @Test(timeout = 5000)
+  public void changedFiles_nothingChanged_emptySet() {
+    FakeAnnotator annotator = new FakeAnnotator().respondChanges("shelveset;owner", Arrays.asList());
+    TfsBranchService service = new AnnotatorBranchService(conf, new TfsBlameCommand(conf, new File("fake"), annotator::launch));
+
+    assertThat(service.changedFiles("shelveset;owner", temp.getRoot().toPath())).isEmpty();
+  }
+
+  @Test(timeout = 5000)
+  public void changedFiles_unknownTarget_nullAndWarningLogged() {
+    FakeAnnotator annotator = new FakeAnnotator();
+    TfsBranchService service = new AnnotatorBranchService(conf, new TfsBlameCommand(conf, new File("fake"), annotator::launch));
+
+    assertThat(service.changedFiles("$/Project/Unknown", temp.getRoot().toPath())).isNull();
+    assertThat(appender.getWarningEvents()).containsExactly(
+        "SCM-TFVC: Unable to determine the changed files: Unable to compare with $/Project/Unknown: The target does not exist.");
+  }
+
+  @Test(timeout = 5000)
+  public void changedFiles_annotatorStopped_nullAndWarningLogged() {
+    FakeAnnotator annotator = new FakeAnnotator().crash("$/Project/Main");
+    TfsBranchService service = new AnnotatorBranchService(conf, new TfsBlameCommand(conf, new File("fake"), annotator::launch));
+
+    assertThat(service.changedFiles("$/Project/Main", temp.getRoot().toPath())).isNull();
+    assertThat(appender.getWarningEvents()).containsExactly(
+        "SCM-TFVC: Unable to determine the files changed against $/Project/Main: The annotator stopped while listing the changed files");
+  }
+
+  @Test(timeout = 5000)
+  public void changedFiles_invalidHeader_nullAndWarningLogged() {
+    FakeAnnotator annotator = new FakeAnnotator().garble("$/Project/Main");
+    TfsBranchService service = new AnnotatorBranchService(conf, new TfsBlameCommand(conf, new File("fake"), annotator::launch));
+
+    assertThat(service.changedFiles("$/Project/Main", temp.getRoot().toPath())).isNull();
+    assertThat(appender.getWarningEvents()).containsExactly("SCM-TFVC: Unable to determine the files changed against "
+        + "$/Project/Main: Invalid number of changed files from the TFVC annotate command: garbled");
+  }
+
+  @Test(timeout = 5000)
+  public void changedFiles_annotatorHanging_killedAfterTimeout() {
+    when(conf.fileTimeout()).thenReturn(1);
+    FakeAnnotator annotator = new FakeAnnotator().hang("$/Project/Main");
+    TfsBranchService service = new AnnotatorBranchService(conf, new TfsBlameCommand(conf, new File("fake"), annotator::launch));
+
+    assertThat(service.changedFiles("$/Project/Main", temp.getRoot().toPath())).isNull();
+    assertThat(appender.getWarningEvents()).containsExactly("SCM-TFVC: Unable to determine the files changed against "
+        + "$/Project/Main: The TFVC annotate command did not answer within the timeout on the changed files");
+  }
+
+  @Test(timeout = 5000)
+  public void baseLineHashes_oneSessionForAllFiles() throws Exception {
+    Path root = temp.getRoot().toPath();
+    Path changed = root.resolve("Changed.java");
+    Path added = root.resolve("Added.java");
+    Path failing = root.resolve("Failing.java");
+    FakeAnnotator annotator = new FakeAnnotator()
+        .respondContent("$/Project/Main", changed.toString(), "first\nsecond")
+        .respondContent("$/Project/Main", added.toString(), "");
+    TfsBranchService service = new AnnotatorBranchService(conf, new TfsBlameCommand(conf, new File("fake"), annotator::launch));
+
+    Map<Path, long[]> hashes = service.baseLineHashes("$/Project/Main", root, new HashSet<>(Arrays.asList(changed, added, failing)));
+
+    assertThat(annotator.launches()).isEqualTo(1);
+    assertThat(hashes).hasSize(2);
+    assertThat(hashes.get(changed)).isEqualTo(LineHashes.of(new java.io.StringReader("first\r\nsecond\r\n")));
+    assertThat(hashes.get(added)).isEmpty();
+    assertThat(appender.getWarningEvents()).containsExactly(
+        "SCM-TFVC: Unable to get the base content: Unable to compare with $/Project/Main " + failing + ": The file does not exist.");
+  }
+
+  @Test(timeout = 5000)
+  public void baseLineHashes_invalidHeader_nullAndWarningLogged() {
+    Path root = temp.getRoot().toPath();
+    FakeAnnotator annotator = new FakeAnnotator().garble("$/Project/Main");
+    TfsBranchService service = new AnnotatorBranchService(conf, new TfsBlameCommand(conf, new File("fake"), annotator::launch));
+
+    assertThat(service.baseLineHashes("$/Project/Main", root, new HashSet<>(Arrays.asList(root.resolve("A.java"))))).isNull();
+    assertThat(appender.getWarningEvents()).containsExactly("SCM-TFVC: Unable to get the content of the files in "
+        + "$/Project/Main: Invalid number of base lines from the TFVC annotate command: -1");
+  }
+
+  private static Logger getRootLogger() {
+    Logger rootLogger = (Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME);
+    return rootLogger.getLoggerContext().getLogger(Logger.ROOT_LOGGER_NAME);
+  }
+}
@@ -0,0 +1,99 @@
+/*
+ * SonarQube :: SCM :: TFVC :: Plugin
+ * Copyright (c) SonarSource SA and Microsoft Corporation.  All rights reserved.
+ *
+ * Licensed under the MIT License. See License.txt in the project root for license information.
+ */
+package org.sonar.plugins.scm.tfs;
+
+import com.google.common.hash.Hashing;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class AnnotatorInstallerTest {
+
+  private static final byte[] CONTENT = "MZ fake annotator".getBytes(StandardCharsets.UTF_8);
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  private URL resource;
+  private Path cache;
+
+  @Before
+  public void setup() throws IOException {
+    File file = temp.newFile("SonarTfsAnnotate.exe");
+    Files.write(file.toPath(), CONTENT);
+    resource = file.toURI().toURL();
+    cache = temp.newFolder("cache").toPath();
+  }
+
+  @Test
+  public void install_emptyCache_contentAddressedFile() throws IOException {
+    Path executable = AnnotatorInstaller.install(resource, cache);
+
+    String checksum = Hashing.sha256().hashBytes(CONTENT).toString();
+    assertThat(executable.toString()).isEqualTo(cache.resolve("tfvc/v1/" + checksum + "/SonarTfsAnnotate.exe").toString());
+    assertThat(Files.readAllBytes(executable)).isEqualTo(CONTENT);
+    try (Stream<Path> files = Files.list(executable.getParent())) {
+      assertThat(files.count()).isEqualTo(1);
+    }
+  }
+
+  @Test
+  public void install_alreadyInstalled_reusedWithoutWriting() throws IOException {
+    Path executable = AnnotatorInstaller.install(resource, cache);
+    FileTime installed = FileTime.fromMillis(1_000_000_000_000L);
+    Files.setLastModifiedTime(executable, installed);
+
+    assertThat(AnnotatorInstaller.install(resource, cache).toString()).isEqualTo(executable.toString());
+    assertThat(Files.getLastModifiedTime(executable)).isEqualTo(installed);
+  }
+
+  @Test
+  public void install_corruptedInstallation_replaced() throws IOException {
+    Path executable = AnnotatorInstaller.install(resource, cache);
+    Files.write(executable, "corrupted".getBytes(StandardCharsets.UTF_8));
+
+    assertThat(AnnotatorInstaller.install(resource, cache).toString()).isEqualTo(executable.toString());
+    assertThat(Files.readAllBytes(executable)).isEqualTo(CONTENT);
+  }
+
+  @Test(timeout = 10000)
+  public void install_concurrentScanners_allUseSameFile() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Callable<Path>> installs = new ArrayList<>();
+      for (int i = 0; i < 32; i++) {
+        installs.add(() -> AnnotatorInstaller.install(resource, cache));
+      }
+
+      String checksum = Hashing.sha256().hashBytes(CONTENT).toString();
+      String expected = cache.resolve("tfvc/v1/" + checksum + "/SonarTfsAnnotate.exe").toString();
+      for (Future<Path> result : executor.invokeAll(installs)) {
+        assertThat(result.get().toString()).isEqualTo(expected);
+        assertThat(Files.readAllBytes(result.get())).isEqualTo(CONTENT);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+}
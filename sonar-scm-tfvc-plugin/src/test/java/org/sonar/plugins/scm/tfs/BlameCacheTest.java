@@ -0,0 +1,139 @@
+/*
+ * SonarQube :: SCM :: TFVC :: Plugin
+ * Copyright (c) SonarSource SA and Microsoft Corporation.  All rights reserved.
+ *
+ * Licensed under the MIT License. See License.txt in the project root for license information.
+ */
+package org.sonar.plugins.scm.tfs;
+
+import com.google.common.hash.HashCode;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.batch.fs.internal.DefaultInputFile;
+import org.sonar.api.batch.fs.internal.TestInputFileBuilder;
+import org.sonar.api.batch.scm.BlameLine;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class BlameCacheTest {
+
+  private static final HashCode HASH = HashCode.fromString("0123456789abcdef0123456789abcdef");
+  private static final HashCode OTHER_HASH = HashCode.fromString("fedcba9876543210fedcba9876543210");
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  @Test
+  public void get_unknownFile_miss() throws IOException {
+    BlameCache cache = BlameCache.load(temp.getRoot().toPath().resolve("cache"), 1024 * 1024);
+
+    assertThat(cache.get("a.txt", HASH, new ChangesetPool())).isNull();
+    assertThat(cache.hits()).isEqualTo(0);
+    assertThat(cache.misses()).isEqualTo(1);
+  }
+
+  @Test
+  public void get_sameHash_cachedLinesReturned() {
+    BlameCache cache = new BlameCache(temp.getRoot().toPath().resolve("cache"), 1024 * 1024);
+    cache.put("a.txt", HASH, sampleLines());
+
+    assertThat(cache.get("a.txt", HASH, new ChangesetPool())).isEqualTo(sampleLines());
+    assertThat(cache.hits()).isEqualTo(1);
+  }
+
+  @Test
+  public void get_changedHash_miss() {
+    BlameCache cache = new BlameCache(temp.getRoot().toPath().resolve("cache"), 1024 * 1024);
+    cache.put("a.txt", HASH, sampleLines());
+
+    assertThat(cache.get("a.txt", OTHER_HASH, new ChangesetPool())).isNull();
+    assertThat(cache.misses()).isEqualTo(1);
+  }
+
+  @Test
+  public void save_load_entriesRestored() throws IOException {
+    Path location = temp.getRoot().toPath().resolve("sub/cache");
+    BlameCache cache = new BlameCache(location, 1024 * 1024);
+    cache.put("a.txt", HASH, sampleLines());
+    cache.put("b.txt", OTHER_HASH, sampleLines().subList(0, 1));
+    cache.save();
+
+    BlameCache loaded = BlameCache.load(location, 1024 * 1024);
+
+    assertThat(loaded.entries()).isEqualTo(2);
+    assertThat(loaded.get("a.txt", HASH, new ChangesetPool())).isEqualTo(sampleLines());
+    assertThat(loaded.get("b.txt", OTHER_HASH, new ChangesetPool())).isEqualTo(sampleLines().subList(0, 1));
+  }
+
+  @Test
+  public void load_corruptFile_emptyCache() throws IOException {
+    Path location = temp.newFile().toPath();
+    Files.write(location, "no cache".getBytes(StandardCharsets.UTF_8));
+
+    BlameCache cache = BlameCache.load(location, 1024 * 1024);
+
+    assertThat(cache.entries()).isEqualTo(0);
+  }
+
+  @Test
+  public void put_sizeExceeded_leastRecentlyUsedEvicted() {
+    int entrySize = 2 * "a.txt".length() + 16 + BlameCache.encode(sampleLines()).length;
+    BlameCache cache = new BlameCache(temp.getRoot().toPath().resolve("cache"), 2L * entrySize);
+    cache.put("a.txt", HASH, sampleLines());
+    cache.put("b.txt", HASH, sampleLines());
+    cache.get("a.txt", HASH, new ChangesetPool());
+    cache.put("c.txt", HASH, sampleLines());
+
+    assertThat(cache.entries()).isEqualTo(2);
+    assertThat(cache.get("b.txt", HASH, new ChangesetPool())).isNull();
+    assertThat(cache.get("a.txt", HASH, new ChangesetPool())).isNotNull();
+    assertThat(cache.get("c.txt", HASH, new ChangesetPool())).isNotNull();
+  }
+
+  @Test
+  public void encode_longRuns_compact() throws IOException {
+    List<BlameLine> lines = new ArrayList<>();
+    for (int i = 0; i < 10000; i++) {
+      lines.add(new BlameLine().date(new Date(1430736199000L)).revision("26274").author("SND\\DinSoft_cp"));
+    }
+
+    byte[] data = BlameCache.encode(lines);
+
+    assertThat(data.length).isLessThan(50);
+    assertThat(BlameCache.decode(data, new ChangesetPool())).isEqualTo(lines);
+  }
+
+  @Test
+  public void hash_fileContent_changesWithContent() throws IOException {
+    File file = temp.newFile("a.txt");
+    DefaultInputFile inputFile = new TestInputFileBuilder("module", "a.txt")
+        .setModuleBaseDir(temp.getRoot().toPath())
+        .build();
+    Files.write(file.toPath(), "hello".getBytes(StandardCharsets.UTF_8));
+    HashCode first = BlameCache.hash(inputFile);
+    Files.write(file.toPath(), "world".getBytes(StandardCharsets.UTF_8));
+
+    assertThat(first).isNotNull();
+    assertThat(BlameCache.hash(inputFile)).isNotEqualTo(first);
+    assertThat(BlameCache.hash(new TestInputFileBuilder("module", "missing.txt")
+        .setModuleBaseDir(temp.getRoot().toPath())
+        .build())).isNull();
+  }
+
+  private static List<BlameLine> sampleLines() {
+    return Arrays.asList(
+        new BlameLine().date(new Date(1430736199000L)).revision("26274").author("SND\\DinSoft_cp"),
+        new BlameLine().date(new Date(1430736200000L)).revision("26275").author("SND\\DinSoft_cp"),
+        new BlameLine().date(new Date(1430736200000L)).revision("26275").author("SND\\DinSoft_cp"));
+  }
+}
@@ -0,0 +1,144 @@
+/*
+ * SonarQube :: SCM :: TFVC :: Plugin
+ * Copyright (c) SonarSource SA and Microsoft Corporation.  All rights reserved.
+ *
+ * Licensed under the MIT License. See License.txt in the project root for license information.
+ */
+package org.sonar.plugins.scm.tfs;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.batch.fs.InputFile;
+import org.sonar.api.batch.fs.internal.TestInputFileBuilder;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class BlameDurationsTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  @Test
+  public void save_load_durationsKept() throws IOException {
+    Path location = temp.getRoot().toPath().resolve(BlameDurations.FILE_NAME);
+    BlameDurations durations = BlameDurations.load(location);
+    durations.put("a", 100, 10);
+    durations.put("b", 2000, 300);
+    durations.save();
+
+    BlameDurations loaded = BlameDurations.load(location);
+
+    assertThat(loaded.get("a")).isEqualTo(100L);
+    assertThat(loaded.get("b")).isEqualTo(2000L);
+    assertThat(loaded.get("c")).isNull();
+  }
+
+  @Test
+  public void load_unknownFormat_noHistory() throws IOException {
+    Path location = temp.getRoot().toPath().resolve(BlameDurations.FILE_NAME);
+    Files.write(location, "garbage".getBytes(StandardCharsets.UTF_8));
+
+    BlameDurations durations = BlameDurations.load(location);
+
+    assertThat(durations.get("a")).isNull();
+  }
+
+  @Test
+  public void longestFirst_history_slowestFirst() {
+    InputFile fast = file("Fast", 100);
+    InputFile slow = file("Slow", 100);
+    InputFile medium = file("Medium", 100);
+    BlameDurations durations = new BlameDurations(null);
+    durations.put(AnnotatorSession.pathOf(fast), 10, 100);
+    durations.put(AnnotatorSession.pathOf(slow), 5000, 100);
+    durations.put(AnnotatorSession.pathOf(medium), 500, 100);
+
+    assertThat(durations.longestFirst(Arrays.asList(fast, slow, medium))).containsExactly(slow, medium, fast);
+  }
+
+  @Test
+  public void longestFirst_noHistory_estimatedFromLines() {
+    InputFile known = file("Known", 100);
+    InputFile small = file("Small", 50);
+    InputFile large = file("Large", 1000);
+    BlameDurations durations = new BlameDurations(null);
+    // 2 ms per line, the large file is expected to take 2000 ms and the small one 100 ms
+    durations.put(AnnotatorSession.pathOf(known), 200, 100);
+
+    assertThat(durations.longestFirst(Arrays.asList(small, known, large))).containsExactly(large, known, small);
+  }
+
+  @Test
+  public void longestFirst_sameEstimate_orderKept() {
+    List<InputFile> files = Arrays.asList(file("A", -1), file("B", -1), file("C", -1));
+
+    assertThat(new BlameDurations(null).longestFirst(files)).isEqualTo(files);
+  }
+
+  /**
+   * Replays the durations of a run on several annotators pulling from a shared queue, as done by the blame command.
+   * A few files with a deep history, listed last, dominate the run unless they are handed out first.
+   */
+  @Test
+  public void longestFirst_simulatedWorkers_shorterMakespan() {
+    Random random = new Random(42);
+    Map<InputFile, Long> actual = new HashMap<>();
+    List<InputFile> files = new ArrayList<>();
+    for (int i = 0; i < 200; i++) {
+      InputFile file = file("File" + i, 100);
+      actual.put(file, 50L + random.nextInt(100));
+      files.add(file);
+    }
+    for (int i = 0; i < 3; i++) {
+      InputFile file = file("Deep" + i, 100);
+      actual.put(file, 4000L + random.nextInt(1000));
+      files.add(file);
+    }
+    BlameDurations durations = new BlameDurations(null);
+    files.forEach(file -> durations.put(AnnotatorSession.pathOf(file), actual.get(file), file.lines()));
+
+    long inputOrder = makespan(files, actual, 4);
+    long longestFirst = makespan(durations.longestFirst(files), actual, 4);
+
+    long total = actual.values().stream().mapToLong(Long::longValue).sum();
+    assertThat(longestFirst).isLessThan(inputOrder);
+    // list scheduling of the longest jobs first is within 4/3 of the optimum, bounded below by the average load
+    assertThat(longestFirst).isLessThanOrEqualTo(total * 4 / 3 / 4 + 1);
+  }
+
+  private static long makespan(List<InputFile> order, Map<InputFile, Long> durations, int workers) {
+    PriorityQueue<Long> availableAt = new PriorityQueue<>();
+    for (int i = 0; i < workers; i++) {
+      availableAt.add(0L);
+    }
+    long end = 0;
+    for (InputFile file : order) {
+      long finish = availableAt.poll() + durations.get(file);
+      end = Math.max(end, finish);
+      availableAt.add(finish);
+    }
+    return end;
+  }
+
+  private static InputFile file(String name, int lines) {
+    TestInputFileBuilder builder = new TestInputFileBuilder("module", "src/" + name + ".java")
+      .setModuleBaseDir(Paths.get("base"));
+    if (lines > 0) {
+      builder.setLines(lines);
+    }
+    return builder.build();
+  }
+}
@@ -0,0 +1,102 @@
+/*
+ * SonarQube :: SCM :: TFVC :: Plugin
+ * Copyright (c) SonarSource SA and Microsoft Corporation.  All rights reserved.
+ *
+ * Licensed under the MIT License. See License.txt in the project root for license information.
+ */
+package org.sonar.plugins.scm.tfs;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class BlameMetricsTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  @Test
+  public void fileAnnotated_latencyCountedInBucket() {
+    BlameMetrics metrics = new BlameMetrics();
+
+    metrics.fileAnnotated(millis(5), millis(1), 10);
+    metrics.fileAnnotated(millis(10), millis(1), 10);
+    metrics.fileAnnotated(millis(11), millis(1), 10);
+    metrics.fileAnnotated(millis(60_000), millis(1), 10);
+
+    assertThat(metrics.latencyHistogram()).isEqualTo(new long[] {2, 1, 0, 0, 0, 0, 0, 0, 0, 0, 1});
+    assertThat(metrics.annotatedFiles()).isEqualTo(4);
+    assertThat(metrics.lines()).isEqualTo(40);
+  }
+
+  @Test
+  public void fileFailed_countedByCause() {
+    BlameMetrics metrics = new BlameMetrics();
+
+    metrics.fileFailed("file");
+    metrics.fileFailed("timeout");
+    metrics.fileFailed("file");
+
+    assertThat(metrics.failures("file")).isEqualTo(2);
+    assertThat(metrics.failures("timeout")).isEqualTo(1);
+    assertThat(metrics.failures("project")).isEqualTo(0);
+    assertThat(metrics.failedFiles()).isEqualTo(3);
+  }
+
+  @Test
+  public void summary_oneLine() {
+    BlameMetrics metrics = new BlameMetrics();
+    metrics.fileAnnotated(millis(100), millis(10), 50);
+    metrics.fileAnnotated(millis(300), millis(10), 50);
+    metrics.fileFailed("file");
+    metrics.bytesRead(4096);
+    metrics.finish();
+
+    assertThat(metrics.summary()).matches(
+      "annotated 2 files, 1 failed, in \\d+ ms: 200 ms per file on average, 300 ms at most, \\d+ lines/s, 4 KB read");
+  }
+
+  @Test
+  public void write_jsonReport() throws IOException {
+    BlameMetrics metrics = new BlameMetrics();
+    metrics.sessionStarted(millis(20));
+    metrics.connected(millis(30));
+    metrics.fileAnnotated(millis(40), millis(5), 2);
+    metrics.fileFailed("EOFException");
+    metrics.output(millis(1));
+    metrics.bytesRead(123);
+    metrics.cache(4, 2);
+    metrics.recovery(1, 0);
+    metrics.skipped(3);
+    metrics.accountsPreloaded(5);
+    metrics.accountLookups(7, 2, 80);
+    metrics.accountLookups(1, 0, 0);
+    metrics.finish();
+    Path report = temp.getRoot().toPath().resolve(BlameMetrics.REPORT_FILE_NAME);
+
+    metrics.write(report);
+
+    String json = new String(Files.readAllBytes(report), StandardCharsets.UTF_8);
+    assertThat(json).startsWith("{\"elapsedMs\":")
+      .contains("\"sessions\":1,\"restarts\":1,\"timedOutFiles\":0")
+      .contains("\"phases\":{\"launchMs\":20,\"handshakeMs\":30,\"annotateMs\":40,\"parseMs\":5,\"outputMs\":1}")
+      .contains("\"files\":{\"annotated\":1,\"failed\":1,\"skipped\":3,\"cacheHits\":4,\"cacheMisses\":2}")
+      .contains("\"accounts\":{\"preloaded\":5,\"hits\":8,\"misses\":2,\"lookupMs\":80}")
+      .contains("\"failures\":{\"EOFException\":1}")
+      .contains("{\"upToMs\":50,\"files\":1}")
+      .contains("{\"aboveMs\":30000,\"files\":0}")
+      .contains("\"lines\":2")
+      .endsWith("\"bytesRead\":123}");
+  }
+
+  private static long millis(long value) {
+    return TimeUnit.MILLISECONDS.toNanos(value);
+  }
+}
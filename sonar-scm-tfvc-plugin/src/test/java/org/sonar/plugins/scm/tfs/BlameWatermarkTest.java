@@ -0,0 +1,67 @@
+/*
+ * SonarQube :: SCM :: TFVC :: Plugin
+ * Copyright (c) SonarSource SA and Microsoft Corporation.  All rights reserved.
+ *
+ * Licensed under the MIT License. See License.txt in the project root for license information.
+ */
+package org.sonar.plugins.scm.tfs;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class BlameWatermarkTest {
+
+  private static final String COLLECTION_URI = "https://localtfs/tfs/DefaultCollection";
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  @Test
+  public void of_cacheLocation_siblingFile() {
+    Path cache = temp.getRoot().toPath().resolve("tfvc-blame.cache");
+
+    assertThat(BlameWatermark.of(cache).toFile()).isEqualTo(temp.getRoot().toPath().resolve("tfvc-blame.cache.watermark").toFile());
+  }
+
+  @Test
+  public void load_missingFile_noChangeset() {
+    BlameWatermark watermark = BlameWatermark.load(location(), COLLECTION_URI, "$/Project/Main");
+
+    assertThat(watermark.changeset()).isEqualTo(0);
+  }
+
+  @Test
+  public void load_saved_changesetReturned() throws IOException {
+    BlameWatermark saved = BlameWatermark.load(location(), COLLECTION_URI, "$/Project/Main").save(26275);
+
+    assertThat(saved.changeset()).isEqualTo(26275);
+    assertThat(BlameWatermark.load(location(), COLLECTION_URI, "$/Project/Main").changeset()).isEqualTo(26275);
+    assertThat(temp.getRoot().list()).containsOnly(location().getFileName().toString());
+  }
+
+  @Test
+  public void load_otherServerPathOrCollection_noChangeset() throws IOException {
+    BlameWatermark.load(location(), COLLECTION_URI, "$/Project/Main").save(26275);
+
+    assertThat(BlameWatermark.load(location(), COLLECTION_URI, "$/Project/Dev").changeset()).isEqualTo(0);
+    assertThat(BlameWatermark.load(location(), "https://othertfs/tfs/DefaultCollection", "$/Project/Main").changeset()).isEqualTo(0);
+  }
+
+  @Test
+  public void load_damagedFile_noChangeset() throws IOException {
+    Files.write(location(), "damaged".getBytes(StandardCharsets.UTF_8));
+
+    assertThat(BlameWatermark.load(location(), COLLECTION_URI, "$/Project/Main").changeset()).isEqualTo(0);
+  }
+
+  private Path location() {
+    return BlameWatermark.of(temp.getRoot().toPath().resolve("tfvc-blame.cache"));
+  }
+}
@@ -0,0 +1,144 @@
+/*
+ * SonarQube :: SCM :: TFVC :: Plugin
+ * Copyright (c) SonarSource SA and Microsoft Corporation.  All rights reserved.
+ *
+ * Licensed under the MIT License. See License.txt in the project root for license information.
+ */
+package org.sonar.plugins.scm.tfs;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.function.Function;
+import org.junit.Test;
+import org.sonar.api.batch.scm.BlameLine;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class ChangesetPoolTest {
+
+  private static final int LINES = 1_000_000;
+  private static final int CHANGESETS = 2_000;
+  private static final int AUTHORS = 50;
+
+  @Test
+  public void get_sameChangeset_sameInstance() {
+    ChangesetPool pool = new ChangesetPool();
+
+    BlameLine first = pool.get(26274, "SND\\DinSoft_cp", 1430736199000L);
+    BlameLine second = pool.get(26274, new String("SND\\DinSoft_cp"), 1430736199000L);
+
+    assertThat(second).isSameAs(first);
+    assertThat(first.revision()).isEqualTo("26274");
+    assertThat(first.author()).isEqualTo("SND\\DinSoft_cp");
+    assertThat(first.date()).isEqualTo(new Date(1430736199000L));
+    assertThat(pool.size()).isEqualTo(1);
+  }
+
+  @Test
+  public void get_sameAuthor_authorShared() {
+    ChangesetPool pool = new ChangesetPool();
+
+    BlameLine first = pool.get(1, "John Doe", 1L);
+    BlameLine second = pool.get(2, new String("John Doe"), 2L);
+
+    assertThat(second).isNotSameAs(first);
+    assertThat(second.author()).isSameAs(first.author());
+    assertThat(pool.size()).isEqualTo(2);
+  }
+
+  @Test
+  public void get_parsedLine_equalToDirectLookup() throws IOException {
+    ChangesetPool pool = new ChangesetPool();
+    AnnotationReader reader = new AnnotationReader(new SyntheticOutput(1), 8192);
+    AnnotationReader.ParsedLine line = new AnnotationReader.ParsedLine();
+
+    assertThat(reader.readBlameLine(line)).isTrue();
+
+    assertThat(pool.get(line)).isSameAs(pool.get(line.changeset(), line.author(), line.date()));
+  }
+
+  @Test
+  public void get_millionLines_lessHeapThanDistinctLines() throws IOException {
+    long distinct = retainedHeap(line -> new BlameLine()
+      .revision(Long.toString(line.changeset()))
+      .author(line.author())
+      .date(new Date(line.date())));
+    ChangesetPool pool = new ChangesetPool();
+    long pooled = retainedHeap(pool::get);
+
+    assertThat(pool.size()).isEqualTo(CHANGESETS);
+    // a distinct line holds at least its own instance, a date and a revision
+    assertThat(distinct).isGreaterThan(LINES * 48L);
+    assertThat(pooled * 4).isLessThan(distinct);
+  }
+
+  /**
+   * Parses the synthetic output and measures the heap retained by the resulting lines.
+   */
+  private static long retainedHeap(Function<AnnotationReader.ParsedLine, BlameLine> factory) throws IOException {
+    long before = usedHeap();
+    AnnotationReader reader = new AnnotationReader(new SyntheticOutput(LINES), 8192);
+    AnnotationReader.ParsedLine line = new AnnotationReader.ParsedLine();
+    List<BlameLine> lines = new ArrayList<>(LINES);
+    while (reader.readBlameLine(line)) {
+      lines.add(factory.apply(line));
+    }
+
+    long after = usedHeap();
+    assertThat(lines).hasSize(LINES);
+    return after - before;
+  }
+
+  private static long usedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    long used = Long.MAX_VALUE;
+    // a single request is not guaranteed to collect everything
+    for (int i = 0; i < 5; i++) {
+      System.gc();
+      used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+    }
+    return used;
+  }
+
+  /**
+   * Generates annotator output on the fly, runs of 20 lines share a changeset.
+   */
+  private static final class SyntheticOutput extends Reader {
+
+    private final int lines;
+    private int line;
+    private String current = "";
+    private int position;
+
+    SyntheticOutput(int lines) {
+      this.lines = lines;
+    }
+
+    @Override
+    public int read(char[] buffer, int offset, int length) {
+      if (position == current.length()) {
+        if (line == lines) {
+          return -1;
+        }
+        int changeset = (line / 20) % CHANGESETS;
+        current = (100000 + changeset) + "\tDOMAIN\\user" + (changeset % AUTHORS) + "\t" + (1430736199000L + changeset * 1000L)
+          + "\t    return value" + line + ";\r\n";
+        position = 0;
+        line++;
+      }
+
+      int count = Math.min(length, current.length() - position);
+      current.getChars(position, position + count, buffer, offset);
+      position += count;
+      return count;
+    }
+
+    @Override
+    public void close() {
+      // nothing to release
+    }
+  }
+}
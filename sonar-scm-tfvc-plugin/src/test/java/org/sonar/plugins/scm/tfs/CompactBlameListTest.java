@@ -0,0 +1,90 @@
+/*
+ * SonarQube :: SCM :: TFVC :: Plugin
+ * Copyright (c) SonarSource SA and Microsoft Corporation.  All rights reserved.
+ *
+ * Licensed under the MIT License. See License.txt in the project root for license information.
+ */
+package org.sonar.plugins.scm.tfs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import org.sonar.api.batch.scm.BlameLine;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.fest.assertions.Fail.fail;
+
+public class CompactBlameListTest {
+
+  private final ChangesetPool pool = new ChangesetPool();
+  private final BlameLine first = pool.get(1, "first", 1000);
+  private final BlameLine second = pool.get(2, "second", 2000);
+  private final BlameLine third = pool.get(3, "third", 3000);
+
+  @Test
+  public void add_lines_consecutiveLinesMergedIntoRuns() {
+    List<BlameLine> expected = Arrays.asList(first, first, second, first, first, first, third, third);
+    CompactBlameList.Builder builder = new CompactBlameList.Builder();
+    expected.forEach(builder::add);
+
+    CompactBlameList lines = builder.build();
+
+    assertThat(lines.runCount()).isEqualTo(4);
+    assertThat(lines.size()).isEqualTo(8);
+    assertThat(lines).isEqualTo(expected);
+    assertThat(new ArrayList<>(lines)).isEqualTo(expected);
+    for (int i = 0; i < expected.size(); i++) {
+      assertThat(lines.get(i)).isSameAs(expected.get(i));
+    }
+  }
+
+  @Test
+  public void add_runs_indexesOfTable() {
+    CompactBlameList.Builder builder = new CompactBlameList.Builder();
+    int firstIndex = builder.changeset(first);
+    int secondIndex = builder.changeset(second);
+
+    CompactBlameList lines = builder.add(secondIndex, 2).add(firstIndex, 1).add(firstIndex, 2).add(secondIndex, 0).build();
+
+    assertThat(lines.runCount()).isEqualTo(2);
+    assertThat(lines).isEqualTo(Arrays.asList(second, second, first, first, first));
+  }
+
+  @Test
+  public void withExtraLastLine_lastLineRepeated() {
+    CompactBlameList lines = new CompactBlameList.Builder().add(first).add(second).build();
+
+    CompactBlameList padded = lines.withExtraLastLine();
+
+    assertThat(padded).isEqualTo(Arrays.asList(first, second, second));
+    assertThat(padded.get(2)).isSameAs(second);
+    assertThat(new ArrayList<>(padded)).isEqualTo(Arrays.asList(first, second, second));
+    assertThat(lines).hasSize(2);
+  }
+
+  @Test
+  public void build_empty() {
+    CompactBlameList lines = new CompactBlameList.Builder().build();
+
+    assertThat(lines).isEmpty();
+    assertThat(lines.iterator().hasNext()).isFalse();
+  }
+
+  @Test
+  public void get_outOfBounds_exceptionThrown() {
+    CompactBlameList lines = new CompactBlameList.Builder().add(first).build();
+
+    try {
+      lines.get(1);
+      fail("expected an exception");
+    } catch (IndexOutOfBoundsException e) {
+      assertThat(e.getMessage()).isEqualTo("Index: 1, Size: 1");
+    }
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void add_afterBuild_unsupported() {
+    new CompactBlameList.Builder().add(first).build().add(second);
+  }
+}
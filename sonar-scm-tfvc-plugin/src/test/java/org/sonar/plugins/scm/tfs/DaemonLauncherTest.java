@@ -0,0 +1,321 @@
+/*
+ * SonarQube :: SCM :: TFVC :: Plugin
+ * Copyright (c) SonarSource SA and Microsoft Corporation.  All rights reserved.
+ *
+ * Licensed under the MIT License. See License.txt in the project root for license information.
+ */
+package org.sonar.plugins.scm.tfs;
+
+import ch.qos.logback.classic.Logger;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.LoggerFactory;
+import org.sonar.api.batch.fs.InputFile;
+import org.sonar.api.batch.fs.internal.DefaultInputFile;
+import org.sonar.api.batch.fs.internal.TestInputFileBuilder;
+import org.sonar.api.batch.scm.BlameCommand.BlameInput;
+import org.sonar.api.batch.scm.BlameCommand.BlameOutput;
+import org.sonar.api.batch.scm.BlameLine;
+import org.sonar.plugins.scm.tfs.helpers.FakeAnnotator;
+import org.sonar.plugins.scm.tfs.helpers.FakeDaemon;
+import org.sonar.plugins.scm.tfs.helpers.TestAppender;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.fest.assertions.Fail.fail;
+import static org.junit.Assume.assumeTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class DaemonLauncherTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  private final TfsConfiguration conf = mock(TfsConfiguration.class);
+  private final FakeAnnotator annotator = new FakeAnnotator();
+  private final List<FakeDaemon> daemons = new ArrayList<>();
+
+  private TestAppender appender;
+  private Path registry;
+
+  @Before
+  public void setup() {
+    appender = new TestAppender();
+    getRootLogger().addAppender(appender);
+
+    when(conf.collectionUri()).thenReturn("https://localtfs/tfs");
+    registry = temp.getRoot().toPath().resolve("daemon").resolve("key.properties");
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    getRootLogger().detachAppender(appender);
+    for (FakeDaemon daemon : daemons) {
+      daemon.close();
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void launch_noDaemon_startedOnceAndReused() {
+    AtomicInteger starts = new AtomicInteger();
+    DaemonLauncher launcher = new DaemonLauncher(registry, file -> {
+      starts.incrementAndGet();
+      startDaemon().register(file);
+      return null;
+    }, this::unexpectedFallback);
+    List<InputFile> files = createFiles(3);
+
+    blame(launcher, files);
+    blame(launcher, files);
+
+    assertThat(starts.get()).isEqualTo(1);
+    assertThat(daemons.get(0).sessions()).isEqualTo(2);
+    assertThat(annotator.launches()).isEqualTo(0);
+    assertThat(annotator.collectionUris()).containsExactly("https://localtfs/tfs", "https://localtfs/tfs");
+    assertThat(annotator.requestedPaths()).hasSize(6);
+    assertThat(appender.getErrorEvents()).isEmpty();
+  }
+
+  @Test(timeout = 10000)
+  public void launch_daemonStarted_registryAndLogReadableByOwnerOnly() throws IOException {
+    assumeTrue(Files.getFileAttributeView(temp.getRoot().toPath(), PosixFileAttributeView.class) != null);
+    DaemonLauncher launcher = new DaemonLauncher(registry, file -> {
+      startDaemon().register(file);
+      return null;
+    }, this::unexpectedFallback);
+
+    blame(launcher, createFiles(1));
+
+    assertThat(PosixFilePermissions.toString(Files.getPosixFilePermissions(registry.getParent()))).isEqualTo("rwx------");
+    assertThat(PosixFilePermissions.toString(Files.getPosixFilePermissions(registry))).isEqualTo("rw-------");
+    Path log = registry.resolveSibling(registry.getFileName() + ".log");
+    assertThat(PosixFilePermissions.toString(Files.getPosixFilePermissions(log))).isEqualTo("rw-------");
+  }
+
+  @Test(timeout = 10000)
+  public void launch_runningDaemon_notStarted() throws IOException {
+    startDaemon().register(registry);
+    DaemonLauncher launcher = new DaemonLauncher(registry, file -> {
+      throw new IOException("unexpected start");
+    }, this::unexpectedFallback);
+    List<InputFile> files = createFiles(2);
+
+    BlameOutput output = blame(launcher, files);
+
+    for (InputFile file : files) {
+      verify(output).blameResult(file, expectedLines());
+    }
+    assertThat(daemons.get(0).sessions()).isEqualTo(1);
+    assertThat(appender.getWarningEvents()).isEmpty();
+  }
+
+  @Test(timeout = 10000)
+  public void launch_multipleWorkers_oneDaemonStarted() {
+    when(conf.workers()).thenReturn(4);
+    AtomicInteger starts = new AtomicInteger();
+    DaemonLauncher launcher = new DaemonLauncher(registry, file -> {
+      starts.incrementAndGet();
+      startDaemon().register(file);
+      return null;
+    }, this::unexpectedFallback);
+    List<InputFile> files = createFiles(20);
+
+    BlameOutput output = blame(launcher, files);
+
+    assertThat(starts.get()).isEqualTo(1);
+    assertThat(daemons.get(0).sessions()).isEqualTo(4);
+    for (InputFile file : files) {
+      verify(output).blameResult(file, expectedLines());
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void launch_staleRegistration_daemonStarted() throws IOException {
+    int closedPort;
+    try (ServerSocket socket = new ServerSocket(0)) {
+      closedPort = socket.getLocalPort();
+    }
+    Files.createDirectories(registry.getParent());
+    Files.write(registry, ("port=" + closedPort + "\ntoken=old\n").getBytes(StandardCharsets.UTF_8));
+    AtomicInteger starts = new AtomicInteger();
+    DaemonLauncher launcher = new DaemonLauncher(registry, file -> {
+      assertThat(Files.exists(file)).isFalse();
+      starts.incrementAndGet();
+      startDaemon().register(file);
+      return null;
+    }, this::unexpectedFallback);
+
+    blame(launcher, createFiles(1));
+
+    assertThat(starts.get()).isEqualTo(1);
+    assertThat(daemons.get(0).sessions()).isEqualTo(1);
+  }
+
+  @Test(timeout = 10000)
+  public void launch_wrongToken_daemonStarted() throws IOException {
+    FakeDaemon other = startDaemon();
+    Files.createDirectories(registry.getParent());
+    Files.write(registry, ("port=" + other.port() + "\ntoken=wrong\n").getBytes(StandardCharsets.UTF_8));
+    DaemonLauncher launcher = new DaemonLauncher(registry, file -> {
+      startDaemon().register(file);
+      return null;
+    }, this::unexpectedFallback);
+
+    blame(launcher, createFiles(1));
+
+    assertThat(other.sessions()).isEqualTo(0);
+    assertThat(daemons.get(1).sessions()).isEqualTo(1);
+  }
+
+  @Test(timeout = 10000)
+  public void launch_daemonNotStartable_dedicatedAnnotatorUsed() {
+    DaemonLauncher launcher = new DaemonLauncher(registry, file -> {
+      throw new IOException("no daemon");
+    }, annotator::launch);
+    List<InputFile> files = createFiles(2);
+
+    BlameOutput output = blame(launcher, files);
+
+    assertThat(annotator.launches()).isEqualTo(1);
+    for (InputFile file : files) {
+      verify(output).blameResult(file, expectedLines());
+    }
+    assertThat(appender.getWarningEvents()).containsExactly(
+      "SCM-TFVC: Unable to use the annotator daemon, starting a dedicated annotator: no daemon");
+  }
+
+  @Test
+  public void create_registryKeyedByCollectionAndCredentials() {
+    TfsConfiguration first = configuration("https://localtfs/tfs", "pat");
+    File executable = new File("SonarTfsAnnotate.exe");
+
+    String registry = registry(first, executable);
+
+    assertThat(Paths.get(registry).getParent().toString()).isEqualTo(Paths.get("home", "tfvc", "daemon").toString());
+    assertThat(registry(configuration("https://localtfs/tfs", "pat"), executable)).isEqualTo(registry);
+    assertThat(registry(configuration("https://localtfs/tfs", "other"), executable)).isNotEqualTo(registry);
+    assertThat(registry(configuration("https://othertfs/tfs", "pat"), executable)).isNotEqualTo(registry);
+    assertThat(registry(first, new File("other.exe"))).isNotEqualTo(registry);
+  }
+
+  @Test(timeout = 10000)
+  public void socketProcess_readerThreadEnded_nextLinesReceived() throws Exception {
+    try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+      Socket client = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+      try (Socket daemon = server.accept()) {
+        DaemonLauncher.SocketProcess process = new DaemonLauncher.SocketProcess(client);
+        OutputStream output = daemon.getOutputStream();
+        output.write("Ofirst\n".getBytes(StandardCharsets.UTF_8));
+        output.flush();
+
+        // like the thread which connected an annotator in advance
+        List<String> first = new ArrayList<>();
+        Thread reader = new Thread(() -> first.add(readLine(process.getInputStream())));
+        reader.start();
+        reader.join();
+        assertThat(first).containsOnly("first");
+
+        output.write("Osecond\nEfailed\n".getBytes(StandardCharsets.UTF_8));
+        output.flush();
+        daemon.shutdownOutput();
+
+        assertThat(readLine(process.getInputStream())).isEqualTo("second");
+        assertThat(readLine(process.getErrorStream())).isEqualTo("failed");
+        assertThat(process.getInputStream().read()).isEqualTo(-1);
+        assertThat(process.waitFor()).isEqualTo(0);
+      }
+    }
+  }
+
+  private static String readLine(InputStream input) {
+    StringBuilder line = new StringBuilder();
+    try {
+      int c;
+      while ((c = input.read()) != -1 && c != '\n') {
+        line.append((char) c);
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    return line.toString();
+  }
+
+  private String registry(TfsConfiguration configuration, File executable) {
+    return DaemonLauncher.create(configuration, executable, annotator::launch).registry().toString();
+  }
+
+  private static TfsConfiguration configuration(String collectionUri, String pat) {
+    TfsConfiguration configuration = mock(TfsConfiguration.class);
+    when(configuration.collectionUri()).thenReturn(collectionUri);
+    when(configuration.username()).thenReturn("");
+    when(configuration.password()).thenReturn("");
+    when(configuration.pat()).thenReturn(pat);
+    when(configuration.userCacheDirectory()).thenReturn(Paths.get("home"));
+    return configuration;
+  }
+
+  private FakeDaemon startDaemon() throws IOException {
+    FakeDaemon daemon = new FakeDaemon(annotator);
+    daemons.add(daemon);
+    return daemon;
+  }
+
+  private Process unexpectedFallback() {
+    throw fail("the daemon is expected to be used");
+  }
+
+  private BlameOutput blame(DaemonLauncher launcher, List<InputFile> files) {
+    TfsBlameCommand command = new TfsBlameCommand(conf, new File("fake"), launcher);
+    BlameInput input = mock(BlameInput.class);
+    when(input.filesToBlame()).thenReturn(files);
+    BlameOutput output = mock(BlameOutput.class);
+    command.blame(input, output);
+    return output;
+  }
+
+  private List<InputFile> createFiles(int count) {
+    List<InputFile> files = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      DefaultInputFile inputFile = new TestInputFileBuilder("module", "src/File" + i + ".java")
+        .setModuleBaseDir(Paths.get("base"))
+        .build();
+      annotator.respond(inputFile.uri().getPath().substring(1),
+        "2\n26274\tSND\\DinSoft_cp\t1430736199000\thello,\n26275\tSND\\DinSoft_cp\t1430736200000\tworld!\n");
+      files.add(inputFile);
+    }
+    return files;
+  }
+
+  private static List<BlameLine> expectedLines() {
+    return Arrays.asList(
+      new BlameLine().date(new Date(1430736199000L)).revision("26274").author("SND\\DinSoft_cp"),
+      new BlameLine().date(new Date(1430736200000L)).revision("26275").author("SND\\DinSoft_cp"));
+  }
+
+  private static Logger getRootLogger() {
+    Logger rootLogger = (Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME);
+    return rootLogger.getLoggerContext().getLogger(Logger.ROOT_LOGGER_NAME);
+  }
+}
@@ -0,0 +1,115 @@
+/*
+ * SonarQube :: SCM :: TFVC :: Plugin
+ * Copyright (c) SonarSource SA and Microsoft Corporation.  All rights reserved.
+ *
+ * Licensed under the MIT License. See License.txt in the project root for license information.
+ */
+package org.sonar.plugins.scm.tfs;
+
+import ch.qos.logback.classic.Logger;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.charset.StandardCharsets;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+import org.sonar.plugins.scm.tfs.helpers.TestAppender;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class ErrorStreamDrainerTest {
+
+  private static final TfsLogger LOG = TfsLogger.get(ErrorStreamDrainerTest.class);
+
+  private TestAppender appender;
+
+  @Before
+  public void setup() {
+    appender = new TestAppender();
+    getRootLogger().addAppender(appender);
+  }
+
+  @After
+  public void tearDown() {
+    getRootLogger().detachAppender(appender);
+  }
+
+  @Test(timeout = 5000)
+  public void takeMessage_preferredPrefix_matchingLineTaken() throws InterruptedException {
+    ErrorStreamDrainer drainer = drain("TF14061: warning\nUnable to annotate the file a: not found\n", 10);
+
+    assertThat(drainer.takeMessage("Unable to annotate the file a")).isEqualTo("Unable to annotate the file a: not found");
+    assertThat(drainer.takeMessage(null)).isEqualTo("TF14061: warning");
+  }
+
+  @Test(timeout = 5000)
+  public void takeMessage_noLine_placeholderReturned() throws InterruptedException {
+    ErrorStreamDrainer drainer = drain("", 10);
+
+    assertThat(drainer.takeMessage(null)).isEqualTo("No error message received from the TFVC annotate command");
+  }
+
+  @Test(timeout = 5000)
+  public void takeMessage_lineWrittenLater_awaited() throws IOException {
+    PipedOutputStream error = new PipedOutputStream();
+    ErrorStreamDrainer drainer = new ErrorStreamDrainer(new PipedInputStream(error), StandardCharsets.UTF_8, 10);
+    new Thread(() -> {
+      try {
+        Thread.sleep(100);
+        error.write("late\n".getBytes(StandardCharsets.UTF_8));
+        error.flush();
+      } catch (IOException | InterruptedException e) {
+        // the test fails on the message
+      }
+    }).start();
+
+    assertThat(drainer.takeMessage(null)).isEqualTo("late");
+  }
+
+  @Test(timeout = 5000)
+  public void logPending_overflow_oldestLinesDropped() throws InterruptedException {
+    ErrorStreamDrainer drainer = drain("1\n2\n3\n4\n5\n", 3);
+
+    drainer.logPending(LOG);
+
+    assertThat(appender.getWarningEvents()).containsExactly(
+      "SCM-TFVC: 2 lines of the error output of the TFVC annotate command were dropped");
+    assertThat(appender.getErrorEvents()).containsExactly("SCM-TFVC: 3\r\n4\r\n5\r\n");
+  }
+
+  @Test(timeout = 5000)
+  public void logPending_loggedOnce() throws InterruptedException {
+    ErrorStreamDrainer drainer = drain("100% failed\n", 10);
+
+    drainer.logPending(LOG);
+    drainer.logPending(LOG);
+
+    assertThat(appender.getErrorEvents()).containsExactly("SCM-TFVC: 100% failed\r\n");
+  }
+
+  @Test(timeout = 5000)
+  public void drain_longLine_truncated() throws InterruptedException {
+    StringBuilder line = new StringBuilder();
+    for (int i = 0; i < ErrorStreamDrainer.MAX_LINE_LENGTH + 10; i++) {
+      line.append('x');
+    }
+    ErrorStreamDrainer drainer = drain(line + "\n", 10);
+
+    assertThat(drainer.takeMessage(null)).hasSize(ErrorStreamDrainer.MAX_LINE_LENGTH);
+  }
+
+  private static ErrorStreamDrainer drain(String errorOutput, int capacity) throws InterruptedException {
+    ErrorStreamDrainer drainer = new ErrorStreamDrainer(new ByteArrayInputStream(errorOutput.getBytes(StandardCharsets.UTF_8)),
+      StandardCharsets.UTF_8, capacity);
+    drainer.awaitEnd(5000);
+    return drainer;
+  }
+
+  private static Logger getRootLogger() {
+    Logger rootLogger = (Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME);
+    return rootLogger.getLoggerContext().getLogger(Logger.ROOT_LOGGER_NAME);
+  }
+}
@@ -0,0 +1,192 @@
+/*
+ * SonarQube :: SCM :: TFVC :: Plugin
+ * Copyright (c) SonarSource SA and Microsoft Corporation.  All rights reserved.
+ *
+ * Licensed under the MIT License. See License.txt in the project root for license information.
+ */
+package org.sonar.plugins.scm.tfs;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.sonar.api.batch.scm.BlameLine;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class HistoryAnnotatorTest {
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  private final HistoryAnnotator annotator = new HistoryAnnotator();
+  private final ChangesetPool pool = new ChangesetPool();
+
+  @Test
+  public void annotate_history_linesAttributedToIntroducingRevisions() throws Exception {
+    Fixture history = new Fixture()
+      .revision(30, "carol", "x", "a", "B", "c", "d")
+      .revision(20, "bob", "a", "B", "c", "d")
+      .revision(10, "alice", "a", "b", "c");
+
+    List<BlameLine> lines = annotator.annotate(hashes("x", "a", "B", "c", "d"), history, pool);
+
+    assertThat(revisions(lines)).containsExactly("30", "10", "20", "10", "20");
+    assertThat(lines.get(0).author()).isEqualTo("carol");
+    assertThat(lines.get(0).date().getTime()).isEqualTo(30_000L);
+    assertThat(lines.get(1).author()).isEqualTo("alice");
+    assertThat(annotator.revisionsCompared()).isEqualTo(3);
+  }
+
+  @Test
+  public void annotate_allLinesAttributed_olderRevisionsNotRead() throws Exception {
+    Fixture history = new Fixture()
+      .revision(4, "bob", "new 1", "new 2")
+      .revision(3, "alice", "old")
+      .revision(2, "alice", "older")
+      .revision(1, "alice", "oldest");
+
+    List<BlameLine> lines = annotator.annotate(hashes("new 1", "new 2"), history, pool);
+
+    assertThat(revisions(lines)).containsExactly("4", "4");
+    assertThat(history.read).isEqualTo(2);
+  }
+
+  @Test
+  public void annotate_unchangedContent_attributedToOlderRevision() throws Exception {
+    Fixture history = new Fixture()
+      .revision(3, "carol", "a", "b")
+      .revision(2, "bob", "a", "b")
+      .revision(1, "alice", "a");
+
+    assertThat(revisions(annotator.annotate(hashes("a", "b"), history, pool))).containsExactly("1", "2");
+  }
+
+  @Test
+  public void annotate_historyEndsFirst_remainingLinesAttributedToOldestRevision() throws Exception {
+    Fixture history = new Fixture()
+      .revision(7, "bob", "a", "b", "c")
+      .revision(6, "alice", "a", "c");
+
+    assertThat(revisions(annotator.annotate(hashes("a", "b", "c"), history, pool))).containsExactly("6", "7", "6");
+  }
+
+  @Test
+  public void annotate_pendingChanges_exceptionThrown() throws Exception {
+    Fixture history = new Fixture().revision(1, "alice", "a", "b", "c");
+
+    thrown.expect(HistoryAnnotator.UnannotatedFileException.class);
+    thrown.expectMessage("Line 2 has not yet been checked-in.");
+
+    annotator.annotate(hashes("a", "changed", "c", "added"), history, pool);
+  }
+
+  @Test
+  public void annotate_noRevision_exceptionThrown() throws Exception {
+    thrown.expect(HistoryAnnotator.UnannotatedFileException.class);
+    thrown.expectMessage("The file is not yet checked-in.");
+
+    annotator.annotate(hashes("a"), new Fixture(), pool);
+  }
+
+  @Test
+  public void annotate_emptyFile_noLines() throws Exception {
+    assertThat(annotator.annotate(new long[0], new Fixture().revision(1, "alice"), pool)).isEmpty();
+  }
+
+  @Test
+  public void annotate_sameChangesets_sharedLines() throws Exception {
+    Fixture history = new Fixture().revision(2, "bob", "a", "b").revision(1, "alice", "a");
+
+    List<BlameLine> first = annotator.annotate(hashes("a", "b"), history, pool);
+    List<BlameLine> second = annotator.annotate(hashes("a", "b"),
+      new Fixture().revision(2, "bob", "a", "b").revision(1, "alice", "a"), pool);
+
+    assertThat(second.get(0)).isSameAs(first.get(0));
+    assertThat(second.get(1)).isSameAs(first.get(1));
+  }
+
+  /**
+   * Replays random edits on lines which are all distinct, so that the changeset introducing each line is known.
+   */
+  @Test(timeout = 20000)
+  public void annotate_thousandsOfRandomRevisions_introducingChangesetsFound() throws Exception {
+    Random random = new Random(42);
+    for (int run = 0; run < 5; run++) {
+      List<String> content = new ArrayList<>();
+      List<long[]> revisions = new ArrayList<>();
+      int changesets = 1000 + random.nextInt(1000);
+      for (int changeset = 1; changeset <= changesets; changeset++) {
+        edit(random, content, changeset);
+        revisions.add(LineHashes.of(new StringReader(String.join("\n", content))));
+      }
+      Fixture history = new Fixture();
+      for (int changeset = changesets; changeset >= 1; changeset--) {
+        history.revision(changeset, "author", revisions.get(changeset - 1));
+      }
+
+      List<BlameLine> lines = annotator.annotate(revisions.get(changesets - 1), history, pool);
+
+      List<String> expected = new ArrayList<>();
+      content.forEach(line -> expected.add(line.substring(0, line.indexOf(':'))));
+      assertThat(revisions(lines)).isEqualTo(expected);
+      assertThat(history.read).isLessThanOrEqualTo(changesets);
+    }
+  }
+
+  /**
+   * Inserts, replaces or deletes a few lines, each new line being "changeset:unique number".
+   */
+  private static void edit(Random random, List<String> content, int changeset) {
+    int edits = 1 + random.nextInt(3);
+    for (int i = 0; i < edits; i++) {
+      int position = content.isEmpty() ? 0 : random.nextInt(content.size());
+      int action = content.size() < 5 ? 0 : random.nextInt(3);
+      if (action == 0) {
+        content.add(position, changeset + ":" + i);
+      } else if (action == 1) {
+        content.set(position, changeset + ":" + i);
+      } else {
+        content.remove(position);
+      }
+    }
+  }
+
+  private static long[] hashes(String... lines) throws IOException {
+    return LineHashes.of(new StringReader(String.join("\n", lines)));
+  }
+
+  private static List<String> revisions(List<BlameLine> lines) {
+    List<String> result = new ArrayList<>();
+    lines.forEach(line -> result.add(line.revision()));
+    return result;
+  }
+
+  /**
+   * Revisions held in memory, newest first.
+   */
+  private static final class Fixture implements RevisionSource {
+
+    private final List<Revision> revisions = new ArrayList<>();
+    private int read;
+
+    Fixture revision(long changeset, String author, String... lines) throws IOException {
+      return revision(changeset, author, lines.length > 0 ? hashes(lines) : new long[0]);
+    }
+
+    Fixture revision(long changeset, String author, long[] lines) {
+      revisions.add(new Revision(changeset, author, changeset * 1000, Arrays.copyOf(lines, lines.length)));
+      return this;
+    }
+
+    @Override
+    public Revision next() {
+      return read < revisions.size() ? revisions.get(read++) : null;
+    }
+  }
+}
@@ -0,0 +1,128 @@
+/*
+ * SonarQube :: SCM :: TFVC :: Plugin
+ * Copyright (c) SonarSource SA and Microsoft Corporation.  All rights reserved.
+ *
+ * Licensed under the MIT License. See License.txt in the project root for license information.
+ */
+package org.sonar.plugins.scm.tfs;
+
+import java.util.Random;
+import java.util.Set;
+import org.junit.Test;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class LineDiffTest {
+
+  private final LineDiff diff = new LineDiff();
+
+  @Test
+  public void addedLines_identical_none() {
+    assertThat(diff.addedLines(lines(1, 2, 3), lines(1, 2, 3))).isEmpty();
+    assertThat(diff.addedLines(lines(), lines())).isEmpty();
+  }
+
+  @Test
+  public void addedLines_newFile_allLines() {
+    assertThat(diff.addedLines(lines(), lines(1, 2, 3))).containsOnly(1, 2, 3);
+  }
+
+  @Test
+  public void addedLines_deletedLines_none() {
+    assertThat(diff.addedLines(lines(1, 2, 3, 4), lines(1, 4))).isEmpty();
+  }
+
+  @Test
+  public void addedLines_insertedAndReplaced_onlyThoseLines() {
+    assertThat(diff.addedLines(lines(1, 2, 3, 4, 5), lines(1, 9, 3, 8, 4, 5, 7))).containsOnly(2, 4, 7);
+    assertThat(diff.addedLines(lines(1, 2, 3), lines(3, 2, 1))).hasSize(2);
+  }
+
+  @Test
+  public void addedLines_random_minimalAndConsistent() {
+    Random random = new Random(42);
+    for (int run = 0; run < 500; run++) {
+      long[] base = randomLines(random, random.nextInt(40));
+      long[] current = randomLines(random, random.nextInt(40));
+
+      Set<Integer> added = diff.addedLines(base, current);
+
+      // the remaining lines are a common subsequence of maximal length
+      assertThat(added.size()).isEqualTo(current.length - lcsLength(base, current));
+      int position = 0;
+      for (int line = 1; line <= current.length; line++) {
+        if (!added.contains(line)) {
+          while (base[position] != current[line - 1]) {
+            position++;
+          }
+          position++;
+        }
+      }
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void addedLines_millionLinesFewChanges_fast() {
+    long[] base = new long[1_000_000];
+    for (int i = 0; i < base.length; i++) {
+      base[i] = i;
+    }
+    long[] current = base.clone();
+    current[10] = -1;
+    current[500_000] = -2;
+    current[999_999] = -3;
+
+    assertThat(diff.addedLines(base, current)).containsOnly(11, 500_001, 1_000_000);
+  }
+
+  @Test
+  public void baseLines_insertedAndReplaced_keptLinesMapped() {
+    assertThat(diff.baseLines(lines(1, 2, 3, 4, 5), lines(1, 9, 3, 8, 4, 5, 7))).isEqualTo(new int[] {0, -1, 2, -1, 3, 4, -1});
+    assertThat(diff.baseLines(lines(), lines(1, 2))).isEqualTo(new int[] {-1, -1});
+    assertThat(diff.baseLines(lines(1, 2), lines())).isEqualTo(new int[0]);
+  }
+
+  @Test
+  public void baseLines_random_consistentWithAddedLines() {
+    Random random = new Random(7);
+    for (int run = 0; run < 500; run++) {
+      long[] base = randomLines(random, random.nextInt(40));
+      long[] current = randomLines(random, random.nextInt(40));
+
+      int[] matches = diff.baseLines(base, current);
+      Set<Integer> added = diff.addedLines(base, current);
+
+      int previous = -1;
+      for (int line = 0; line < current.length; line++) {
+        assertThat(matches[line] < 0).isEqualTo(added.contains(line + 1));
+        if (matches[line] >= 0) {
+          assertThat(base[matches[line]]).isEqualTo(current[line]);
+          assertThat(matches[line]).isGreaterThan(previous);
+          previous = matches[line];
+        }
+      }
+    }
+  }
+
+  private static long[] lines(long... hashes) {
+    return hashes;
+  }
+
+  private static long[] randomLines(Random random, int count) {
+    long[] lines = new long[count];
+    for (int i = 0; i < count; i++) {
+      lines[i] = random.nextInt(5);
+    }
+    return lines;
+  }
+
+  private static int lcsLength(long[] a, long[] b) {
+    int[][] lengths = new int[a.length + 1][b.length + 1];
+    for (int i = a.length - 1; i >= 0; i--) {
+      for (int j = b.length - 1; j >= 0; j--) {
+        lengths[i][j] = a[i] == b[j] ? lengths[i + 1][j + 1] + 1 : Math.max(lengths[i + 1][j], lengths[i][j + 1]);
+      }
+    }
+    return lengths[0][0];
+  }
+}
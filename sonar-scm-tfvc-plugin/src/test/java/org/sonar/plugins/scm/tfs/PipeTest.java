@@ -0,0 +1,95 @@
+/*
+ * SonarQube :: SCM :: TFVC :: Plugin
+ * Copyright (c) SonarSource SA and Microsoft Corporation.  All rights reserved.
+ *
+ * Licensed under the MIT License. See License.txt in the project root for license information.
+ */
+package org.sonar.plugins.scm.tfs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import org.junit.Test;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.fest.assertions.Fail.fail;
+
+public class PipeTest {
+
+  @Test(timeout = 10000)
+  public void read_readerThreadEnded_writesAccepted() throws Exception {
+    Pipe pipe = new Pipe(4);
+    pipe.output().write('a');
+
+    Thread reader = new Thread(() -> read(pipe.input(), 1));
+    reader.start();
+    reader.join();
+    pipe.output().write('b');
+
+    assertThat(pipe.input().read()).isEqualTo('b');
+  }
+
+  @Test(timeout = 10000)
+  public void write_moreThanSize_blocksUntilRead() throws Exception {
+    Pipe pipe = new Pipe(4);
+    byte[] data = new byte[1000];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) i;
+    }
+    Thread writer = new Thread(() -> {
+      try (OutputStream output = pipe.output()) {
+        output.write(data, 0, data.length);
+      } catch (IOException e) {
+        throw new IllegalStateException(e);
+      }
+    });
+    writer.start();
+
+    byte[] read = read(pipe.input(), data.length + 1);
+    writer.join();
+
+    assertThat(Arrays.equals(read, data)).isTrue();
+  }
+
+  @Test(timeout = 10000)
+  public void read_writerClosed_remainingBytesThenEndOfStream() throws IOException {
+    Pipe pipe = new Pipe(4);
+    pipe.output().write(new byte[] {1, 2}, 0, 2);
+    pipe.output().close();
+
+    byte[] bytes = new byte[4];
+    assertThat(pipe.input().read(bytes, 0, 4)).isEqualTo(2);
+    assertThat(pipe.input().read(bytes, 0, 4)).isEqualTo(-1);
+  }
+
+  @Test(timeout = 10000)
+  public void write_readerClosed_fails() throws IOException {
+    Pipe pipe = new Pipe(4);
+    pipe.input().close();
+
+    try {
+      pipe.output().write(1);
+      fail("the pipe is closed");
+    } catch (IOException e) {
+      assertThat(e.getMessage()).isEqualTo("Pipe closed");
+    }
+  }
+
+  /**
+   * Reads up to the given number of bytes or the end of the stream.
+   */
+  private static byte[] read(InputStream input, int length) {
+    byte[] bytes = new byte[length];
+    int read = 0;
+    try {
+      int count;
+      while (read < length && (count = input.read(bytes, read, length - read)) > 0) {
+        read += count;
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    return Arrays.copyOf(bytes, read);
+  }
+}
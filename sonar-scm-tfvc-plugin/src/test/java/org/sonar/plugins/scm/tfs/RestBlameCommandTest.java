@@ -0,0 +1,355 @@
+/*
+ * SonarQube :: SCM :: TFVC :: Plugin
+ * Copyright (c) SonarSource SA and Microsoft Corporation.  All rights reserved.
+ *
+ * Licensed under the MIT License. See License.txt in the project root for license information.
+ */
+package org.sonar.plugins.scm.tfs;
+
+import ch.qos.logback.classic.Logger;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import org.slf4j.LoggerFactory;
+import org.sonar.api.batch.fs.FileSystem;
+import org.sonar.api.batch.fs.InputFile;
+import org.sonar.api.batch.fs.internal.TestInputFileBuilder;
+import org.sonar.api.batch.scm.BlameCommand.BlameInput;
+import org.sonar.api.batch.scm.BlameCommand.BlameOutput;
+import org.sonar.api.batch.scm.BlameLine;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonar.plugins.scm.tfs.helpers.FakeTfvcServer;
+import org.sonar.plugins.scm.tfs.helpers.TestAppender;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class RestBlameCommandTest {
+
+  private static final String SERVER_PATH = "$/Project/Main";
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  private final MapSettings settings = new MapSettings();
+  private final TfsConfiguration configuration = new TfsConfiguration(settings.asConfig());
+  private FakeTfvcServer server;
+  private Path baseDir;
+  private TestAppender appender;
+
+  @Before
+  public void setup() throws IOException {
+    server = new FakeTfvcServer();
+    baseDir = temp.newFolder("base").toPath();
+    settings.setProperty("sonar.tfvc.collectionuri", server.collectionUri());
+    settings.setProperty("sonar.tfvc.serverpath", SERVER_PATH);
+    appender = new TestAppender();
+    getRootLogger().addAppender(appender);
+  }
+
+  @After
+  public void tearDown() {
+    getRootLogger().detachAppender(appender);
+    server.close();
+  }
+
+  @Test(timeout = 10000)
+  public void blame_history_linesAttributedToIntroducingChangesets() throws IOException {
+    server.checkin(SERVER_PATH + "/src/Foo.java", 10, "alice", "2019-01-01T10:00:00Z", "a\nb\nc\n")
+      .checkin(SERVER_PATH + "/src/Foo.java", 20, "bob", "2019-02-01T10:00:00.123Z", "a\nB\nc\nd\n")
+      .checkin(SERVER_PATH + "/src/Foo.java", 30, "carol", "2019-03-01T11:00:00+01:00", "x\na\nB\nc\nd\n");
+    InputFile inputFile = file("src/Foo.java", "x\na\nB\nc\nd\n");
+    BlameOutput output = mock(BlameOutput.class);
+
+    new RestBlameCommand(configuration).blame(input(inputFile), output);
+
+    List<BlameLine> lines = result(output, inputFile);
+    assertThat(revisions(lines)).containsExactly("30", "10", "20", "10", "20", "20");
+    assertThat(lines.get(0).author()).isEqualTo("carol");
+    assertThat(lines.get(0).date()).isEqualTo(Date.from(Instant.parse("2019-03-01T10:00:00Z")));
+    assertThat(lines.get(1).author()).isEqualTo("alice");
+    assertThat(lines.get(2).date()).isEqualTo(Date.from(Instant.parse("2019-02-01T10:00:00.123Z")));
+    assertThat(appender.getErrorEvents()).isEmpty();
+  }
+
+  @Test(timeout = 10000)
+  public void blame_allLinesAttributed_olderRevisionsNotFetched() throws IOException {
+    for (int changeset = 1; changeset <= 150; changeset++) {
+      server.checkin(SERVER_PATH + "/Rewritten.java", changeset, "alice", "2019-01-01T10:00:00Z", "version " + changeset + "\n");
+    }
+    InputFile inputFile = file("Rewritten.java", "version 150\n");
+    BlameOutput output = mock(BlameOutput.class);
+
+    new RestBlameCommand(configuration).blame(input(inputFile), output);
+
+    assertThat(revisions(result(output, inputFile))).containsExactly("150", "150");
+    assertThat(server.historyRequests()).isEqualTo(1);
+    assertThat(server.contentRequests()).isLessThanOrEqualTo(2 + RestBlameCommand.PREFETCHED_REVISIONS);
+  }
+
+  @Test(timeout = 20000)
+  public void blame_longHistory_pagedUntilAllLinesAttributed() throws IOException {
+    StringBuilder content = new StringBuilder();
+    List<String> expected = new ArrayList<>();
+    for (int changeset = 1; changeset <= 250; changeset++) {
+      content.append("line ").append(changeset).append('\n');
+      expected.add(Integer.toString(changeset));
+      server.checkin(SERVER_PATH + "/Growing.java", changeset, "alice", "2019-01-01T10:00:00Z", content.toString());
+    }
+    expected.add("250");
+    InputFile inputFile = file("Growing.java", content.toString());
+    BlameOutput output = mock(BlameOutput.class);
+
+    new RestBlameCommand(configuration).blame(input(inputFile), output);
+
+    assertThat(revisions(result(output, inputFile))).isEqualTo(expected);
+    assertThat(server.historyRequests()).isEqualTo(3);
+    assertThat(server.contentRequests()).isEqualTo(250);
+  }
+
+  @Test(timeout = 10000)
+  public void blame_localChanges_fileNotAnnotated() throws IOException {
+    server.checkin(SERVER_PATH + "/Foo.java", 10, "alice", "2019-01-01T10:00:00Z", "a\nb\n");
+    InputFile inputFile = file("Foo.java", "a\nchanged\n");
+    BlameOutput output = mock(BlameOutput.class);
+
+    new RestBlameCommand(configuration).blame(input(inputFile), output);
+
+    verify(output, never()).blameResult(any(), any());
+    assertThat(appender.getErrorEvents()).containsExactly(
+      "SCM-TFVC: Unable to annotate the file $/Project/Main/Foo.java: Line 2 has not yet been checked-in.");
+  }
+
+  @Test(timeout = 10000)
+  public void blame_noHistory_fileNotAnnotated() throws IOException {
+    InputFile inputFile = file("Added.java", "a\n");
+    BlameOutput output = mock(BlameOutput.class);
+
+    new RestBlameCommand(configuration).blame(input(inputFile), output);
+
+    verify(output, never()).blameResult(any(), any());
+    assertThat(appender.getErrorEvents()).containsExactly(
+      "SCM-TFVC: Unable to annotate the file $/Project/Main/Added.java: The file is not yet checked-in.");
+  }
+
+  @Test(timeout = 10000)
+  public void blame_pat_sentAsBasicAuthorization() throws IOException {
+    String authorization = "Basic " + Base64.getEncoder().encodeToString(":secret".getBytes(StandardCharsets.UTF_8));
+    server.requireAuthorization(authorization)
+      .checkin(SERVER_PATH + "/Foo.java", 10, "alice", "2019-01-01T10:00:00Z", "a\n");
+    settings.setProperty("sonar.tfvc.pat.secured", "secret");
+    InputFile inputFile = file("Foo.java", "a\n");
+    BlameOutput output = mock(BlameOutput.class);
+
+    new RestBlameCommand(configuration).blame(input(inputFile), output);
+
+    assertThat(revisions(result(output, inputFile))).containsExactly("10", "10");
+    assertThat(server.authorizations()).containsOnly(authorization);
+  }
+
+  @Test(timeout = 10000)
+  public void blame_unauthorized_remainingFilesNotAnnotated() throws IOException {
+    server.requireAuthorization("Basic other");
+    settings.setProperty("sonar.tfvc.pat.secured", "secret");
+    List<InputFile> files = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      server.checkin(SERVER_PATH + "/File" + i + ".java", 10, "alice", "2019-01-01T10:00:00Z", "a\n");
+      files.add(file("File" + i + ".java", "a\n"));
+    }
+    BlameOutput output = mock(BlameOutput.class);
+
+    new RestBlameCommand(configuration).blame(input(files), output);
+
+    verify(output, never()).blameResult(any(), any());
+    assertThat(server.authorizations()).hasSize(1);
+    assertThat(appender.getErrorEvents()).hasSize(1);
+    assertThat(appender.getErrorEvents().get(0))
+      .startsWith("SCM-TFVC: The collection refused the credentials, the remaining files are not annotated: HTTP 401 from ");
+  }
+
+  @Test(timeout = 10000)
+  public void blame_missingServerPath_errorLogged() throws IOException {
+    settings.removeProperty("sonar.tfvc.serverpath");
+    InputFile inputFile = file("Foo.java", "a\n");
+    BlameOutput output = mock(BlameOutput.class);
+
+    new RestBlameCommand(configuration).blame(input(inputFile), output);
+
+    verify(output, never()).blameResult(any(), any());
+    assertThat(server.historyRequests()).isEqualTo(0);
+    assertThat(appender.getErrorEvents()).containsExactly(
+      "SCM-TFVC: The REST engine requires the collection URI and the server path of the project, the files are not annotated");
+  }
+
+  @Test(timeout = 10000)
+  public void blame_noFileSystem_errorLogged() throws IOException {
+    InputFile inputFile = file("Foo.java", "a\n");
+    BlameInput input = mock(BlameInput.class);
+    when(input.filesToBlame()).thenReturn(Collections.singletonList(inputFile));
+    BlameOutput output = mock(BlameOutput.class);
+
+    new RestBlameCommand(configuration).blame(input, output);
+
+    verify(output, never()).blameResult(any(), any());
+    assertThat(appender.getErrorEvents()).containsExactly(
+      "SCM-TFVC: The REST engine requires the base directory of the project, the files are not annotated");
+  }
+
+  @Test(timeout = 10000)
+  public void blame_budgetUsedUp_oldestFilesSkipped() throws IOException {
+    settings.setProperty("sonar.tfvc.budget", "1");
+    settings.setProperty("sonar.tfvc.workers", "1");
+    server.delayHistory(1200);
+    List<InputFile> files = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      server.checkin(SERVER_PATH + "/File" + i + ".java", 10, "alice", "2019-01-01T10:00:00Z", "a\n");
+      InputFile inputFile = file("File" + i + ".java", "a\n");
+      Files.setLastModifiedTime(Paths.get(inputFile.uri()), FileTime.fromMillis(1_000_000L * (i + 1)));
+      files.add(inputFile);
+    }
+    BlameOutput output = mock(BlameOutput.class);
+
+    new RestBlameCommand(configuration).blame(input(files), output);
+
+    assertThat(revisions(result(output, files.get(2)))).containsExactly("10", "10");
+    verify(output, never()).blameResult(eq(files.get(1)), any());
+    verify(output, never()).blameResult(eq(files.get(0)), any());
+    assertThat(appender.getWarningEvents()).containsExactly(
+      "SCM-TFVC: The blame budget of 1 s was used up, 2 files are not annotated: "
+        + AnnotatorSession.pathOf(files.get(1)) + ", " + AnnotatorSession.pathOf(files.get(0)));
+  }
+
+  @Test(timeout = 20000)
+  public void blame_severalWorkers_allFilesAnnotatedAndReported() throws IOException {
+    settings.setProperty("sonar.tfvc.workers", "4");
+    List<InputFile> files = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      String path = "src/File" + i + ".java";
+      server.checkin(SERVER_PATH + "/" + path, 10, "alice", "2019-01-01T10:00:00Z", "a\nb\n")
+        .checkin(SERVER_PATH + "/" + path, 20 + i, "bob", "2019-02-01T10:00:00Z", "a\nb\nfile " + i + "\n");
+      files.add(file(path, "a\nb\nfile " + i + "\n"));
+    }
+    BlameOutput output = mock(BlameOutput.class);
+
+    new RestBlameCommand(configuration).blame(input(files), output);
+
+    for (int i = 0; i < files.size(); i++) {
+      assertThat(revisions(result(output, files.get(i)))).containsExactly("10", "10", Integer.toString(20 + i), Integer.toString(20 + i));
+    }
+    String report = new String(Files.readAllBytes(temp.getRoot().toPath().resolve(BlameMetrics.REPORT_FILE_NAME)),
+      StandardCharsets.UTF_8);
+    assertThat(report).contains("\"annotated\":20").contains("\"failed\":0");
+  }
+
+  @Test(timeout = 10000)
+  public void blame_cacheEnabled_onlyChangedItemsAndEditedFilesAnnotatedAgain() throws IOException {
+    settings.setProperty("sonar.tfvc.cache.enabled", "true");
+    server.checkin(SERVER_PATH + "/Same.java", 10, "alice", "2019-01-01T10:00:00Z", "a\n")
+      .checkin(SERVER_PATH + "/Changed.java", 11, "alice", "2019-01-01T10:00:00Z", "a\n")
+      .checkin(SERVER_PATH + "/Edited.java", 12, "alice", "2019-01-01T10:00:00Z", "a\n");
+    List<InputFile> files = new ArrayList<>();
+    files.add(file("Same.java", "a\n"));
+    files.add(file("Changed.java", "a\n"));
+    files.add(file("Edited.java", "a\n"));
+    new RestBlameCommand(configuration).blame(input(files), mock(BlameOutput.class));
+    assertThat(server.historyPaths()).hasSize(3);
+
+    server.historyPaths().clear();
+    server.checkin(SERVER_PATH + "/Changed.java", 20, "bob", "2019-02-01T10:00:00Z", "a\nb\n");
+    files.set(1, file("Changed.java", "a\nb\n"));
+    files.set(2, file("Edited.java", "a\nedited\n"));
+    BlameOutput output = mock(BlameOutput.class);
+    new RestBlameCommand(configuration).blame(input(files), output);
+
+    assertThat(revisions(result(output, files.get(0)))).containsExactly("10", "10");
+    assertThat(revisions(result(output, files.get(1)))).containsExactly("11", "20", "20");
+    assertThat(server.historyPaths()).containsOnly(SERVER_PATH + "/Changed.java", SERVER_PATH + "/Edited.java");
+    assertThat(server.itemsRequests()).isEqualTo(2);
+    assertThat(appender.getInfoEvents()).contains(
+      "SCM-TFVC: changeset watermark 12: 1 files unchanged, 1 changed on the server, 1 edited locally");
+  }
+
+  @Test(timeout = 10000)
+  public void blame_cacheEnabledAndContentRestored_annotatedAgain() throws IOException {
+    settings.setProperty("sonar.tfvc.cache.enabled", "true");
+    server.checkin(SERVER_PATH + "/Foo.java", 10, "alice", "2019-01-01T10:00:00Z", "a\n");
+    InputFile inputFile = file("Foo.java", "a\n");
+    new RestBlameCommand(configuration).blame(input(inputFile), mock(BlameOutput.class));
+
+    // the content is the cached one, but the rollback is the last change of its lines
+    server.checkin(SERVER_PATH + "/Foo.java", 20, "bob", "2019-02-01T10:00:00Z", "b\n")
+      .checkin(SERVER_PATH + "/Foo.java", 30, "carol", "2019-03-01T10:00:00Z", "a\n");
+    BlameOutput output = mock(BlameOutput.class);
+    new RestBlameCommand(configuration).blame(input(inputFile), output);
+
+    assertThat(revisions(result(output, inputFile))).containsExactly("30", "30");
+    assertThat(BlameWatermark.load(BlameWatermark.of(temp.getRoot().toPath().resolve("tfvc-blame.cache")),
+      server.collectionUri(), SERVER_PATH).changeset()).isEqualTo(30);
+  }
+
+  private InputFile file(String relativePath, String content) throws IOException {
+    Path path = baseDir.resolve(relativePath);
+    Files.createDirectories(path.getParent());
+    Files.write(path, content.getBytes(StandardCharsets.UTF_8));
+    return new TestInputFileBuilder("module", relativePath)
+      .setModuleBaseDir(baseDir)
+      .setCharset(StandardCharsets.UTF_8)
+      .initMetadata(content)
+      .build();
+  }
+
+  private BlameInput input(InputFile inputFile) {
+    List<InputFile> files = new ArrayList<>();
+    files.add(inputFile);
+    return input(files);
+  }
+
+  private BlameInput input(List<InputFile> files) {
+    FileSystem fileSystem = mock(FileSystem.class);
+    when(fileSystem.baseDir()).thenReturn(baseDir.toFile());
+    when(fileSystem.workDir()).thenReturn(temp.getRoot());
+    BlameInput input = mock(BlameInput.class);
+    when(input.filesToBlame()).thenReturn(files);
+    when(input.fileSystem()).thenReturn(fileSystem);
+    return input;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static List<BlameLine> result(BlameOutput output, InputFile inputFile) {
+    ArgumentCaptor<List<BlameLine>> captor = ArgumentCaptor.forClass(List.class);
+    verify(output, times(1)).blameResult(eq(inputFile), captor.capture());
+    return captor.getValue();
+  }
+
+  private static List<String> revisions(List<BlameLine> lines) {
+    List<String> result = new ArrayList<>();
+    lines.forEach(line -> result.add(line.revision()));
+    return result;
+  }
+
+  private static Logger getRootLogger() {
+    Logger rootLogger = (Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME);
+    return rootLogger.getLoggerContext().getLogger(Logger.ROOT_LOGGER_NAME);
+  }
+}
@@ -0,0 +1,249 @@
+/*
+ * SonarQube :: SCM :: TFVC :: Plugin
+ * Copyright (c) SonarSource SA and Microsoft Corporation.  All rights reserved.
+ *
+ * Licensed under the MIT License. See License.txt in the project root for license information.
+ */
+package org.sonar.plugins.scm.tfs;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.batch.scm.BlameLine;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class SharedBlameCacheTest {
+
+  private static final HashCode HASH = HashCode.fromString("0123456789abcdef0123456789abcdef");
+  private static final HashCode OTHER_HASH = HashCode.fromString("fedcba9876543210fedcba9876543210");
+  private static final long MAX_SIZE = 1024 * 1024;
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  private final List<SharedBlameCache> opened = new ArrayList<>();
+
+  @After
+  public void tearDown() {
+    opened.forEach(SharedBlameCache::close);
+  }
+
+  @Test
+  public void get_storedEntry_linesReturned() throws IOException {
+    SharedBlameCache cache = open(MAX_SIZE);
+    cache.put("$/Project/Main/a.txt", 26275, HASH, sampleLines());
+
+    assertThat(cache.get("$/Project/Main/a.txt", 26275, HASH, new ChangesetPool())).isEqualTo(sampleLines());
+    assertThat(cache.hits()).isEqualTo(1);
+    assertThat(cache.misses()).isEqualTo(0);
+    assertThat(cache.entries()).isEqualTo(1);
+  }
+
+  @Test
+  public void get_otherPathChangesetOrContent_miss() throws IOException {
+    SharedBlameCache cache = open(MAX_SIZE);
+    cache.put("$/Project/Main/a.txt", 26275, HASH, sampleLines());
+
+    assertThat(cache.get("$/Project/Dev/a.txt", 26275, HASH, new ChangesetPool())).isNull();
+    assertThat(cache.get("$/Project/Main/a.txt", 26276, HASH, new ChangesetPool())).isNull();
+    assertThat(cache.get("$/Project/Main/a.txt", 26275, OTHER_HASH, new ChangesetPool())).isNull();
+    assertThat(cache.misses()).isEqualTo(3);
+  }
+
+  @Test
+  public void get_storedByOtherInstance_linesReturned() throws IOException {
+    SharedBlameCache writer = open(MAX_SIZE);
+    SharedBlameCache reader = open(MAX_SIZE);
+    writer.put("$/Project/Main/a.txt", 26275, HASH, sampleLines());
+    writer.close();
+
+    assertThat(reader.get("$/Project/Main/a.txt", 26275, HASH, new ChangesetPool())).isEqualTo(sampleLines());
+    assertThat(open(MAX_SIZE).get("$/Project/Main/a.txt", 26275, HASH, new ChangesetPool())).isEqualTo(sampleLines());
+  }
+
+  @Test
+  public void put_sizeExceeded_leastRecentlyUsedEvicted() throws IOException {
+    SharedBlameCache probe = SharedBlameCache.open(temp.newFolder().toPath(), MAX_SIZE);
+    probe.put("$/a.txt", 1, HASH, sampleLines());
+    long entrySize = probe.size();
+    probe.close();
+    SharedBlameCache cache = open(3 * entrySize);
+    cache.put("$/a.txt", 1, HASH, sampleLines());
+    cache.put("$/b.txt", 1, HASH, sampleLines());
+    cache.put("$/c.txt", 1, HASH, sampleLines());
+    cache.get("$/a.txt", 1, HASH, new ChangesetPool());
+
+    cache.put("$/d.txt", 1, HASH, sampleLines());
+
+    assertThat(cache.get("$/b.txt", 1, HASH, new ChangesetPool())).isNull();
+    assertThat(cache.get("$/a.txt", 1, HASH, new ChangesetPool())).isNotNull();
+    assertThat(cache.get("$/d.txt", 1, HASH, new ChangesetPool())).isNotNull();
+    assertThat(cache.size()).isLessThanOrEqualTo(3 * entrySize);
+    assertThat(entryFiles()).hasSize(cache.entries());
+  }
+
+  @Test
+  public void put_probedSlotsTaken_leastRecentlyUsedReplaced() throws IOException {
+    SharedBlameCache cache = SharedBlameCache.open(temp.getRoot().toPath(), MAX_SIZE, 16);
+    opened.add(cache);
+    for (int i = 0; i < 16; i++) {
+      cache.put("$/" + i + ".txt", 1, HASH, sampleLines());
+    }
+    cache.get("$/0.txt", 1, HASH, new ChangesetPool());
+
+    cache.put("$/16.txt", 1, HASH, sampleLines());
+
+    assertThat(cache.entries()).isEqualTo(16);
+    assertThat(cache.get("$/1.txt", 1, HASH, new ChangesetPool())).isNull();
+    assertThat(cache.get("$/0.txt", 1, HASH, new ChangesetPool())).isNotNull();
+    assertThat(cache.get("$/16.txt", 1, HASH, new ChangesetPool())).isNotNull();
+  }
+
+  @Test
+  public void get_damagedEntryFile_missAndRemoved() throws IOException {
+    SharedBlameCache cache = open(MAX_SIZE);
+    cache.put("$/a.txt", 1, HASH, sampleLines());
+    Path entry = entryFiles().get(0);
+    byte[] content = Files.readAllBytes(entry);
+    Files.write(entry, Arrays.copyOf(content, content.length / 2));
+
+    assertThat(cache.get("$/a.txt", 1, HASH, new ChangesetPool())).isNull();
+    assertThat(cache.entries()).isEqualTo(0);
+    assertThat(cache.size()).isEqualTo(0);
+  }
+
+  @Test
+  public void open_indexOfOtherFormat_reset() throws IOException {
+    SharedBlameCache cache = open(MAX_SIZE);
+    cache.put("$/a.txt", 1, HASH, sampleLines());
+    cache.close();
+    Files.write(temp.getRoot().toPath().resolve(SharedBlameCache.INDEX_FILE_NAME), "not an index".getBytes(StandardCharsets.UTF_8));
+
+    SharedBlameCache reset = open(MAX_SIZE);
+
+    assertThat(reset.entries()).isEqualTo(0);
+    assertThat(reset.get("$/a.txt", 1, HASH, new ChangesetPool())).isNull();
+    assertThat(entryFiles()).isEmpty();
+    reset.put("$/a.txt", 1, HASH, sampleLines());
+    assertThat(reset.get("$/a.txt", 1, HASH, new ChangesetPool())).isEqualTo(sampleLines());
+  }
+
+  @Test
+  public void open_abandonedTemporaryFile_deleted() throws IOException {
+    open(MAX_SIZE).close();
+    Path entries = temp.getRoot().toPath().resolve(SharedBlameCache.ENTRIES_DIRECTORY_NAME);
+    Path abandoned = Files.createFile(entries.resolve("abandoned.tmp"));
+    Files.setLastModifiedTime(abandoned, FileTime.fromMillis(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(1)));
+    Path inProgress = Files.createFile(entries.resolve("in-progress.tmp"));
+
+    open(MAX_SIZE);
+
+    assertThat(abandoned.toFile()).doesNotExist();
+    assertThat(inProgress.toFile()).exists();
+  }
+
+  @Test(timeout = 60000)
+  public void put_concurrentProcessesAndThreads_allEntriesStored() throws Exception {
+    String java = new File(System.getProperty("java.home"), "bin/java").getAbsolutePath();
+    List<Process> processes = new ArrayList<>();
+    for (int i = 0; i < 2; i++) {
+      processes.add(new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), Writer.class.getName(),
+        temp.getRoot().getAbsolutePath(), "process" + i, "200")
+        .redirectErrorStream(true)
+        .start());
+    }
+    ExecutorService threads = Executors.newFixedThreadPool(2);
+    List<Future<Boolean>> results = new ArrayList<>();
+    for (int i = 0; i < 2; i++) {
+      String prefix = "thread" + i;
+      results.add(threads.submit(() -> Writer.write(temp.getRoot().toPath(), prefix, 200)));
+    }
+
+    for (Future<Boolean> result : results) {
+      assertThat(result.get()).isTrue();
+    }
+    threads.shutdown();
+    for (Process process : processes) {
+      assertThat(process.waitFor()).isEqualTo(0);
+    }
+
+    SharedBlameCache cache = open(MAX_SIZE);
+    assertThat(cache.entries()).isEqualTo(800);
+    for (String prefix : Arrays.asList("process0", "process1", "thread0", "thread1")) {
+      for (int i = 0; i < 200; i++) {
+        assertThat(cache.get("$/" + prefix + "/" + i + ".txt", i, Writer.hash(i), new ChangesetPool())).isEqualTo(Writer.lines(i));
+      }
+    }
+    assertThat(entryFiles()).hasSize(800);
+  }
+
+  private SharedBlameCache open(long maxSize) throws IOException {
+    SharedBlameCache cache = SharedBlameCache.open(temp.getRoot().toPath(), maxSize);
+    opened.add(cache);
+    return cache;
+  }
+
+  private List<Path> entryFiles() throws IOException {
+    try (Stream<Path> files = Files.walk(temp.getRoot().toPath().resolve(SharedBlameCache.ENTRIES_DIRECTORY_NAME))) {
+      return files.filter(Files::isRegularFile).collect(Collectors.toList());
+    }
+  }
+
+  private static List<BlameLine> sampleLines() {
+    return Arrays.asList(
+      new BlameLine().date(new Date(1430736199000L)).revision("26274").author("SND\\DinSoft_cp"),
+      new BlameLine().date(new Date(1430736200000L)).revision("26275").author("SND\\DinSoft_cp"),
+      new BlameLine().date(new Date(1430736200000L)).revision("26275").author("SND\\DinSoft_cp"));
+  }
+
+  /**
+   * Stores and reads back entries, run in other processes by the tests.
+   */
+  public static final class Writer {
+
+    public static void main(String[] args) throws IOException {
+      System.exit(write(new File(args[0]).toPath(), args[1], Integer.parseInt(args[2])) ? 0 : 1);
+    }
+
+    static boolean write(Path directory, String prefix, int count) throws IOException {
+      try (SharedBlameCache cache = SharedBlameCache.open(directory, MAX_SIZE)) {
+        boolean found = true;
+        for (int i = 0; i < count; i++) {
+          cache.put("$/" + prefix + "/" + i + ".txt", i, hash(i), lines(i));
+          found &= lines(i).equals(cache.get("$/" + prefix + "/" + i + ".txt", i, hash(i), new ChangesetPool()));
+        }
+        return found;
+      }
+    }
+
+    static HashCode hash(int i) {
+      return Hashing.murmur3_128().hashInt(i);
+    }
+
+    static List<BlameLine> lines(int i) {
+      return Arrays.asList(
+        new BlameLine().date(new Date(1430736199000L)).revision(Integer.toString(i)).author("john"),
+        new BlameLine().date(new Date(1430736200000L)).revision(Integer.toString(i + 1)).author("jane"));
+    }
+  }
+}
@@ -0,0 +1,313 @@
+/*
+ * SonarQube :: SCM :: TFVC :: Plugin
+ * Copyright (c) SonarSource SA and Microsoft Corporation.  All rights reserved.
+ *
+ * Licensed under the MIT License. See License.txt in the project root for license information.
+ */
+package org.sonar.plugins.scm.tfs;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.LoggerFactory;
+import org.sonar.api.batch.fs.FileSystem;
+import org.sonar.api.batch.fs.InputFile;
+import org.sonar.api.batch.fs.internal.TestInputFileBuilder;
+import org.sonar.api.batch.scm.BlameCommand.BlameInput;
+import org.sonar.api.batch.scm.BlameCommand.BlameOutput;
+import org.sonar.api.batch.scm.BlameLine;
+import org.sonar.api.config.PropertyDefinitions;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonar.plugins.scm.tfs.helpers.StandInAnnotator;
+import org.sonar.plugins.scm.tfs.helpers.TestAppender;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.junit.Assume.assumeTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Blames thousands of files with annotators running in processes of their own, see {@link StandInAnnotator}, and
+ * checks that the throughput and the memory stay within limits. The throughput and duration limits depend on the
+ * machine, they are only checked with {@code -Dtfvc.loadtest.limits=true}, e.g. on a dedicated build agent.
+ */
+public class TfsBlameCommandLoadTest {
+
+  private static final boolean CHECK_LIMITS = Boolean.getBoolean("tfvc.loadtest.limits");
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  private final MapSettings settings = new MapSettings(new PropertyDefinitions(TfsConfiguration.getProperties()));
+  private TestAppender appender;
+  private Level rootLevel;
+
+  @BeforeClass
+  public static void onlyOnLinux() {
+    assumeTrue(System.getProperty("os.name").startsWith("Linux"));
+  }
+
+  @Before
+  public void setup() {
+    appender = new TestAppender();
+    getRootLogger().addAppender(appender);
+    // the annotation of each file is logged at the info level
+    rootLevel = getRootLogger().getLevel();
+    getRootLogger().setLevel(Level.WARN);
+
+    settings.setProperty("sonar.tfvc.collectionuri", "https://localtfs/tfs");
+  }
+
+  @After
+  public void tearDown() {
+    getRootLogger().setLevel(rootLevel);
+    getRootLogger().detachAppender(appender);
+  }
+
+  @Test(timeout = 60000)
+  public void blame_thousandsOfFiles_throughputAboveLimit() throws IOException {
+    settings.setProperty("sonar.tfvc.workers", "4");
+    settings.setProperty("sonar.tfvc.pipelinedepth", "8");
+    settings.setProperty("sonar.tfvc.compactformat", "true");
+    List<InputFile> files = createFiles(3000, 200);
+
+    Counter output = blame(files, StandInAnnotator.install(temp.getRoot().toPath()));
+
+    assertThat(output.annotatedFiles()).isEqualTo(3000);
+    assertThat(output.lines()).isEqualTo(3000 * 201L);
+    assertFilesPerSecondAbove(output, 300);
+    assertThat(appender.getErrorEvents()).isEmpty();
+  }
+
+  @Test(timeout = 60000)
+  public void blame_textFormat_throughputAboveLimit() throws IOException {
+    settings.setProperty("sonar.tfvc.workers", "4");
+    settings.setProperty("sonar.tfvc.pipelinedepth", "8");
+    List<InputFile> files = createFiles(1000, 200);
+
+    Counter output = blame(files, StandInAnnotator.install(temp.getRoot().toPath(), "--text"));
+
+    assertThat(output.annotatedFiles()).isEqualTo(1000);
+    assertThat(output.lines()).isEqualTo(1000 * 201L);
+    assertFilesPerSecondAbove(output, 150);
+  }
+
+  @Test(timeout = 60000)
+  public void blame_latencyPerFile_overlappedByWorkers() throws IOException {
+    List<InputFile> files = createFiles(200, 50);
+    File executable = StandInAnnotator.install(temp.getRoot().toPath(), "--latency=20");
+
+    // 4 seconds of latency when the files are annotated one after the other
+    Counter sequential = blame(files, executable);
+    settings.setProperty("sonar.tfvc.workers", "4");
+    settings.setProperty("sonar.tfvc.pipelinedepth", "4");
+    Counter overlapped = blame(files, executable);
+
+    assertThat(sequential.annotatedFiles()).isEqualTo(200);
+    assertThat(overlapped.annotatedFiles()).isEqualTo(200);
+    assertThat(overlapped.elapsedMillis()).isLessThan(sequential.elapsedMillis());
+  }
+
+  @Test(timeout = 60000)
+  public void blame_errorOutputFlood_throughputKept() throws IOException {
+    settings.setProperty("sonar.tfvc.workers", "2");
+    settings.setProperty("sonar.tfvc.pipelinedepth", "4");
+    List<InputFile> files = createFiles(500, 50);
+
+    Counter output = blame(files, StandInAnnotator.install(temp.getRoot().toPath(), "--stderr=1000"));
+
+    assertThat(output.annotatedFiles()).isEqualTo(500);
+    assertFilesPerSecondAbove(output, 50);
+  }
+
+  @Test(timeout = 60000)
+  public void blame_crashingAnnotators_allFilesAnnotated() throws IOException {
+    settings.setProperty("sonar.tfvc.workers", "2");
+    settings.setProperty("sonar.tfvc.pipelinedepth", "4");
+    settings.setProperty("sonar.tfvc.restarts", "20");
+    List<InputFile> files = createFiles(1000, 50);
+
+    Counter output = blame(files, StandInAnnotator.install(temp.getRoot().toPath(), "--crash-after=150"));
+
+    // the file on which an annotator crashed is not handed out again
+    assertThat(output.annotatedFiles()).isGreaterThan(990);
+    assertElapsedMillisBelow(output, 20000);
+  }
+
+  @Test(timeout = 60000)
+  public void blame_hangingAnnotators_restartedAfterFileTimeout() throws IOException {
+    settings.setProperty("sonar.tfvc.workers", "2");
+    settings.setProperty("sonar.tfvc.timeout.file", "1");
+    settings.setProperty("sonar.tfvc.restarts", "10");
+    List<InputFile> files = createFiles(500, 50);
+
+    Counter output = blame(files, StandInAnnotator.install(temp.getRoot().toPath(), "--hang-after=200"));
+
+    // the file on which an annotator hung is not annotated
+    assertThat(output.annotatedFiles()).isGreaterThan(495);
+    assertElapsedMillisBelow(output, 20000);
+  }
+
+  /**
+   * Runs the analysis of 20 million lines in a JVM with a small heap, which is exhausted if the compact answers are
+   * expanded into one object per line and held until the end of the analysis.
+   */
+  @Test(timeout = 120000)
+  public void blame_largeFiles_heapBelowLimit() throws Exception {
+    Path directory = temp.newFolder().toPath();
+    File log = temp.newFile();
+    String java = new File(System.getProperty("java.home"), "bin/java").getAbsolutePath();
+    Process analysis = new ProcessBuilder(java, "-Xmx32m", "-XX:+UseSerialGC", "-XX:+ExitOnOutOfMemoryError",
+      "-cp", System.getProperty("java.class.path"), Analysis.class.getName(), directory.toString(), "200", "100000")
+      .redirectErrorStream(true)
+      .redirectOutput(log)
+      .start();
+
+    // a heap close to its limit keeps the collector busy rather than failing
+    boolean ended = analysis.waitFor(60, TimeUnit.SECONDS);
+    if (!ended) {
+      analysis.destroyForcibly().waitFor();
+    }
+
+    String output = new String(Files.readAllBytes(log.toPath()), StandardCharsets.UTF_8);
+    assertThat(ended).overridingErrorMessage("The analysis did not end: " + output).isTrue();
+    assertThat(analysis.exitValue()).overridingErrorMessage(output).isEqualTo(0);
+  }
+
+  private static void assertFilesPerSecondAbove(Counter output, double limit) {
+    if (CHECK_LIMITS) {
+      assertThat(output.filesPerSecond()).isGreaterThan(limit);
+    }
+  }
+
+  private static void assertElapsedMillisBelow(Counter output, long limit) {
+    if (CHECK_LIMITS) {
+      assertThat(output.elapsedMillis()).isLessThan(limit);
+    }
+  }
+
+  private List<InputFile> createFiles(int count, int linesPerFile) throws IOException {
+    return inputFiles(temp.newFolder().toPath(), count, linesPerFile);
+  }
+
+  private Counter blame(List<InputFile> files, File executable) {
+    return run(new TfsConfiguration(settings.asConfig()), executable, files, temp.getRoot());
+  }
+
+  private static List<InputFile> inputFiles(Path directory, int count, int linesPerFile) throws IOException {
+    List<InputFile> files = new ArrayList<>();
+    for (Path file : StandInAnnotator.createFiles(directory, count, linesPerFile)) {
+      files.add(new TestInputFileBuilder("module", file.getFileName().toString())
+        .setModuleBaseDir(directory)
+        .setLines(linesPerFile + 1)
+        .build());
+    }
+    return files;
+  }
+
+  private static Counter run(TfsConfiguration configuration, File executable, List<InputFile> files, File workDir) {
+    FileSystem fileSystem = mock(FileSystem.class);
+    when(fileSystem.workDir()).thenReturn(workDir);
+    Counter output = new Counter();
+    TfsBlameCommand command = new TfsBlameCommand(configuration, executable);
+
+    command.blame(new BlameInput() {
+      @Override
+      public FileSystem fileSystem() {
+        return fileSystem;
+      }
+
+      @Override
+      public Iterable<InputFile> filesToBlame() {
+        return files;
+      }
+    }, output);
+
+    output.end();
+    return output;
+  }
+
+  private static Logger getRootLogger() {
+    Logger rootLogger = (Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME);
+    return rootLogger.getLoggerContext().getLogger(Logger.ROOT_LOGGER_NAME);
+  }
+
+  /**
+   * Counts the blame results without holding them, like the scanner which sends them to the report.
+   */
+  private static final class Counter implements BlameOutput {
+
+    private final long start = System.nanoTime();
+    private final Map<InputFile, Integer> lines = new ConcurrentHashMap<>();
+    private long end;
+
+    @Override
+    public void blameResult(InputFile file, List<BlameLine> blameLines) {
+      lines.put(file, blameLines.size());
+    }
+
+    void end() {
+      end = System.nanoTime();
+    }
+
+    int annotatedFiles() {
+      return lines.size();
+    }
+
+    long lines() {
+      return lines.values().stream().mapToLong(Integer::longValue).sum();
+    }
+
+    long elapsedMillis() {
+      return TimeUnit.NANOSECONDS.toMillis(end - start);
+    }
+
+    double filesPerSecond() {
+      return lines.size() * 1000.0 / Math.max(1, elapsedMillis());
+    }
+  }
+
+  /**
+   * Blames large files, run in another process by the tests. The exit code is 0 if all the lines were blamed.
+   */
+  public static final class Analysis {
+
+    public static void main(String[] args) throws IOException {
+      Path directory = new File(args[0]).toPath();
+      int count = Integer.parseInt(args[1]);
+      int linesPerFile = Integer.parseInt(args[2]);
+      MapSettings settings = new MapSettings(new PropertyDefinitions(TfsConfiguration.getProperties()));
+      settings.setProperty("sonar.tfvc.collectionuri", "https://localtfs/tfs");
+      settings.setProperty("sonar.tfvc.workers", "2");
+      settings.setProperty("sonar.tfvc.pipelinedepth", "4");
+      settings.setProperty("sonar.tfvc.compactformat", "true");
+      List<InputFile> files = new ArrayList<>();
+      for (InputFile file : inputFiles(Files.createDirectories(directory.resolve("src")), count, 1)) {
+        files.add(new TestInputFileBuilder("module", file.filename())
+          .setModuleBaseDir(directory.resolve("src"))
+          .setLines(linesPerFile)
+          .build());
+      }
+
+      Counter output = run(new TfsConfiguration(settings.asConfig()),
+        StandInAnnotator.install(directory, "--lines=" + linesPerFile), files, directory.toFile());
+
+      System.exit(output.annotatedFiles() == count && output.lines() == (long) count * linesPerFile ? 0 : 1);
+    }
+  }
+}
@@ -8,33 +8,47 @@ package org.sonar.plugins.scm.tfs;
 
 import ch.qos.logback.classic.Logger;
 import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.InOrder;
 import org.mockito.Mockito;
 import org.slf4j.LoggerFactory;
+import org.sonar.api.batch.fs.FileSystem;
 import org.sonar.api.batch.fs.InputFile;
 import org.sonar.api.batch.fs.internal.DefaultInputFile;
 import org.sonar.api.batch.fs.internal.TestInputFileBuilder;
 import org.sonar.api.batch.scm.BlameCommand.BlameInput;
 import org.sonar.api.batch.scm.BlameCommand.BlameOutput;
 import org.sonar.api.batch.scm.BlameLine;
+import org.sonar.plugins.scm.tfs.helpers.FakeAnnotator;
 import org.sonar.plugins.scm.tfs.helpers.TestAppender;
 
 import static org.fest.assertions.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
 
 public class TfsBlameCommandTest {
 
   @Rule
   public ExpectedException thrown = ExpectedException.none();
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
 
   private final TfsConfiguration conf = mock(TfsConfiguration.class);
 
@@ -198,6 +212,865 @@ public class TfsBlameCommandTest {
     assertThat(appender.getErrorEvents().get(1)).isEqualTo("SCM-TFVC: error stream string 1 \r\nerror stream string 2 \r\n");
   }
 
+  @Test(timeout = 5000)
+  public void blame_singleWorker_oneProcessInInputOrder() {
+    FakeAnnotator annotator = new FakeAnnotator();
+    List<InputFile> files = createFiles(annotator, 5);
+    TfsBlameCommand command = new TfsBlameCommand(conf, new File("fake"), annotator::launch);
+    BlameInput input = mock(BlameInput.class);
+    when(input.filesToBlame()).thenReturn(files);
+    BlameOutput output = mock(BlameOutput.class);
+
+    command.blame(input, output);
+
+    assertThat(annotator.launches()).isEqualTo(1);
+    assertThat(annotator.collectionUris()).containsExactly("https://localtfs/tfs");
+    assertThat(annotator.requestedPaths()).hasSize(5);
+    for (InputFile file : files) {
+      assertThat(annotator.requestedPaths().get(files.indexOf(file))).isEqualTo(pathOf(file));
+      verify(output).blameResult(file, expectedLines());
+    }
+    assertThat(appender.getErrorEvents()).isEmpty();
+  }
+
+  @Test(timeout = 5000)
+  public void blame_multipleWorkers_filesSpreadAcrossProcesses() {
+    when(conf.workers()).thenReturn(3);
+    FakeAnnotator annotator = new FakeAnnotator();
+    List<InputFile> files = createFiles(annotator, 20);
+    TfsBlameCommand command = new TfsBlameCommand(conf, new File("fake"), annotator::launch);
+    BlameInput input = mock(BlameInput.class);
+    when(input.filesToBlame()).thenReturn(files);
+    BlameOutput output = mock(BlameOutput.class);
+
+    command.blame(input, output);
+
+    assertThat(annotator.launches()).isEqualTo(3);
+    assertThat(annotator.collectionUris()).containsOnly("https://localtfs/tfs");
+    assertThat(annotator.collectionUris()).hasSize(3);
+    assertThat(annotator.requestedPaths()).hasSize(20);
+    for (InputFile file : files) {
+      verify(output).blameResult(file, expectedLines());
+    }
+    assertThat(appender.getErrorEvents()).isEmpty();
+  }
+
+  @Test(timeout = 5000)
+  public void blame_multipleWorkersFewFiles_processCountLimited() {
+    when(conf.workers()).thenReturn(8);
+    FakeAnnotator annotator = new FakeAnnotator();
+    List<InputFile> files = createFiles(annotator, 2);
+    TfsBlameCommand command = new TfsBlameCommand(conf, new File("fake"), annotator::launch);
+    BlameInput input = mock(BlameInput.class);
+    when(input.filesToBlame()).thenReturn(files);
+    BlameOutput output = mock(BlameOutput.class);
+
+    command.blame(input, output);
+
+    assertThat(annotator.launches()).isEqualTo(2);
+    verify(output, Mockito.times(2)).blameResult(Mockito.any(InputFile.class), Mockito.eq(expectedLines()));
+  }
+
+  @Test(timeout = 5000)
+  public void blame_multipleWorkersFileFailure_otherFilesAnnotated() {
+    when(conf.workers()).thenReturn(2);
+    FakeAnnotator annotator = new FakeAnnotator();
+    List<InputFile> files = createFiles(annotator, 4);
+    InputFile missing = new TestInputFileBuilder("module", "src/Missing.java")
+        .setModuleBaseDir(Paths.get("base"))
+        .build();
+    files.add(1, missing);
+    TfsBlameCommand command = new TfsBlameCommand(conf, new File("fake"), annotator::launch);
+    BlameInput input = mock(BlameInput.class);
+    when(input.filesToBlame()).thenReturn(files);
+    BlameOutput output = mock(BlameOutput.class);
+
+    command.blame(input, output);
+
+    assertThat(appender.getErrorEvents()).containsExactly(
+        "SCM-TFVC: Unable to annotate the file " + pathOf(missing) + ": The file does not exist.");
+    verify(output, Mockito.times(4)).blameResult(Mockito.any(InputFile.class), Mockito.eq(expectedLines()));
+    verify(output, Mockito.never()).blameResult(Mockito.eq(missing), Mockito.<BlameLine>anyList());
+  }
+
+  @Test(timeout = 5000)
+  public void blame_pipelined_filesAnnotatedInOrder() {
+    when(conf.pipelineDepth()).thenReturn(4);
+    FakeAnnotator annotator = new FakeAnnotator();
+    List<InputFile> files = createFiles(annotator, 30);
+    TfsBlameCommand command = new TfsBlameCommand(conf, new File("fake"), annotator::launch);
+    BlameInput input = mock(BlameInput.class);
+    when(input.filesToBlame()).thenReturn(files);
+    BlameOutput output = mock(BlameOutput.class);
+
+    command.blame(input, output);
+
+    assertThat(annotator.launches()).isEqualTo(1);
+    InOrder inOrder = Mockito.inOrder(output);
+    for (InputFile file : files) {
+      inOrder.verify(output).blameResult(file, expectedLines());
+    }
+    assertThat(appender.getErrorEvents()).isEmpty();
+  }
+
+  @Test(timeout = 10000)
+  public void blame_pipelined_latencyExcludesQueuedTime() throws Exception {
+    when(conf.pipelineDepth()).thenReturn(4);
+    FakeAnnotator annotator = new FakeAnnotator();
+    List<InputFile> files = createFiles(annotator, 4);
+    for (InputFile file : files) {
+      annotator.delay(pathOf(file), 300);
+    }
+    TfsBlameCommand command = new TfsBlameCommand(conf, new File("fake"), annotator::launch);
+    FileSystem fileSystem = mock(FileSystem.class);
+    when(fileSystem.workDir()).thenReturn(temp.getRoot());
+    BlameInput input = inputOf(files);
+    when(input.fileSystem()).thenReturn(fileSystem);
+
+    command.blame(input, mock(BlameOutput.class));
+
+    // queued behind the others, the last file would take 1200 ms from its request
+    BlameDurations durations = BlameDurations.load(temp.getRoot().toPath().resolve(BlameDurations.FILE_NAME));
+    for (InputFile file : files) {
+      assertThat(durations.get(pathOf(file))).isGreaterThanOrEqualTo(300L).isLessThan(600L);
+    }
+  }
+
+  @Test(timeout = 5000)
+  public void blame_pipelinedFileFailure_otherFilesAnnotated() {
+    when(conf.pipelineDepth()).thenReturn(3);
+    when(conf.workers()).thenReturn(2);
+    FakeAnnotator annotator = new FakeAnnotator();
+    List<InputFile> files = createFiles(annotator, 10);
+    InputFile missing = new TestInputFileBuilder("module", "src/Missing.java")
+        .setModuleBaseDir(Paths.get("base"))
+        .build();
+    files.add(5, missing);
+    TfsBlameCommand command = new TfsBlameCommand(conf, new File("fake"), annotator::launch);
+    BlameInput input = mock(BlameInput.class);
+    when(input.filesToBlame()).thenReturn(files);
+    BlameOutput output = mock(BlameOutput.class);
+
+    command.blame(input, output);
+
+    assertThat(appender.getErrorEvents()).containsExactly(
+        "SCM-TFVC: Unable to annotate the file " + pathOf(missing) + ": The file does not exist.");
+    verify(output, Mockito.times(10)).blameResult(Mockito.any(InputFile.class), Mockito.eq(expectedLines()));
+  }
+
+  @Test(timeout = 5000)
+  public void blame_cacheEnabled_unchangedFilesNotAnnotatedAgain() throws Exception {
+    File cacheFile = new File(temp.getRoot(), "blame.cache");
+    when(conf.cacheEnabled()).thenReturn(true);
+    when(conf.cachePath()).thenReturn(cacheFile.getAbsolutePath());
+    when(conf.cacheMaxSize()).thenReturn(1024L * 1024L);
+    FakeAnnotator annotator = new FakeAnnotator();
+    List<InputFile> files = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      File file = temp.newFile("File" + i + ".java");
+      Files.write(file.toPath(), ("hello" + i + "\nworld\n").getBytes(StandardCharsets.UTF_8));
+      DefaultInputFile inputFile = new TestInputFileBuilder("module", file.getName())
+          .setModuleBaseDir(temp.getRoot().toPath())
+          .build();
+      annotator.respond(pathOf(inputFile), "2\n26274\tSND\\DinSoft_cp\t1430736199000\thello,\n26275\tSND\\DinSoft_cp\t1430736200000\tworld!\n");
+      files.add(inputFile);
+    }
+    BlameInput input = mock(BlameInput.class);
+    when(input.filesToBlame()).thenReturn(files);
+    new TfsBlameCommand(conf, new File("fake"), annotator::launch).blame(input, mock(BlameOutput.class));
+    assertThat(cacheFile).exists();
+
+    Files.write(Paths.get(files.get(1).uri()), "changed\n".getBytes(StandardCharsets.UTF_8));
+    BlameOutput output = mock(BlameOutput.class);
+    new TfsBlameCommand(conf, new File("fake"), annotator::launch).blame(input, output);
+
+    assertThat(annotator.requestedPaths()).hasSize(4);
+    assertThat(annotator.requestedPaths().get(3)).isEqualTo(pathOf(files.get(1)));
+    for (InputFile file : files) {
+      verify(output).blameResult(file, expectedLines());
+    }
+    assertThat(appender.getInfoEvents()).contains("SCM-TFVC: blame cache: 2 hits, 1 misses");
+  }
+
+  @Test(timeout = 5000)
+  public void blame_cacheEnabled_filesChangedOnServerAnnotatedAgain() throws Exception {
+    File cacheFile = new File(temp.getRoot(), "blame.cache");
+    when(conf.cacheEnabled()).thenReturn(true);
+    when(conf.cachePath()).thenReturn(cacheFile.getAbsolutePath());
+    when(conf.cacheMaxSize()).thenReturn(1024L * 1024L);
+    FakeAnnotator annotator = new FakeAnnotator();
+    List<InputFile> files = createCachedFiles(annotator, 3);
+    for (InputFile file : files) {
+      annotator.respondItemChangeset(pathOf(file), 10);
+    }
+    BlameInput input = inputOf(files);
+    FileSystem fileSystem = mock(FileSystem.class);
+    when(fileSystem.baseDir()).thenReturn(temp.getRoot());
+    when(fileSystem.workDir()).thenReturn(temp.getRoot());
+    when(input.fileSystem()).thenReturn(fileSystem);
+    new TfsBlameCommand(conf, new File("fake"), annotator::launch).blame(input, mock(BlameOutput.class));
+    assertThat(appender.getInfoEvents()).contains("SCM-TFVC: changeset watermark 0: 3 files changed on the server");
+
+    // changed on the server, then changed back to the same content
+    annotator.respondItemChangeset(pathOf(files.get(2)), 12);
+    BlameOutput output = mock(BlameOutput.class);
+    new TfsBlameCommand(conf, new File("fake"), annotator::launch).blame(input, output);
+
+    assertThat(annotator.requestedPaths()).hasSize(4);
+    assertThat(annotator.requestedPaths().get(3)).isEqualTo(pathOf(files.get(2)));
+    for (InputFile file : files) {
+      verify(output).blameResult(file, expectedLines());
+    }
+    assertThat(appender.getInfoEvents()).contains(
+      "SCM-TFVC: changeset watermark 10: 1 files changed on the server",
+      "SCM-TFVC: blame cache: 2 hits, 1 misses");
+    assertThat(BlameWatermark.load(BlameWatermark.of(cacheFile.toPath()), conf.collectionUri(), temp.getRoot().getAbsolutePath())
+      .changeset()).isEqualTo(12);
+  }
+
+  @Test(timeout = 5000)
+  public void blame_cacheEnabled_invalidChangesAnswer_filesComparedByContent() throws Exception {
+    File cacheFile = new File(temp.getRoot(), "blame.cache");
+    when(conf.cacheEnabled()).thenReturn(true);
+    when(conf.cachePath()).thenReturn(cacheFile.getAbsolutePath());
+    when(conf.cacheMaxSize()).thenReturn(1024L * 1024L);
+    FakeAnnotator annotator = new FakeAnnotator();
+    List<InputFile> files = createCachedFiles(annotator, 2);
+    files.forEach(file -> annotator.respondItemChangeset(pathOf(file), 10));
+    annotator.garble("0");
+    BlameInput input = inputOf(files);
+    FileSystem fileSystem = mock(FileSystem.class);
+    when(fileSystem.baseDir()).thenReturn(temp.getRoot());
+    when(fileSystem.workDir()).thenReturn(temp.getRoot());
+    when(input.fileSystem()).thenReturn(fileSystem);
+    BlameOutput output = mock(BlameOutput.class);
+
+    new TfsBlameCommand(conf, new File("fake"), annotator::launch).blame(input, output);
+
+    verify(output, Mockito.times(2)).blameResult(Mockito.any(InputFile.class), Mockito.eq(expectedLines()));
+    assertThat(appender.getWarningEvents()).containsExactly("SCM-TFVC: Unable to get the files changed since changeset 0: "
+      + "Invalid changes header from the TFVC annotate command: 1\tlatest");
+    assertThat(BlameWatermark.of(cacheFile.toPath()).toFile()).doesNotExist();
+  }
+
+  @Test(timeout = 5000)
+  public void blame_cacheEnabled_olderAnnotator_filesComparedByContent() throws Exception {
+    File cacheFile = new File(temp.getRoot(), "blame.cache");
+    when(conf.cacheEnabled()).thenReturn(true);
+    when(conf.cachePath()).thenReturn(cacheFile.getAbsolutePath());
+    when(conf.cacheMaxSize()).thenReturn(1024L * 1024L);
+    FakeAnnotator annotator = new FakeAnnotator();
+    List<InputFile> files = createCachedFiles(annotator, 3);
+    BlameInput input = inputOf(files);
+    FileSystem fileSystem = mock(FileSystem.class);
+    when(fileSystem.baseDir()).thenReturn(temp.getRoot());
+    when(fileSystem.workDir()).thenReturn(temp.getRoot());
+    when(input.fileSystem()).thenReturn(fileSystem);
+    new TfsBlameCommand(conf, new File("fake"), annotator::launch).blame(input, mock(BlameOutput.class));
+    new TfsBlameCommand(conf, new File("fake"), annotator::launch).blame(input, mock(BlameOutput.class));
+
+    assertThat(annotator.requestedPaths()).hasSize(3);
+    assertThat(appender.getInfoEvents()).contains("SCM-TFVC: blame cache: 3 hits, 0 misses");
+    assertThat(BlameWatermark.of(cacheFile.toPath()).toFile()).doesNotExist();
+  }
+
+  private List<InputFile> createCachedFiles(FakeAnnotator annotator, int count) throws IOException {
+    List<InputFile> files = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      File file = temp.newFile("File" + i + ".java");
+      Files.write(file.toPath(), ("hello" + i + "\nworld\n").getBytes(StandardCharsets.UTF_8));
+      DefaultInputFile inputFile = new TestInputFileBuilder("module", file.getName())
+          .setModuleBaseDir(temp.getRoot().toPath())
+          .build();
+      annotator.respond(pathOf(inputFile), "2\n26274\tSND\\DinSoft_cp\t1430736199000\thello,\n26275\tSND\\DinSoft_cp\t1430736200000\tworld!\n");
+      files.add(inputFile);
+    }
+    return files;
+  }
+
+  @Test(timeout = 10000)
+  public void blame_sharedCache_filesOfOtherWorkspaceNotAnnotatedAgain() throws Exception {
+    when(conf.sharedCachePath()).thenReturn(temp.newFolder("shared").getAbsolutePath());
+    when(conf.sharedCacheMaxSize()).thenReturn(1024L * 1024L);
+    List<InputFile> first = createWorkspace("first", 3);
+    FakeAnnotator firstAnnotator = annotatorOf(first, 26275);
+    new TfsBlameCommand(conf, new File("fake"), firstAnnotator::launch).blame(inputOf(first), mock(BlameOutput.class));
+
+    List<InputFile> second = createWorkspace("second", 3);
+    Files.write(Paths.get(second.get(1).uri()), "changed\n".getBytes(StandardCharsets.UTF_8));
+    FakeAnnotator secondAnnotator = annotatorOf(second, 26275)
+        .respondVersion(pathOf(second.get(2)), "$/Project/Main/File2.java", 26280);
+    BlameOutput output = mock(BlameOutput.class);
+    new TfsBlameCommand(conf, new File("fake"), secondAnnotator::launch).blame(inputOf(second), output);
+
+    assertThat(firstAnnotator.requestedPaths()).hasSize(3);
+    assertThat(secondAnnotator.requestedPaths()).containsExactly(pathOf(second.get(1)), pathOf(second.get(2)));
+    assertThat(secondAnnotator.launches()).isEqualTo(1);
+    for (InputFile file : second) {
+      verify(output).blameResult(file, expectedLines());
+    }
+    assertThat(appender.getInfoEvents()).contains("SCM-TFVC: shared blame cache: 1 hits, 2 misses");
+    assertThat(appender.getErrorEvents()).isEmpty();
+  }
+
+  @Test(timeout = 10000)
+  public void blame_interleavedWorkspaces_annotatedBySessionPerWorkspace() {
+    when(conf.workspaces()).thenReturn(true);
+    FakeAnnotator annotator = new FakeAnnotator();
+    List<InputFile> files = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      files.add(createFile(annotator, (i % 2 == 0 ? "main" : "lib") + "/File" + i + ".java"));
+    }
+    annotator.mapWorkspace("https://localtfs/tfs/", directoryOf(files.get(0)).replace('/', '\\'))
+        .mapWorkspace("https://other/tfs/Collection/", directoryOf(files.get(1)))
+        .mapWorkspace("https://other/tfs/Collection/", "C:\\src\\unrelated");
+    BlameInput input = mock(BlameInput.class);
+    when(input.filesToBlame()).thenReturn(files);
+    BlameOutput output = mock(BlameOutput.class);
+
+    new TfsBlameCommand(conf, new File("fake"), annotator::launch).blame(input, output);
+
+    assertThat(annotator.launches()).isEqualTo(2);
+    assertThat(annotator.collectionUris()).containsExactly("https://localtfs/tfs", "https://other/tfs/Collection/");
+    assertThat(annotator.requestedPaths("https://localtfs/tfs"))
+        .containsExactly(pathOf(files.get(0)), pathOf(files.get(2)), pathOf(files.get(4)));
+    assertThat(annotator.requestedPaths("https://other/tfs/Collection/"))
+        .containsExactly(pathOf(files.get(1)), pathOf(files.get(3)));
+    verify(output, Mockito.times(5)).blameResult(Mockito.any(InputFile.class), Mockito.eq(expectedLines()));
+    assertThat(appender.getInfoEvents()).contains("SCM-TFVC: annotating 5 files of 2 workspaces");
+    assertThat(appender.getErrorEvents()).isEmpty();
+  }
+
+  @Test(timeout = 10000)
+  public void blame_workspacesOfOneCollection_sessionPerWorkspace() {
+    when(conf.workspaces()).thenReturn(true);
+    when(conf.workers()).thenReturn(2);
+    FakeAnnotator annotator = new FakeAnnotator();
+    List<InputFile> files = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      files.add(createFile(annotator, (i < 2 ? "a" : "b") + "/File" + i + ".java"));
+    }
+    annotator.mapWorkspace("https://localtfs/tfs", directoryOf(files.get(0)))
+        .mapWorkspace("https://localtfs/tfs", directoryOf(files.get(2)));
+    BlameInput input = mock(BlameInput.class);
+    when(input.filesToBlame()).thenReturn(files);
+    BlameOutput output = mock(BlameOutput.class);
+
+    new TfsBlameCommand(conf, new File("fake"), annotator::launch).blame(input, output);
+
+    assertThat(annotator.requestedPaths()).hasSize(4);
+    assertThat(annotator.collectionUris()).excludes("https://other/tfs/Collection/");
+    verify(output, Mockito.times(4)).blameResult(Mockito.any(InputFile.class), Mockito.eq(expectedLines()));
+    assertThat(appender.getInfoEvents()).contains("SCM-TFVC: annotating 4 files of 2 workspaces");
+  }
+
+  @Test(timeout = 10000)
+  public void blame_singleWorkspace_filesNotGrouped() {
+    when(conf.workspaces()).thenReturn(true);
+    FakeAnnotator annotator = new FakeAnnotator();
+    List<InputFile> files = createFiles(annotator, 3);
+    annotator.mapWorkspace("https://localtfs/tfs/", directoryOf(files.get(0)));
+    BlameOutput output = mock(BlameOutput.class);
+
+    new TfsBlameCommand(conf, new File("fake"), annotator::launch).blame(inputOf(files), output);
+
+    assertThat(annotator.launches()).isEqualTo(1);
+    assertThat(annotator.requestedPaths()).containsExactly(pathOf(files.get(0)), pathOf(files.get(1)), pathOf(files.get(2)));
+    verify(output, Mockito.times(3)).blameResult(Mockito.any(InputFile.class), Mockito.eq(expectedLines()));
+    assertThat(appender.getInfoEvents()).excludes("SCM-TFVC: annotating 3 files of 2 workspaces");
+    assertThat(appender.getWarningEvents()).isEmpty();
+  }
+
+  @Test(timeout = 10000)
+  public void blame_workspacesNotEnabled_notRequested() {
+    FakeAnnotator annotator = new FakeAnnotator();
+    List<InputFile> files = createFiles(annotator, 2);
+    annotator.crash("?workspaces");
+    BlameOutput output = mock(BlameOutput.class);
+
+    new TfsBlameCommand(conf, new File("fake"), annotator::launch).blame(inputOf(files), output);
+
+    assertThat(annotator.launches()).isEqualTo(1);
+    verify(output, Mockito.times(2)).blameResult(Mockito.any(InputFile.class), Mockito.eq(expectedLines()));
+  }
+
+  @Test(timeout = 10000)
+  public void blame_annotatorStoppingOnWorkspacesRequest_filesAnnotatedWithoutWarning() {
+    when(conf.workspaces()).thenReturn(true);
+    FakeAnnotator annotator = new FakeAnnotator();
+    List<InputFile> files = createFiles(annotator, 2);
+    annotator.crash("?workspaces");
+    BlameOutput output = mock(BlameOutput.class);
+
+    new TfsBlameCommand(conf, new File("fake"), annotator::launch).blame(inputOf(files), output);
+
+    verify(output, Mockito.times(2)).blameResult(Mockito.any(InputFile.class), Mockito.eq(expectedLines()));
+    assertThat(appender.getWarningEvents()).isEmpty();
+    assertThat(appender.getErrorEvents()).isEmpty();
+    assertThat(appender.getInfoEvents()).excludes("SCM-TFVC: annotator restarts: 0, timed out files: 0");
+  }
+
+  @Test(timeout = 10000)
+  public void blame_sharedCacheWithoutVersions_filesAnnotated() throws Exception {
+    when(conf.sharedCachePath()).thenReturn(temp.newFolder("shared").getAbsolutePath());
+    when(conf.sharedCacheMaxSize()).thenReturn(1024L * 1024L);
+    List<InputFile> files = createWorkspace("workspace", 2);
+    FakeAnnotator annotator = new FakeAnnotator();
+    files.forEach(file -> annotator.respond(pathOf(file),
+        "2\n26274\tSND\\DinSoft_cp\t1430736199000\thello,\n26275\tSND\\DinSoft_cp\t1430736200000\tworld!\n"));
+    BlameOutput output = mock(BlameOutput.class);
+
+    new TfsBlameCommand(conf, new File("fake"), annotator::launch).blame(inputOf(files), output);
+    new TfsBlameCommand(conf, new File("fake"), annotator::launch).blame(inputOf(files), output);
+
+    assertThat(annotator.requestedPaths()).hasSize(4);
+    assertThat(annotator.launches()).isEqualTo(2);
+    verify(output, Mockito.times(4)).blameResult(Mockito.any(InputFile.class), Mockito.eq(expectedLines()));
+    assertThat(appender.getErrorEvents()).isEmpty();
+  }
+
+  private List<InputFile> createWorkspace(String name, int count) throws Exception {
+    File root = temp.newFolder(name);
+    List<InputFile> files = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      Files.write(root.toPath().resolve("File" + i + ".java"), ("hello" + i + "\nworld\n").getBytes(StandardCharsets.UTF_8));
+      files.add(new TestInputFileBuilder("module", "File" + i + ".java")
+          .setModuleBaseDir(root.toPath())
+          .build());
+    }
+    return files;
+  }
+
+  private static FakeAnnotator annotatorOf(List<InputFile> files, long changeset) {
+    FakeAnnotator annotator = new FakeAnnotator();
+    for (InputFile file : files) {
+      annotator.respond(pathOf(file), "2\n26274\tSND\\DinSoft_cp\t1430736199000\thello,\n26275\tSND\\DinSoft_cp\t1430736200000\tworld!\n")
+          .respondVersion(pathOf(file), "$/Project/Main/" + file.filename(), changeset);
+    }
+    return annotator;
+  }
+
+  private static BlameInput inputOf(List<InputFile> files) {
+    BlameInput input = mock(BlameInput.class);
+    when(input.filesToBlame()).thenReturn(files);
+    return input;
+  }
+
+  @Test(timeout = 5000)
+  public void blame_compactFormatAccepted_runsDecoded() {
+    when(conf.compactFormat()).thenReturn(true);
+    FakeAnnotator annotator = new FakeAnnotator().compactCapable();
+    List<InputFile> files = createFiles(annotator, 3);
+    DefaultInputFile runs = new TestInputFileBuilder("module", "src/Runs.java")
+        .setModuleBaseDir(Paths.get("base"))
+        .build();
+    annotator.respond(pathOf(runs), "5\n1\tJohn\t10\ta\n1\tJohn\t10\tb\n2\tJane\t20\tc\n1\tJohn\t10\td\n1\tJohn\t10\te\n");
+    files.add(runs);
+    TfsBlameCommand command = new TfsBlameCommand(conf, new File("fake"), annotator::launch);
+    BlameInput input = mock(BlameInput.class);
+    when(input.filesToBlame()).thenReturn(files);
+    BlameOutput output = mock(BlameOutput.class);
+
+    command.blame(input, output);
+
+    BlameLine john = new BlameLine().date(new Date(10)).revision("1").author("John");
+    BlameLine jane = new BlameLine().date(new Date(20)).revision("2").author("Jane");
+    verify(output).blameResult(runs, Arrays.asList(john, john, jane, john, john));
+    for (InputFile file : files.subList(0, 3)) {
+      verify(output).blameResult(file, expectedLines());
+    }
+    assertThat(annotator.requestedPaths()).hasSize(4);
+    assertThat(appender.getErrorEvents()).isEmpty();
+    assertThat(appender.getDebugEvents()).contains("SCM-TFVC: using the compact output format");
+  }
+
+  @Test(timeout = 5000)
+  public void blame_compactFormatNotSupported_textFormatUsed() {
+    when(conf.compactFormat()).thenReturn(true);
+    when(conf.pipelineDepth()).thenReturn(2);
+    FakeAnnotator annotator = new FakeAnnotator();
+    List<InputFile> files = createFiles(annotator, 3);
+    TfsBlameCommand command = new TfsBlameCommand(conf, new File("fake"), annotator::launch);
+    BlameInput input = mock(BlameInput.class);
+    when(input.filesToBlame()).thenReturn(files);
+    BlameOutput output = mock(BlameOutput.class);
+
+    command.blame(input, output);
+
+    for (InputFile file : files) {
+      verify(output).blameResult(file, expectedLines());
+    }
+    assertThat(appender.getErrorEvents()).isEmpty();
+    assertThat(appender.getDebugEvents()).contains(
+        "SCM-TFVC: compact output format not supported, using the text format: Unable to annotate the file ?format compact: The file does not exist.");
+  }
+
+  @Test(timeout = 10000)
+  public void blame_hangingFile_annotatorRestartedWithNextFile() {
+    when(conf.fileTimeout()).thenReturn(1);
+    when(conf.maxRestarts()).thenReturn(3);
+    FakeAnnotator annotator = new FakeAnnotator();
+    List<InputFile> files = createFiles(annotator, 4);
+    annotator.hang(pathOf(files.get(1)));
+    TfsBlameCommand command = new TfsBlameCommand(conf, new File("fake"), annotator::launch);
+    BlameInput input = mock(BlameInput.class);
+    when(input.filesToBlame()).thenReturn(files);
+    BlameOutput output = mock(BlameOutput.class);
+
+    command.blame(input, output);
+
+    assertThat(annotator.launches()).isEqualTo(2);
+    assertThat(annotator.requestedPaths()).containsExactly(
+      pathOf(files.get(0)), pathOf(files.get(1)), pathOf(files.get(2)), pathOf(files.get(3)));
+    verify(output).blameResult(files.get(0), expectedLines());
+    verify(output).blameResult(files.get(2), expectedLines());
+    verify(output).blameResult(files.get(3), expectedLines());
+    verifyNoMoreInteractions(output);
+    assertThat(appender.getErrorEvents()).containsExactly(
+      "SCM-TFVC: The TFVC annotate command did not answer within the timeout on the file " + pathOf(files.get(1)));
+    assertThat(appender.getInfoEvents()).contains("SCM-TFVC: annotator restarts: 1, timed out files: 1");
+  }
+
+  @Test(timeout = 10000)
+  public void blame_crashOnFile_annotatorRestartedWithNextFile() {
+    when(conf.maxRestarts()).thenReturn(3);
+    FakeAnnotator annotator = new FakeAnnotator();
+    List<InputFile> files = createFiles(annotator, 3);
+    annotator.crash(pathOf(files.get(0)));
+    TfsBlameCommand command = new TfsBlameCommand(conf, new File("fake"), annotator::launch);
+    BlameInput input = mock(BlameInput.class);
+    when(input.filesToBlame()).thenReturn(files);
+    BlameOutput output = mock(BlameOutput.class);
+
+    command.blame(input, output);
+
+    assertThat(annotator.launches()).isEqualTo(2);
+    verify(output).blameResult(files.get(1), expectedLines());
+    verify(output).blameResult(files.get(2), expectedLines());
+    verifyNoMoreInteractions(output);
+    assertThat(appender.getErrorEvents()).containsExactly(
+      "SCM-TFVC: EOFException thrown in the TFVC annotate command: The annotator stopped while annotating the file: " + pathOf(files.get(0)));
+    assertThat(appender.getInfoEvents()).contains("SCM-TFVC: annotator restarts: 1, timed out files: 0");
+  }
+
+  @Test(timeout = 10000)
+  public void blame_restartLimitReached_remainingFilesSkipped() {
+    when(conf.maxRestarts()).thenReturn(1);
+    FakeAnnotator annotator = new FakeAnnotator();
+    List<InputFile> files = createFiles(annotator, 4);
+    annotator.crash(pathOf(files.get(0))).crash(pathOf(files.get(1)));
+    TfsBlameCommand command = new TfsBlameCommand(conf, new File("fake"), annotator::launch);
+    BlameInput input = mock(BlameInput.class);
+    when(input.filesToBlame()).thenReturn(files);
+    BlameOutput output = mock(BlameOutput.class);
+
+    command.blame(input, output);
+
+    assertThat(annotator.launches()).isEqualTo(2);
+    assertThat(annotator.requestedPaths()).containsExactly(pathOf(files.get(0)), pathOf(files.get(1)));
+    verifyNoMoreInteractions(output);
+    assertThat(appender.getErrorEvents()).contains(
+      "SCM-TFVC: The remaining files are not annotated after 1 restarts of the TFVC annotate command");
+  }
+
+  @Test(timeout = 10000)
+  public void blame_pipelinedCrash_pendingFilesSentAgain() {
+    when(conf.pipelineDepth()).thenReturn(4);
+    when(conf.maxRestarts()).thenReturn(3);
+    FakeAnnotator annotator = new FakeAnnotator();
+    List<InputFile> files = createFiles(annotator, 6);
+    annotator.crash(pathOf(files.get(1)));
+    TfsBlameCommand command = new TfsBlameCommand(conf, new File("fake"), annotator::launch);
+    BlameInput input = mock(BlameInput.class);
+    when(input.filesToBlame()).thenReturn(files);
+    BlameOutput output = mock(BlameOutput.class);
+
+    command.blame(input, output);
+
+    assertThat(annotator.launches()).isEqualTo(2);
+    assertThat(annotator.requestedPaths()).containsExactly(pathOf(files.get(0)), pathOf(files.get(1)),
+      pathOf(files.get(2)), pathOf(files.get(3)), pathOf(files.get(4)), pathOf(files.get(5)));
+    InOrder inOrder = Mockito.inOrder(output);
+    for (InputFile file : files) {
+      if (file != files.get(1)) {
+        inOrder.verify(output).blameResult(file, expectedLines());
+      }
+    }
+    verifyNoMoreInteractions(output);
+  }
+
+  @Test(timeout = 10000)
+  public void blame_hangingHandshake_annotatorRestarted() {
+    when(conf.handshakeTimeout()).thenReturn(1);
+    when(conf.maxRestarts()).thenReturn(3);
+    FakeAnnotator annotator = new FakeAnnotator().hangOnConnect(1);
+    List<InputFile> files = createFiles(annotator, 2);
+    TfsBlameCommand command = new TfsBlameCommand(conf, new File("fake"), annotator::launch);
+    BlameInput input = mock(BlameInput.class);
+    when(input.filesToBlame()).thenReturn(files);
+    BlameOutput output = mock(BlameOutput.class);
+
+    command.blame(input, output);
+
+    assertThat(annotator.launches()).isEqualTo(2);
+    for (InputFile file : files) {
+      verify(output).blameResult(file, expectedLines());
+    }
+    assertThat(appender.getErrorEvents()).containsExactly(
+      "SCM-TFVC: The TFVC annotate command did not answer within the timeout on the connection to the collection");
+    assertThat(appender.getInfoEvents()).contains("SCM-TFVC: annotator restarts: 1, timed out files: 0");
+  }
+
+  @Test(timeout = 10000)
+  public void blame_errorOutputFlood_filesAnnotated() {
+    FakeAnnotator annotator = new FakeAnnotator();
+    List<InputFile> files = createFiles(annotator, 3);
+    annotator.warn(pathOf(files.get(0)), 5000);
+    TfsBlameCommand command = new TfsBlameCommand(conf, new File("fake"), annotator::launch);
+    BlameInput input = mock(BlameInput.class);
+    when(input.filesToBlame()).thenReturn(files);
+    BlameOutput output = mock(BlameOutput.class);
+
+    command.blame(input, output);
+
+    for (InputFile file : files) {
+      verify(output).blameResult(file, expectedLines());
+    }
+    assertThat(appender.getWarningEvents().get(0)).matches("SCM-TFVC: \\d+ lines of the error output of the TFVC annotate command were dropped");
+    assertThat(appender.getErrorEvents().get(0)).startsWith("SCM-TFVC: " + pathOf(files.get(0)) + ": TF14061: warning ");
+  }
+
+  @Test(timeout = 5000)
+  public void blame_budget_mostRecentFilesFirst() throws Exception {
+    when(conf.budget()).thenReturn(60);
+    FakeAnnotator annotator = new FakeAnnotator();
+    List<InputFile> files = createModifiedFiles(annotator, 3);
+    BlameInput input = mock(BlameInput.class);
+    when(input.filesToBlame()).thenReturn(files);
+    BlameOutput output = mock(BlameOutput.class);
+
+    new TfsBlameCommand(conf, new File("fake"), annotator::launch).blame(input, output);
+
+    assertThat(annotator.requestedPaths()).containsExactly(pathOf(files.get(2)), pathOf(files.get(1)), pathOf(files.get(0)));
+    for (InputFile file : files) {
+      verify(output).blameResult(file, expectedLines());
+    }
+    assertThat(appender.getWarningEvents()).isEmpty();
+  }
+
+  @Test(timeout = 10000)
+  public void blame_budgetUsedUp_annotationStoppedAndSkippedFilesReported() throws Exception {
+    when(conf.budget()).thenReturn(1);
+    FakeAnnotator annotator = new FakeAnnotator();
+    List<InputFile> files = createModifiedFiles(annotator, 4);
+    annotator.hang(pathOf(files.get(2)));
+    BlameInput input = mock(BlameInput.class);
+    when(input.filesToBlame()).thenReturn(files);
+    BlameOutput output = mock(BlameOutput.class);
+
+    new TfsBlameCommand(conf, new File("fake"), annotator::launch).blame(input, output);
+
+    verify(output).blameResult(files.get(3), expectedLines());
+    verifyNoMoreInteractions(output);
+    assertThat(annotator.launches()).isEqualTo(1);
+    assertThat(annotator.requestedPaths()).containsExactly(pathOf(files.get(3)), pathOf(files.get(2)));
+    assertThat(appender.getWarningEvents()).containsExactly("SCM-TFVC: The blame budget of 1 s was used up, 3 files are not annotated: "
+      + pathOf(files.get(2)) + ", " + pathOf(files.get(1)) + ", " + pathOf(files.get(0)));
+    assertThat(appender.getErrorEvents()).isEmpty();
+  }
+
+  @Test(timeout = 5000)
+  public void blame_metricsReportWrittenToWorkDir() throws Exception {
+    FakeAnnotator annotator = new FakeAnnotator();
+    List<InputFile> files = createFiles(annotator, 3);
+    files.add(new TestInputFileBuilder("module", "src/Missing.java")
+        .setModuleBaseDir(Paths.get("base"))
+        .build());
+    TfsBlameCommand command = new TfsBlameCommand(conf, new File("fake"), annotator::launch);
+    FileSystem fileSystem = mock(FileSystem.class);
+    when(fileSystem.workDir()).thenReturn(temp.getRoot());
+    BlameInput input = mock(BlameInput.class);
+    when(input.filesToBlame()).thenReturn(files);
+    when(input.fileSystem()).thenReturn(fileSystem);
+
+    command.blame(input, mock(BlameOutput.class));
+
+    String report = new String(Files.readAllBytes(temp.getRoot().toPath().resolve(BlameMetrics.REPORT_FILE_NAME)),
+        StandardCharsets.UTF_8);
+    assertThat(report).contains("\"sessions\":1").contains("\"annotated\":3").contains("\"failed\":1")
+        .contains("\"failures\":{\"file\":1}").contains("\"lines\":6").contains("\"histogram\":[");
+    assertThat(lastInfoEvent()).startsWith("SCM-TFVC: annotated 3 files, 1 failed, in ");
+  }
+
+  @Test(timeout = 5000)
+  public void blame_accountCache_resolvedAccountsPreloadedIntoNextAnalysis() throws Exception {
+    when(conf.accountsTtl()).thenReturn(24);
+    when(conf.userCacheDirectory()).thenReturn(temp.newFolder("cache").toPath());
+    long resolved = System.currentTimeMillis();
+    FakeAnnotator annotator = new FakeAnnotator()
+        .resolveAccount("https://localtfs/tfs/", "SND\\DinSoft_cp", "dinsoft@example.com", resolved);
+    new TfsBlameCommand(conf, new File("fake"), annotator::launch).blame(inputOf(createFiles(annotator, 2)), mock(BlameOutput.class));
+    assertThat(annotator.preloadedAccounts()).isEmpty();
+    assertThat(appender.getInfoEvents()).contains("SCM-TFVC: account lookups: 0 hits, 1 misses, 1 accounts stored");
+
+    FakeAnnotator next = new FakeAnnotator();
+    new TfsBlameCommand(conf, new File("fake"), next::launch).blame(inputOf(createFiles(next, 2)), mock(BlameOutput.class));
+
+    assertThat(next.preloadedAccounts()).containsExactly("https://localtfs/tfs/\tSND\\DinSoft_cp\tdinsoft@example.com\t" + resolved);
+    assertThat(appender.getInfoEvents()).contains("SCM-TFVC: account lookups: 1 hits, 0 misses, 0 accounts stored");
+  }
+
+  @Test(timeout = 5000)
+  public void blame_accountCacheExpired_accountsNotPreloaded() throws Exception {
+    when(conf.accountsTtl()).thenReturn(1);
+    when(conf.userCacheDirectory()).thenReturn(temp.newFolder("cache").toPath());
+    FakeAnnotator annotator = new FakeAnnotator()
+        .resolveAccount("https://localtfs/tfs/", "SND\\old", "old@example.com", System.currentTimeMillis() - TimeUnit.HOURS.toMillis(2))
+        .resolveAccount("https://localtfs/tfs/", "SND\\new", "new@example.com", System.currentTimeMillis());
+    new TfsBlameCommand(conf, new File("fake"), annotator::launch).blame(inputOf(createFiles(annotator, 1)), mock(BlameOutput.class));
+
+    FakeAnnotator next = new FakeAnnotator();
+    new TfsBlameCommand(conf, new File("fake"), next::launch).blame(inputOf(createFiles(next, 1)), mock(BlameOutput.class));
+
+    assertThat(next.preloadedAccounts()).hasSize(1);
+    assertThat(next.preloadedAccounts().get(0)).startsWith("https://localtfs/tfs/\tSND\\new\t");
+  }
+
+  @Test(timeout = 5000)
+  public void blame_eagerStart_connectedAnnotatorUsed() throws InterruptedException {
+    when(conf.eagerStart()).thenReturn(true);
+    FakeAnnotator annotator = new FakeAnnotator();
+    List<InputFile> files = createFiles(annotator, 3);
+    TfsBlameCommand command = new TfsBlameCommand(conf, new File("fake"), annotator::launch);
+    BlameInput input = mock(BlameInput.class);
+    when(input.filesToBlame()).thenReturn(files);
+    BlameOutput output = mock(BlameOutput.class);
+
+    command.start();
+    while (annotator.collectionUris().isEmpty()) {
+      Thread.sleep(10);
+    }
+    command.blame(input, output);
+    command.stop();
+
+    assertThat(annotator.launches()).isEqualTo(1);
+    assertThat(annotator.collectionUris()).containsExactly("https://localtfs/tfs");
+    for (InputFile file : files) {
+      verify(output).blameResult(file, expectedLines());
+    }
+    assertThat(lastInfoEvent()).startsWith("SCM-TFVC: annotated 3 files, 0 failed, in ");
+  }
+
+  @Test(timeout = 10000)
+  public void blame_eagerStartNotConnected_anotherAnnotatorStarted() {
+    when(conf.eagerStart()).thenReturn(true);
+    when(conf.handshakeTimeout()).thenReturn(1);
+    FakeAnnotator annotator = new FakeAnnotator().hangOnConnect(1);
+    List<InputFile> files = createFiles(annotator, 2);
+    TfsBlameCommand command = new TfsBlameCommand(conf, new File("fake"), annotator::launch);
+    BlameInput input = mock(BlameInput.class);
+    when(input.filesToBlame()).thenReturn(files);
+    BlameOutput output = mock(BlameOutput.class);
+
+    command.start();
+    command.blame(input, output);
+
+    assertThat(annotator.launches()).isEqualTo(2);
+    for (InputFile file : files) {
+      verify(output).blameResult(file, expectedLines());
+    }
+    assertThat(appender.getWarningEvents()).contains(
+      "SCM-TFVC: The annotator started in advance did not connect within the timeout, starting another one");
+  }
+
+  @Test(timeout = 5000)
+  public void stop_eagerStartNotUsed_annotatorStopped() throws InterruptedException {
+    when(conf.eagerStart()).thenReturn(true);
+    FakeAnnotator annotator = new FakeAnnotator();
+    TfsBlameCommand command = new TfsBlameCommand(conf, new File("fake"), annotator::launch);
+
+    command.start();
+    while (annotator.collectionUris().isEmpty()) {
+      Thread.sleep(10);
+    }
+    command.stop();
+
+    while (annotator.running() > 0) {
+      Thread.sleep(10);
+    }
+    assertThat(annotator.launches()).isEqualTo(1);
+    assertThat(annotator.requestedPaths()).isEmpty();
+  }
+
+  @Test
+  public void start_eagerStartDisabled_noAnnotatorStarted() {
+    FakeAnnotator annotator = new FakeAnnotator();
+    TfsBlameCommand command = new TfsBlameCommand(conf, new File("fake"), annotator::launch);
+
+    command.start();
+    command.stop();
+
+    assertThat(annotator.launches()).isEqualTo(0);
+  }
+
+  private static InputFile createFile(FakeAnnotator annotator, String relativePath) {
+    DefaultInputFile inputFile = new TestInputFileBuilder("module", relativePath)
+        .setModuleBaseDir(Paths.get("base"))
+        .build();
+    annotator.respond(pathOf(inputFile), "2\n26274\tSND\\DinSoft_cp\t1430736199000\thello,\n26275\tSND\\DinSoft_cp\t1430736200000\tworld!\n");
+    return inputFile;
+  }
+
+  private static String directoryOf(InputFile inputFile) {
+    String path = pathOf(inputFile);
+    return path.substring(0, path.lastIndexOf('/'));
+  }
+
+  private static List<InputFile> createFiles(FakeAnnotator annotator, int count) {
+    List<InputFile> files = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      DefaultInputFile inputFile = new TestInputFileBuilder("module", "src/File" + i + ".java")
+          .setModuleBaseDir(Paths.get("base"))
+          .build();
+      annotator.respond(pathOf(inputFile), "2\n26274\tSND\\DinSoft_cp\t1430736199000\thello,\n26275\tSND\\DinSoft_cp\t1430736200000\tworld!\n");
+      files.add(inputFile);
+    }
+    return files;
+  }
+
+  /**
+   * Creates files modified one minute apart, in the order of the list.
+   */
+  private List<InputFile> createModifiedFiles(FakeAnnotator annotator, int count) throws IOException {
+    List<InputFile> files = new ArrayList<>();
+    long now = System.currentTimeMillis();
+    for (int i = 0; i < count; i++) {
+      File file = temp.newFile("File" + i + ".java");
+      assertThat(file.setLastModified(now - (count - i) * 60_000L)).isTrue();
+      DefaultInputFile inputFile = new TestInputFileBuilder("module", file.getName())
+          .setModuleBaseDir(temp.getRoot().toPath())
+          .build();
+      annotator.respond(pathOf(inputFile), "2\n26274\tSND\\DinSoft_cp\t1430736199000\thello,\n26275\tSND\\DinSoft_cp\t1430736200000\tworld!\n");
+      files.add(inputFile);
+    }
+    return files;
+  }
+
+  private static String pathOf(InputFile inputFile) {
+    return inputFile.uri().getPath().substring(1);
+  }
+
+  private static List<BlameLine> expectedLines() {
+    return Arrays.asList(
+        new BlameLine().date(new Date(1430736199000L)).revision("26274").author("SND\\DinSoft_cp"),
+        new BlameLine().date(new Date(1430736200000L)).revision("26275").author("SND\\DinSoft_cp"));
+  }
+
+  private String lastInfoEvent() {
+    List<String> events = appender.getInfoEvents();
+    return events.get(events.size() - 1);
+  }
+
   private static Logger getRootLogger() {
     Logger rootLogger = (Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME);
     return rootLogger.getLoggerContext().getLogger(Logger.ROOT_LOGGER_NAME);
@@ -23,6 +23,26 @@ public class TfsConfigurationTest {
     assertThat(config.password()).isEmpty();
     assertThat(config.collectionUri()).isEmpty();
     assertThat(config.pat()).isEmpty();
+    assertThat(config.workers()).isEqualTo(1);
+    assertThat(config.pipelineDepth()).isEqualTo(1);
+    assertThat(config.cacheEnabled()).isFalse();
+    assertThat(config.cachePath()).isEmpty();
+    assertThat(config.cacheMaxSize()).isEqualTo(64L * 1024 * 1024);
+    assertThat(config.compactFormat()).isFalse();
+    assertThat(config.daemonEnabled()).isFalse();
+    assertThat(config.daemonIdleTimeout()).isEqualTo(600);
+    assertThat(config.fileTimeout()).isEqualTo(300);
+    assertThat(config.handshakeTimeout()).isEqualTo(120);
+    assertThat(config.maxRestarts()).isEqualTo(3);
+    assertThat(config.eagerStart()).isFalse();
+    assertThat(config.restEngine()).isFalse();
+    assertThat(config.serverPath()).isEmpty();
+    assertThat(config.sharedCachePath()).isEmpty();
+    assertThat(config.sharedCacheMaxSize()).isEqualTo(512L * 1024 * 1024);
+    assertThat(config.budget()).isEqualTo(0);
+    assertThat(config.accountsTtl()).isEqualTo(0);
+    assertThat(config.workspaces()).isFalse();
+    assertThat(config.sourceEncoding()).isEqualTo(java.nio.charset.Charset.defaultCharset());
 
     settings.setProperty("sonar.tfvc.username", "foo");
     assertThat(config.username()).isEqualTo("foo");
@@ -35,6 +55,69 @@ public class TfsConfigurationTest {
 
     settings.setProperty("sonar.tfvc.pat.secured", "pat");
     assertThat(config.pat()).isEqualTo("pat");
+
+    settings.setProperty("sonar.tfvc.workers", "4");
+    assertThat(config.workers()).isEqualTo(4);
+
+    settings.setProperty("sonar.tfvc.pipelinedepth", "8");
+    assertThat(config.pipelineDepth()).isEqualTo(8);
+
+    settings.setProperty("sonar.tfvc.cache.enabled", "true");
+    assertThat(config.cacheEnabled()).isTrue();
+
+    settings.setProperty("sonar.tfvc.cache.path", "cache");
+    assertThat(config.cachePath()).isEqualTo("cache");
+
+    settings.setProperty("sonar.tfvc.cache.maxsize", "2");
+    assertThat(config.cacheMaxSize()).isEqualTo(2L * 1024 * 1024);
+
+    settings.setProperty("sonar.tfvc.compactformat", "true");
+    assertThat(config.compactFormat()).isTrue();
+
+    settings.setProperty("sonar.tfvc.daemon.enabled", "true");
+    assertThat(config.daemonEnabled()).isTrue();
+
+    settings.setProperty("sonar.tfvc.daemon.idletimeout", "60");
+    assertThat(config.daemonIdleTimeout()).isEqualTo(60);
+
+    settings.setProperty("sonar.tfvc.timeout.file", "30");
+    assertThat(config.fileTimeout()).isEqualTo(30);
+
+    settings.setProperty("sonar.tfvc.timeout.handshake", "10");
+    assertThat(config.handshakeTimeout()).isEqualTo(10);
+
+    settings.setProperty("sonar.tfvc.restarts", "0");
+    assertThat(config.maxRestarts()).isEqualTo(0);
+
+    settings.setProperty("sonar.tfvc.eagerstart", "true");
+    assertThat(config.eagerStart()).isTrue();
+
+    settings.setProperty("sonar.tfvc.engine", "rest");
+    assertThat(config.restEngine()).isTrue();
+
+    settings.setProperty("sonar.tfvc.serverpath", "$/Project/Main");
+    assertThat(config.serverPath()).isEqualTo("$/Project/Main");
+
+    settings.setProperty("sonar.tfvc.cache.shared.path", "shared");
+    assertThat(config.sharedCachePath()).isEqualTo("shared");
+
+    settings.setProperty("sonar.tfvc.cache.shared.maxsize", "16");
+    assertThat(config.sharedCacheMaxSize()).isEqualTo(16L * 1024 * 1024);
+
+    settings.setProperty("sonar.tfvc.budget", "600");
+    assertThat(config.budget()).isEqualTo(600);
+
+    settings.setProperty("sonar.tfvc.accounts.ttl", "24");
+    assertThat(config.accountsTtl()).isEqualTo(24);
+
+    settings.setProperty("sonar.tfvc.workspaces", "true");
+    assertThat(config.workspaces()).isTrue();
+
+    settings.setProperty("sonar.userHome", "home");
+    assertThat(config.userCacheDirectory().toString()).isEqualTo(java.nio.file.Paths.get("home", "cache").toString());
+
+    settings.setProperty("sonar.sourceEncoding", "UTF-16");
+    assertThat(config.sourceEncoding()).isEqualTo(java.nio.charset.StandardCharsets.UTF_16);
   }
 
 }
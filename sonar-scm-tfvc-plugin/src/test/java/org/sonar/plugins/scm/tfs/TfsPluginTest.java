@@ -22,7 +22,7 @@ public class TfsPluginTest {
     SonarRuntime runtime = SonarRuntimeImpl.forSonarQube(Version.create(7, 4), SonarQubeSide.SCANNER);
     Context context = new Context(runtime);
     new TfsPlugin().define(context);
-    assertThat(context.getExtensions()).hasSize(3 + TfsConfiguration.getProperties().size());
+    assertThat(context.getExtensions()).hasSize(5 + TfsConfiguration.getProperties().size());
   }
 
 }
@@ -13,8 +13,18 @@ import org.junit.rules.TemporaryFolder;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonar.plugins.scm.tfs.helpers.DirectoryBranchService;
 
 import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
 
 public class TfsScmProviderTest {
 
@@ -25,17 +35,79 @@ public class TfsScmProviderTest {
 
   @Test
   public void sanityCheck() {
-    assertThat(new TfsScmProvider(null).key()).isEqualTo("tfvc");
+    assertThat(new TfsScmProvider(null, null, null, null).key()).isEqualTo("tfvc");
   }
 
   @Test
   public void testAutodetection() throws IOException {
     File baseDirEmpty = temp.newFolder();
-    assertThat(new TfsScmProvider(null).supports(baseDirEmpty)).isFalse();
+    assertThat(new TfsScmProvider(null, null, null, null).supports(baseDirEmpty)).isFalse();
 
     File tfsBaseDir = temp.newFolder();
     new File(tfsBaseDir, "$tf").mkdir();
-    assertThat(new TfsScmProvider(null).supports(tfsBaseDir)).isTrue();
+    assertThat(new TfsScmProvider(null, null, null, null).supports(tfsBaseDir)).isTrue();
+  }
+
+  @Test
+  public void branchChangedFiles_changesDelegated() throws IOException {
+    Path workspace = temp.newFolder("workspace").toPath();
+    Path main = temp.newFolder("main").toPath();
+    write(workspace.resolve("same.txt"), "same");
+    write(main.resolve("same.txt"), "same");
+    write(workspace.resolve("src/changed.txt"), "new");
+    write(main.resolve("src/changed.txt"), "old");
+    write(workspace.resolve("added.txt"), "added");
+    DirectoryBranchService branchService = new DirectoryBranchService().branch("$/Project/Main", main);
+
+    TfsScmProvider provider = new TfsScmProvider(null, null, branchService, null);
+
+    assertThat(provider.branchChangedFiles("$/Project/Main", workspace)).containsOnly(
+        workspace.resolve("src/changed.txt"), workspace.resolve("added.txt"));
+    assertThat(provider.branchChangedFiles("$/Project/Unknown", workspace)).isNull();
+  }
+
+  @Test
+  public void branchChangedLines_addedAndChangedLinesReported() throws IOException {
+    Path workspace = temp.newFolder("workspace").toPath();
+    Path main = temp.newFolder("main").toPath();
+    write(main.resolve("changed.txt"), "a\nb\nc\nd\n");
+    write(workspace.resolve("changed.txt"), "a\nB\nc\nnew\nd\n");
+    write(workspace.resolve("added.txt"), "x\r\ny");
+    write(main.resolve("same.txt"), "same\n");
+    write(workspace.resolve("same.txt"), "same\r\n");
+    DirectoryBranchService branchService = new DirectoryBranchService().branch("$/Project/Main", main);
+    MapSettings settings = new MapSettings();
+    settings.setProperty("sonar.sourceEncoding", "UTF-8");
+    TfsScmProvider provider = new TfsScmProvider(null, null, branchService, new TfsConfiguration(settings.asConfig()));
+    Set<Path> files = new HashSet<>(Arrays.asList(
+        workspace.resolve("changed.txt"), workspace.resolve("added.txt"), workspace.resolve("same.txt")));
+
+    Map<Path, Set<Integer>> changedLines = provider.branchChangedLines("$/Project/Main", workspace, files);
+
+    assertThat(changedLines).hasSize(3);
+    assertThat(changedLines.get(workspace.resolve("changed.txt"))).containsOnly(2, 4);
+    assertThat(changedLines.get(workspace.resolve("added.txt"))).containsOnly(1, 2);
+    assertThat(changedLines.get(workspace.resolve("same.txt"))).isEmpty();
+    assertThat(provider.branchChangedLines("$/Project/Unknown", workspace, files)).isNull();
+  }
+
+  @Test
+  public void blameCommand_engineSelected() {
+    MapSettings settings = new MapSettings();
+    TfsConfiguration configuration = new TfsConfiguration(settings.asConfig());
+    TfsBlameCommand annotator = mock(TfsBlameCommand.class);
+    RestBlameCommand rest = new RestBlameCommand(configuration);
+    TfsScmProvider provider = new TfsScmProvider(annotator, rest, null, configuration);
+
+    assertThat(provider.blameCommand()).isSameAs(annotator);
+
+    settings.setProperty("sonar.tfvc.engine", "rest");
+    assertThat(provider.blameCommand()).isSameAs(rest);
+  }
+
+  private static void write(Path path, String content) throws IOException {
+    Files.createDirectories(path.getParent());
+    Files.write(path, content.getBytes(StandardCharsets.UTF_8));
   }
 
 }
@@ -0,0 +1,79 @@
+/*
+ * SonarQube :: SCM :: TFVC :: Plugin
+ * Copyright (c) SonarSource SA and Microsoft Corporation.  All rights reserved.
+ *
+ * Licensed under the MIT License. See License.txt in the project root for license information.
+ */
+package org.sonar.plugins.scm.tfs.helpers;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.sonar.plugins.scm.tfs.LineHashes;
+import org.sonar.plugins.scm.tfs.TfsBranchService;
+
+/**
+ * Local stand-in for the TFVC server, each target is represented by a directory holding its files.
+ */
+public class DirectoryBranchService implements TfsBranchService {
+
+  private final Map<String, Path> branches = new HashMap<>();
+
+  public DirectoryBranchService branch(String target, Path directory) {
+    branches.put(target, directory);
+    return this;
+  }
+
+  @Override
+  public Set<Path> changedFiles(String target, Path rootBaseDir) {
+    Path branch = branches.get(target);
+    if (branch == null) {
+      return null;
+    }
+
+    try (Stream<Path> files = Files.walk(rootBaseDir)) {
+      return files
+        .filter(Files::isRegularFile)
+        .filter(file -> !rootBaseDir.relativize(file).startsWith("$tf"))
+        .filter(file -> !sameContent(file, branch.resolve(rootBaseDir.relativize(file).toString())))
+        .collect(Collectors.toSet());
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  @Override
+  public Map<Path, long[]> baseLineHashes(String target, Path rootBaseDir, Set<Path> files) {
+    Path branch = branches.get(target);
+    if (branch == null) {
+      return null;
+    }
+
+    Map<Path, long[]> result = new HashMap<>();
+    for (Path file : files) {
+      Path baseFile = branch.resolve(rootBaseDir.relativize(file).toString());
+      try {
+        result.put(file, Files.exists(baseFile) ? LineHashes.of(baseFile, StandardCharsets.UTF_8) : new long[0]);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+    return result;
+  }
+
+  private static boolean sameContent(Path file, Path other) {
+    try {
+      return Files.isRegularFile(other) && Arrays.equals(Files.readAllBytes(file), Files.readAllBytes(other));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
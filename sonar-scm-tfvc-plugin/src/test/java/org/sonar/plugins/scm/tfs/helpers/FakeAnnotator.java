@@ -0,0 +1,612 @@
+/*
+ * SonarQube :: SCM :: TFVC :: Plugin
+ * Copyright (c) SonarSource SA and Microsoft Corporation.  All rights reserved.
+ *
+ * Licensed under the MIT License. See License.txt in the project root for license information.
+ */
+package org.sonar.plugins.scm.tfs.helpers;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Emulates the annotator protocol in memory, see SonarTfsAnnotate/Program.cs.
+ */
+public class FakeAnnotator {
+
+  private final Map<String, String> responses = new HashMap<>();
+  private final Map<String, List<String>> changes = new HashMap<>();
+  private final Map<String, String> contents = new HashMap<>();
+  private final Map<String, String> versions = new HashMap<>();
+  private final Map<String, Long> itemChangesets = new ConcurrentHashMap<>();
+  private final List<String> workspaces = new CopyOnWriteArrayList<>();
+  private final List<String> resolvedAccounts = new CopyOnWriteArrayList<>();
+  private final List<String> preloadedAccounts = new CopyOnWriteArrayList<>();
+  private final Map<String, List<String>> requestedPathsByCollection = new ConcurrentHashMap<>();
+  private final List<String> collectionUris = new CopyOnWriteArrayList<>();
+  private final List<String> requestedPaths = new CopyOnWriteArrayList<>();
+  private final Set<String> hangingPaths = ConcurrentHashMap.newKeySet();
+  private final Set<String> crashingPaths = ConcurrentHashMap.newKeySet();
+  private final Set<String> garbledTargets = ConcurrentHashMap.newKeySet();
+  private final Map<String, Integer> warnings = new ConcurrentHashMap<>();
+  private final Map<String, Long> delays = new ConcurrentHashMap<>();
+  private final AtomicInteger launches = new AtomicInteger();
+  private final AtomicInteger hangingConnections = new AtomicInteger();
+  private final AtomicInteger running = new AtomicInteger();
+  private volatile boolean compactCapable;
+
+  /**
+   * Registers the output for a path, i.e. the line count followed by the blame lines.
+   */
+  public FakeAnnotator respond(String path, String output) {
+    responses.put(path, output);
+    return this;
+  }
+
+  /**
+   * Registers the local paths of the files changed against a target branch or shelveset.
+   */
+  public FakeAnnotator respondChanges(String target, List<String> paths) {
+    changes.put(target, paths);
+    return this;
+  }
+
+  /**
+   * Registers the changeset of the last change of a local file in the workspace version. Without any, the changes
+   * since a changeset are answered like an older annotator does.
+   */
+  public FakeAnnotator respondItemChangeset(String localFile, long changeset) {
+    itemChangesets.put(localFile, changeset);
+    return this;
+  }
+
+  /**
+   * Registers the content of a local file in the version of a target branch or shelveset.
+   */
+  public FakeAnnotator respondContent(String target, String localFile, String content) {
+    contents.put(target + "\t" + localFile, content);
+    return this;
+  }
+
+  /**
+   * Registers the server path and the workspace changeset of a local file, the other files are answered like
+   * paths which do not exist.
+   */
+  public FakeAnnotator respondVersion(String localFile, String serverPath, long changeset) {
+    versions.put(localFile, serverPath + "\t" + changeset);
+    return this;
+  }
+
+  /**
+   * Registers a workspace mapping of the machine, i.e. a collection and the local root of a mapped path.
+   */
+  public FakeAnnotator mapWorkspace(String collectionUri, String root) {
+    workspaces.add(collectionUri + "\t" + root);
+    return this;
+  }
+
+  /**
+   * Registers an account the annotators report as resolved through the identity service.
+   */
+  public FakeAnnotator resolveAccount(String collectionUri, String accountName, String name, long resolvedMillis) {
+    resolvedAccounts.add(collectionUri + "\t" + accountName + "\t" + name + "\t" + resolvedMillis);
+    return this;
+  }
+
+  /**
+   * Emulates an annotator supporting the compact output format, otherwise the format request is answered like
+   * an unknown path, as done by older annotators.
+   */
+  public FakeAnnotator compactCapable() {
+    compactCapable = true;
+    return this;
+  }
+
+  /**
+   * Emulates an annotator which stops answering once it has echoed the path, or a request on the target branch or
+   * shelveset, until it is killed.
+   */
+  public FakeAnnotator hang(String path) {
+    hangingPaths.add(path);
+    return this;
+  }
+
+  /**
+   * Emulates an annotator which exits once it has echoed the path, the workspaces request, or a request on the
+   * target branch or shelveset.
+   */
+  public FakeAnnotator crash(String path) {
+    crashingPaths.add(path);
+    return this;
+  }
+
+  /**
+   * Emulates an annotator answering the requests on a target branch or shelveset, or on the changes since a
+   * changeset, with an invalid header.
+   */
+  public FakeAnnotator garble(String target) {
+    garbledTargets.add(target);
+    return this;
+  }
+
+  /**
+   * Emulates an annotator which takes the given time to annotate the path once it has echoed it.
+   */
+  public FakeAnnotator delay(String path, long millis) {
+    delays.put(path, millis);
+    return this;
+  }
+
+  /**
+   * Emulates an annotator which writes the given number of warnings on its error output before answering.
+   */
+  public FakeAnnotator warn(String path, int count) {
+    warnings.put(path, count);
+    return this;
+  }
+
+  /**
+   * Emulates annotators which do not start their handshake, until they are killed.
+   */
+  public FakeAnnotator hangOnConnect(int count) {
+    hangingConnections.set(count);
+    return this;
+  }
+
+  /**
+   * Starts a new emulated annotator process.
+   */
+  public Process launch() throws IOException {
+    launches.incrementAndGet();
+    return new FakeProcess();
+  }
+
+  public int launches() {
+    return launches.get();
+  }
+
+  /**
+   * @return the number of sessions not ended yet
+   */
+  public int running() {
+    return running.get();
+  }
+
+  public List<String> collectionUris() {
+    return Collections.unmodifiableList(collectionUris);
+  }
+
+  public List<String> requestedPaths() {
+    return Collections.unmodifiableList(requestedPaths);
+  }
+
+  /**
+   * @return the accounts preloaded into the annotators, as sent by the plugin
+   */
+  public List<String> preloadedAccounts() {
+    return Collections.unmodifiableList(preloadedAccounts);
+  }
+
+  /**
+   * @return the paths annotated by the annotators connected to the collection
+   */
+  public List<String> requestedPaths(String collectionUri) {
+    return Collections.unmodifiableList(requestedPathsByCollection.getOrDefault(collectionUri, Collections.emptyList()));
+  }
+
+  /**
+   * Runs one emulated session on the given streams.
+   */
+  public void run(InputStream stdin, OutputStream stdout, OutputStream stderr) throws IOException {
+    running.incrementAndGet();
+    try {
+      serve(stdin, stdout, stderr);
+    } finally {
+      running.decrementAndGet();
+    }
+  }
+
+  private void serve(InputStream stdin, OutputStream stdout, OutputStream stderr) throws IOException {
+    BufferedReader input = new BufferedReader(new InputStreamReader(stdin, StandardCharsets.UTF_8));
+    PrintWriter output = new PrintWriter(new OutputStreamWriter(stdout, StandardCharsets.UTF_8), true);
+    PrintWriter error = new PrintWriter(new OutputStreamWriter(stderr, StandardCharsets.UTF_8), true);
+
+    if (hangingConnections.getAndDecrement() > 0) {
+      waitUntilKilled();
+      return;
+    }
+
+    output.println("Enter your credentials - username, password, PAT (three separate rows):");
+    input.readLine();
+    input.readLine();
+    input.readLine();
+    output.println("Connecting using default credentials...");
+    output.println("Enter the Collection URI:");
+    String collectionUri = input.readLine();
+    collectionUris.add(collectionUri);
+    output.println("Enter the paths to annotate:");
+
+    String path;
+    boolean compact = false;
+    int sessionPreloaded = 0;
+    while ((path = input.readLine()) != null && !path.trim().isEmpty()) {
+      output.println(path);
+      if (compactCapable && "?format compact".equals(path)) {
+        compact = true;
+        output.println("FormatAccepted");
+        continue;
+      }
+
+      if ("?accounts".equals(path)) {
+        output.println("AccountsAccepted");
+        continue;
+      }
+
+      if (path.startsWith("?account ")) {
+        preloadedAccounts.add(path.substring("?account ".length()));
+        sessionPreloaded++;
+        output.println("AccountAccepted");
+        continue;
+      }
+
+      if ("?accounts resolved".equals(path)) {
+        // the preloaded accounts are hits, the others are resolved once
+        output.println(resolvedAccounts.size() + "\t" + sessionPreloaded + "\t" + resolvedAccounts.size() + "\t"
+          + 10 * resolvedAccounts.size());
+        resolvedAccounts.forEach(output::println);
+        continue;
+      }
+
+      if (path.startsWith("?changes since ") && !itemChangesets.isEmpty()) {
+        String target = path.substring(path.indexOf('\t') + 1);
+        if (garbledTargets.contains(target)) {
+          output.println("1\tlatest");
+          continue;
+        }
+        long since = Long.parseLong(target);
+        List<String> changedPaths = new ArrayList<>();
+        itemChangesets.forEach((localFile, changeset) -> {
+          if (changeset > since) {
+            changedPaths.add(localFile);
+          }
+        });
+        output.println(changedPaths.size() + "\t" + Collections.max(itemChangesets.values()));
+        changedPaths.forEach(output::println);
+        continue;
+      }
+
+      if (path.startsWith("?changes ")) {
+        String target = path.substring(path.indexOf('\t') + 1);
+        if (hangingPaths.contains(target)) {
+          waitUntilKilled();
+          return;
+        }
+        if (crashingPaths.contains(target)) {
+          return;
+        }
+        List<String> changedPaths = changes.get(target);
+        if (garbledTargets.contains(target)) {
+          output.println("garbled");
+        } else if (changedPaths == null) {
+          output.println("AnnotationFailedOnFile");
+          error.println("Unable to compare with " + target + ": The target does not exist.");
+        } else {
+          output.println(changedPaths.size());
+          changedPaths.forEach(output::println);
+        }
+        continue;
+      }
+
+      if (path.startsWith("?content ")) {
+        String key = path.substring(path.indexOf('\t') + 1);
+        String content = contents.get(key);
+        if (garbledTargets.contains(key.substring(0, key.indexOf('\t')))) {
+          output.println("-1");
+        } else if (content == null) {
+          output.println("AnnotationFailedOnFile");
+          error.println("Unable to compare with " + key.replace('\t', ' ') + ": The file does not exist.");
+        } else {
+          String[] lines = content.isEmpty() ? new String[0] : content.split("\n", -1);
+          output.println(lines.length);
+          for (String line : lines) {
+            output.println(line);
+          }
+        }
+        continue;
+      }
+
+      if ("?workspaces".equals(path)) {
+        if (crashingPaths.contains(path)) {
+          return;
+        }
+        output.println(workspaces.size());
+        workspaces.forEach(output::println);
+        continue;
+      }
+
+      if (path.startsWith("?version ")) {
+        String version = versions.get(path.substring("?version ".length()));
+        if (version == null) {
+          output.println("AnnotationFailedOnFile");
+          error.println("Unable to annotate the file " + path + ": The file does not exist.");
+        } else {
+          output.println(version);
+        }
+        continue;
+      }
+
+      requestedPaths.add(path);
+      requestedPathsByCollection.computeIfAbsent(collectionUri, uri -> new CopyOnWriteArrayList<>()).add(path);
+      if (hangingPaths.contains(path)) {
+        waitUntilKilled();
+        return;
+      }
+      if (crashingPaths.contains(path)) {
+        return;
+      }
+
+      Long delay = delays.get(path);
+      if (delay != null) {
+        output.flush();
+        sleep(delay);
+      }
+
+      for (int i = warnings.getOrDefault(path, 0); i > 0; i--) {
+        error.println("TF14061: warning " + i + " on " + path);
+      }
+
+      String response = responses.get(path);
+      if (response == null) {
+        output.println("AnnotationFailedOnFile");
+        error.println("Unable to annotate the file " + path + ": The file does not exist.");
+      } else {
+        output.print(compact ? toCompact(response) : response);
+        output.flush();
+      }
+    }
+  }
+
+  private static void waitUntilKilled() {
+    sleep(Long.MAX_VALUE);
+  }
+
+  private static void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Converts a text response into the compact format: a header with the number of lines, changesets and runs,
+   * one line per changeset, and a line with the runs as pairs of changeset index and length.
+   */
+  private static String toCompact(String response) {
+    String[] lines = response.split("\r?\n");
+    List<String> changesets = new ArrayList<>();
+    Map<String, Integer> indexes = new HashMap<>();
+    StringBuilder runs = new StringBuilder();
+    int runCount = 0;
+    int previous = -1;
+    int length = 0;
+    for (int i = 1; i < lines.length; i++) {
+      String[] fields = lines[i].split("\t", 4);
+      String changeset = fields[0] + "\t" + fields[1] + "\t" + fields[2];
+      int index = indexes.computeIfAbsent(changeset, key -> {
+        changesets.add(key);
+        return changesets.size() - 1;
+      });
+      if (index != previous && length > 0) {
+        runs.append(runCount++ == 0 ? "" : " ").append(previous).append(' ').append(length);
+        length = 0;
+      }
+      previous = index;
+      length++;
+    }
+    if (length > 0) {
+      runs.append(runCount++ == 0 ? "" : " ").append(previous).append(' ').append(length);
+    }
+
+    StringBuilder result = new StringBuilder();
+    result.append(lines[0]).append('\t').append(changesets.size()).append('\t').append(runCount).append("\r\n");
+    for (String changeset : changesets) {
+      result.append(changeset).append("\r\n");
+    }
+    return result.append(runs).append("\r\n").toString();
+  }
+
+  private final class FakeProcess extends Process {
+
+    private final Pipe stdin = new Pipe();
+    private final Pipe stdout = new Pipe();
+    private final Pipe stderr = new Pipe();
+    private final Thread thread;
+
+    FakeProcess() {
+      thread = new Thread(() -> {
+        try {
+          run(stdin.input, stdout.output, stderr.output);
+        } catch (IOException e) {
+          // the other side has gone
+        } finally {
+          closeQuietly(stdout.output);
+          closeQuietly(stderr.output);
+        }
+      }, "fake-annotator");
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+      return stdin.output;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+      return stdout.input;
+    }
+
+    @Override
+    public InputStream getErrorStream() {
+      return stderr.input;
+    }
+
+    @Override
+    public int waitFor() throws InterruptedException {
+      thread.join();
+      return 0;
+    }
+
+    @Override
+    public boolean waitFor(long timeout, TimeUnit unit) throws InterruptedException {
+      thread.join(unit.toMillis(timeout));
+      return !thread.isAlive();
+    }
+
+    @Override
+    public int exitValue() {
+      if (thread.isAlive()) {
+        throw new IllegalThreadStateException("process has not exited");
+      }
+      return 0;
+    }
+
+    @Override
+    public void destroy() {
+      thread.interrupt();
+      closeQuietly(stdin.output);
+    }
+
+    private void closeQuietly(OutputStream stream) {
+      try {
+        stream.close();
+      } catch (IOException e) {
+        // just ignore
+      }
+    }
+  }
+
+  /**
+   * Bounded in-memory pipe usable by any threads, unlike the piped streams of the JDK which fail once the
+   * last thread having read or written the pipe has ended, e.g. the thread which connected an annotator.
+   */
+  private static final class Pipe {
+
+    private final byte[] buffer = new byte[65536];
+    private int start;
+    private int count;
+    private boolean writerClosed;
+    private boolean readerClosed;
+
+    final InputStream input = new InputStream() {
+      @Override
+      public int read() throws IOException {
+        byte[] single = new byte[1];
+        return read(single, 0, 1) < 0 ? -1 : (single[0] & 0xff);
+      }
+
+      @Override
+      public int read(byte[] bytes, int offset, int length) throws IOException {
+        return Pipe.this.read(bytes, offset, length);
+      }
+
+      @Override
+      public int available() {
+        synchronized (Pipe.this) {
+          return count;
+        }
+      }
+
+      @Override
+      public void close() {
+        synchronized (Pipe.this) {
+          readerClosed = true;
+          Pipe.this.notifyAll();
+        }
+      }
+    };
+
+    final OutputStream output = new OutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+      }
+
+      @Override
+      public void write(byte[] bytes, int offset, int length) throws IOException {
+        Pipe.this.write(bytes, offset, length);
+      }
+
+      @Override
+      public void close() {
+        synchronized (Pipe.this) {
+          writerClosed = true;
+          Pipe.this.notifyAll();
+        }
+      }
+    };
+
+    private synchronized int read(byte[] bytes, int offset, int length) throws IOException {
+      if (length == 0) {
+        return 0;
+      }
+      while (count == 0) {
+        if (writerClosed || readerClosed) {
+          return -1;
+        }
+        await();
+      }
+
+      int read = Math.min(length, count);
+      for (int i = 0; i < read; i++) {
+        bytes[offset + i] = buffer[(start + i) % buffer.length];
+      }
+      start = (start + read) % buffer.length;
+      count -= read;
+      notifyAll();
+      return read;
+    }
+
+    private synchronized void write(byte[] bytes, int offset, int length) throws IOException {
+      for (int i = 0; i < length; i++) {
+        while (count == buffer.length && !readerClosed && !writerClosed) {
+          await();
+        }
+        if (readerClosed || writerClosed) {
+          throw new IOException("Pipe closed");
+        }
+        buffer[(start + count) % buffer.length] = bytes[offset + i];
+        count++;
+      }
+      notifyAll();
+    }
+
+    private void await() throws InterruptedIOException {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Pipe interrupted");
+      }
+    }
+  }
+}
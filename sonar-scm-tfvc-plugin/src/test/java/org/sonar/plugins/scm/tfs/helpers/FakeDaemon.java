@@ -0,0 +1,138 @@
+/*
+ * SonarQube :: SCM :: TFVC :: Plugin
+ * Copyright (c) SonarSource SA and Microsoft Corporation.  All rights reserved.
+ *
+ * Licensed under the MIT License. See License.txt in the project root for license information.
+ */
+package org.sonar.plugins.scm.tfs.helpers;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Emulates the annotator daemon on a loopback socket, see SonarTfsAnnotate/DaemonServer.cs.
+ * The sessions are served by a {@link FakeAnnotator}.
+ */
+public class FakeDaemon implements Closeable {
+
+  private final FakeAnnotator annotator;
+  private final ServerSocket server;
+  private final String token = UUID.randomUUID().toString();
+  private final AtomicInteger sessions = new AtomicInteger();
+
+  public FakeDaemon(FakeAnnotator annotator) throws IOException {
+    this.annotator = annotator;
+    this.server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    Thread acceptor = new Thread(this::accept, "fake-daemon");
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  /**
+   * Publishes the port and the token like the daemon does once it listens.
+   */
+  public FakeDaemon register(Path registry) throws IOException {
+    Files.createDirectories(registry.getParent());
+    Files.write(registry, ("port=" + port() + "\ntoken=" + token + "\n").getBytes(StandardCharsets.UTF_8));
+    return this;
+  }
+
+  public int port() {
+    return server.getLocalPort();
+  }
+
+  public int sessions() {
+    return sessions.get();
+  }
+
+  @Override
+  public void close() throws IOException {
+    server.close();
+  }
+
+  private void accept() {
+    while (!server.isClosed()) {
+      try {
+        Socket socket = server.accept();
+        Thread session = new Thread(() -> serve(socket), "fake-daemon-session");
+        session.setDaemon(true);
+        session.start();
+      } catch (IOException e) {
+        // closed
+      }
+    }
+  }
+
+  private void serve(Socket socket) {
+    try (Socket connection = socket) {
+      InputStream input = connection.getInputStream();
+      OutputStream output = connection.getOutputStream();
+      if (!token.equals(readLine(input))) {
+        return;
+      }
+
+      output.write("Accepted\r\n".getBytes(StandardCharsets.UTF_8));
+      output.flush();
+      sessions.incrementAndGet();
+      annotator.run(input, new ChannelOutputStream(output, 'O'), new ChannelOutputStream(output, 'E'));
+    } catch (IOException e) {
+      // the other side has gone
+    }
+  }
+
+  private static String readLine(InputStream input) throws IOException {
+    ByteArrayOutputStream line = new ByteArrayOutputStream();
+    int c;
+    while ((c = input.read()) >= 0 && c != '\n') {
+      if (c != '\r') {
+        line.write(c);
+      }
+    }
+    return new String(line.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Writes complete lines to the connection, prefixed with the channel.
+   */
+  private static final class ChannelOutputStream extends OutputStream {
+
+    private final OutputStream connection;
+    private final char channel;
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+    ChannelOutputStream(OutputStream connection, char channel) {
+      this.connection = connection;
+      this.channel = channel;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      line.write(b);
+      if (b == '\n') {
+        synchronized (connection) {
+          connection.write(channel);
+          line.writeTo(connection);
+        }
+        line.reset();
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      synchronized (connection) {
+        connection.flush();
+      }
+    }
+  }
+}
@@ -0,0 +1,232 @@
+/*
+ * SonarQube :: SCM :: TFVC :: Plugin
+ * Copyright (c) SonarSource SA and Microsoft Corporation.  All rights reserved.
+ *
+ * Licensed under the MIT License. See License.txt in the project root for license information.
+ */
+package org.sonar.plugins.scm.tfs.helpers;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves canned changesets and item contents on a loopback port, like the TFVC REST API of a collection.
+ */
+public class FakeTfvcServer implements Closeable {
+
+  private static final String COLLECTION_PATH = "/tfs/DefaultCollection";
+
+  private final HttpServer server;
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+  private final Map<String, NavigableMap<Long, Revision>> items = new ConcurrentHashMap<>();
+  private final List<String> authorizations = new CopyOnWriteArrayList<>();
+  private final AtomicInteger historyRequests = new AtomicInteger();
+  private final AtomicInteger contentRequests = new AtomicInteger();
+  private final AtomicInteger itemsRequests = new AtomicInteger();
+  private final List<String> historyPaths = new CopyOnWriteArrayList<>();
+  private volatile String requiredAuthorization;
+  private volatile long historyDelayMillis;
+
+  public FakeTfvcServer() throws IOException {
+    // answers without waiting for the delayed acknowledgement of the headers by the client
+    System.setProperty("sun.net.httpserver.nodelay", "true");
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.createContext(COLLECTION_PATH + "/_apis/tfvc/changesets", exchange -> serve(exchange, this::history));
+    server.createContext(COLLECTION_PATH + "/_apis/tfvc/items",
+      exchange -> serve(exchange, query -> query.containsKey("scopePath") ? items(query) : content(query)));
+    server.setExecutor(executor);
+    server.start();
+  }
+
+  public String collectionUri() {
+    return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + COLLECTION_PATH;
+  }
+
+  /**
+   * Adds a version of the item, the date is in ISO 8601 format.
+   */
+  public FakeTfvcServer checkin(String serverPath, long changeset, String author, String date, String content) {
+    items.computeIfAbsent(serverPath, path -> Collections.synchronizedNavigableMap(new TreeMap<>()))
+      .put(changeset, new Revision(author, date, content));
+    return this;
+  }
+
+  /**
+   * Answers with 401 to the requests without this authorization header.
+   */
+  public FakeTfvcServer requireAuthorization(String authorization) {
+    this.requiredAuthorization = authorization;
+    return this;
+  }
+
+  /**
+   * Delays the answers to the history requests, e.g. to use up a blame budget.
+   */
+  public FakeTfvcServer delayHistory(long millis) {
+    this.historyDelayMillis = millis;
+    return this;
+  }
+
+  public List<String> authorizations() {
+    return authorizations;
+  }
+
+  public int historyRequests() {
+    return historyRequests.get();
+  }
+
+  public int contentRequests() {
+    return contentRequests.get();
+  }
+
+  public int itemsRequests() {
+    return itemsRequests.get();
+  }
+
+  /**
+   * @return the server paths whose history was requested, once per request
+   */
+  public List<String> historyPaths() {
+    return historyPaths;
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  private void serve(HttpExchange exchange, Handler handler) throws IOException {
+    try {
+      String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+      authorizations.add(authorization != null ? authorization : "");
+      if (requiredAuthorization != null && !requiredAuthorization.equals(authorization)) {
+        exchange.sendResponseHeaders(401, -1);
+        return;
+      }
+
+      byte[] body = handler.handle(query(exchange.getRequestURI().getRawQuery()));
+      if (body == null) {
+        exchange.sendResponseHeaders(404, -1);
+        return;
+      }
+      exchange.sendResponseHeaders(200, body.length);
+      try (OutputStream output = exchange.getResponseBody()) {
+        output.write(body);
+      }
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private byte[] history(Map<String, String> query) {
+    historyRequests.incrementAndGet();
+    historyPaths.add(query.get("searchCriteria.itemPath"));
+    if (historyDelayMillis > 0) {
+      try {
+        Thread.sleep(historyDelayMillis);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    NavigableMap<Long, Revision> revisions = items.get(query.get("searchCriteria.itemPath"));
+    if (revisions == null) {
+      return null;
+    }
+
+    List<Map.Entry<Long, Revision>> newestFirst;
+    synchronized (revisions) {
+      newestFirst = new ArrayList<>(revisions.descendingMap().entrySet());
+    }
+    int skip = Integer.parseInt(query.getOrDefault("$skip", "0"));
+    int top = Integer.parseInt(query.getOrDefault("$top", "100"));
+    List<Map.Entry<Long, Revision>> page = newestFirst.subList(Math.min(skip, newestFirst.size()),
+      Math.min(skip + top, newestFirst.size()));
+
+    StringBuilder json = new StringBuilder("{\"count\":").append(page.size()).append(",\"value\":[");
+    for (int i = 0; i < page.size(); i++) {
+      Revision revision = page.get(i).getValue();
+      json.append(i > 0 ? "," : "")
+        .append("{\"changesetId\":").append(page.get(i).getKey())
+        .append(",\"author\":{\"displayName\":\"").append(revision.author).append(" (display)\",\"uniqueName\":\"")
+        .append(revision.author).append("\"}")
+        .append(",\"createdDate\":\"").append(revision.date).append("\"")
+        .append(",\"comment\":\"Changeset \\\"").append(page.get(i).getKey()).append("\\\"\"}");
+    }
+    return json.append("]}").toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  private byte[] content(Map<String, String> query) {
+    contentRequests.incrementAndGet();
+    NavigableMap<Long, Revision> revisions = items.get(query.get("path"));
+    Revision revision = revisions != null ? revisions.get(Long.parseLong(query.get("versionDescriptor.version"))) : null;
+    return revision != null ? revision.content.getBytes(StandardCharsets.UTF_8) : null;
+  }
+
+  private byte[] items(Map<String, String> query) {
+    itemsRequests.incrementAndGet();
+    String scope = query.get("scopePath");
+    StringBuilder values = new StringBuilder();
+    int count = 0;
+    for (Map.Entry<String, NavigableMap<Long, Revision>> item : new TreeMap<>(items).entrySet()) {
+      if (!item.getKey().startsWith(scope + "/")) {
+        continue;
+      }
+      long version;
+      synchronized (item.getValue()) {
+        version = item.getValue().lastKey();
+      }
+      values.append(count++ > 0 ? "," : "")
+        .append("{\"path\":\"").append(item.getKey()).append("\",\"version\":").append(version)
+        .append(",\"isFolder\":false}");
+    }
+    return ("{\"count\":" + (count + 1) + ",\"value\":[{\"path\":\"" + scope + "\",\"version\":1,\"isFolder\":true}"
+      + (count > 0 ? "," : "") + values + "]}").getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static Map<String, String> query(String rawQuery) throws UnsupportedEncodingException {
+    Map<String, String> result = new HashMap<>();
+    for (String parameter : rawQuery.split("&")) {
+      int separator = parameter.indexOf('=');
+      result.put(URLDecoder.decode(parameter.substring(0, separator), "UTF-8"),
+        URLDecoder.decode(parameter.substring(separator + 1), "UTF-8"));
+    }
+    return result;
+  }
+
+  private interface Handler {
+    byte[] handle(Map<String, String> query);
+  }
+
+  private static final class Revision {
+    private final String author;
+    private final String date;
+    private final String content;
+
+    Revision(String author, String date, String content) {
+      this.author = author;
+      this.date = date;
+      this.content = content;
+    }
+  }
+}
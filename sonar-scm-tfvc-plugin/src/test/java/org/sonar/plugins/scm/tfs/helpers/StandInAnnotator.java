@@ -0,0 +1,256 @@
+/*
+ * SonarQube :: SCM :: TFVC :: Plugin
+ * Copyright (c) SonarSource SA and Microsoft Corporation.  All rights reserved.
+ *
+ * Licensed under the MIT License. See License.txt in the project root for license information.
+ */
+package org.sonar.plugins.scm.tfs.helpers;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stands in for the annotator in a process of its own, so that the plugin can launch it as the executable on any
+ * platform. It speaks the protocol of SonarTfsAnnotate/AnnotationSession.cs and annotates the files found on disk
+ * with synthetic changesets. Its behavior is set by options on the command line:
+ * <ul>
+ *   <li>{@code --latency=<ms>} waits before answering each file</li>
+ *   <li>{@code --stderr=<lines>} writes warnings on the error output before answering each file</li>
+ *   <li>{@code --lines=<count>} answers with that many lines instead of the lines of the file</li>
+ *   <li>{@code --changesets=<count>} attributes the lines to that many changesets, by blocks of ten lines</li>
+ *   <li>{@code --crash-after=<files>} exits once it has echoed the file following that many files</li>
+ *   <li>{@code --hang-after=<files>} stops answering once it has echoed the file following that many files</li>
+ *   <li>{@code --text} refuses the compact format, like older annotators</li>
+ * </ul>
+ */
+public final class StandInAnnotator {
+
+  private static final String NEWLINE = "\r\n";
+  private static final long FIRST_DATE = 1430736199000L;
+
+  private final BufferedReader input;
+  private final Writer output;
+  private final Writer error;
+  private final long latency;
+  private final int stderrLines;
+  private final int lineCount;
+  private final int changesets;
+  private final int crashAfter;
+  private final int hangAfter;
+  private final boolean textOnly;
+  private boolean compact;
+  private int annotated;
+
+  private StandInAnnotator(Map<String, String> options) {
+    input = new BufferedReader(new InputStreamReader(new FileInputStream(FileDescriptor.in), StandardCharsets.UTF_8));
+    output = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(FileDescriptor.out), StandardCharsets.UTF_8), 65536);
+    error = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(FileDescriptor.err), StandardCharsets.UTF_8), 65536);
+    latency = Long.parseLong(options.getOrDefault("latency", "0"));
+    stderrLines = Integer.parseInt(options.getOrDefault("stderr", "0"));
+    lineCount = Integer.parseInt(options.getOrDefault("lines", "-1"));
+    changesets = Integer.parseInt(options.getOrDefault("changesets", "20"));
+    crashAfter = Integer.parseInt(options.getOrDefault("crash-after", "-1"));
+    hangAfter = Integer.parseInt(options.getOrDefault("hang-after", "-1"));
+    textOnly = options.containsKey("text");
+  }
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    Map<String, String> options = new HashMap<>();
+    for (String arg : args) {
+      int separator = arg.indexOf('=');
+      options.put(arg.substring(2, separator < 0 ? arg.length() : separator), separator < 0 ? "" : arg.substring(separator + 1));
+    }
+    new StandInAnnotator(options).serve();
+  }
+
+  /**
+   * Writes a launcher script in the directory which starts the stand-in with the given options in a new JVM.
+   *
+   * @return the script, to be used as the executable of the annotator
+   */
+  public static File install(Path directory, String... options) throws IOException {
+    boolean windows = System.getProperty("os.name").startsWith("Windows");
+    String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+    StringBuilder command = new StringBuilder()
+      .append('"').append(java).append("\" -Xmx64m -XX:TieredStopAtLevel=1 -XX:+UseSerialGC -cp \"")
+      .append(System.getProperty("java.class.path")).append("\" ").append(StandInAnnotator.class.getName());
+    Arrays.stream(options).forEach(option -> command.append(' ').append(option));
+
+    Path script = directory.resolve(windows ? "annotator.cmd" : "annotator.sh");
+    String content = windows ? ("@ECHO OFF" + NEWLINE + command + NEWLINE) : ("#!/bin/sh\nexec " + command + "\n");
+    Files.write(script, content.getBytes(StandardCharsets.UTF_8));
+    if (!script.toFile().setExecutable(true)) {
+      throw new IOException("Unable to make the launcher executable: " + script);
+    }
+    return script.toFile();
+  }
+
+  /**
+   * Creates files of the given number of lines in the directory, each line being distinct.
+   */
+  public static List<Path> createFiles(Path directory, int count, int linesPerFile) throws IOException {
+    List<Path> files = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      StringBuilder content = new StringBuilder();
+      for (int line = 0; line < linesPerFile; line++) {
+        content.append("file ").append(i).append(" line ").append(line).append('\n');
+      }
+      Path file = directory.resolve("File" + i + ".java");
+      Files.write(file, content.toString().getBytes(StandardCharsets.UTF_8));
+      files.add(file);
+    }
+    return files;
+  }
+
+  private void serve() throws IOException, InterruptedException {
+    writeLine(output, "Enter your credentials - username, password, PAT (three separate rows):");
+    output.flush();
+    for (int i = 0; i < 3; i++) {
+      input.readLine();
+    }
+    writeLine(output, "Connecting using default credentials...");
+    writeLine(output, "Enter the Collection URI:");
+    output.flush();
+    String collectionUri = input.readLine();
+    if (collectionUri == null || collectionUri.isEmpty()) {
+      writeLine(output, "AnnotationFailedOnProject");
+      output.flush();
+      writeLine(error, "Unable to connect: The collection URI is missing.");
+      error.flush();
+      return;
+    }
+    writeLine(output, "Enter the paths to annotate:");
+    output.flush();
+
+    String path;
+    while ((path = input.readLine()) != null && !path.trim().isEmpty()) {
+      writeLine(output, path);
+      if (path.startsWith("?")) {
+        answerRequest(path);
+      } else {
+        annotate(path);
+      }
+      output.flush();
+    }
+  }
+
+  private void answerRequest(String request) throws IOException {
+    if ("?format compact".equals(request) && !textOnly) {
+      compact = true;
+      writeLine(output, "FormatAccepted");
+      return;
+    }
+
+    int separator = request.indexOf(' ');
+    Path file = separator < 0 ? null : localFile(request.substring(separator + 1));
+    if (request.startsWith("?version ") && file != null) {
+      writeLine(output, "$/StandIn/" + file.getFileName() + "\t" + changesets);
+    } else if ("?workspaces".equals(request)) {
+      // no mapping known, the files are annotated against the collection of the session
+      writeLine(output, "0");
+    } else {
+      fail(request, "The request is not supported.");
+    }
+  }
+
+  private void annotate(String path) throws IOException, InterruptedException {
+    if (annotated == crashAfter) {
+      output.flush();
+      Runtime.getRuntime().halt(1);
+    }
+    if (annotated == hangAfter) {
+      output.flush();
+      Thread.sleep(Long.MAX_VALUE);
+    }
+    annotated++;
+    output.flush();
+
+    Path file = localFile(path);
+    if (file == null) {
+      fail(path, "The file does not exist.");
+      return;
+    }
+
+    List<String> lines = Files.readAllLines(file, StandardCharsets.ISO_8859_1);
+    if (latency > 0) {
+      Thread.sleep(latency);
+    }
+    for (int i = 1; i <= stderrLines; i++) {
+      writeLine(error, "TF14061: warning " + i + " on " + path);
+    }
+    error.flush();
+
+    int count = lineCount >= 0 ? lineCount : lines.size();
+    if (compact) {
+      writeCompact(count);
+    } else {
+      writeLine(output, Integer.toString(count));
+      for (int i = 0; i < count; i++) {
+        writeLine(output, changeset((i / 10) % changesets) + "\t" + (i < lines.size() ? lines.get(i) : ""));
+      }
+    }
+  }
+
+  /**
+   * Writes the header with the number of lines, changesets and runs, the changesets, and the runs as pairs of
+   * changeset index and length, where each run is a block of ten lines.
+   */
+  private void writeCompact(int count) throws IOException {
+    int runs = (count + 9) / 10;
+    int used = Math.min(runs, changesets);
+    writeLine(output, count + "\t" + used + "\t" + runs);
+    for (int i = 0; i < used; i++) {
+      writeLine(output, changeset(i));
+    }
+    StringBuilder line = new StringBuilder();
+    for (int run = 0; run < runs; run++) {
+      line.append(run > 0 ? " " : "").append(run % changesets).append(' ').append(Math.min(10, count - run * 10));
+    }
+    writeLine(output, line.toString());
+  }
+
+  private static String changeset(int index) {
+    return (index + 1) + "\tSTANDIN\\user" + index % 7 + "\t" + (FIRST_DATE + index * 60_000L);
+  }
+
+  private void fail(String subject, String message) throws IOException {
+    writeLine(output, "AnnotationFailedOnFile");
+    writeLine(error, "Unable to annotate the file " + subject + ": " + message);
+    error.flush();
+  }
+
+  /**
+   * Finds the file of a path sent by the plugin, which skips the leading slash of absolute paths.
+   */
+  private static Path localFile(String path) {
+    for (String candidate : new String[] {path, "/" + path}) {
+      Path file = Paths.get(candidate);
+      if (file.isAbsolute() && Files.isRegularFile(file)) {
+        return file;
+      }
+    }
+    return null;
+  }
+
+  private static void writeLine(Writer writer, String line) throws IOException {
+    writer.write(line);
+    writer.write(NEWLINE);
+  }
+}
@@ -16,6 +16,7 @@ public class TestAppender extends ConsoleAppender<ILoggingEvent> {
 
   private final List<String> errorEvents = new ArrayList<>();
   private final List<String> warningEvents = new ArrayList<>();
+  private final List<String> infoEvents = new ArrayList<>();
   private final List<String> debugEvents = new ArrayList<>();
 
   @Override
@@ -26,6 +27,9 @@ public class TestAppender extends ConsoleAppender<ILoggingEvent> {
     if (event.getLevel() == Level.WARN) {
       warningEvents.add(event.getFormattedMessage());
     }
+    if (event.getLevel() == Level.INFO) {
+      infoEvents.add(event.getFormattedMessage());
+    }
     if (event.getLevel() == Level.DEBUG) {
       debugEvents.add(event.getFormattedMessage());
     }
@@ -39,6 +43,10 @@ public class TestAppender extends ConsoleAppender<ILoggingEvent> {
     return warningEvents;
   }
 
+  public List<String> getInfoEvents() {
+    return infoEvents;
+  }
+
   public List<String> getDebugEvents() {
     return debugEvents;
   }